@@ -61,9 +61,8 @@ final class ApacheHttpClientBlockingChannel implements BlockingChannel {
     @Override
     public Response execute(Endpoint endpoint, Request request) throws IOException {
         // Create base request given the URL
-        URL target = baseUrl.render(endpoint, request);
         RequestBuilder builder =
-                RequestBuilder.create(endpoint.httpMethod().name()).setUri(target.toString());
+                RequestBuilder.create(endpoint.httpMethod().name()).setUri(baseUrl.renderUri(endpoint, request));
 
         // Fill headers
         request.headerParams().forEach(builder::addHeader);
@@ -26,9 +26,8 @@ import com.palantir.dialogue.Response;
 
 final class ActiveRequestInstrumentationChannel implements Channel {
 
-    private final String channelName;
     private final String stage;
-    private final DialogueClientMetrics metrics;
+    private final ServiceNameCache<Counter> counters;
     private final Channel delegate;
 
     ActiveRequestInstrumentationChannel(
@@ -36,18 +35,17 @@ final class ActiveRequestInstrumentationChannel implements Channel {
         // The delegate must never be allowed to throw, otherwise the counter may be incremented without
         // being decremented.
         this.delegate = new NeverThrowChannel(delegate);
-        this.channelName = channelName;
         this.stage = stage;
-        this.metrics = metrics;
+        this.counters = new ServiceNameCache<>(serviceName -> metrics.requestActive()
+                .channelName(channelName)
+                .serviceName(serviceName)
+                .stage(stage)
+                .build());
     }
 
     @Override
     public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
-        Counter counter = metrics.requestActive()
-                .channelName(channelName)
-                .serviceName(endpoint.serviceName())
-                .stage(stage)
-                .build();
+        Counter counter = counters.get(endpoint.serviceName());
         counter.inc();
         return DialogueFutures.addDirectListener(delegate.execute(endpoint, request), counter::dec);
     }
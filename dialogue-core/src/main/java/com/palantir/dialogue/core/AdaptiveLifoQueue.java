@@ -0,0 +1,145 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Queues deferred calls in order until a standing queue builds up, then switches to executing the most recently
+ * queued calls first and sheds stale calls, so that fresh requests are still executed quickly during overload and
+ * stale requests fail fast rather than every request waiting for the maximum time.
+ *
+ * Like CoDel, the queue is considered overloaded once the time spent queued by the oldest call has exceeded the
+ * {@code target} for a whole {@code interval}: a queue which drains occasionally absorbs bursts, but a queue which
+ * never drains only adds latency. While overloaded, calls are dequeued last-in-first-out, and calls which have been
+ * queued for longer than the {@code interval} are shed. The queue returns to first-in-first-out once the oldest call
+ * has been queued for less than the {@code target} at some point during an interval.
+ *
+ * All operations take a lock, but the queue is only used once the channel is limited, so the lock-free fast path of
+ * the {@link QueuedChannel} is unaffected.
+ */
+final class AdaptiveLifoQueue implements QueuedChannel.CallQueue {
+
+    private final Ticker clock;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final Meter lifoMeter;
+    private final Meter fifoMeter;
+
+    @GuardedBy("this")
+    private final Deque<QueuedChannel.DeferredCall> calls = new ArrayDeque<>();
+
+    @GuardedBy("this")
+    private boolean overloaded;
+
+    @GuardedBy("this")
+    private long intervalStart;
+
+    // Minimum time the oldest queued call had spent queued when observed during the current interval
+    @GuardedBy("this")
+    private long minSojournNanos;
+
+    AdaptiveLifoQueue(
+            Duration target, Duration interval, Ticker clock, DialogueClientMetrics metrics, String channelName) {
+        Preconditions.checkArgument(
+                !target.isNegative() && !target.isZero(), "target must be positive", SafeArg.of("target", target));
+        Preconditions.checkArgument(
+                interval.compareTo(target) > 0,
+                "interval must be longer than the target",
+                SafeArg.of("target", target),
+                SafeArg.of("interval", interval));
+        this.clock = clock;
+        this.targetNanos = target.toNanos();
+        this.intervalNanos = interval.toNanos();
+        this.lifoMeter = metrics.requestQueuedDiscipline()
+                .channelName(channelName)
+                .discipline("lifo")
+                .build();
+        this.fifoMeter = metrics.requestQueuedDiscipline()
+                .channelName(channelName)
+                .discipline("fifo")
+                .build();
+        this.intervalStart = clock.read();
+        this.minSojournNanos = Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized boolean offer(QueuedChannel.DeferredCall call) {
+        calls.addLast(call);
+        return true;
+    }
+
+    /** Returns a call which could not be executed to the end of the queue it was polled from. */
+    @Override
+    public synchronized boolean offerFirst(QueuedChannel.DeferredCall call) {
+        if (overloaded) {
+            calls.addLast(call);
+        } else {
+            calls.addFirst(call);
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public synchronized QueuedChannel.DeferredCall poll() {
+        update(clock.read());
+        return overloaded ? calls.pollLast() : calls.pollFirst();
+    }
+
+    @Nullable
+    @Override
+    public synchronized QueuedChannel.DeferredCall pollShed() {
+        long now = clock.read();
+        update(now);
+        QueuedChannel.DeferredCall oldest = calls.peekFirst();
+        if (overloaded && oldest != null && now - oldest.enqueued() > intervalNanos) {
+            return calls.pollFirst();
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private void update(long now) {
+        QueuedChannel.DeferredCall oldest = calls.peekFirst();
+        long sojournNanos = oldest == null ? 0 : now - oldest.enqueued();
+        minSojournNanos = Math.min(minSojournNanos, sojournNanos);
+        if (now - intervalStart < intervalNanos) {
+            return;
+        }
+        boolean wasOverloaded = overloaded;
+        overloaded = minSojournNanos > targetNanos;
+        if (overloaded != wasOverloaded) {
+            (overloaded ? lifoMeter : fifoMeter).mark();
+        }
+        intervalStart = now;
+        minSojournNanos = sojournNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveLifoQueue{targetNanos=" + targetNanos + ", intervalNanos=" + intervalNanos + '}';
+    }
+}
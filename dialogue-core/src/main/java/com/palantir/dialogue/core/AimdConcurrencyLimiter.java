@@ -16,58 +16,91 @@
 
 package com.palantir.dialogue.core;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.palantir.dialogue.Response;
-import java.io.IOException;
-import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.IntBinaryOperator;
+import javax.annotation.Nullable;
 
 /**
- * Simple lock-free additive increase multiplicative decrease concurrency limiter. Typically, a dispatching
- * {@link com.palantir.dialogue.Request} tries to {@link #acquire} a new permit and releases it when the
- * corresponding {@link Response} is retrieved.
+ * Simple lock-free additive increase multiplicative decrease concurrency limiter. The limit is only decreased when
+ * requests fail, so a host which slows down without failing is not detected.
  *
  * This class is a stripped-down version of the
  * <a href="https://github.com/Netflix/concurrency-limits">Netflix AIMD library</a>.
+ *
+ * Requests to a host from many threads would contend on shared counters, so in-flight requests are counted by a
+ * striped {@link LongAdder}, and additive increases are batched in another one. Increases are only applied to the
+ * limit when it is read by {@link #getLimit}, when a request would otherwise be rejected, and before the limit is
+ * decreased, so every decision is made against the same limit as if increases had been applied immediately, but
+ * successful requests don't write to the shared limit.
+ *
+ * A permit only records the number of requests in flight when it was acquired, so permits are reused rather than
+ * allocated for every request.
  */
-final class AimdConcurrencyLimiter {
+final class AimdConcurrencyLimiter implements ConcurrencyLimiter {
 
     private static final int INITIAL_LIMIT = 20;
     private static final double BACKOFF_RATIO = .9D;
     private static final int MIN_LIMIT = 1;
     // Effectively unlimited, reduced from MAX_VALUE to prevent overflow
     private static final int MAX_LIMIT = Integer.MAX_VALUE / 2;
+    // Permits are allocated for larger numbers of requests in flight, which are rare
+    private static final int MAX_REUSED_PERMITS = 1024;
 
     private final AtomicInteger limit = new AtomicInteger(INITIAL_LIMIT);
-    private final AtomicInteger inFlight = new AtomicInteger();
-
-    /**
-     * Returns a new request permit if the number of {@link #getInflight in-flight} permits is smaller than the
-     * current {@link #getLimit upper limit} of allowed concurrent permits. The caller is responsible for
-     * eventually releasing the permit by calling exactly one of the {@link Permit#ignore}, {@link Permit#dropped},
-     * or {@link Permit#success} methods.
-     *
-     * If the permit
-     * is used in the context of a {@link Response Future&lt;Response&gt;} object, then passing the {@link Permit} as a
-     * {@link FutureCallback callback} to the future will invoke either {@link Permit#onSuccess} or
-     * {@link Permit#onFailure} which delegate to
-     * ignore/dropped/success depending on the success or failure state of the response.
-     * */
-    Optional<Permit> acquire() {
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder pendingIncreases = new LongAdder();
+    // Indexed by the in-flight snapshot, populated lazily. Racing threads may both allocate a permit, which is benign.
+    private final Permit[] permits = new Permit[MAX_REUSED_PERMITS];
+
+    @Nullable
+    @Override
+    public Permit acquire() {
+        int currentInFlight = getInflight();
+        // Pending increases are only applied once the limit appears to have been reached
+        if (currentInFlight >= limit.get() && currentInFlight >= getLimit()) {
+            return null;
+        }
+        return createToken(currentInFlight);
+    }
+
+    @Nullable
+    @Override
+    public Permit acquire(RequestPriority priority) {
         int currentInFlight = getInflight();
-        if (currentInFlight >= getLimit()) {
-            return Optional.empty();
+        if (currentInFlight >= ConcurrencyLimiter.limitFor(limit.get(), priority)
+                && currentInFlight >= ConcurrencyLimiter.limitFor(getLimit(), priority)) {
+            return null;
+        }
+        return createToken(currentInFlight);
+    }
+
+    private Permit createToken(int currentInFlight) {
+        inFlight.increment();
+        // The striped sum isn't an atomic snapshot, so it may briefly be negative
+        int inFlightSnapshot = Math.max(1, currentInFlight + 1);
+        if (inFlightSnapshot >= MAX_REUSED_PERMITS) {
+            return new Permit(inFlightSnapshot);
         }
-        return Optional.of(createToken());
+        Permit permit = permits[inFlightSnapshot];
+        if (permit == null) {
+            permit = new Permit(inFlightSnapshot);
+            permits[inFlightSnapshot] = permit;
+        }
+        return permit;
     }
 
-    private Permit createToken() {
-        int inFlightSnapshot = inFlight.incrementAndGet();
-        return new Permit(inFlightSnapshot);
+    /** Applies the batched additive increases, returning the up to date limit. */
+    private int applyPendingIncreases() {
+        // Avoids writing to the stripes while there is nothing to apply
+        if (pendingIncreases.sum() == 0) {
+            return limit.get();
+        }
+        long increases = pendingIncreases.sumThenReset();
+        return limit.accumulateAndGet((int) Math.min(MAX_LIMIT, increases), LimitUpdater.INCREASE);
     }
 
-    final class Permit implements FutureCallback<Response> {
+    final class Permit implements ConcurrencyLimiter.Permit {
         private final int inFlightSnapshot;
 
         Permit(int inFlightSnapshot) {
@@ -75,58 +108,35 @@ final class AimdConcurrencyLimiter {
         }
 
         @Override
-        public void onSuccess(Response result) {
-            if (Responses.isQosStatus(result) || Responses.isServerError(result)) {
-                dropped();
-            } else {
-                success();
-            }
+        public void ignore() {
+            inFlight.decrement();
         }
 
+        /** The concurrency limit is multiplicatively decreased. */
         @Override
-        public void onFailure(Throwable throwable) {
-            if (throwable instanceof IOException) {
-                dropped();
-            } else {
-                ignore();
-            }
-        }
-
-        /**
-         * Indicates that the effect of the request corresponding to this permit on concurrency limits should be
-         * ignored.
-         */
-        void ignore() {
-            inFlight.decrementAndGet();
-        }
-
-        /**
-         * Indicates that the request corresponding to this permit was dropped and that the concurrency limit should be
-         * multiplicatively decreased.
-         */
-        void dropped() {
-            inFlight.decrementAndGet();
+        public void dropped() {
+            inFlight.decrement();
+            applyPendingIncreases();
             limit.accumulateAndGet(inFlightSnapshot, LimitUpdater.DROPPED);
         }
 
-        /**
-         * Indicates that the request corresponding to this permit was successful and that the concurrency limit should
-         * be additively increased.
-         */
-        void success() {
-            inFlight.decrementAndGet();
-            limit.accumulateAndGet(inFlightSnapshot, LimitUpdater.SUCCESS);
+        /** The concurrency limit is additively increased. */
+        @Override
+        public void success() {
+            inFlight.decrement();
+            // Pending increases count towards the limit, otherwise they would accumulate without bound while the
+            // limit isn't read. Summing the stripes is only necessary once the applied limit may be exceeded.
+            if (inFlightSnapshot * 2 >= limit.get() && inFlightSnapshot * 2L >= limit.get() + pendingIncreases.sum()) {
+                pendingIncreases.increment();
+            }
         }
     }
 
     enum LimitUpdater implements IntBinaryOperator {
-        SUCCESS() {
+        INCREASE() {
             @Override
-            public int applyAsInt(int originalLimit, int inFlightSnapshot) {
-                if (inFlightSnapshot * 2 >= originalLimit) {
-                    return Math.min(MAX_LIMIT, originalLimit + 1);
-                }
-                return originalLimit;
+            public int applyAsInt(int originalLimit, int increase) {
+                return (int) Math.min(MAX_LIMIT, (long) originalLimit + increase);
             }
         },
         DROPPED() {
@@ -137,24 +147,19 @@ final class AimdConcurrencyLimiter {
         };
     }
 
-    /**
-     * Returns the current concurrency limit, i.e., the maximum number of concurrent {@link #getInflight in-flight}
-     * permits such that another permit can be {@link #acquire acquired}.
-     */
-    int getLimit() {
-        return limit.get();
+    @Override
+    public int getLimit() {
+        return applyPendingIncreases();
     }
 
-    /**
-     * Returns the current number of in-flight permits, i.e., permits that been acquired but not yet released through
-     * either of ignore/dropped/success.
-     */
-    int getInflight() {
-        return inFlight.get();
+    @Override
+    public int getInflight() {
+        return inFlight.intValue();
     }
 
     @Override
     public String toString() {
-        return "AimdConcurrencyLimiter{limit=" + limit + ", inFlight=" + inFlight + '}';
+        return "AimdConcurrencyLimiter{limit=" + limit + ", pendingIncreases=" + pendingIncreases + ", inFlight="
+                + inFlight + '}';
     }
 }
@@ -16,6 +16,8 @@
 
 package com.palantir.dialogue.core;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
@@ -30,17 +32,27 @@ import com.palantir.logsafe.Preconditions;
 import com.palantir.logsafe.SafeArg;
 import com.palantir.logsafe.UnsafeArg;
 import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
-import java.io.ByteArrayOutputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
-/** Convenience utility around {@link UrlBuilder}. */
+/**
+ * Convenience utility around {@link UrlBuilder}. URLs are rendered directly into a single {@link StringBuilder} using a
+ * {@link RenderPlan} compiled for each {@link Endpoint}: the scheme, authority and base path are encoded once per
+ * {@link BaseUrl}, and the fixed path segments once per endpoint, so that only the variable path segments and the query
+ * parameters are encoded for each request.
+ */
 public final class BaseUrl {
 
+    // Endpoints are generally static constants, weak keys allow dynamically created endpoints to be collected.
+    private final Cache<Endpoint, RenderPlan> plans =
+            Caffeine.newBuilder().weakKeys().maximumSize(1_000).build();
     private final DefaultUrlBuilder builder;
+    private final String prefix;
 
     public static BaseUrl of(URL baseUrl) {
         return new BaseUrl(DefaultUrlBuilder.from(baseUrl));
@@ -48,11 +60,36 @@ public final class BaseUrl {
 
     private BaseUrl(DefaultUrlBuilder builder) {
         this.builder = builder;
+        this.prefix = builder.prefix();
     }
 
+    /**
+     * Renders the URL for the given endpoint and request. Prefer {@link #renderString} or {@link #renderUri} when the
+     * transport doesn't require a {@link URL}, {@link URL} construction parses the rendered string again.
+     */
     public URL render(Endpoint endpoint, Request request) {
-        DefaultUrlBuilder url = builder.newBuilder();
+        try {
+            return new URL(renderString(endpoint, request));
+        } catch (MalformedURLException e) {
+            throw new SafeIllegalArgumentException("Malformed URL", e);
+        }
+    }
+
+    /** Renders the URL for the given endpoint and request as a {@link URI}. */
+    public URI renderUri(Endpoint endpoint, Request request) {
+        try {
+            return new URI(renderString(endpoint, request));
+        } catch (URISyntaxException e) {
+            throw new SafeIllegalArgumentException("Malformed URI", e);
+        }
+    }
+
+    /** Renders the URL for the given endpoint and request as an encoded string. */
+    public String renderString(Endpoint endpoint, Request request) {
+        RenderPlan plan = plans.get(endpoint, _endpoint -> new RenderPlan());
+        PlannedUrlBuilder url = new PlannedUrlBuilder(prefix, plan);
         endpoint.renderPath(request.pathParams(), url);
+        url.completePath();
         request.queryParams().forEach(url::queryParam);
         return url.build();
     }
@@ -62,7 +99,175 @@ public final class BaseUrl {
         return "BaseUrl{builder=" + builder + '}';
     }
 
-    /** A simplistic URL builder, not tuned for performance. */
+    /**
+     * Tracks the path segments rendered for a single {@link Endpoint}. The segments provided by the first render are
+     * recorded along with their encoded form, the second render retains only the positions which were provided the
+     * same segment instance, which are the fixed segments of a {@link com.palantir.dialogue.PathTemplate}. Subsequent
+     * renders reuse the encoded form of a segment only when the identical instance is provided at the same position,
+     * so the result is always correct even when an endpoint renders a different path on each request.
+     */
+    private static final class RenderPlan {
+
+        @Nullable
+        private volatile CompiledSegments segments;
+
+        // Updates are racy, however any value is a valid hint.
+        private int sizeHint = 64;
+
+        @Nullable
+        CompiledSegments segments() {
+            return segments;
+        }
+
+        int sizeHint() {
+            return sizeHint;
+        }
+
+        void update(int renderedLength, @Nullable CompiledSegments newSegments) {
+            if (renderedLength > sizeHint) {
+                sizeHint = renderedLength;
+            }
+            if (newSegments != null) {
+                segments = newSegments;
+            }
+        }
+    }
+
+    private static final class CompiledSegments {
+        private final String[] raw;
+        private final String[] encoded;
+        private final boolean verified;
+
+        private CompiledSegments(String[] raw, String[] encoded, boolean verified) {
+            this.raw = raw;
+            this.encoded = encoded;
+            this.verified = verified;
+        }
+
+        @Nullable
+        @SuppressWarnings("StringEquality") // Segments are compared by identity, see RenderPlan
+        String encoded(int position, String segment) {
+            return position < raw.length && raw[position] == segment ? encoded[position] : null;
+        }
+
+        @SuppressWarnings("StringEquality") // Segments are compared by identity, see RenderPlan
+        CompiledSegments verify(List<String> observedRaw) {
+            int size = Math.min(raw.length, observedRaw.size());
+            String[] verifiedRaw = new String[size];
+            String[] verifiedEncoded = new String[size];
+            for (int i = 0; i < size; i++) {
+                if (raw[i] == observedRaw.get(i)) {
+                    verifiedRaw[i] = raw[i];
+                    verifiedEncoded[i] = encoded[i];
+                }
+            }
+            return new CompiledSegments(verifiedRaw, verifiedEncoded, true);
+        }
+
+        static CompiledSegments observed(List<String> observedRaw, List<String> observedEncoded) {
+            return new CompiledSegments(
+                    observedRaw.toArray(new String[0]), observedEncoded.toArray(new String[0]), false);
+        }
+    }
+
+    /**
+     * Single-use {@link UrlBuilder} which appends to a buffer initialized with the encoded base URL. Query parameters
+     * provided while the path is rendered are buffered separately and appended once the path is complete.
+     */
+    private static final class PlannedUrlBuilder implements UrlBuilder {
+        private final RenderPlan plan;
+        private final StringBuilder url;
+
+        @Nullable
+        private final CompiledSegments segments;
+
+        // Only populated while the plan is being compiled
+        @Nullable
+        private List<String> observedRaw;
+
+        @Nullable
+        private List<String> observedEncoded;
+
+        @Nullable
+        private StringBuilder pendingQuery;
+
+        private int position;
+        private boolean pathComplete;
+        private boolean hasQuery;
+
+        PlannedUrlBuilder(String prefix, RenderPlan plan) {
+            this.plan = plan;
+            this.segments = plan.segments();
+            this.url = new StringBuilder(Math.max(plan.sizeHint(), prefix.length() + 16));
+            this.url.append(prefix);
+            if (segments == null || !segments.verified) {
+                observedRaw = new ArrayList<>();
+                observedEncoded = new ArrayList<>();
+            }
+        }
+
+        @Override
+        public UrlBuilder pathSegment(String thePath) {
+            url.append('/');
+            String encoded = segments == null ? null : segments.encoded(position, thePath);
+            if (observedRaw != null && observedEncoded != null) {
+                if (encoded == null) {
+                    encoded = UrlEncoder.encodePathSegment(thePath);
+                }
+                observedRaw.add(thePath);
+                observedEncoded.add(encoded);
+            }
+            if (encoded == null) {
+                UrlEncoder.encodePathSegment(thePath, url);
+            } else {
+                url.append(encoded);
+            }
+            position++;
+            return this;
+        }
+
+        @Override
+        public UrlBuilder queryParam(String name, String value) {
+            StringBuilder target;
+            if (pathComplete) {
+                target = url;
+            } else {
+                if (pendingQuery == null) {
+                    pendingQuery = new StringBuilder();
+                }
+                target = pendingQuery;
+            }
+            target.append(hasQuery ? '&' : '?');
+            UrlEncoder.encodeQueryNameOrValue(name, target);
+            target.append('=');
+            UrlEncoder.encodeQueryNameOrValue(value, target);
+            hasQuery = true;
+            return this;
+        }
+
+        void completePath() {
+            pathComplete = true;
+            if (pendingQuery != null) {
+                url.append(pendingQuery);
+            }
+        }
+
+        String build() {
+            CompiledSegments newSegments = null;
+            if (observedRaw != null && observedEncoded != null) {
+                newSegments = segments == null
+                        ? CompiledSegments.observed(observedRaw, observedEncoded)
+                        : segments.verify(observedRaw);
+            }
+            plan.update(url.length(), newSegments);
+            return url.toString();
+        }
+    }
+
+    /**
+     * A simplistic URL builder, not tuned for performance. Used to validate the base URL, requests are rendered by
+     * {@link PlannedUrlBuilder}.
+     */
     @VisibleForTesting
     static final class DefaultUrlBuilder implements UrlBuilder {
 
@@ -106,6 +311,20 @@ public final class BaseUrl {
             }
         }
 
+        /** Returns the encoded scheme, authority and path of this builder, without a trailing slash. */
+        String prefix() {
+            StringBuilder result = new StringBuilder();
+            result.append(protocol).append("://");
+            if (host.indexOf(':') >= 0 && !host.startsWith("[")) {
+                result.append('[').append(host).append(']');
+            } else {
+                result.append(host);
+            }
+            result.append(':').append(port);
+            encodePath(pathSegments, result);
+            return result.toString();
+        }
+
         DefaultUrlBuilder newBuilder() {
             return new DefaultUrlBuilder(this);
         }
@@ -211,7 +430,10 @@ public final class BaseUrl {
         }
     }
 
-    /** Encodes URL components per https://tools.ietf.org/html/rfc3986 . */
+    /**
+     * Encodes URL components per https://tools.ietf.org/html/rfc3986 . Characters are checked against precomputed ASCII
+     * tables and converted to UTF-8 inline, inputs which don't require escaping are returned without allocation.
+     */
     @VisibleForTesting
     static class UrlEncoder {
         private static final CharMatcher DIGIT = CharMatcher.inRange('0', '9');
@@ -226,8 +448,15 @@ public final class BaseUrl {
         private static final CharMatcher IS_QUERY_CHAR =
                 IS_P_CHAR.or(CharMatcher.anyOf("/?")).and(CharMatcher.noneOf("=&+"));
 
+        private static final boolean[] HOST_TABLE = asciiTable(IS_HOST);
+        private static final boolean[] P_CHAR_TABLE = asciiTable(IS_P_CHAR);
+        private static final boolean[] PATH_TABLE = asciiTable(IS_PATH);
+        private static final boolean[] QUERY_CHAR_TABLE = asciiTable(IS_QUERY_CHAR);
+
+        private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
         static boolean isHost(String maybeHost) {
-            return IS_HOST.matchesAllOf(maybeHost) || isIpv6Host(maybeHost);
+            return firstEscapedIndex(maybeHost, HOST_TABLE) < 0 || isIpv6Host(maybeHost);
         }
 
         static boolean isIpv6Host(String maybeHost) {
@@ -243,47 +472,107 @@ public final class BaseUrl {
          * {@code /}.
          */
         static boolean isPath(String path) {
-            return IS_PATH.matchesAllOf(path);
+            return firstEscapedIndex(path, PATH_TABLE) < 0;
         }
 
         static String encodePathSegment(String pathComponent) {
-            return encode(pathComponent, IS_P_CHAR);
+            return encode(pathComponent, P_CHAR_TABLE);
+        }
+
+        /** Appends the encoded path segment to the given buffer. */
+        static void encodePathSegment(String pathComponent, StringBuilder output) {
+            encode(pathComponent, P_CHAR_TABLE, output);
         }
 
         static String encodeQueryNameOrValue(String nameOrValue) {
-            return encode(nameOrValue, IS_QUERY_CHAR);
-        }
-
-        // percent-encodes every byte in the source string with it's percent-encoded representation, except for
-        // bytes
-        // that (in their unsigned char sense) are matched by charactersToKeep
-        @VisibleForTesting
-        static String encode(String source, CharMatcher charactersToKeep) {
-            byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(source.length()); // approx sizing
-            boolean wasChanged = false;
-            for (byte b : bytes) {
-                if (charactersToKeep.matches(toChar(b))) {
-                    bos.write(b);
+            return encode(nameOrValue, QUERY_CHAR_TABLE);
+        }
+
+        /** Appends the encoded query parameter name or value to the given buffer. */
+        static void encodeQueryNameOrValue(String nameOrValue, StringBuilder output) {
+            encode(nameOrValue, QUERY_CHAR_TABLE, output);
+        }
+
+        // percent-encodes every UTF-8 byte of the source string, except for ASCII characters allowed by the table
+        private static String encode(String source, boolean[] charactersToKeep) {
+            int firstEscaped = firstEscapedIndex(source, charactersToKeep);
+            if (firstEscaped < 0) {
+                return source;
+            }
+            // Each escaped character requires at least three chars
+            StringBuilder output = new StringBuilder(source.length() + 2 * (source.length() - firstEscaped));
+            output.append(source, 0, firstEscaped);
+            encodeFrom(source, firstEscaped, charactersToKeep, output);
+            return output.toString();
+        }
+
+        private static void encode(String source, boolean[] charactersToKeep, StringBuilder output) {
+            int firstEscaped = firstEscapedIndex(source, charactersToKeep);
+            if (firstEscaped < 0) {
+                output.append(source);
+            } else {
+                output.append(source, 0, firstEscaped);
+                encodeFrom(source, firstEscaped, charactersToKeep, output);
+            }
+        }
+
+        /** Returns the index of the first character which must be escaped, or -1 if there is none. */
+        private static int firstEscapedIndex(String source, boolean[] charactersToKeep) {
+            for (int i = 0; i < source.length(); i++) {
+                char character = source.charAt(i);
+                if (character >= charactersToKeep.length || !charactersToKeep[character]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static void encodeFrom(String source, int start, boolean[] charactersToKeep, StringBuilder output) {
+            int length = source.length();
+            for (int i = start; i < length; i++) {
+                char character = source.charAt(i);
+                if (character < 0x80) {
+                    encodeAscii(character, charactersToKeep, output);
+                } else if (character < 0x800) {
+                    appendEscaped(0xC0 | (character >> 6), output);
+                    appendEscaped(0x80 | (character & 0x3F), output);
+                } else if (!Character.isSurrogate(character)) {
+                    appendEscaped(0xE0 | (character >> 12), output);
+                    appendEscaped(0x80 | ((character >> 6) & 0x3F), output);
+                    appendEscaped(0x80 | (character & 0x3F), output);
+                } else if (Character.isHighSurrogate(character)
+                        && i + 1 < length
+                        && Character.isLowSurrogate(source.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(character, source.charAt(++i));
+                    appendEscaped(0xF0 | (codePoint >> 18), output);
+                    appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), output);
+                    appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), output);
+                    appendEscaped(0x80 | (codePoint & 0x3F), output);
                 } else {
-                    bos.write('%');
-                    char hex1 = Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16));
-                    char hex2 = Character.toUpperCase(Character.forDigit(b & 0xF, 16));
-                    bos.write(hex1);
-                    bos.write(hex2);
-                    wasChanged = true;
+                    // Unpaired surrogates are replaced, consistent with String.getBytes(UTF_8)
+                    encodeAscii('?', charactersToKeep, output);
                 }
             }
-            return wasChanged ? new String(bos.toByteArray(), StandardCharsets.UTF_8) : source;
         }
 
-        // converts the given (signed) byte into an (unsigned) char
-        private static char toChar(byte theByte) {
-            if (theByte < 0) {
-                return (char) (256 + theByte);
+        private static void encodeAscii(char character, boolean[] charactersToKeep, StringBuilder output) {
+            if (charactersToKeep[character]) {
+                output.append(character);
             } else {
-                return (char) theByte;
+                appendEscaped(character, output);
+            }
+        }
+
+        private static void appendEscaped(int theByte, StringBuilder output) {
+            output.append('%').append(HEX_DIGITS[(theByte >> 4) & 0xF]).append(HEX_DIGITS[theByte & 0xF]);
+        }
+
+        private static boolean[] asciiTable(CharMatcher matcher) {
+            boolean[] table = new boolean[0x80];
+            for (char character = 0; character < table.length; character++) {
+                table[character] = matcher.matches(character);
             }
+            return table;
         }
     }
 }
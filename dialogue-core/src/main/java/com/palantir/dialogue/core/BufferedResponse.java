@@ -0,0 +1,169 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Multimaps;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.palantir.dialogue.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response whose body has been read into memory, so that it can be handed to several callers. Each {@link #copy()}
+ * has its own stream over the shared bytes, and closing a buffered response has no effect.
+ */
+final class BufferedResponse implements Response {
+    private static final Logger log = LoggerFactory.getLogger(BufferedResponse.class);
+
+    private final int code;
+    private final ListMultimap<String, String> headers;
+    private final byte[] body;
+    private final InputStream stream;
+
+    BufferedResponse(int code, ListMultimap<String, String> headers, byte[] body) {
+        this.code = code;
+        this.headers = Multimaps.unmodifiableListMultimap(MultimapBuilder.treeKeys(String.CASE_INSENSITIVE_ORDER)
+                .arrayListValues()
+                .build(headers));
+        this.body = body;
+        this.stream = new ByteArrayInputStream(body);
+    }
+
+    private BufferedResponse(BufferedResponse other) {
+        this.code = other.code;
+        this.headers = other.headers;
+        this.body = other.body;
+        this.stream = new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Reads the body of the response into memory and closes it. If the body is larger than {@code maxBodySize} the
+     * response is not closed, and a response which streams the remainder of its body after the bytes which have
+     * already been read is returned instead.
+     */
+    static Response buffer(Response response, int maxBodySize) throws IOException {
+        Optional<String> contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        if (contentLength.isPresent() && exceeds(contentLength.get(), maxBodySize)) {
+            return response;
+        }
+        byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(response.body(), maxBodySize + 1L));
+        if (bytes.length > maxBodySize) {
+            return new PrefixedResponse(response, bytes);
+        }
+        response.close();
+        return new BufferedResponse(response.code(), response.headers(), bytes);
+    }
+
+    private static boolean exceeds(String contentLength, int maxBodySize) {
+        try {
+            return Long.parseLong(contentLength) > maxBodySize;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Each caller receives its own stream over the shared bytes. */
+    BufferedResponse copy() {
+        return new BufferedResponse(this);
+    }
+
+    /** Returns a copy with an additional header. */
+    BufferedResponse withHeader(String name, String value) {
+        ListMultimap<String, String> newHeaders = MultimapBuilder.treeKeys(String.CASE_INSENSITIVE_ORDER)
+                .arrayListValues()
+                .build(headers);
+        newHeaders.put(name, value);
+        return new BufferedResponse(code, newHeaders, body);
+    }
+
+    /** Length of the buffered body in bytes. */
+    int size() {
+        return body.length;
+    }
+
+    @Override
+    public InputStream body() {
+        return stream;
+    }
+
+    @Override
+    public int code() {
+        return code;
+    }
+
+    @Override
+    public ListMultimap<String, String> headers() {
+        return headers;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String toString() {
+        return "BufferedResponse{code=" + code + ", length=" + body.length + '}';
+    }
+
+    private static final class PrefixedResponse implements Response {
+        private final Response delegate;
+        private final InputStream body;
+
+        PrefixedResponse(Response delegate, byte[] prefix) {
+            this.delegate = delegate;
+            this.body = new SequenceInputStream(new ByteArrayInputStream(prefix), delegate.body());
+        }
+
+        @Override
+        public InputStream body() {
+            return body;
+        }
+
+        @Override
+        public int code() {
+            return delegate.code();
+        }
+
+        @Override
+        public ListMultimap<String, String> headers() {
+            return delegate.headers();
+        }
+
+        @Override
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                log.warn("Failed to close response body", e);
+            } finally {
+                delegate.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "PrefixedResponse{delegate=" + delegate + '}';
+        }
+    }
+}
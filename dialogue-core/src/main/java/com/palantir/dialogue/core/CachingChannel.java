@@ -0,0 +1,365 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.base.Splitter;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Caches successful responses to {@code GET} requests to the endpoints which opted in, honouring the
+ * {@code Cache-Control} and {@code ETag} headers of the response. Responses are fresh for their {@code max-age}, during
+ * which requests are served from memory without being sent. Once stale, responses with an {@code ETag} are revalidated
+ * by sending the request with {@code If-None-Match}, and a {@code 304 Not Modified} response is replaced with the
+ * cached response. Responses marked {@code no-store}, without either header, or which {@code Vary} on headers that are
+ * not part of the cache key are not cached.
+ *
+ * With stale-if-error enabled, the last successful response is kept once stale, and served in place of a failed
+ * result: a {@code 5xx} or {@code 429} response once retries are exhausted, or a failure such as a request rejected
+ * because every host is limited or ejected. Stale responses are marked with the
+ * {@link ResponseCachePolicy#STALE_RESPONSE_HEADER}.
+ *
+ * Cached bodies are buffered in memory and bounded by {@link ResponseCachePolicy#maxSizeBytes()}. Each caller receives
+ * an independent {@link Response} with its own stream over the cached bytes. Requests which are conditional or carry
+ * their own {@code Cache-Control} are passed through unchanged.
+ */
+final class CachingChannel implements Channel {
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    // Approximate memory used by an entry in addition to its body, so that empty bodies aren't free
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private final Channel delegate;
+    private final ResponseCachePolicy policy;
+    private final Ticker clock;
+    private final long staleIfErrorNanos;
+    private final Cache<RequestKey, CachedResponse> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter revalidated;
+    private final Meter stale;
+
+    CachingChannel(
+            Channel delegate,
+            ResponseCachePolicy policy,
+            Ticker clock,
+            DialogueClientMetrics metrics,
+            String channelName) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.clock = clock;
+        this.staleIfErrorNanos = policy.staleIfError().toNanos();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(policy.maxSizeBytes())
+                .weigher((RequestKey _key, CachedResponse value) -> value.weight())
+                .build();
+        this.hits = metrics.responseCache().channelName(channelName).result("hit").build();
+        this.misses = metrics.responseCache().channelName(channelName).result("miss").build();
+        this.revalidated = metrics.responseCache().channelName(channelName).result("revalidated").build();
+        this.stale = metrics.responseCache().channelName(channelName).result("stale").build();
+    }
+
+    @Override
+    public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
+        if (!isCacheable(endpoint, request)) {
+            return delegate.execute(endpoint, request);
+        }
+        RequestKey key = new RequestKey(endpoint, request, policy.keyHeaders());
+        CachedResponse cached = cache.getIfPresent(key);
+        if (cached != null && cached.isFresh(clock.read())) {
+            hits.mark();
+            return Futures.immediateFuture(cached.response.copy());
+        }
+        ListenableFuture<Response> result;
+        if (cached == null || cached.etag == null) {
+            misses.mark();
+            result = Futures.transformAsync(
+                    delegate.execute(endpoint, request),
+                    response -> Futures.immediateFuture(store(key, response)),
+                    MoreExecutors.directExecutor());
+        } else {
+            Request conditional = Request.builder()
+                    .from(request)
+                    .putHeaderParams(HttpHeaders.IF_NONE_MATCH, cached.etag)
+                    .build();
+            result = Futures.transformAsync(
+                    delegate.execute(endpoint, conditional),
+                    response -> Futures.immediateFuture(revalidate(key, cached, response)),
+                    MoreExecutors.directExecutor());
+        }
+        if (cached == null || cached.staleIfErrorNanos <= 0) {
+            return result;
+        }
+        return staleIfError(cached, result);
+    }
+
+    /** Serves the stale response in place of an error response or a failure, while it is within its window. */
+    private ListenableFuture<Response> staleIfError(CachedResponse cached, ListenableFuture<Response> result) {
+        ListenableFuture<Response> withoutErrorResponses = Futures.transform(
+                result,
+                response -> {
+                    if (!isError(response.code())) {
+                        return response;
+                    }
+                    Response staleResponse = staleResponse(cached);
+                    if (staleResponse == null) {
+                        return response;
+                    }
+                    response.close();
+                    return staleResponse;
+                },
+                MoreExecutors.directExecutor());
+        return Futures.catchingAsync(
+                withoutErrorResponses,
+                Throwable.class,
+                throwable -> {
+                    Response staleResponse = staleResponse(cached);
+                    return staleResponse == null
+                            ? Futures.immediateFailedFuture(throwable)
+                            : Futures.immediateFuture(staleResponse);
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    @Nullable
+    private Response staleResponse(CachedResponse cached) {
+        long now = clock.read();
+        if (!cached.isServableIfError(now)) {
+            return null;
+        }
+        stale.mark();
+        long ageSeconds = TimeUnit.NANOSECONDS.toSeconds(Math.max(0, now - cached.receivedAtNanos));
+        return cached.response.withHeader(ResponseCachePolicy.STALE_RESPONSE_HEADER, Long.toString(ageSeconds));
+    }
+
+    private static boolean isError(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    private boolean isCacheable(Endpoint endpoint, Request request) {
+        return endpoint.httpMethod() == HttpMethod.GET
+                && !request.body().isPresent()
+                && !request.headerParams().containsKey(HttpHeaders.IF_NONE_MATCH)
+                && !request.headerParams().containsKey(HttpHeaders.IF_MODIFIED_SINCE)
+                && !request.headerParams().containsKey(HttpHeaders.CACHE_CONTROL)
+                && !request.headerParams().containsKey(HttpHeaders.RANGE)
+                && policy.isCacheable(endpoint);
+    }
+
+    private Response revalidate(RequestKey key, CachedResponse cached, Response response) throws IOException {
+        if (response.code() != 304) {
+            misses.mark();
+            return store(key, response);
+        }
+        response.close();
+        revalidated.mark();
+        CacheControl cacheControl = CacheControl.parse(response.headers().get(HttpHeaders.CACHE_CONTROL));
+        if (cacheControl.noStore) {
+            cache.asMap().remove(key, cached);
+        } else {
+            // Headers of a 304 response update the freshness of the cached response
+            long lifetimeNanos = cacheControl.hasMaxAge() ? cacheControl.lifetimeNanos(response) : cached.lifetimeNanos;
+            CachedResponse refreshed = new CachedResponse(
+                    cached.response, cached.etag, lifetimeNanos, cached.staleIfErrorNanos, clock.read());
+            cache.asMap().replace(key, cached, refreshed);
+        }
+        return cached.response.copy();
+    }
+
+    /** Returns the response to the caller, buffering and caching it first if it may be cached. */
+    private Response store(RequestKey key, Response response) throws IOException {
+        if (response.code() != 200) {
+            return response;
+        }
+        CacheControl cacheControl = CacheControl.parse(response.headers().get(HttpHeaders.CACHE_CONTROL));
+        Optional<String> etag = response.getFirstHeader(HttpHeaders.ETAG);
+        long entryStaleIfErrorNanos = staleIfErrorNanos(cacheControl);
+        if (cacheControl.noStore
+                || !(cacheControl.hasMaxAge() || etag.isPresent() || entryStaleIfErrorNanos > 0)
+                || !isVaryCovered(response)) {
+            // A newer response which can't be cached replaces any cached response
+            cache.invalidate(key);
+            return response;
+        }
+        Response buffered;
+        try {
+            buffered = BufferedResponse.buffer(response, policy.maxBodySize());
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        if (!(buffered instanceof BufferedResponse)) {
+            cache.invalidate(key);
+            return buffered;
+        }
+        BufferedResponse bufferedResponse = (BufferedResponse) buffered;
+        long lifetimeNanos = cacheControl.noCache ? 0 : cacheControl.lifetimeNanos(response);
+        CachedResponse entry = new CachedResponse(
+                bufferedResponse, etag.orElse(null), lifetimeNanos, entryStaleIfErrorNanos, clock.read());
+        cache.put(key, entry);
+        return bufferedResponse.copy();
+    }
+
+    private long staleIfErrorNanos(CacheControl cacheControl) {
+        if (staleIfErrorNanos <= 0 || cacheControl.noCache || cacheControl.mustRevalidate) {
+            return 0;
+        }
+        return cacheControl.hasStaleIfError() ? cacheControl.staleIfErrorNanos() : staleIfErrorNanos;
+    }
+
+    /** Responses which vary on headers outside of the cache key could be served to the wrong requests. */
+    private boolean isVaryCovered(Response response) {
+        for (String value : response.headers().get(HttpHeaders.VARY)) {
+            for (String header : COMMA_SPLITTER.split(value)) {
+                // Content is decoded below this channel, so every request accepts the same encodings
+                if (!header.equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING) && !isKeyHeader(header)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isKeyHeader(String header) {
+        for (String keyHeader : policy.keyHeaders()) {
+            if (keyHeader.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class CachedResponse {
+        private final BufferedResponse response;
+
+        @Nullable
+        private final String etag;
+
+        private final long lifetimeNanos;
+        private final long staleIfErrorNanos;
+        private final long receivedAtNanos;
+        private final long expiresAtNanos;
+
+        CachedResponse(
+                BufferedResponse response,
+                @Nullable String etag,
+                long lifetimeNanos,
+                long staleIfErrorNanos,
+                long nowNanos) {
+            this.response = response;
+            this.etag = etag;
+            this.lifetimeNanos = lifetimeNanos;
+            this.staleIfErrorNanos = staleIfErrorNanos;
+            this.receivedAtNanos = nowNanos;
+            this.expiresAtNanos = nowNanos + lifetimeNanos;
+        }
+
+        int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, (long) response.size() + ENTRY_OVERHEAD_BYTES);
+        }
+
+        boolean isFresh(long nowNanos) {
+            return expiresAtNanos - nowNanos > 0;
+        }
+
+        boolean isServableIfError(long nowNanos) {
+            return nowNanos - expiresAtNanos < staleIfErrorNanos;
+        }
+    }
+
+    /** The subset of the {@code Cache-Control} directives which apply to a private client-side cache. */
+    private static final class CacheControl {
+        private boolean noStore;
+        private boolean noCache;
+        private boolean mustRevalidate;
+        private long maxAgeSeconds = -1;
+        private long staleIfErrorSeconds = -1;
+
+        static CacheControl parse(List<String> values) {
+            CacheControl cacheControl = new CacheControl();
+            for (String value : values) {
+                for (String directive : COMMA_SPLITTER.split(value)) {
+                    String lowerCase = directive.toLowerCase(Locale.ROOT);
+                    if (lowerCase.equals("no-store")) {
+                        cacheControl.noStore = true;
+                    } else if (lowerCase.startsWith("no-cache")) {
+                        cacheControl.noCache = true;
+                    } else if (lowerCase.equals("must-revalidate")) {
+                        cacheControl.mustRevalidate = true;
+                    } else if (lowerCase.startsWith("max-age=")) {
+                        cacheControl.maxAgeSeconds = parseSeconds(lowerCase.substring("max-age=".length()));
+                    } else if (lowerCase.startsWith("stale-if-error=")) {
+                        cacheControl.staleIfErrorSeconds =
+                                parseSeconds(lowerCase.substring("stale-if-error=".length()));
+                    }
+                }
+            }
+            return cacheControl;
+        }
+
+        boolean hasMaxAge() {
+            return maxAgeSeconds >= 0;
+        }
+
+        boolean hasStaleIfError() {
+            return staleIfErrorSeconds >= 0;
+        }
+
+        long staleIfErrorNanos() {
+            return TimeUnit.SECONDS.toNanos(Math.min(Integer.MAX_VALUE, staleIfErrorSeconds));
+        }
+
+        /** The remaining freshness lifetime, which is reduced by the time the response spent in other caches. */
+        long lifetimeNanos(Response response) {
+            long ageSeconds = response.getFirstHeader(HttpHeaders.AGE)
+                    .map(CacheControl::parseSeconds)
+                    .orElse(0L);
+            // Lifetimes are capped so that the expiry can't overflow
+            long remainingSeconds = Math.min(Integer.MAX_VALUE, maxAgeSeconds - Math.max(0, ageSeconds));
+            return TimeUnit.SECONDS.toNanos(Math.max(0, remainingSeconds));
+        }
+
+        private static long parseSeconds(String value) {
+            try {
+                return Long.parseLong(value.replace("\"", "").trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingChannel{delegate=" + delegate + ", policy=" + policy + '}';
+    }
+}
@@ -21,9 +21,8 @@ import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import com.palantir.logsafe.Preconditions;
-import java.util.Optional;
 
-/** Adapter from {@link Channel} to {@link LimitedChannel} which always returns a {@link Optional#isPresent() value}. */
+/** Adapter from {@link Channel} to {@link LimitedChannel} which always executes the call. */
 final class ChannelToLimitedChannelAdapter implements LimitedChannel {
 
     private final Channel delegate;
@@ -33,8 +32,8 @@ final class ChannelToLimitedChannelAdapter implements LimitedChannel {
     }
 
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
-        return Optional.of(delegate.execute(endpoint, request));
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        return delegate.execute(endpoint, request);
     }
 
     @Override
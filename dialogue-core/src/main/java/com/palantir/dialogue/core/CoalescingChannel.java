@@ -0,0 +1,202 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Coalesces identical requests to {@code GET} and {@code HEAD} endpoints while they are in flight (single-flight):
+ * the first request is sent, and requests made before its response arrives wait for that response rather than being
+ * sent themselves. The response body is buffered once and every caller receives an independent {@link Response}
+ * with its own stream over the buffered bytes. Failures are shared in the same way.
+ *
+ * Bodies larger than the {@link CoalescingPolicy#maxBodySize()} are not buffered: the first caller receives the
+ * original response and the waiting requests are sent separately. The shared call is only cancelled once every
+ * caller has cancelled its request, including the first, because other callers may still be waiting for it.
+ */
+final class CoalescingChannel implements Channel {
+    private final Channel delegate;
+    private final CoalescingPolicy policy;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter tooLarge;
+    private final Map<RequestKey, Call> inFlight = new ConcurrentHashMap<>();
+
+    CoalescingChannel(Channel delegate, CoalescingPolicy policy, DialogueClientMetrics metrics, String channelName) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.hits = metrics.requestCoalescing().channelName(channelName).result("hit").build();
+        this.misses = metrics.requestCoalescing().channelName(channelName).result("miss").build();
+        this.tooLarge = metrics.requestCoalescing().channelName(channelName).result("tooLarge").build();
+    }
+
+    @Override
+    public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
+        if (!isCoalescable(endpoint, request)) {
+            return delegate.execute(endpoint, request);
+        }
+        RequestKey key = new RequestKey(endpoint, request, policy.keyHeaders());
+        Call call = new Call(key);
+        while (true) {
+            Call existing = inFlight.putIfAbsent(key, call);
+            if (existing == null) {
+                misses.mark();
+                return call.execute(endpoint, request);
+            }
+            ListenableFuture<Response> joined = existing.join(endpoint, request);
+            if (joined != null) {
+                hits.mark();
+                return joined;
+            }
+            // Every caller of the existing call cancelled concurrently, so it is replaced
+            inFlight.remove(key, existing);
+        }
+    }
+
+    private static boolean isCoalescable(Endpoint endpoint, Request request) {
+        return (endpoint.httpMethod() == HttpMethod.GET || endpoint.httpMethod() == HttpMethod.HEAD)
+                && !request.body().isPresent();
+    }
+
+    private final class Call implements FutureCallback<Response> {
+        private final RequestKey key;
+        private final SettableFuture<Response> first = SettableFuture.create();
+        // Completes with the buffered response, or null if the body was too large to buffer
+        private final SettableFuture<BufferedResponse> shared = SettableFuture.create();
+        // Callers which have not cancelled their request, the shared call is cancelled once none remain
+        private final AtomicInteger callers = new AtomicInteger(1);
+
+        @Nullable
+        private volatile ListenableFuture<Response> attempt;
+
+        Call(RequestKey key) {
+            this.key = key;
+        }
+
+        ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
+            ListenableFuture<Response> future = delegate.execute(endpoint, request);
+            attempt = future;
+            DialogueFutures.addDirectCallback(future, this);
+            DialogueFutures.addDirectListener(first, () -> onCallerDone(first));
+            return first;
+        }
+
+        /**
+         * Returns the response of the shared call for another caller, or null if every caller has already cancelled
+         * and the shared call is being cancelled. Cancelling a waiting request only cancels the shared call if it was
+         * the last caller.
+         */
+        @Nullable
+        ListenableFuture<Response> join(Endpoint endpoint, Request request) {
+            if (!tryAddCaller()) {
+                return null;
+            }
+            ListenableFuture<Response> result = Futures.transformAsync(
+                    Futures.nonCancellationPropagating(shared),
+                    buffered -> {
+                        if (buffered == null) {
+                            tooLarge.mark();
+                            return delegate.execute(endpoint, request);
+                        }
+                        return Futures.immediateFuture(buffered.copy());
+                    },
+                    MoreExecutors.directExecutor());
+            DialogueFutures.addDirectListener(result, () -> onCallerDone(result));
+            return result;
+        }
+
+        private boolean tryAddCaller() {
+            while (true) {
+                int current = callers.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (callers.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void onCallerDone(ListenableFuture<Response> result) {
+            if (result.isCancelled() && callers.decrementAndGet() == 0) {
+                // Nobody is waiting for the response any more
+                inFlight.remove(key, this);
+                ListenableFuture<Response> future = attempt;
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public void onSuccess(Response response) {
+            // Requests made from now on are sent again rather than sharing a response which has already arrived
+            inFlight.remove(key, this);
+            Response buffered;
+            try {
+                buffered = BufferedResponse.buffer(response, policy.maxBodySize());
+            } catch (IOException | RuntimeException e) {
+                response.close();
+                onFailure(e);
+                return;
+            }
+            if (!(buffered instanceof BufferedResponse)) {
+                // The body is too large to be buffered, so the first caller receives it and waiting requests are sent
+                complete(buffered);
+                shared.set(null);
+                return;
+            }
+            BufferedResponse sharedResponse = (BufferedResponse) buffered;
+            complete(sharedResponse.copy());
+            shared.set(sharedResponse);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            inFlight.remove(key, this);
+            first.setException(throwable);
+            shared.setException(throwable);
+        }
+
+        private void complete(Response response) {
+            if (!first.set(response)) {
+                // The first caller cancelled its request
+                response.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingChannel{delegate=" + delegate + ", policy=" + policy + '}';
+    }
+}
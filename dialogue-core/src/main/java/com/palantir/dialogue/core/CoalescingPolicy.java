@@ -0,0 +1,95 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HttpHeaders;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.util.Collection;
+
+/**
+ * Configures request coalescing, see {@link DialogueChannel.Builder#requestCoalescing}. Requests to {@code GET} and
+ * {@code HEAD} endpoints which are identical to a request that is already in flight share its response rather than
+ * being sent again. Requests are identical if they have the same endpoint, path parameters, query parameters and
+ * values of the {@link Builder#keyHeaders key headers}, which always include the {@code Authorization} and
+ * {@code Cookie} headers so that responses are never shared between callers with different credentials, and the
+ * {@code If-None-Match} header so that conditional requests don't share responses with unconditional requests.
+ */
+public final class CoalescingPolicy {
+
+    private final int maxBodySize;
+    private final ImmutableSet<String> keyHeaders;
+
+    private CoalescingPolicy(int maxBodySize, ImmutableSet<String> keyHeaders) {
+        this.maxBodySize = maxBodySize;
+        this.keyHeaders = keyHeaders;
+    }
+
+    /** Largest response body in bytes which is buffered and shared, larger responses are not coalesced. */
+    int maxBodySize() {
+        return maxBodySize;
+    }
+
+    ImmutableSet<String> keyHeaders() {
+        return keyHeaders;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingPolicy{maxBodySize=" + maxBodySize + ", keyHeaders=" + keyHeaders + '}';
+    }
+
+    public static final class Builder {
+        private int maxBodySize = 1024 * 1024;
+        private final ImmutableSet.Builder<String> keyHeaders = ImmutableSet.<String>builder()
+                .add(HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE, HttpHeaders.IF_NONE_MATCH);
+
+        private Builder() {}
+
+        /**
+         * Largest response body in bytes which is buffered and shared between identical requests. Requests which
+         * were waiting for a larger response are sent separately instead. Defaults to 1 MiB.
+         */
+        public Builder maxBodySize(int value) {
+            Preconditions.checkArgument(
+                    value >= 0, "maxBodySize must not be negative", SafeArg.of("maxBodySize", value));
+            this.maxBodySize = value;
+            return this;
+        }
+
+        /**
+         * Headers whose values must match for requests to be coalesced, in addition to {@code Authorization},
+         * {@code Cookie} and {@code If-None-Match}. Other headers are ignored, so any header which affects the
+         * response must be included.
+         */
+        public Builder keyHeaders(Collection<String> values) {
+            this.keyHeaders.addAll(Preconditions.checkNotNull(values, "keyHeaders"));
+            return this;
+        }
+
+        @CheckReturnValue
+        public CoalescingPolicy build() {
+            return new CoalescingPolicy(maxBodySize, keyHeaders.build());
+        }
+    }
+}
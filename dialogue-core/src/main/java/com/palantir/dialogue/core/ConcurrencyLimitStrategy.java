@@ -0,0 +1,34 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+/**
+ * Algorithms which {@link DialogueChannel} may use to adapt the number of concurrent requests to each host, selected
+ * using {@link DialogueChannel.Builder#concurrencyLimitStrategy}.
+ */
+public enum ConcurrencyLimitStrategy {
+    /**
+     * Additively increases the limit with successful responses and multiplicatively decreases it when requests fail
+     * with server errors, QoS responses or IOExceptions. This is the default.
+     */
+    AIMD,
+    /**
+     * Additionally reduces the limit when the latency of a host grows beyond its minimum latency, which indicates that
+     * requests are queueing on the host. Hosts which slow down are limited before they start to fail requests.
+     */
+    GRADIENT
+}
@@ -18,34 +18,58 @@ package com.palantir.dialogue.core;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Ticker;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
 import com.palantir.tritium.metrics.registry.MetricName;
 import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
 import java.lang.ref.WeakReference;
-import java.util.Optional;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 
 /**
  * A channel that monitors the successes and failures of requests in order to determine the number of concurrent
  * requests allowed to a particular channel. If the channel's concurrency limit has been reached, the
- * {@link #maybeExecute} method returns empty.
+ * {@link #maybeExecute} method returns null.
+ *
+ * Once per-endpoint limits are configured, each endpoint additionally has its own limit on the channel, and failed
+ * requests only reduce the limit of their endpoint rather than the limit of the whole channel.
  */
 final class ConcurrencyLimitedChannel implements LimitedChannel {
     static final int INITIAL_LIMIT = 20;
 
     private final Meter limitedMeter;
     private final LimitedChannel delegate;
-    private final AimdConcurrencyLimiter limiter;
+    private final ConcurrencyLimiter limiter;
+
+    // Capacity is only reserved for interactive requests once priorities are configured
+    @Nullable
+    private final EndpointPriorities priorities;
+
+    @Nullable
+    private final EndpointConcurrencyLimiters endpointLimiters;
 
     ConcurrencyLimitedChannel(
             LimitedChannel delegate,
-            AimdConcurrencyLimiter limiter,
+            ConcurrencyLimiter limiter,
             String channelName,
             int uriIndex,
             TaggedMetricRegistry taggedMetrics) {
+        this(delegate, limiter, channelName, uriIndex, taggedMetrics, null, null);
+    }
+
+    ConcurrencyLimitedChannel(
+            LimitedChannel delegate,
+            ConcurrencyLimiter limiter,
+            String channelName,
+            int uriIndex,
+            TaggedMetricRegistry taggedMetrics,
+            @Nullable EndpointPriorities priorities,
+            @Nullable EndpointConcurrencyLimiters endpointLimiters) {
         this.delegate = new NeverThrowLimitedChannel(delegate);
         this.limitedMeter = DialogueClientMetrics.of(taggedMetrics)
                 .limited()
@@ -53,6 +77,8 @@ final class ConcurrencyLimitedChannel implements LimitedChannel {
                 .reason(getClass().getSimpleName())
                 .build();
         this.limiter = limiter;
+        this.priorities = priorities;
+        this.endpointLimiters = endpointLimiters;
 
         weakGauge(
                 taggedMetrics,
@@ -62,28 +88,81 @@ final class ConcurrencyLimitedChannel implements LimitedChannel {
                         .putSafeTags("hostIndex", Integer.toString(uriIndex))
                         .build(),
                 this,
-                ConcurrencyLimitedChannel::getMax);
+                ConcurrencyLimitedChannel::getLimit);
     }
 
-    static AimdConcurrencyLimiter createLimiter() {
+    static ConcurrencyLimiter createLimiter() {
         return new AimdConcurrencyLimiter();
     }
 
+    static ConcurrencyLimiter createLimiter(ConcurrencyLimitStrategy strategy, Ticker clock) {
+        switch (strategy) {
+            case AIMD:
+                return new AimdConcurrencyLimiter();
+            case GRADIENT:
+                return new GradientConcurrencyLimiter(clock);
+        }
+        throw new SafeIllegalArgumentException("Unknown ConcurrencyLimitStrategy", SafeArg.of("unknown", strategy));
+    }
+
+    @Nullable
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
-        Optional<AimdConcurrencyLimiter.Permit> maybePermit = limiter.acquire();
-        if (maybePermit.isPresent()) {
-            AimdConcurrencyLimiter.Permit permit = maybePermit.get();
-            Optional<ListenableFuture<Response>> result = delegate.maybeExecute(endpoint, request);
-            if (result.isPresent()) {
-                DialogueFutures.addDirectCallback(result.get(), permit);
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        ConcurrencyLimiter.Permit permit =
+                priorities == null ? limiter.acquire() : limiter.acquire(priorities.get(endpoint));
+        if (permit != null) {
+            if (endpointLimiters != null) {
+                EndpointConcurrencyLimiters.Bulkhead bulkhead = endpointLimiters.get(endpoint);
+                ConcurrencyLimiter.Permit endpointPermit = bulkhead.limiter().acquire();
+                if (endpointPermit == null) {
+                    permit.ignore();
+                    bulkhead.limitedMeter().mark();
+                    return null;
+                }
+                permit = new BulkheadPermit(permit, endpointPermit);
+            }
+            ListenableFuture<Response> result = delegate.maybeExecute(endpoint, request);
+            if (result != null) {
+                DialogueFutures.addDirectCallback(result, permit);
             } else {
                 permit.ignore();
             }
             return result;
         } else {
             limitedMeter.mark();
-            return Optional.empty();
+            return null;
+        }
+    }
+
+    /**
+     * Combines the permits of the channel and the endpoint. Failures are attributed to the endpoint alone, while the
+     * channel limit keeps growing with successes so that it bounds the sum of the endpoint limits.
+     */
+    private static final class BulkheadPermit implements ConcurrencyLimiter.Permit {
+        private final ConcurrencyLimiter.Permit channelPermit;
+        private final ConcurrencyLimiter.Permit endpointPermit;
+
+        BulkheadPermit(ConcurrencyLimiter.Permit channelPermit, ConcurrencyLimiter.Permit endpointPermit) {
+            this.channelPermit = channelPermit;
+            this.endpointPermit = endpointPermit;
+        }
+
+        @Override
+        public void ignore() {
+            channelPermit.ignore();
+            endpointPermit.ignore();
+        }
+
+        @Override
+        public void dropped() {
+            channelPermit.ignore();
+            endpointPermit.dropped();
+        }
+
+        @Override
+        public void success() {
+            channelPermit.success();
+            endpointPermit.success();
         }
     }
 
@@ -92,16 +171,34 @@ final class ConcurrencyLimitedChannel implements LimitedChannel {
         return "ConcurrencyLimitedChannel{" + delegate + '}';
     }
 
-    private int getMax() {
+    /**
+     * Returns true if requests to the endpoint are limited by the limit of the endpoint although the host has
+     * capacity, so that requests to other endpoints may still be executed.
+     */
+    boolean isEndpointLimited(Endpoint endpoint) {
+        if (endpointLimiters == null || limiter.getInflight() >= limiter.getLimit()) {
+            return false;
+        }
+        EndpointConcurrencyLimiters.Bulkhead bulkhead = endpointLimiters.getIfPresent(endpoint);
+        return bulkhead != null && bulkhead.limiter().getInflight() >= bulkhead.limiter().getLimit();
+    }
+
+    /** Returns the current concurrency limit of this channel. */
+    int getLimit() {
         return limiter.getLimit();
     }
 
+    /** Returns the number of requests currently executing on this channel. */
+    int getInflight() {
+        return limiter.getInflight();
+    }
+
     /**
      * Creates a gauge that removes itself when the {@code instance} has been garbage-collected.
      * We need this to ensure that ConcurrencyLimitedChannels can be GC'd when urls live-reload, otherwise metric
      * registries could keep around dangling references.
      */
-    private static <T> void weakGauge(
+    static <T> void weakGauge(
             TaggedMetricRegistry registry, MetricName metricName, T instance, Function<T, Number> gaugeFunction) {
         registry.registerWithReplacement(metricName, new Gauge<Number>() {
             private final WeakReference<T> weakReference = new WeakReference<>(instance);
@@ -0,0 +1,120 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.palantir.dialogue.Response;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Limits the number of concurrent requests to a single host. Typically, a dispatching
+ * {@link com.palantir.dialogue.Request} tries to {@link #acquire} a new permit and releases it when the
+ * corresponding {@link Response} is retrieved. Implementations adapt the limit based on the outcome of each request,
+ * see {@link ConcurrencyLimitedChannel#createLimiter}.
+ */
+interface ConcurrencyLimiter {
+
+    // Fraction of the limit which only interactive requests may use
+    double INTERACTIVE_RESERVATION = .1D;
+
+    /**
+     * Returns a request permit if the number of {@link #getInflight in-flight} permits is smaller than the
+     * current {@link #getLimit upper limit} of allowed concurrent permits, otherwise {@code null}. Permits may be
+     * reused by later requests once they have been released, so that acquiring a permit doesn't have to allocate.
+     * The caller is responsible for
+     * eventually releasing the permit by calling exactly one of the {@link Permit#ignore}, {@link Permit#dropped},
+     * or {@link Permit#success} methods.
+     *
+     * If the permit
+     * is used in the context of a {@link Response Future&lt;Response&gt;} object, then passing the {@link Permit} as a
+     * {@link FutureCallback callback} to the future will invoke either {@link Permit#onSuccess} or
+     * {@link Permit#onFailure} which delegate to
+     * ignore/dropped/success depending on the success or failure state of the response.
+     * */
+    @Nullable
+    Permit acquire();
+
+    /**
+     * Like {@link #acquire()}, but requests which are not {@link RequestPriority#INTERACTIVE} may not use the slice of
+     * the limit which is reserved for interactive requests, see {@link #limitFor}.
+     */
+    @Nullable
+    Permit acquire(RequestPriority priority);
+
+    /**
+     * Returns the current concurrency limit, i.e., the maximum number of concurrent {@link #getInflight in-flight}
+     * permits such that another permit can be {@link #acquire acquired}.
+     */
+    int getLimit();
+
+    /**
+     * Returns the current number of in-flight permits, i.e., permits that been acquired but not yet released through
+     * either of ignore/dropped/success.
+     */
+    int getInflight();
+
+    /**
+     * Returns the part of the {@code limit} which requests of the given priority may use. At least one permit is
+     * always available to every priority, and the reservation is at least one permit once the limit allows it.
+     */
+    static int limitFor(int limit, RequestPriority priority) {
+        if (priority == RequestPriority.INTERACTIVE) {
+            return limit;
+        }
+        return limit - Math.min(limit - 1, (int) Math.ceil(limit * INTERACTIVE_RESERVATION));
+    }
+
+    interface Permit extends FutureCallback<Response> {
+
+        @Override
+        default void onSuccess(Response result) {
+            if (Responses.isQosStatus(result) || Responses.isServerError(result)) {
+                dropped();
+            } else {
+                success();
+            }
+        }
+
+        @Override
+        default void onFailure(Throwable throwable) {
+            if (throwable instanceof IOException) {
+                dropped();
+            } else {
+                ignore();
+            }
+        }
+
+        /**
+         * Indicates that the effect of the request corresponding to this permit on concurrency limits should be
+         * ignored.
+         */
+        void ignore();
+
+        /**
+         * Indicates that the request corresponding to this permit was dropped and that the concurrency limit should be
+         * decreased.
+         */
+        void dropped();
+
+        /**
+         * Indicates that the request corresponding to this permit was successful and that the concurrency limit may be
+         * increased.
+         */
+        void success();
+    }
+}
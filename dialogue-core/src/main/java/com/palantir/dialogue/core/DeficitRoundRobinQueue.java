@@ -0,0 +1,159 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.tritium.metrics.registry.MetricName;
+import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Queues deferred calls per endpoint and dequeues them by deficit round robin, so that one endpoint flooding the queue
+ * can't delay requests to the other endpoints of a channel. Endpoints with queued requests take turns, and each turn
+ * dequeues up to the weight of the endpoint. Requests to the same endpoint are dequeued in order.
+ *
+ * Unlike the default queue all operations take a lock, but the queue is only used once the channel is limited, so
+ * the lock-free fast path of the {@link QueuedChannel} is unaffected. Only endpoints with queued requests are
+ * retained.
+ */
+final class DeficitRoundRobinQueue implements QueuedChannel.CallQueue {
+
+    private final ToIntFunction<Endpoint> weights;
+    private final TaggedMetricRegistry registry;
+    private final String channelName;
+    // Depth gauges are registered once per endpoint rather than whenever an endpoint starts queueing, and remove
+    // themselves once the depth has been evicted or the queue has been garbage-collected
+    private final Cache<Endpoint, AtomicInteger> depths =
+            Caffeine.newBuilder().weakKeys().maximumSize(1_000).build();
+
+    @GuardedBy("this")
+    private final Map<Endpoint, EndpointQueue> queues = new HashMap<>();
+
+    @GuardedBy("this")
+    private final Deque<EndpointQueue> active = new ArrayDeque<>();
+
+    DeficitRoundRobinQueue(ToIntFunction<Endpoint> weights, TaggedMetricRegistry registry, String channelName) {
+        this.weights = weights;
+        this.registry = registry;
+        this.channelName = channelName;
+    }
+
+    @Override
+    public synchronized boolean offer(QueuedChannel.DeferredCall call) {
+        EndpointQueue queue = queues.get(call.endpoint());
+        if (queue == null) {
+            queue = newQueue(call.endpoint());
+            active.addLast(queue);
+        }
+        queue.calls.addLast(call);
+        queue.depth.incrementAndGet();
+        return true;
+    }
+
+    /** Returns a call which could not be executed, it will be dequeued next as though it had never been polled. */
+    @Override
+    public synchronized boolean offerFirst(QueuedChannel.DeferredCall call) {
+        EndpointQueue queue = queues.get(call.endpoint());
+        if (queue == null) {
+            queue = newQueue(call.endpoint());
+            active.addFirst(queue);
+        } else if (active.peekLast() == queue && active.peekFirst() != queue) {
+            // Polling the call ended the turn of the endpoint
+            active.removeLast();
+            active.addFirst(queue);
+        }
+        queue.calls.addFirst(call);
+        queue.depth.incrementAndGet();
+        queue.deficit++;
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public synchronized QueuedChannel.DeferredCall poll() {
+        EndpointQueue queue = active.peekFirst();
+        if (queue == null) {
+            return null;
+        }
+        if (queue.deficit <= 0) {
+            // Start of a new turn
+            queue.deficit += queue.weight;
+        }
+        QueuedChannel.DeferredCall call = queue.calls.removeFirst();
+        queue.depth.decrementAndGet();
+        queue.deficit--;
+        if (queue.calls.isEmpty()) {
+            active.removeFirst();
+            queues.remove(queue.endpoint);
+        } else if (queue.deficit <= 0) {
+            active.removeFirst();
+            active.addLast(queue);
+        }
+        return call;
+    }
+
+    @GuardedBy("this")
+    private EndpointQueue newQueue(Endpoint endpoint) {
+        EndpointQueue queue = new EndpointQueue(
+                endpoint, Math.max(1, weights.applyAsInt(endpoint)), depths.get(endpoint, this::registerDepthGauge));
+        queues.put(endpoint, queue);
+        return queue;
+    }
+
+    private AtomicInteger registerDepthGauge(Endpoint endpoint) {
+        AtomicInteger depth = new AtomicInteger();
+        ConcurrencyLimitedChannel.weakGauge(
+                registry,
+                MetricName.builder()
+                        .safeName("dialogue.client.endpoint.requests.queued")
+                        .putSafeTags("channel-name", channelName)
+                        .putSafeTags("service-name", endpoint.serviceName())
+                        .putSafeTags("endpoint", endpoint.endpointName())
+                        .build(),
+                depth,
+                AtomicInteger::get);
+        return depth;
+    }
+
+    private static final class EndpointQueue {
+        private final Endpoint endpoint;
+        private final int weight;
+        private final AtomicInteger depth;
+        private final Deque<QueuedChannel.DeferredCall> calls = new ArrayDeque<>();
+        private int deficit;
+
+        EndpointQueue(Endpoint endpoint, int weight, AtomicInteger depth) {
+            this.endpoint = endpoint;
+            this.weight = weight;
+            this.depth = depth;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeficitRoundRobinQueue{channelName=" + channelName + '}';
+    }
+}
@@ -16,12 +16,18 @@
 
 package com.palantir.dialogue.core;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.palantir.conjure.java.client.config.ClientConfiguration;
+import com.palantir.conjure.java.client.config.NodeSelectionStrategy;
 import com.palantir.dialogue.Channel;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
@@ -33,6 +39,7 @@ import com.palantir.logsafe.exceptions.SafeIllegalStateException;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import com.palantir.random.SafeThreadLocalRandom;
 import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -43,7 +50,10 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,42 +62,140 @@ public final class DialogueChannel implements Channel {
     private static final Logger log = LoggerFactory.getLogger(DialogueChannel.class);
 
     private final Map<String, LimitedChannel> limitedChannelByUri = new ConcurrentHashMap<>();
+    // Only populated when endpoints are limited separately, so that the queue can tell whether an endpoint is limited
+    private final Map<String, ConcurrencyLimitedChannel> concurrencyLimitedChannelByUri = new ConcurrentHashMap<>();
     private final AtomicReference<LimitedChannel> nodeSelectionStrategy = new AtomicReference<>();
     private final QueuedChannel queuedChannel; // just so we can process the queue when uris reload
 
     private final String channelName;
     private final ClientConfiguration clientConfiguration;
+    private final DialogueNodeSelectionStrategy selectionStrategy;
     private final ChannelFactory channelFactory;
     private final Channel delegate;
     private final ClientMetrics clientMetrics;
     private final DialogueClientMetrics dialogueClientMetrics;
     private final Random random;
+    private final Ticker clock;
+    private final ConcurrencyLimitStrategy limitStrategy;
+
+    @Nullable
+    private final EndpointPriorities priorities;
+
+    // Endpoints are only limited separately once an idle timeout is configured
+    @Nullable
+    private final Duration endpointLimitIdleTimeout;
+
+    // Hosts are only warmed up once a window is configured
+    @Nullable
+    private final Duration slowStartWindow;
+
+    @Nullable
+    private final OutlierDetector outlierDetector;
+
+    @Nullable
+    private final BiFunction<Endpoint, Request, Optional<String>> affinityKey;
+
+    private final boolean endpointScopedPinning;
+
+    @Nullable
+    private final HedgingPolicy hedgingPolicy;
+
+    // Uri of the host which received the latest attempt of each request which may be hedged, keyed by request
+    // identity. Only recorded when hedging, so that hedged attempts are sent to another host.
+    @Nullable
+    private final Cache<Request, String> attemptUris;
+
+    // Node selection among all hosts but the one keyed by its uri
+    private volatile ImmutableMap<String, LimitedChannel> hedgeSelectionByUri = ImmutableMap.of();
 
     // TODO(forozco): you really want a refreshable of uri separate from the client config
     private DialogueChannel(
             String channelName,
             ClientConfiguration clientConfiguration,
+            DialogueNodeSelectionStrategy selectionStrategy,
+            ConcurrencyLimitStrategy limitStrategy,
             ChannelFactory channelFactory,
             Random random,
+            Ticker clock,
             Supplier<ScheduledExecutorService> scheduler,
-            int maxQueueSize) {
+            int maxQueueSize,
+            Function<Endpoint, Optional<Duration>> requestDeadlines,
+            Optional<ToIntFunction<Endpoint>> fairQueueingWeights,
+            Optional<AdaptiveLifo> adaptiveLifo,
+            Optional<Function<Endpoint, RequestPriority>> requestPriorities,
+            Optional<Duration> endpointLimitIdleTimeout,
+            Optional<Duration> slowStartWindow,
+            Optional<BiFunction<Endpoint, Request, Optional<String>>> affinityKey,
+            boolean endpointScopedPinning,
+            Optional<HedgingPolicy> hedgingPolicy,
+            Optional<CoalescingPolicy> coalescingPolicy,
+            Optional<ResponseCachePolicy> responseCachePolicy,
+            RequestBudget retryBudget) {
         this.channelName = channelName;
         this.clientConfiguration = clientConfiguration;
+        this.selectionStrategy = selectionStrategy;
+        this.limitStrategy = limitStrategy;
         this.channelFactory = channelFactory;
         clientMetrics = ClientMetrics.of(clientConfiguration.taggedMetricRegistry());
         dialogueClientMetrics = DialogueClientMetrics.of(clientConfiguration.taggedMetricRegistry());
         this.random = random;
+        this.clock = clock;
+        this.priorities = requestPriorities.map(EndpointPriorities::new).orElse(null);
+        this.endpointLimitIdleTimeout = endpointLimitIdleTimeout.orElse(null);
+        this.slowStartWindow = slowStartWindow.orElse(null);
+        this.affinityKey = affinityKey.orElse(null);
+        this.endpointScopedPinning = endpointScopedPinning;
+        this.hedgingPolicy = hedgingPolicy.orElse(null);
+        this.attemptUris = hedgingPolicy.isPresent()
+                ? Caffeine.newBuilder().weakKeys().<Request, String>build()
+                : null;
+        this.outlierDetector =
+                outlierDetector(clientConfiguration, selectionStrategy, clock, dialogueClientMetrics, channelName);
+        Supplier<QueuedChannel.CallQueue> callQueues = () -> {
+            if (fairQueueingWeights.isPresent()) {
+                return new DeficitRoundRobinQueue(
+                        fairQueueingWeights.get(), clientConfiguration.taggedMetricRegistry(), channelName);
+            }
+            if (adaptiveLifo.isPresent()) {
+                AdaptiveLifo lifo = adaptiveLifo.get();
+                return new AdaptiveLifoQueue(lifo.target, lifo.interval, clock, dialogueClientMetrics, channelName);
+            }
+            return QueuedChannel.fifoQueue();
+        };
         this.queuedChannel = new QueuedChannel(
-                new SupplierChannel(nodeSelectionStrategy::get), channelName, dialogueClientMetrics, maxQueueSize);
+                new SupplierChannel(nodeSelectionStrategy::get),
+                channelName,
+                dialogueClientMetrics,
+                maxQueueSize,
+                clock,
+                requestDeadlines,
+                priorities == null ? callQueues.get() : new PriorityCallQueue(priorities, callQueues),
+                this.endpointLimitIdleTimeout == null ? _endpoint -> false : this::isEndpointLimited);
         updateUris(clientConfiguration.uris());
+        Channel attemptChannel = new TracedChannel(queuedChannel, "Dialogue-request-attempt");
+        if (hedgingPolicy.isPresent()) {
+            // Hedged attempts skip the queue so that they are only sent when a host has capacity
+            attemptChannel = new HedgingChannel(
+                    attemptChannel,
+                    this::maybeExecuteHedge,
+                    hedgingPolicy.get(),
+                    scheduler.get(),
+                    clock,
+                    dialogueClientMetrics,
+                    channelName);
+        }
         this.delegate = wrap(
-                queuedChannel,
+                attemptChannel,
                 channelName,
                 clientConfiguration,
                 scheduler,
                 random,
                 clientMetrics,
-                dialogueClientMetrics);
+                dialogueClientMetrics,
+                clock,
+                coalescingPolicy,
+                responseCachePolicy,
+                retryBudget);
     }
 
     @Override
@@ -119,43 +227,163 @@ public final class DialogueChannel implements Channel {
         Sets.SetView<String> staleUris = Sets.difference(limitedChannelByUri.keySet(), uniqueUris);
         Sets.SetView<String> newUris = Sets.difference(uniqueUris, limitedChannelByUri.keySet());
 
+        // The view is evaluated lazily, so stale hosts must be removed from the limited channels last
+        staleUris.forEach(concurrencyLimitedChannelByUri::remove);
         staleUris.forEach(limitedChannelByUri::remove);
+        if (outlierDetector != null) {
+            outlierDetector.retain(uniqueUris);
+        }
         ImmutableList<String> allUris = ImmutableList.<String>builder()
                 .addAll(limitedChannelByUri.keySet())
                 .addAll(newUris)
                 .build();
-        newUris.forEach(uri -> limitedChannelByUri.put(uri, createLimitedChannel(uri, allUris.indexOf(uri))));
+        // Hosts are only warmed up once they are added to an existing channel, otherwise they all start cold together
+        newUris.forEach(
+                uri -> limitedChannelByUri.put(uri, createLimitedChannel(uri, allUris.indexOf(uri), !firstTime)));
 
         nodeSelectionStrategy.getAndUpdate(previous -> getUpdatedNodeSelectionStrategy(
                 previous,
                 clientConfiguration,
-                ImmutableList.copyOf(limitedChannelByUri.values()),
+                selectionStrategy,
+                ImmutableMap.copyOf(limitedChannelByUri),
+                affinityKey,
+                endpointScopedPinning,
                 random,
                 channelName));
+        if (attemptUris != null) {
+            hedgeSelectionByUri = hedgeSelection(ImmutableMap.copyOf(limitedChannelByUri));
+        }
 
         // some queued requests might be able to make progress on a new uri now
         queuedChannel.schedule();
     }
 
-    private LimitedChannel createLimitedChannel(String uri, int uriIndex) {
+    private LimitedChannel createLimitedChannel(String uri, int uriIndex, boolean added) {
         Channel channel = channelFactory.create(uri);
+        // Latency is only tracked when it is used to select nodes
+        PeakEwmaLatency latency =
+                selectionStrategy == DialogueNodeSelectionStrategy.LATENCY_AWARE ? new PeakEwmaLatency(clock) : null;
         // Instrument inner-most channel with instrumentation channels so that we measure only the over-the-wire-time
-        channel = new InstrumentedChannel(channel, channelName, clientMetrics);
+        channel = new InstrumentedChannel(channel, channelName, clientMetrics, latency);
         channel = new ActiveRequestInstrumentationChannel(channel, channelName, "running", dialogueClientMetrics);
         // TracedChannel must wrap TracedRequestChannel to ensure requests have tracing headers.
         channel = new TraceEnrichingChannel(channel);
+        if (attemptUris != null && hedgingPolicy != null) {
+            channel = new AttemptUriRecordingChannel(channel, uri, hedgingPolicy, attemptUris);
+        }
 
         LimitedChannel limitedChannel = new ChannelToLimitedChannelAdapter(channel);
-        return concurrencyLimiter(
-                clientConfiguration, limitedChannel, clientConfiguration.taggedMetricRegistry(), channelName, uriIndex);
+        if (outlierDetector != null) {
+            // Beneath the concurrency limiter, so that node selection can still observe the load of the host
+            limitedChannel = outlierDetector.host(uri, limitedChannel);
+        }
+        limitedChannel = concurrencyLimiter(
+                clientConfiguration,
+                limitedChannel,
+                clientConfiguration.taggedMetricRegistry(),
+                channelName,
+                uriIndex,
+                ConcurrencyLimitedChannel.createLimiter(limitStrategy, clock),
+                priorities,
+                endpointLimitIdleTimeout == null
+                        ? null
+                        : new EndpointConcurrencyLimiters(
+                                () -> ConcurrencyLimitedChannel.createLimiter(limitStrategy, clock),
+                                endpointLimitIdleTimeout,
+                                clock,
+                                dialogueClientMetrics,
+                                channelName));
+        if (endpointLimitIdleTimeout != null && limitedChannel instanceof ConcurrencyLimitedChannel) {
+            concurrencyLimitedChannelByUri.put(uri, (ConcurrencyLimitedChannel) limitedChannel);
+        }
+        if (latency != null) {
+            return new LatencyTrackingChannel(limitedChannel, latency);
+        }
+        if (slowStartWindow != null
+                && selectionStrategy != DialogueNodeSelectionStrategy.LEAST_OUTSTANDING_REQUESTS
+                && selectionStrategy != DialogueNodeSelectionStrategy.CONSISTENT_HASHING) {
+            return new SlowStartChannel(
+                    limitedChannel, slowStartWindow, clock, dialogueClientMetrics, channelName, added);
+        }
+        return limitedChannel;
+    }
+
+    /**
+     * Hedged attempts are sent to any host but the one which received the first attempt, using the node selection
+     * strategy of the channel. If the first attempt is still queued any host may be selected. Hedged attempts are only
+     * sent while there are several hosts, a single host would receive both attempts.
+     */
+    @Nullable
+    private ListenableFuture<Response> maybeExecuteHedge(Endpoint endpoint, Request request) {
+        if (limitedChannelByUri.size() < 2) {
+            return null;
+        }
+        String attemptUri = attemptUris == null ? null : attemptUris.getIfPresent(request);
+        LimitedChannel selection = attemptUri == null ? null : hedgeSelectionByUri.get(attemptUri);
+        return (selection == null ? nodeSelectionStrategy.get() : selection).maybeExecute(endpoint, request);
+    }
+
+    /** Creates a node selection strategy for each host, which selects among the other hosts. */
+    private ImmutableMap<String, LimitedChannel> hedgeSelection(ImmutableMap<String, LimitedChannel> channelsByUri) {
+        ImmutableMap.Builder<String, LimitedChannel> selectionByUri = ImmutableMap.builder();
+        channelsByUri.forEach((uri, _channel) -> selectionByUri.put(
+                uri,
+                getUpdatedNodeSelectionStrategy(
+                        null,
+                        clientConfiguration,
+                        selectionStrategy,
+                        ImmutableMap.copyOf(Maps.filterKeys(channelsByUri, other -> !uri.equals(other))),
+                        affinityKey,
+                        endpointScopedPinning,
+                        random,
+                        channelName)));
+        return selectionByUri.build();
+    }
+
+    /**
+     * Returns true if the endpoint has reached its own limit on any host which isn't limited as a whole, in which case
+     * requests to other endpoints may still be executed.
+     */
+    private boolean isEndpointLimited(Endpoint endpoint) {
+        for (ConcurrencyLimitedChannel channel : concurrencyLimitedChannelByUri.values()) {
+            if (channel.isEndpointLimited(endpoint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hosts are ejected for the {@link ClientConfiguration#failedUrlCooldown()}, unless they are selected by pin until
+     * error, which already moves away from a host as soon as it fails.
+     */
+    @Nullable
+    private static OutlierDetector outlierDetector(
+            ClientConfiguration config,
+            DialogueNodeSelectionStrategy strategy,
+            Ticker clock,
+            DialogueClientMetrics metrics,
+            String channelName) {
+        Duration cooldown = config.failedUrlCooldown();
+        if (cooldown.isNegative()
+                || cooldown.isZero()
+                || strategy == DialogueNodeSelectionStrategy.PIN_UNTIL_ERROR
+                || strategy == DialogueNodeSelectionStrategy.PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE) {
+            return null;
+        }
+        return new OutlierDetector(cooldown, clock, metrics, channelName);
     }
 
     private static LimitedChannel getUpdatedNodeSelectionStrategy(
             @Nullable LimitedChannel previousNodeSelectionStrategy,
             ClientConfiguration config,
-            List<LimitedChannel> channels,
+            DialogueNodeSelectionStrategy strategy,
+            Map<String, LimitedChannel> channelsByUri,
+            @Nullable BiFunction<Endpoint, Request, Optional<String>> affinityKey,
+            boolean endpointScopedPinning,
             Random random,
             String channelName) {
+        List<LimitedChannel> channels = ImmutableList.copyOf(channelsByUri.values());
         if (channels.isEmpty()) {
             return new ZeroUriChannel(channelName);
         }
@@ -164,9 +392,12 @@ public final class DialogueChannel implements Channel {
             return channels.get(0);
         }
 
-        switch (config.nodeSelectionStrategy()) {
+        switch (strategy) {
             case PIN_UNTIL_ERROR:
             case PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE:
+                NodeSelectionStrategy pinUntilErrorStrategy = strategy == DialogueNodeSelectionStrategy.PIN_UNTIL_ERROR
+                        ? NodeSelectionStrategy.PIN_UNTIL_ERROR
+                        : NodeSelectionStrategy.PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE;
                 DialoguePinuntilerrorMetrics pinuntilerrorMetrics =
                         DialoguePinuntilerrorMetrics.of(config.taggedMetricRegistry());
                 // Previously pin until error, so we should preserve our previous location
@@ -174,7 +405,9 @@ public final class DialogueChannel implements Channel {
                     PinUntilErrorChannel previousPinUntilError = (PinUntilErrorChannel) previousNodeSelectionStrategy;
                     return PinUntilErrorChannel.of(
                             Optional.of(previousPinUntilError.getCurrentChannel()),
-                            config.nodeSelectionStrategy(),
+                            previousPinUntilError.getCurrentEndpointChannels(),
+                            pinUntilErrorStrategy,
+                            endpointScopedPinning,
                             channels,
                             pinuntilerrorMetrics,
                             random,
@@ -182,7 +415,9 @@ public final class DialogueChannel implements Channel {
                 }
                 return PinUntilErrorChannel.of(
                         Optional.empty(),
-                        config.nodeSelectionStrategy(),
+                        ImmutableMap.of(),
+                        pinUntilErrorStrategy,
+                        endpointScopedPinning,
                         channels,
                         pinuntilerrorMetrics,
                         random,
@@ -190,9 +425,18 @@ public final class DialogueChannel implements Channel {
             case ROUND_ROBIN:
                 // No need to preserve previous state with round robin
                 return new RandomSelectionChannel(channels, random);
+            case LEAST_OUTSTANDING_REQUESTS:
+                // Load is tracked by the per-host concurrency limiters, so there is no state to preserve
+                return PowerOfTwoChoicesChannel.leastOutstandingRequests(channels, random);
+            case LATENCY_AWARE:
+                // Latency is tracked per host beneath the node selection strategy, so it survives uri updates
+                return PowerOfTwoChoicesChannel.latencyAware(channels, random);
+            case CONSISTENT_HASHING:
+                // Hosts are ranked by their uris, so keys of the remaining hosts stay put
+                return new RendezvousHashingChannel(
+                        channelsByUri, Preconditions.checkNotNull(affinityKey, "affinityKey"), random);
         }
-        throw new SafeRuntimeException(
-                "Unknown NodeSelectionStrategy", SafeArg.of("unknown", config.nodeSelectionStrategy()));
+        throw new SafeRuntimeException("Unknown NodeSelectionStrategy", SafeArg.of("unknown", strategy));
     }
 
     private static LimitedChannel concurrencyLimiter(
@@ -200,12 +444,21 @@ public final class DialogueChannel implements Channel {
             LimitedChannel channel,
             TaggedMetricRegistry metrics,
             String channelName,
-            int uriIndex) {
+            int uriIndex,
+            ConcurrencyLimiter limiter,
+            @Nullable EndpointPriorities priorities,
+            @Nullable EndpointConcurrencyLimiters endpointLimiters) {
         ClientConfiguration.ClientQoS clientQoS = config.clientQoS();
         switch (clientQoS) {
             case ENABLED:
                 return new ConcurrencyLimitedChannel(
-                        channel, ConcurrencyLimitedChannel.createLimiter(), channelName, uriIndex, metrics);
+                        channel,
+                        limiter,
+                        channelName,
+                        uriIndex,
+                        metrics,
+                        priorities,
+                        endpointLimiters);
             case DANGEROUS_DISABLE_SYMPATHETIC_CLIENT_QOS:
                 return channel;
         }
@@ -218,7 +471,8 @@ public final class DialogueChannel implements Channel {
             String channelName,
             ClientConfiguration conf,
             Supplier<ScheduledExecutorService> scheduler,
-            Random random) {
+            Random random,
+            RequestBudget retryBudget) {
         if (conf.maxNumRetries() == 0) {
             return channel;
         }
@@ -232,23 +486,35 @@ public final class DialogueChannel implements Channel {
                 conf.serverQoS(),
                 conf.retryOnTimeout(),
                 scheduler.get(),
-                random::nextDouble);
+                random::nextDouble,
+                retryBudget);
     }
 
     private static Channel wrap(
-            QueuedChannel queuedChannel,
+            Channel attemptChannel,
             String channelName,
             ClientConfiguration conf,
             Supplier<ScheduledExecutorService> scheduler,
             Random random,
             ClientMetrics clientMetrics,
-            DialogueClientMetrics dialogueClientMetrics) {
-        Channel channel = queuedChannel;
-        channel = new TracedChannel(channel, "Dialogue-request-attempt");
-        channel = retryingChannel(channel, channelName, conf, scheduler, random);
+            DialogueClientMetrics dialogueClientMetrics,
+            Ticker clock,
+            Optional<CoalescingPolicy> coalescingPolicy,
+            Optional<ResponseCachePolicy> responseCachePolicy,
+            RequestBudget retryBudget) {
+        Channel channel = attemptChannel;
+        channel = retryingChannel(channel, channelName, conf, scheduler, random, retryBudget);
         channel = new UserAgentChannel(channel, conf.userAgent().get());
         channel = new DeprecationWarningChannel(channel, clientMetrics);
         channel = new ContentDecodingChannel(channel);
+        if (coalescingPolicy.isPresent()) {
+            // Above retries and content decoding, so that coalesced requests share a single decoded response
+            channel = new CoalescingChannel(channel, coalescingPolicy.get(), dialogueClientMetrics, channelName);
+        }
+        if (responseCachePolicy.isPresent()) {
+            // Above coalescing, so that requests served from the cache are never sent, and revalidations are shared
+            channel = new CachingChannel(channel, responseCachePolicy.get(), clock, dialogueClientMetrics, channelName);
+        }
         channel = new NeverThrowChannel(channel);
         channel = new DialogueTracedRequestChannel(channel);
         channel = new ActiveRequestInstrumentationChannel(channel, channelName, "processing", dialogueClientMetrics);
@@ -262,6 +528,7 @@ public final class DialogueChannel implements Channel {
 
     public static final class Builder {
         private Random random = SafeThreadLocalRandom.get();
+        private Ticker clock = Ticker.systemTicker();
         private Supplier<ScheduledExecutorService> scheduler = RetryingChannel.sharedScheduler;
 
         @Nullable
@@ -273,7 +540,45 @@ public final class DialogueChannel implements Channel {
         @Nullable
         private ChannelFactory channelFactory;
 
+        @Nullable
+        private DialogueNodeSelectionStrategy nodeSelectionStrategy;
+
+        private ConcurrencyLimitStrategy concurrencyLimitStrategy = ConcurrencyLimitStrategy.AIMD;
+
         private int maxQueueSize = 100_000;
+        private Function<Endpoint, Optional<Duration>> requestDeadlines = _endpoint -> Optional.empty();
+
+        @Nullable
+        private ToIntFunction<Endpoint> fairQueueingWeights;
+
+        @Nullable
+        private AdaptiveLifo adaptiveLifo;
+
+        @Nullable
+        private Function<Endpoint, RequestPriority> requestPriorities;
+
+        @Nullable
+        private Duration endpointLimitIdleTimeout;
+
+        @Nullable
+        private Duration slowStartWindow;
+
+        @Nullable
+        private BiFunction<Endpoint, Request, Optional<String>> affinityKey;
+
+        private boolean endpointScopedPinning;
+
+        @Nullable
+        private HedgingPolicy hedgingPolicy;
+
+        @Nullable
+        private CoalescingPolicy coalescingPolicy;
+
+        @Nullable
+        private ResponseCachePolicy responseCachePolicy;
+
+        private double retryBudgetRatio = RetryingChannel.RETRY_BUDGET_RATIO;
+        private int retryBudgetMaxBurst = RetryingChannel.RETRY_BUDGET_BURST;
 
         /**
          * {@link Safe} loggable name to identify this channel for instrumentation and debugging. While this value
@@ -295,12 +600,174 @@ public final class DialogueChannel implements Channel {
             return this;
         }
 
+        /**
+         * Overrides the {@link ClientConfiguration#nodeSelectionStrategy()}, allowing strategies which are specific to
+         * dialogue to be used.
+         */
+        public Builder nodeSelectionStrategy(DialogueNodeSelectionStrategy value) {
+            this.nodeSelectionStrategy = value;
+            return this;
+        }
+
+        /**
+         * Selects the algorithm used to limit the number of concurrent requests to each host, which is
+         * {@link ConcurrencyLimitStrategy#AIMD} by default. Has no effect if client QoS is disabled.
+         */
+        public Builder concurrencyLimitStrategy(ConcurrencyLimitStrategy value) {
+            this.concurrencyLimitStrategy = Preconditions.checkNotNull(value, "concurrencyLimitStrategy");
+            return this;
+        }
+
+        /**
+         * Enables hedged requests: slow requests to idempotent endpoints are sent a second time, and the first
+         * response to arrive is used. Hedging is disabled by default. Hedged attempts are sent to a different host
+         * than the first attempt, so hedging requires a node selection strategy which balances requests between
+         * hosts, rather than one which sends each request to a particular host such as
+         * {@link DialogueNodeSelectionStrategy#PIN_UNTIL_ERROR} or
+         * {@link DialogueNodeSelectionStrategy#CONSISTENT_HASHING}.
+         */
+        public Builder hedgingPolicy(HedgingPolicy value) {
+            this.hedgingPolicy = value;
+            return this;
+        }
+
+        /**
+         * Enables request coalescing: identical requests to {@code GET} and {@code HEAD} endpoints which are made
+         * while such a request is already in flight share its response rather than being sent again. Coalescing is
+         * disabled by default.
+         */
+        public Builder requestCoalescing(CoalescingPolicy value) {
+            this.coalescingPolicy = Preconditions.checkNotNull(value, "coalescingPolicy");
+            return this;
+        }
+
+        /**
+         * Enables the client-side response cache: responses to {@code GET} requests to the endpoints which opted in
+         * are kept in memory as long as their {@code Cache-Control} header allows, and revalidated using their
+         * {@code ETag} once stale. Caching is disabled by default.
+         */
+        public Builder responseCache(ResponseCachePolicy value) {
+            this.responseCachePolicy = Preconditions.checkNotNull(value, "responseCachePolicy");
+            return this;
+        }
+
+        /**
+         * Configures the retry budget shared by all requests on the channel, which limits retries to a fraction of
+         * requests so that retries can't multiply the load on an upstream service which is failing entirely. Each
+         * response which isn't a server error or QoS response earns {@code ratio} of a retry, and each retry spends a
+         * whole one. At most {@code maxBurst} retries are saved up, and the budget starts full. Defaults to a ratio of
+         * {@code 0.2} and a burst of {@code 20}.
+         */
+        public Builder retryBudget(double ratio, int maxBurst) {
+            Preconditions.checkArgument(
+                    ratio >= 0 && ratio <= 1, "ratio must be between zero and one", SafeArg.of("ratio", ratio));
+            Preconditions.checkArgument(maxBurst >= 1, "maxBurst must be positive", SafeArg.of("maxBurst", maxBurst));
+            this.retryBudgetRatio = ratio;
+            this.retryBudgetMaxBurst = maxBurst;
+            return this;
+        }
+
+        /**
+         * Deadline of requests to each endpoint, after which callers are no longer expected to wait for a response.
+         * Requests which are queued for longer than their deadline are failed without being sent, and requests are
+         * failed immediately while recent queue times exceed their deadline. By default requests have no deadline.
+         */
+        public Builder requestDeadlines(Function<Endpoint, Optional<Duration>> value) {
+            this.requestDeadlines = Preconditions.checkNotNull(value, "requestDeadlines");
+            return this;
+        }
+
+        /**
+         * Enables fair queueing: while requests are queued, endpoints take turns to execute up to their weight in
+         * requests, so that one endpoint flooding the queue can't delay requests to other endpoints. By default
+         * queued requests are executed in the order they were made.
+         */
+        public Builder fairQueueing(ToIntFunction<Endpoint> weights) {
+            this.fairQueueingWeights = Preconditions.checkNotNull(weights, "weights");
+            return this;
+        }
+
+        /**
+         * Enables adaptive LIFO queueing: once the oldest queued request has waited for longer than the {@code target}
+         * for a whole {@code interval}, the freshest queued requests are executed first and requests which have been
+         * queued for longer than the {@code interval} are failed, until the queue drains again. This keeps latency low
+         * for most requests during overload, rather than every request waiting for the maximum time. Cannot be
+         * combined with {@link #fairQueueing}. By default queued requests are executed in the order they were made.
+         */
+        public Builder adaptiveLifoQueueing(Duration target, Duration interval) {
+            this.adaptiveLifo = new AdaptiveLifo(
+                    Preconditions.checkNotNull(target, "target"), Preconditions.checkNotNull(interval, "interval"));
+            return this;
+        }
+
+        /**
+         * Priority of requests to each endpoint. Once configured, queued requests are executed in priority order, and
+         * a slice of the concurrency limit of each host is reserved for {@link RequestPriority#INTERACTIVE} requests.
+         * By default all requests are treated equally.
+         */
+        public Builder requestPriorities(Function<Endpoint, RequestPriority> value) {
+            this.requestPriorities = Preconditions.checkNotNull(value, "requestPriorities");
+            return this;
+        }
+
+        /**
+         * Enables per-endpoint concurrency limits: in addition to the limit of each host, each endpoint has its own
+         * limit on each host. Failed requests only reduce the limit of their endpoint, so a failing endpoint can't
+         * throttle requests to the other endpoints of the host, and with {@link ConcurrencyLimitStrategy#GRADIENT} a
+         * slow endpoint is confined by its own limit. Endpoints which haven't been used for the {@code idleTimeout}
+         * are forgotten. By default endpoints share the limit of each host.
+         */
+        public Builder endpointConcurrencyLimits(Duration idleTimeout) {
+            this.endpointLimitIdleTimeout = Preconditions.checkNotNull(idleTimeout, "idleTimeout");
+            return this;
+        }
+
+        /**
+         * Enables slow start: hosts which are added by {@link DialogueChannel#updateUris}, or which succeed again
+         * after failing requests, are sent a share of traffic which ramps up linearly from a small fraction to their
+         * full share over the {@code window}, so that they can warm up before receiving full load. Applies to the
+         * {@link DialogueNodeSelectionStrategy#ROUND_ROBIN} and pin until error strategies, the other strategies
+         * already move traffic away from hosts which are slow. By default hosts receive their full share immediately.
+         */
+        public Builder slowStart(Duration window) {
+            this.slowStartWindow = Preconditions.checkNotNull(window, "window");
+            return this;
+        }
+
+        /**
+         * Affinity key of each request, which {@link DialogueNodeSelectionStrategy#CONSISTENT_HASHING} uses to send
+         * all requests with the same key to the same host, for example a header or path parameter identifying the
+         * resource which is requested. Requests without a key are sent to a random host. Required by, and only used
+         * by, consistent hashing.
+         */
+        public Builder affinityKey(BiFunction<Endpoint, Request, Optional<String>> value) {
+            this.affinityKey = Preconditions.checkNotNull(value, "affinityKey");
+            return this;
+        }
+
+        /**
+         * Enables endpoint-scoped pinning: with the pin until error strategies, each endpoint is pinned to a host
+         * separately, so that an endpoint which fails on a host only moves itself to the next host rather than moving
+         * every endpoint of the channel off the host. Up to 64 endpoints are pinned separately, any further endpoints
+         * share a single pin. By default all endpoints share a single pin.
+         */
+        public Builder endpointScopedPinning() {
+            this.endpointScopedPinning = true;
+            return this;
+        }
+
         @VisibleForTesting
         Builder random(Random value) {
             this.random = value;
             return this;
         }
 
+        @VisibleForTesting
+        Builder clock(Ticker value) {
+            this.clock = value;
+            return this;
+        }
+
         @VisibleForTesting
         Builder scheduler(ScheduledExecutorService value) {
             this.scheduler = () -> value;
@@ -320,11 +787,51 @@ public final class DialogueChannel implements Channel {
             ChannelFactory factory = Preconditions.checkNotNull(channelFactory, "channelFactory is required");
             String name = Preconditions.checkNotNull(channelName, "channelName is required.");
             preconditions(conf);
+            Preconditions.checkArgument(
+                    fairQueueingWeights == null || adaptiveLifo == null,
+                    "fairQueueing and adaptiveLifoQueueing cannot be combined");
             ClientConfiguration cleanedConf = ClientConfiguration.builder()
                     .from(conf)
                     .taggedMetricRegistry(new VersionedTaggedMetricRegistry(conf.taggedMetricRegistry()))
                     .build();
-            return new DialogueChannel(name, cleanedConf, factory, random, scheduler, maxQueueSize);
+            DialogueNodeSelectionStrategy strategy = nodeSelectionStrategy == null
+                    ? DialogueNodeSelectionStrategy.of(conf.nodeSelectionStrategy())
+                    : nodeSelectionStrategy;
+            Preconditions.checkArgument(
+                    strategy != DialogueNodeSelectionStrategy.CONSISTENT_HASHING || affinityKey != null,
+                    "affinityKey is required for consistent hashing");
+            Preconditions.checkArgument(
+                    hedgingPolicy == null || balancesRequests(strategy),
+                    "Hedged attempts would be sent to the same host as the first attempt",
+                    SafeArg.of("nodeSelectionStrategy", strategy));
+            return new DialogueChannel(
+                    name,
+                    cleanedConf,
+                    strategy,
+                    concurrencyLimitStrategy,
+                    factory,
+                    random,
+                    clock,
+                    scheduler,
+                    maxQueueSize,
+                    requestDeadlines,
+                    Optional.ofNullable(fairQueueingWeights),
+                    Optional.ofNullable(adaptiveLifo),
+                    Optional.ofNullable(requestPriorities),
+                    Optional.ofNullable(endpointLimitIdleTimeout),
+                    Optional.ofNullable(slowStartWindow),
+                    Optional.ofNullable(affinityKey),
+                    endpointScopedPinning,
+                    Optional.ofNullable(hedgingPolicy),
+                    Optional.ofNullable(coalescingPolicy),
+                    Optional.ofNullable(responseCachePolicy),
+                    RetryingChannel.retryBudget(retryBudgetRatio, retryBudgetMaxBurst));
+        }
+
+        private static boolean balancesRequests(DialogueNodeSelectionStrategy strategy) {
+            return strategy == DialogueNodeSelectionStrategy.ROUND_ROBIN
+                    || strategy == DialogueNodeSelectionStrategy.LEAST_OUTSTANDING_REQUESTS
+                    || strategy == DialogueNodeSelectionStrategy.LATENCY_AWARE;
         }
 
         private void preconditions(ClientConfiguration conf) {
@@ -335,6 +842,45 @@ public final class DialogueChannel implements Channel {
         }
     }
 
+    /** Records the uri of the host which received each attempt of requests which may be hedged. */
+    private static final class AttemptUriRecordingChannel implements Channel {
+        private final Channel delegate;
+        private final String uri;
+        private final HedgingPolicy hedgingPolicy;
+        private final Cache<Request, String> attemptUris;
+
+        AttemptUriRecordingChannel(
+                Channel delegate, String uri, HedgingPolicy hedgingPolicy, Cache<Request, String> attemptUris) {
+            this.delegate = delegate;
+            this.uri = uri;
+            this.hedgingPolicy = hedgingPolicy;
+            this.attemptUris = attemptUris;
+        }
+
+        @Override
+        public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
+            if (HedgingChannel.isHedgeable(hedgingPolicy, endpoint, request)) {
+                attemptUris.put(request, uri);
+            }
+            return delegate.execute(endpoint, request);
+        }
+
+        @Override
+        public String toString() {
+            return "AttemptUriRecordingChannel{delegate=" + delegate + '}';
+        }
+    }
+
+    private static final class AdaptiveLifo {
+        private final Duration target;
+        private final Duration interval;
+
+        AdaptiveLifo(Duration target, Duration interval) {
+            this.target = target;
+            this.interval = interval;
+        }
+    }
+
     private static final class SupplierChannel implements LimitedChannel {
         private final Supplier<LimitedChannel> channelSupplier;
 
@@ -342,8 +888,9 @@ public final class DialogueChannel implements Channel {
             this.channelSupplier = channelSupplier;
         }
 
+        @Nullable
         @Override
-        public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
+        public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
             LimitedChannel delegate = channelSupplier.get();
             return delegate.maybeExecute(endpoint, request);
         }
@@ -0,0 +1,65 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.palantir.conjure.java.client.config.NodeSelectionStrategy;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
+
+/**
+ * Node selection strategies supported by {@link DialogueChannel}. This is a superset of the conjure
+ * {@link NodeSelectionStrategy} which may be selected using {@link DialogueChannel.Builder#nodeSelectionStrategy},
+ * otherwise the strategy from the {@link com.palantir.conjure.java.client.config.ClientConfiguration} is used.
+ */
+public enum DialogueNodeSelectionStrategy {
+    /** See {@link NodeSelectionStrategy#PIN_UNTIL_ERROR}. */
+    PIN_UNTIL_ERROR,
+    /** See {@link NodeSelectionStrategy#PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE}. */
+    PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE,
+    /** See {@link NodeSelectionStrategy#ROUND_ROBIN}. */
+    ROUND_ROBIN,
+    /**
+     * Sends each request to the less loaded of two randomly chosen hosts, where load is the number of in-flight
+     * requests relative to the concurrency limit of the host.
+     */
+    LEAST_OUTSTANDING_REQUESTS,
+    /**
+     * Sends each request to the better of two randomly chosen hosts, scored by a decaying peak moving average of
+     * the response latency of each host multiplied by its in-flight requests. Traffic moves away from hosts whose
+     * response times are degrading, before they start to fail requests.
+     */
+    LATENCY_AWARE,
+    /**
+     * Sends all requests with the same affinity key to the same host, so that caches on the hosts only need to hold
+     * their share of the keys. Requires an {@link DialogueChannel.Builder#affinityKey affinity key} to be configured.
+     * Requests are sent to the next host for their key while the host is limited, and only the keys of added or
+     * removed hosts move when uris are updated.
+     */
+    CONSISTENT_HASHING;
+
+    static DialogueNodeSelectionStrategy of(NodeSelectionStrategy strategy) {
+        switch (strategy) {
+            case PIN_UNTIL_ERROR:
+                return PIN_UNTIL_ERROR;
+            case PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE:
+                return PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE;
+            case ROUND_ROBIN:
+                return ROUND_ROBIN;
+        }
+        throw new SafeIllegalArgumentException("Unknown NodeSelectionStrategy", SafeArg.of("unknown", strategy));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drains work on at most one thread at a time. A thread which requests a drain while another thread is draining
+ * doesn't wait for it, instead the draining thread makes another pass once its current pass completes, so requests
+ * are never lost. This avoids many threads contending on the same work when most of them would find nothing to do.
+ *
+ * Drains requested by the draining thread itself, for example from a callback of work which completed synchronously,
+ * are handled by another pass rather than recursively.
+ */
+final class Drainer {
+    private final BooleanSupplier drainOne;
+    // Drains requested since the draining thread started its current pass, zero while no thread is draining
+    private final AtomicInteger requested = new AtomicInteger();
+
+    /** The {@code drainOne} function processes one unit of work, and returns false once no more work can be done. */
+    Drainer(BooleanSupplier drainOne) {
+        this.drainOne = drainOne;
+    }
+
+    /** Drains as much work as possible, or hands off to the draining thread. Returns the units of work processed. */
+    int drain() {
+        if (requested.getAndIncrement() != 0) {
+            return 0;
+        }
+        int drained = 0;
+        int claimed = 1;
+        try {
+            do {
+                while (drainOne.getAsBoolean()) {
+                    drained++;
+                }
+                claimed = requested.addAndGet(-claimed);
+            } while (claimed != 0);
+        } catch (RuntimeException | Error e) {
+            // Allow the next request to drain rather than stalling forever. Drains requested during the failed pass
+            // were handed off to this thread, so they are made before rethrowing rather than being lost.
+            if (requested.getAndSet(0) != claimed) {
+                try {
+                    drain();
+                } catch (RuntimeException | Error suppressed) {
+                    if (suppressed != e) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+            throw e;
+        }
+        return drained;
+    }
+
+    @Override
+    public String toString() {
+        return "Drainer{requested=" + requested.get() + '}';
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.palantir.dialogue.Endpoint;
+import java.time.Duration;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Concurrency limiters for each endpoint of a single host, which act as bulkheads: failures of one endpoint only
+ * reduce the limit of that endpoint, so they don't throttle requests to the other endpoints of the host.
+ *
+ * Limiters are keyed by the identity of the endpoint, and endpoints which haven't been used for the idle timeout are
+ * evicted along with their limiter, so only a bounded number of limiters is retained. Requests which are still in
+ * flight when their endpoint is evicted complete normally but no longer count towards the limit of the endpoint.
+ */
+final class EndpointConcurrencyLimiters {
+    private final Supplier<ConcurrencyLimiter> limiterFactory;
+    private final DialogueClientMetrics metrics;
+    private final String channelName;
+    private final Cache<Endpoint, Bulkhead> bulkheads;
+
+    EndpointConcurrencyLimiters(
+            Supplier<ConcurrencyLimiter> limiterFactory,
+            Duration idleTimeout,
+            Ticker clock,
+            DialogueClientMetrics metrics,
+            String channelName) {
+        this.limiterFactory = limiterFactory;
+        this.metrics = metrics;
+        this.channelName = channelName;
+        this.bulkheads = Caffeine.newBuilder()
+                .weakKeys()
+                .maximumSize(1_000)
+                .expireAfterAccess(idleTimeout)
+                .ticker(clock)
+                .build();
+    }
+
+    Bulkhead get(Endpoint endpoint) {
+        return bulkheads.get(endpoint, this::newBulkhead);
+    }
+
+    /** Returns the limiter of the endpoint without creating one, or null if the endpoint has no limiter. */
+    @Nullable
+    Bulkhead getIfPresent(Endpoint endpoint) {
+        return bulkheads.getIfPresent(endpoint);
+    }
+
+    private Bulkhead newBulkhead(Endpoint endpoint) {
+        return new Bulkhead(
+                limiterFactory.get(),
+                metrics.endpointLimited()
+                        .channelName(channelName)
+                        .serviceName(endpoint.serviceName())
+                        .endpoint(endpoint.endpointName())
+                        .build());
+    }
+
+    /** Returns the number of endpoints which currently have a limiter. */
+    long size() {
+        bulkheads.cleanUp();
+        return bulkheads.estimatedSize();
+    }
+
+    static final class Bulkhead {
+        private final ConcurrencyLimiter limiter;
+        private final Meter limitedMeter;
+
+        private Bulkhead(ConcurrencyLimiter limiter, Meter limitedMeter) {
+            this.limiter = limiter;
+            this.limitedMeter = limitedMeter;
+        }
+
+        ConcurrencyLimiter limiter() {
+            return limiter;
+        }
+
+        Meter limitedMeter() {
+            return limitedMeter;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointConcurrencyLimiters{channelName=" + channelName + ", size=" + bulkheads.estimatedSize() + '}';
+    }
+}
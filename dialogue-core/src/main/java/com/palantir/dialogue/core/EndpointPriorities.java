@@ -0,0 +1,43 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.logsafe.Preconditions;
+import java.util.function.Function;
+
+/** Resolves the {@link RequestPriority} of each endpoint once, rather than for every request. */
+final class EndpointPriorities {
+    private final Function<Endpoint, RequestPriority> priorities;
+    private final Cache<Endpoint, RequestPriority> cache =
+            Caffeine.newBuilder().weakKeys().maximumSize(1_000).build();
+
+    EndpointPriorities(Function<Endpoint, RequestPriority> priorities) {
+        this.priorities = priorities;
+    }
+
+    RequestPriority get(Endpoint endpoint) {
+        return cache.get(endpoint, key -> Preconditions.checkNotNull(priorities.apply(key), "priority"));
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointPriorities{" + priorities + '}';
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Lock-free concurrency limiter which adapts to the latency of a host, in the style of the gradient limiters of the
+ * <a href="https://github.com/Netflix/concurrency-limits">Netflix concurrency limits library</a>. Unlike the
+ * {@link AimdConcurrencyLimiter}, it detects a host which is slowing down before the host starts to fail requests.
+ *
+ * The limiter tracks the minimum latency of the host, which approximates the latency without queueing, and a moving
+ * average of recent latency. When recent latency exceeds the minimum by more than the tolerance, requests are queueing
+ * on the host and the limit is reduced in proportion, otherwise the limit grows by the square root of the limit.
+ * Failed requests reduce the limit multiplicatively, like the AIMD limiter.
+ */
+final class GradientConcurrencyLimiter implements ConcurrencyLimiter {
+
+    private static final int INITIAL_LIMIT = 20;
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 1000;
+    private static final double BACKOFF_RATIO = .9D;
+    // Recent latency may exceed the minimum by this factor before the limit is reduced, absorbing normal variance
+    private static final double TOLERANCE = 1.5D;
+    // The limit is reduced by at most half for each response
+    private static final double MIN_GRADIENT = .5D;
+    // Weight of the new estimates of the limit made over a round trip, each response contributes a share of the weight
+    // so that the limit moves at the same pace regardless of the number of concurrent requests
+    private static final double SMOOTHING = .2D;
+    // Weight of each response in the moving average of recent latency
+    private static final double SAMPLE_WEIGHT = .1D;
+    // The minimum latency drifts towards recent latency, so the limiter adapts to a host which is permanently slower.
+    // Like the smoothing, the drift is per round trip.
+    private static final double MIN_LATENCY_DRIFT = .0001D;
+
+    private final Ticker clock;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicReference<State> state = new AtomicReference<>(new State(INITIAL_LIMIT, 0, 0));
+
+    GradientConcurrencyLimiter(Ticker clock) {
+        this.clock = clock;
+    }
+
+    @Nullable
+    @Override
+    public Permit acquire() {
+        if (getInflight() >= getLimit()) {
+            return null;
+        }
+        return createToken();
+    }
+
+    @Nullable
+    @Override
+    public Permit acquire(RequestPriority priority) {
+        if (getInflight() >= ConcurrencyLimiter.limitFor(getLimit(), priority)) {
+            return null;
+        }
+        return createToken();
+    }
+
+    private Permit createToken() {
+        int inFlightSnapshot = inFlight.incrementAndGet();
+        return new Permit(inFlightSnapshot, clock.read());
+    }
+
+    final class Permit implements ConcurrencyLimiter.Permit {
+        private final int inFlightSnapshot;
+        private final long startNanos;
+
+        Permit(int inFlightSnapshot, long startNanos) {
+            this.inFlightSnapshot = inFlightSnapshot;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void ignore() {
+            inFlight.decrementAndGet();
+        }
+
+        /** The concurrency limit is multiplicatively decreased. */
+        @Override
+        public void dropped() {
+            inFlight.decrementAndGet();
+            State current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current.dropped()));
+        }
+
+        /** The concurrency limit is updated based on the latency of the request. */
+        @Override
+        public void success() {
+            inFlight.decrementAndGet();
+            // Latency is at least a nanosecond to avoid dividing by zero
+            long latencyNanos = Math.max(1, clock.read() - startNanos);
+            State current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current.sample(latencyNanos, inFlightSnapshot)));
+        }
+    }
+
+    private static final class State {
+        private final double limit;
+        // Zero until the first response
+        private final double minLatencyNanos;
+        private final double latencyNanos;
+
+        State(double limit, double minLatencyNanos, double latencyNanos) {
+            this.limit = limit;
+            this.minLatencyNanos = minLatencyNanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        State sample(long sampleNanos, int inFlightSnapshot) {
+            int concurrency = Math.max(1, inFlightSnapshot);
+            double newMinLatency = minLatencyNanos == 0 || sampleNanos < minLatencyNanos
+                    ? sampleNanos
+                    : minLatencyNanos + (sampleNanos - minLatencyNanos) * MIN_LATENCY_DRIFT / concurrency;
+            double newLatency =
+                    latencyNanos == 0 ? sampleNanos : latencyNanos + (sampleNanos - latencyNanos) * SAMPLE_WEIGHT;
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1, TOLERANCE * newMinLatency / newLatency));
+            double estimate = limit * gradient + Math.sqrt(limit);
+            if (estimate > limit && inFlightSnapshot * 2 < limit) {
+                // Most of the limit is unused, so there's no evidence that the host can handle more requests
+                estimate = limit;
+            }
+            double newLimit = limit + (estimate - limit) * SMOOTHING / concurrency;
+            return new State(Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, newLimit)), newMinLatency, newLatency);
+        }
+
+        State dropped() {
+            return new State(Math.max(MIN_LIMIT, limit * BACKOFF_RATIO), minLatencyNanos, latencyNanos);
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        return (int) state.get().limit;
+    }
+
+    @Override
+    public int getInflight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GradientConcurrencyLimiter{limit=" + getLimit() + ", inFlight=" + inFlight + '}';
+    }
+}
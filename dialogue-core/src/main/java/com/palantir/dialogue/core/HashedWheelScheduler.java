@@ -0,0 +1,370 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ScheduledExecutorService} for large numbers of short one-shot delays, such as retry backoffs. Tasks are
+ * stored in a hashed timer wheel, so scheduling and cancelling a task take constant time rather than the logarithmic
+ * time of the heap in a {@link java.util.concurrent.ScheduledThreadPoolExecutor}, at the cost of running tasks up to
+ * one tick late.
+ *
+ * A single timer thread advances the wheel and hands expired tasks off to the dispatcher, so slow tasks can't delay
+ * other timers. The timer thread parks while no tasks are scheduled. Shutting down the scheduler cancels all pending
+ * tasks but does not shut down the dispatcher. Periodic tasks are not supported.
+ */
+final class HashedWheelScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelScheduler.class);
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE / 4;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final Executor dispatcher;
+    private final long startNanos;
+    // Tasks are added to the wheel and removed from it by the timer thread only
+    private final Queue<Timeout<?>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<?>> cancelled = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final Thread timer;
+    private volatile boolean shutdown;
+    private volatile boolean idle;
+
+    // Only accessed by the timer thread
+    private long tick;
+    private int size;
+
+    HashedWheelScheduler(String name, Duration tickDuration, int ticksPerWheel, Executor dispatcher) {
+        Preconditions.checkArgument(
+                !tickDuration.isNegative() && !tickDuration.isZero(),
+                "tickDuration must be positive",
+                SafeArg.of("tickDuration", tickDuration));
+        Preconditions.checkArgument(
+                Integer.bitCount(ticksPerWheel) == 1,
+                "ticksPerWheel must be a power of two",
+                SafeArg.of("ticksPerWheel", ticksPerWheel));
+        this.tickNanos = tickDuration.toNanos();
+        this.mask = ticksPerWheel - 1;
+        this.wheel = new Bucket[ticksPerWheel];
+        for (int i = 0; i < ticksPerWheel; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.dispatcher = dispatcher;
+        this.startNanos = System.nanoTime();
+        this.timer = new ThreadFactoryBuilder()
+                .setNameFormat(name)
+                .setDaemon(false)
+                .build()
+                .newThread(this::run);
+        timer.start();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        checkNotShutdown();
+        // Delays are capped to avoid overflow, a task delayed by a century will never run anyway
+        long delayNanos = Math.min(Math.max(0, unit.toNanos(delay)), MAX_DELAY_NANOS);
+        Timeout<V> timeout = new Timeout<>(callable, System.nanoTime() + delayNanos);
+        scheduled.add(timeout);
+        if (shutdown) {
+            // The timer thread may already have cancelled the remaining tasks
+            timeout.cancel(false);
+            throw new RejectedExecutionException("Scheduler has been shut down");
+        }
+        if (idle) {
+            LockSupport.unpark(timer);
+        }
+        return timeout;
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable _command, long _delay, long _period, TimeUnit _unit) {
+        throw new UnsupportedOperationException("Periodic tasks are not supported");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable _command, long _delay, long _period, TimeUnit _unit) {
+        throw new UnsupportedOperationException("Periodic tasks are not supported");
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        checkNotShutdown();
+        dispatcher.execute(command);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(timer);
+    }
+
+    /** Shuts down the scheduler, pending tasks are cancelled rather than returned. */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private void checkNotShutdown() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler has been shut down");
+        }
+    }
+
+    private void run() {
+        try {
+            while (!shutdown) {
+                removeCancelled();
+                if (size == 0 && scheduled.isEmpty()) {
+                    awaitScheduled();
+                    continue;
+                }
+                awaitTick();
+                removeCancelled();
+                transferScheduled();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        } finally {
+            cancelRemaining();
+            terminated.countDown();
+        }
+    }
+
+    private void awaitScheduled() {
+        idle = true;
+        // Tasks scheduled before the flag was set would not have unparked the timer thread
+        if (scheduled.isEmpty() && !shutdown) {
+            LockSupport.park(this);
+        }
+        idle = false;
+        // The wheel is empty, so ticks which elapsed while parked can be skipped
+        tick = Math.max(tick, (System.nanoTime() - startNanos) / tickNanos);
+    }
+
+    private void awaitTick() {
+        long deadline = startNanos + (tick + 1) * tickNanos;
+        long now = System.nanoTime();
+        while (now - deadline < 0 && !shutdown) {
+            LockSupport.parkNanos(this, deadline - now);
+            now = System.nanoTime();
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<?> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // Tasks may be cancelled before they are added to the wheel, or after they have been dispatched
+            if (timeout.bucket != null) {
+                remove(timeout);
+            }
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout<?> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // The bucket for a tick is expired once the tick has elapsed
+            long expiryTick = Math.max(tick, (timeout.deadlineNanos - startNanos - 1) / tickNanos);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout<?> timeout = bucket.head;
+        while (timeout != null) {
+            Timeout<?> next = timeout.next;
+            if (timeout.isCancelled()) {
+                remove(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                remove(timeout);
+                dispatch(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void remove(Timeout<?> timeout) {
+        Bucket bucket = timeout.bucket;
+        if (bucket != null) {
+            bucket.remove(timeout);
+            size--;
+        }
+    }
+
+    private void dispatch(Timeout<?> timeout) {
+        try {
+            dispatcher.execute(timeout);
+        } catch (RejectedExecutionException e) {
+            log.warn("Failed to dispatch expired task", e);
+            timeout.reject(e);
+        }
+    }
+
+    private void cancelRemaining() {
+        for (Bucket bucket : wheel) {
+            while (bucket.head != null) {
+                Timeout<?> timeout = bucket.head;
+                remove(timeout);
+                timeout.cancel(false);
+            }
+        }
+        Timeout<?> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            timeout.cancel(false);
+        }
+        cancelled.clear();
+    }
+
+    private final class Timeout<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long deadlineNanos;
+
+        // Only accessed by the timer thread
+        @Nullable
+        private Bucket bucket;
+
+        @Nullable
+        private Timeout<?> previous;
+
+        @Nullable
+        private Timeout<?> next;
+
+        private long remainingRounds;
+
+        Timeout(Callable<V> callable, long deadlineNanos) {
+            super(callable);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                // Removed from the wheel by the timer thread, cancellation doesn't wait for the task to expire
+                cancelled.add(this);
+            }
+        }
+
+        void reject(Throwable throwable) {
+            setException(throwable);
+        }
+    }
+
+    /** Doubly linked list of the tasks which expire in a tick, allowing constant time removal. */
+    private static final class Bucket {
+        @Nullable
+        private Timeout<?> head;
+
+        @Nullable
+        private Timeout<?> tail;
+
+        void add(Timeout<?> timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout<?> timeout) {
+            Timeout<?> previous = timeout.previous;
+            Timeout<?> next = timeout.next;
+            if (previous == null) {
+                head = next;
+            } else {
+                previous.next = next;
+            }
+            if (next == null) {
+                tail = previous;
+            } else {
+                next.previous = previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelScheduler{tickNanos=" + tickNanos + ", ticksPerWheel=" + wheel.length + '}';
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.RequestBody;
+import com.palantir.dialogue.Response;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.tracing.Tracers;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a second attempt of a slow request to the node selection strategy once the first attempt has been
+ * outstanding for longer than the hedging delay, and returns whichever response arrives first. The other attempt is
+ * cancelled, and closed if its response has already arrived.
+ *
+ * Hedged attempts bypass the {@link QueuedChannel}: if every host is at its concurrency limit the hedge is skipped
+ * rather than queued, so hedging never exceeds the limits of the {@link ConcurrencyLimitedChannel}. Hedges are also
+ * limited by a {@link RequestBudget} to a fraction of the requests made. The hedge target must send hedged attempts
+ * to a different host than the first attempt: {@link DialogueChannel} records the host which received the first
+ * attempt and selects among the remaining hosts. Node selection strategies which pin requests to a host are rejected,
+ * and no hedges are sent while there is a single host.
+ */
+final class HedgingChannel implements Channel {
+    private static final Logger log = LoggerFactory.getLogger(HedgingChannel.class);
+
+    // Caps the number of hedged attempts which may be sent in a burst after a period of healthy traffic
+    private static final int MAX_BURST = 10;
+
+    private final Channel delegate;
+    private final LimitedChannel hedgeTarget;
+    private final HedgingPolicy policy;
+    private final long fixedDelayNanos;
+    private final ScheduledExecutorService scheduler;
+    private final Ticker clock;
+    private final RequestBudget budget;
+    private final Meter hedges;
+    private final String channelName;
+    private final Cache<Endpoint, LatencyPercentile> latencies =
+            Caffeine.newBuilder().weakKeys().maximumSize(1_000).build();
+
+    HedgingChannel(
+            Channel delegate,
+            LimitedChannel hedgeTarget,
+            HedgingPolicy policy,
+            ScheduledExecutorService scheduler,
+            Ticker clock,
+            DialogueClientMetrics metrics,
+            String channelName) {
+        this.delegate = delegate;
+        this.hedgeTarget = hedgeTarget;
+        this.policy = policy;
+        this.fixedDelayNanos = policy.delay().map(Duration::toNanos).orElse(-1L);
+        this.scheduler = Tracers.wrap("dialogue-HedgingChannel", scheduler);
+        this.clock = clock;
+        this.budget = new RequestBudget(policy.maxExtraLoad(), MAX_BURST);
+        this.hedges = metrics.requestHedge(channelName);
+        this.channelName = channelName;
+    }
+
+    @Override
+    public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
+        if (!isHedgeable(policy, endpoint, request)) {
+            return delegate.execute(endpoint, request);
+        }
+        budget.deposit();
+        LatencyPercentile latency = latencies.get(endpoint, _endpoint -> new LatencyPercentile(policy.percentile()));
+        long delayNanos = fixedDelayNanos >= 0 ? fixedDelayNanos : latency.get();
+        long start = clock.read();
+        ListenableFuture<Response> primary = delegate.execute(endpoint, request);
+        if (delayNanos == Long.MAX_VALUE || primary.isDone()) {
+            return DialogueFutures.addDirectCallback(
+                    primary, DialogueFutures.onSuccess(_response -> latency.record(clock.read() - start)));
+        }
+        return new HedgedCall(endpoint, request, latency, start).execute(primary, delayNanos);
+    }
+
+    /** Returns true if the request may be sent more than once. */
+    static boolean isHedgeable(HedgingPolicy policy, Endpoint endpoint, Request request) {
+        Optional<RequestBody> body = request.body();
+        if (body.isPresent() && !body.get().repeatable()) {
+            return false;
+        }
+        return endpoint.httpMethod() == HttpMethod.GET
+                || endpoint.httpMethod() == HttpMethod.HEAD
+                || policy.idempotentEndpoints().test(endpoint);
+    }
+
+    private final class HedgedCall {
+        private final Endpoint endpoint;
+        private final Request request;
+        private final LatencyPercentile latency;
+        private final long start;
+        private final SettableFuture<Response> result = SettableFuture.create();
+        // Attempts which have not yet completed, the call fails once every attempt has failed
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        @Nullable
+        private volatile Throwable failure;
+
+        @Nullable
+        private volatile ListenableFuture<Response> primary;
+
+        @Nullable
+        private volatile ListenableFuture<Response> hedge;
+
+        @Nullable
+        private volatile Future<?> timer;
+
+        HedgedCall(Endpoint endpoint, Request request, LatencyPercentile latency, long start) {
+            this.endpoint = endpoint;
+            this.request = request;
+            this.latency = latency;
+            this.start = start;
+        }
+
+        ListenableFuture<Response> execute(ListenableFuture<Response> primaryAttempt, long delayNanos) {
+            primary = primaryAttempt;
+            DialogueFutures.addDirectCallback(primaryAttempt, new AttemptCallback());
+            timer = scheduler.schedule(this::hedge, delayNanos, TimeUnit.NANOSECONDS);
+            // Cancels the attempt which did not complete first, as well as all attempts if the caller cancels
+            DialogueFutures.addDirectListener(result, this::cancelOutstanding);
+            return result;
+        }
+
+        private void hedge() {
+            if (result.isDone() || !budget.tryWithdraw()) {
+                return;
+            }
+            if (pending.getAndIncrement() == 0) {
+                // The first attempt failed concurrently
+                pending.decrementAndGet();
+                budget.refund();
+                return;
+            }
+            ListenableFuture<Response> hedgeAttempt;
+            try {
+                hedgeAttempt = hedgeTarget.maybeExecute(endpoint, request);
+            } catch (RuntimeException e) {
+                log.warn("Failed to send hedged attempt", SafeArg.of("channelName", channelName), e);
+                hedgeAttempt = null;
+            }
+            if (hedgeAttempt == null) {
+                // All hosts are limited, an additional attempt would only add load
+                budget.refund();
+                attemptFinished();
+                return;
+            }
+            hedges.mark();
+            if (log.isDebugEnabled()) {
+                log.debug(
+                        "Sending hedged attempt",
+                        SafeArg.of("channelName", channelName),
+                        SafeArg.of("serviceName", endpoint.serviceName()),
+                        SafeArg.of("endpoint", endpoint.endpointName()));
+            }
+            hedge = hedgeAttempt;
+            DialogueFutures.addDirectCallback(hedgeAttempt, new AttemptCallback());
+            if (result.isDone()) {
+                hedgeAttempt.cancel(true);
+            }
+        }
+
+        private void attemptFinished() {
+            if (pending.decrementAndGet() == 0) {
+                // Failures are recorded before the count is decremented
+                Throwable throwable = failure;
+                if (throwable != null) {
+                    result.setException(throwable);
+                }
+            }
+        }
+
+        private void cancelOutstanding() {
+            cancel(timer);
+            cancel(primary);
+            cancel(hedge);
+        }
+
+        private void cancel(@Nullable Future<?> future) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        private final class AttemptCallback implements FutureCallback<Response> {
+            @Override
+            public void onSuccess(Response response) {
+                if (result.set(response)) {
+                    latency.record(clock.read() - start);
+                } else {
+                    // The other attempt completed first
+                    response.close();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                failure = throwable;
+                attemptFinished();
+            }
+        }
+    }
+
+    /**
+     * Estimates a percentile of the recent response times of an endpoint from a fixed size ring of samples. The
+     * percentile is only recomputed periodically, so reading it is a single volatile read.
+     */
+    @VisibleForTesting
+    static final class LatencyPercentile {
+        private static final int SAMPLES = 128;
+        private static final int RECOMPUTE_INTERVAL = 32;
+
+        private final double percentile;
+        private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+        private final AtomicInteger recorded = new AtomicInteger();
+        // No hedges are sent until enough samples have been recorded
+        private volatile long value = Long.MAX_VALUE;
+        private volatile boolean full;
+
+        LatencyPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        void record(long nanos) {
+            int index = recorded.getAndIncrement();
+            samples.lazySet(index & (SAMPLES - 1), nanos);
+            if ((index & (SAMPLES - 1)) == SAMPLES - 1) {
+                full = true;
+            }
+            if (full && (index & (RECOMPUTE_INTERVAL - 1)) == RECOMPUTE_INTERVAL - 1) {
+                long[] sorted = new long[SAMPLES];
+                for (int i = 0; i < SAMPLES; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                value = sorted[Math.min(SAMPLES - 1, (int) Math.ceil(percentile * SAMPLES) - 1)];
+            }
+        }
+
+        /** Returns the estimated percentile in nanoseconds, or {@link Long#MAX_VALUE} if it is not yet known. */
+        long get() {
+            return value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingChannel{delegate=" + delegate + ", policy=" + policy + ", budget=" + budget + '}';
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Configures hedged requests, see {@link DialogueChannel.Builder#hedgingPolicy}. Once an attempt has been outstanding
+ * for longer than the hedging delay, a second attempt is sent and whichever response arrives first is used. By default
+ * the delay adapts to the 95th percentile of recent response times of each endpoint.
+ *
+ * Only requests to {@code GET} and {@code HEAD} endpoints, or endpoints matching {@link Builder#idempotentEndpoints},
+ * are hedged.
+ */
+public final class HedgingPolicy {
+
+    private final Optional<Duration> delay;
+    private final double percentile;
+    private final double maxExtraLoad;
+    private final Predicate<Endpoint> idempotentEndpoints;
+
+    private HedgingPolicy(
+            Optional<Duration> delay, double percentile, double maxExtraLoad, Predicate<Endpoint> idempotentEndpoints) {
+        this.delay = delay;
+        this.percentile = percentile;
+        this.maxExtraLoad = maxExtraLoad;
+        this.idempotentEndpoints = idempotentEndpoints;
+    }
+
+    /** Fixed delay before a hedged attempt is sent, if empty the delay is based on the {@link #percentile()}. */
+    Optional<Duration> delay() {
+        return delay;
+    }
+
+    double percentile() {
+        return percentile;
+    }
+
+    double maxExtraLoad() {
+        return maxExtraLoad;
+    }
+
+    Predicate<Endpoint> idempotentEndpoints() {
+        return idempotentEndpoints;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingPolicy{delay=" + delay + ", percentile=" + percentile + ", maxExtraLoad=" + maxExtraLoad + '}';
+    }
+
+    public static final class Builder {
+        @Nullable
+        private Duration delay;
+
+        private double percentile = 0.95;
+        private double maxExtraLoad = 0.05;
+        private Predicate<Endpoint> idempotentEndpoints = _endpoint -> false;
+
+        private Builder() {}
+
+        /** Sends hedged attempts after a fixed delay rather than a percentile of recent response times. */
+        public Builder delay(Duration value) {
+            Preconditions.checkArgument(!value.isNegative(), "delay must not be negative", SafeArg.of("delay", value));
+            this.delay = value;
+            return this;
+        }
+
+        /**
+         * Sends hedged attempts once an attempt has taken longer than this percentile of recent response times for
+         * the endpoint. Defaults to {@code 0.95}.
+         */
+        public Builder percentile(double value) {
+            Preconditions.checkArgument(
+                    value > 0 && value < 1, "percentile must be between zero and one", SafeArg.of("percentile", value));
+            this.percentile = value;
+            return this;
+        }
+
+        /**
+         * Maximum number of hedged attempts as a fraction of requests, for example {@code 0.05} allows at most
+         * 5% additional load on upstream servers. Defaults to {@code 0.05}.
+         */
+        public Builder maxExtraLoad(double value) {
+            Preconditions.checkArgument(
+                    value >= 0 && value <= 1,
+                    "maxExtraLoad must be between zero and one",
+                    SafeArg.of("maxExtraLoad", value));
+            this.maxExtraLoad = value;
+            return this;
+        }
+
+        /**
+         * Endpoints which are safe to execute multiple times in addition to {@code GET} and {@code HEAD} endpoints.
+         */
+        public Builder idempotentEndpoints(Predicate<Endpoint> value) {
+            this.idempotentEndpoints = Preconditions.checkNotNull(value, "idempotentEndpoints");
+            return this;
+        }
+
+        @CheckReturnValue
+        public HedgingPolicy build() {
+            return new HedgingPolicy(Optional.ofNullable(delay), percentile, maxExtraLoad, idempotentEndpoints);
+        }
+    }
+}
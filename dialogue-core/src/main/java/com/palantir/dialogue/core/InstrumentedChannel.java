@@ -16,7 +16,9 @@
 
 package com.palantir.dialogue.core;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.google.common.base.Suppliers;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.palantir.dialogue.Channel;
@@ -24,6 +26,8 @@ import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import java.io.IOException;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
  * A channel that observes metrics about the processed requests and responses.
@@ -31,44 +35,77 @@ import java.io.IOException;
  */
 final class InstrumentedChannel implements Channel {
     private final Channel delegate;
-    private final String channelName;
-    private final ClientMetrics metrics;
+    private final ServiceNameCache<ServiceMetrics> serviceMetrics;
+
+    @Nullable
+    private final PeakEwmaLatency latency;
 
     InstrumentedChannel(Channel delegate, String channelName, ClientMetrics metrics) {
+        this(delegate, channelName, metrics, null);
+    }
+
+    /** Additionally records the over-the-wire time of each request into the provided {@link PeakEwmaLatency}. */
+    InstrumentedChannel(
+            Channel delegate, String channelName, ClientMetrics metrics, @Nullable PeakEwmaLatency latency) {
         this.delegate = delegate;
-        this.channelName = channelName;
-        this.metrics = metrics;
+        this.latency = latency;
+        this.serviceMetrics = new ServiceNameCache<>(serviceName -> new ServiceMetrics(
+                metrics.response()
+                        .channelName(channelName)
+                        .serviceName(serviceName)
+                        .build(),
+                // Only registered once an error occurs
+                Suppliers.memoize(() -> metrics.responseError()
+                        .channelName(channelName)
+                        .serviceName(serviceName)
+                        .reason("IOException")
+                        .build())));
     }
 
     @Override
     public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
-        Timer.Context context = metrics.response()
-                .channelName(channelName)
-                .serviceName(endpoint.serviceName())
-                .build()
-                .time();
+        ServiceMetrics metrics = serviceMetrics.get(endpoint.serviceName());
+        Timer.Context context = metrics.response.time();
+        if (latency != null) {
+            latency.requestStarted();
+        }
         ListenableFuture<Response> response = delegate.execute(endpoint, request);
         return DialogueFutures.addDirectCallback(response, new FutureCallback<Response>() {
             @Override
-            public void onSuccess(Response _result) {
-                context.stop();
+            public void onSuccess(Response result) {
+                long elapsed = context.stop();
+                if (latency != null) {
+                    if (Responses.isQosStatus(result) || Responses.isServerError(result)) {
+                        latency.requestFailed(elapsed);
+                    } else {
+                        latency.requestSucceeded(elapsed);
+                    }
+                }
             }
 
             @Override
             public void onFailure(Throwable throwable) {
-                context.stop();
+                long elapsed = context.stop();
+                if (latency != null) {
+                    latency.requestFailed(elapsed);
+                }
                 if (throwable instanceof IOException) {
-                    metrics.responseError()
-                            .channelName(channelName)
-                            .serviceName(endpoint.serviceName())
-                            .reason("IOException")
-                            .build()
-                            .mark();
+                    metrics.ioExceptions.get().mark();
                 }
             }
         });
     }
 
+    private static final class ServiceMetrics {
+        private final Timer response;
+        private final Supplier<Meter> ioExceptions;
+
+        private ServiceMetrics(Timer response, Supplier<Meter> ioExceptions) {
+            this.response = response;
+            this.ioExceptions = ioExceptions;
+        }
+    }
+
     @Override
     public String toString() {
         return "InstrumentedChannel{" + delegate + '}';
@@ -0,0 +1,52 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import javax.annotation.Nullable;
+
+/**
+ * Associates a host's {@link LimitedChannel} with the {@link PeakEwmaLatency} recorded by the
+ * {@link InstrumentedChannel} beneath it, allowing node selection to score hosts by latency.
+ */
+final class LatencyTrackingChannel implements LimitedChannel {
+    private final LimitedChannel delegate;
+    private final PeakEwmaLatency latency;
+
+    LatencyTrackingChannel(LimitedChannel delegate, PeakEwmaLatency latency) {
+        this.delegate = delegate;
+        this.latency = latency;
+    }
+
+    @Nullable
+    @Override
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        return delegate.maybeExecute(endpoint, request);
+    }
+
+    PeakEwmaLatency latency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyTrackingChannel{delegate=" + delegate + ", latency=" + latency + '}';
+    }
+}
@@ -20,16 +20,21 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
-import java.util.Optional;
+import javax.annotation.Nullable;
 
 /**
  * Similar to {@link com.palantir.dialogue.Channel}, but may not actually execute the call (eg: when the channel is
- * overloaded). Semantics match {@link com.palantir.dialogue.Channel} aside from returning an
- * {@link Optional optional response}.
- * Limited channels must limit exclusively based on the state of the {@link com.palantir.dialogue.Channel}, not
- * the {@link Endpoint} or {@link Request} arguments, otherwise the caller (generally a {@link QueuedChannel})
- * may prevent <i>all</i> requests from proceeding.
+ * overloaded). Semantics match {@link com.palantir.dialogue.Channel} aside from returning {@code null} when the call
+ * was not executed. Every request attempt passes through several limited channels, so the result is not wrapped in an
+ * {@link java.util.Optional} to avoid allocating on the hot path.
+ * Limited channels must limit based on the state of the {@link com.palantir.dialogue.Channel}, not the
+ * {@link Request} argument, otherwise the caller (generally a {@link QueuedChannel}) may prevent <i>all</i> requests
+ * from proceeding. Limits on the {@link Endpoint} must be reported to the {@link QueuedChannel}, see
+ * {@link ConcurrencyLimitedChannel#isEndpointLimited}, so that it skips requests to limited endpoints rather than
+ * waiting on them.
  */
 interface LimitedChannel {
-    Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request);
+    /** Returns the response future, or {@code null} if the channel is limited and the call was not executed. */
+    @Nullable
+    ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request);
 }
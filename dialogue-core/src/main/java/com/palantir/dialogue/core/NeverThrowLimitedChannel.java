@@ -21,7 +21,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
-import java.util.Optional;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,13 +38,14 @@ final class NeverThrowLimitedChannel implements LimitedChannel {
         this.delegate = delegate;
     }
 
+    @Nullable
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
         try {
             return delegate.maybeExecute(endpoint, request);
         } catch (RuntimeException | Error e) {
             log.error("Dialogue channels should never throw. This may be a bug in the channel implementation", e);
-            return Optional.of(Futures.immediateFailedFuture(e));
+            return Futures.immediateFailedFuture(e);
         }
     }
 
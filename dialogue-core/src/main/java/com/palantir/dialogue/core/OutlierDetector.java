@@ -0,0 +1,264 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Ejects hosts which keep failing requests for the {@code failedUrlCooldown}, rather than waiting for their
+ * concurrency limit to shrink. A host is ejected once {@link #CONSECUTIVE_FAILURES} consecutive requests fail, or once
+ * at least {@link #ERROR_RATE} of the requests in an interval fail, where requests fail with an exception or a server
+ * error. To avoid ejecting a whole fleet which is failing together, at most {@link #MAX_EJECTION_PERCENT} of the
+ * hosts are ejected at once.
+ *
+ * An ejected host is limited, so that requests are sent to the other hosts, except for a single probe request once
+ * every cooldown. The host is readmitted as soon as a probe succeeds. A probe which never completes, for example to a
+ * host which black holes requests, doesn't prevent the next probe.
+ */
+final class OutlierDetector {
+    @VisibleForTesting
+    static final int CONSECUTIVE_FAILURES = 5;
+
+    @VisibleForTesting
+    static final double ERROR_RATE = 0.5;
+
+    // Error rates are only considered once an interval has enough requests
+    @VisibleForTesting
+    static final int MIN_REQUESTS = 20;
+
+    @VisibleForTesting
+    static final Duration INTERVAL = Duration.ofSeconds(10);
+
+    @VisibleForTesting
+    static final int MAX_EJECTION_PERCENT = 50;
+
+    // Sentinel probe time of a host which isn't ejected
+    private static final long HEALTHY = Long.MIN_VALUE;
+
+    private final long cooldownNanos;
+    private final Ticker clock;
+    private final String channelName;
+    private final Meter consecutiveFailuresMeter;
+    private final Meter errorRateMeter;
+    private final Meter readmissionMeter;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    OutlierDetector(Duration cooldown, Ticker clock, DialogueClientMetrics metrics, String channelName) {
+        Preconditions.checkArgument(
+                !cooldown.isNegative() && !cooldown.isZero(),
+                "Cooldown must be positive",
+                SafeArg.of("cooldown", cooldown));
+        this.cooldownNanos = cooldown.toNanos();
+        this.clock = clock;
+        this.channelName = channelName;
+        this.consecutiveFailuresMeter = metrics.hostEjection()
+                .channelName(channelName)
+                .reason("consecutiveFailures")
+                .build();
+        this.errorRateMeter = metrics.hostEjection()
+                .channelName(channelName)
+                .reason("errorRate")
+                .build();
+        this.readmissionMeter = metrics.hostReadmission(channelName);
+    }
+
+    /** Returns a channel which is limited while the host is ejected, replacing any previous host with the uri. */
+    LimitedChannel host(String uri, LimitedChannel delegate) {
+        Host host = new Host(delegate);
+        hosts.put(uri, host);
+        return host;
+    }
+
+    /** Forgets hosts which have been removed, so that they no longer count towards the ejection limit. */
+    void retain(Set<String> uris) {
+        hosts.keySet().retainAll(uris);
+    }
+
+    /** Returns the number of hosts which are currently ejected. */
+    int ejected() {
+        int ejected = 0;
+        for (Host host : hosts.values()) {
+            if (host.isEjected()) {
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    // Ejections are rare, so they are serialized to enforce the ejection limit
+    private synchronized void tryEject(Host host, Meter reason) {
+        if (host.isEjected() || (ejected() + 1) * 100 > hosts.size() * MAX_EJECTION_PERCENT) {
+            return;
+        }
+        host.eject(clock.read() + cooldownNanos);
+        reason.mark();
+    }
+
+    final class Host implements LimitedChannel {
+        private final LimitedChannel delegate;
+        // The earliest time at which a probe may be sent to the host while it is ejected, HEALTHY otherwise
+        private final AtomicLong nextProbe = new AtomicLong(HEALTHY);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong intervalStart;
+        private final AtomicInteger intervalRequests = new AtomicInteger();
+        private final AtomicInteger intervalFailures = new AtomicInteger();
+        // Allocated once rather than for every request
+        private final FutureCallback<Response> callback = new HostCallback(false);
+        private final FutureCallback<Response> probeCallback = new HostCallback(true);
+
+        private Host(LimitedChannel delegate) {
+            this.delegate = delegate;
+            this.intervalStart = new AtomicLong(clock.read());
+        }
+
+        @Nullable
+        @Override
+        public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+            long probeAt = nextProbe.get();
+            if (probeAt == HEALTHY) {
+                ListenableFuture<Response> result = delegate.maybeExecute(endpoint, request);
+                if (result != null) {
+                    DialogueFutures.addDirectCallback(result, callback);
+                }
+                return result;
+            }
+            long now = clock.read();
+            long followingProbeAt = now + cooldownNanos;
+            if (now < probeAt || !nextProbe.compareAndSet(probeAt, followingProbeAt)) {
+                return null;
+            }
+            ListenableFuture<Response> probe = delegate.maybeExecute(endpoint, request);
+            if (probe == null) {
+                // The probe wasn't sent, so the next request may probe instead
+                nextProbe.compareAndSet(followingProbeAt, probeAt);
+                return null;
+            }
+            return DialogueFutures.addDirectCallback(probe, probeCallback);
+        }
+
+        boolean isEjected() {
+            return nextProbe.get() != HEALTHY;
+        }
+
+        private void eject(long firstProbeAt) {
+            nextProbe.set(firstProbeAt);
+            resetInterval(clock.read());
+        }
+
+        private void succeeded(boolean probe) {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            // Responses to requests sent before the host was ejected don't readmit it
+            if (probe && nextProbe.getAndSet(HEALTHY) != HEALTHY) {
+                resetInterval(clock.read());
+                readmissionMeter.mark();
+            } else {
+                record(false);
+            }
+        }
+
+        private void failed(boolean probe) {
+            int failures = consecutiveFailures.incrementAndGet();
+            boolean errorRateExceeded = record(true);
+            // A failed probe leaves the host ejected until the next probe
+            if (probe || isEjected()) {
+                return;
+            }
+            if (failures >= CONSECUTIVE_FAILURES) {
+                tryEject(this, consecutiveFailuresMeter);
+            } else if (errorRateExceeded) {
+                tryEject(this, errorRateMeter);
+            }
+        }
+
+        /** Counts a request towards the current interval, and returns true if the error rate has been exceeded. */
+        private boolean record(boolean failure) {
+            long now = clock.read();
+            long start = intervalStart.get();
+            if (now - start >= INTERVAL.toNanos() && intervalStart.compareAndSet(start, now)) {
+                intervalRequests.set(0);
+                intervalFailures.set(0);
+            }
+            int requests = intervalRequests.incrementAndGet();
+            if (!failure) {
+                return false;
+            }
+            int failures = intervalFailures.incrementAndGet();
+            return requests >= MIN_REQUESTS && failures >= requests * ERROR_RATE;
+        }
+
+        private void resetInterval(long now) {
+            intervalStart.set(now);
+            intervalRequests.set(0);
+            intervalFailures.set(0);
+        }
+
+        private final class HostCallback implements FutureCallback<Response> {
+            private final boolean probe;
+
+            HostCallback(boolean probe) {
+                this.probe = probe;
+            }
+
+            @Override
+            public void onSuccess(Response response) {
+                // Rate limiting and redirects are not signs of a broken host
+                if (Responses.isServerError(response)) {
+                    failed(probe);
+                } else {
+                    succeeded(probe);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // Requests cancelled by the caller, for example once a hedged attempt responded, are not failures
+                if (!(throwable instanceof CancellationException)) {
+                    failed(probe);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "OutlierDetector.Host{delegate=" + delegate + ", ejected=" + isEjected() + '}';
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OutlierDetector{channelName=" + channelName + ", hosts=" + hosts.size() + '}';
+    }
+}
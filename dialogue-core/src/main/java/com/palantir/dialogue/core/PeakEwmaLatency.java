@@ -0,0 +1,130 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks a peak exponentially weighted moving average of the over-the-wire latency of a single host, as described by
+ * the 'peak EWMA' load balancer in Finagle. Slower responses replace the average immediately while faster responses
+ * are blended in with a weight that depends on the time since the previous response, so a degrading host is detected
+ * after a single slow response but takes a few seconds of good responses to recover. The average also decays towards
+ * zero when a host receives no responses so that hosts which were avoided are eventually retried.
+ *
+ * All state is updated with compare-and-set operations, so recording and scoring never block.
+ */
+final class PeakEwmaLatency {
+
+    private static final long DECAY_NANOS = Duration.ofSeconds(10).toNanos();
+
+    // Hosts without any latency information but with requests in flight are avoided until a response arrives
+    private static final double PENALTY = 1e18;
+
+    private final Ticker clock;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicReference<Sample> sample;
+
+    PeakEwmaLatency(Ticker clock) {
+        this.clock = clock;
+        this.sample = new AtomicReference<>(new Sample(0, clock.read()));
+    }
+
+    void requestStarted() {
+        inflight.incrementAndGet();
+    }
+
+    /** Records a successful response which took {@code latencyNanos} on the wire. */
+    void requestSucceeded(long latencyNanos) {
+        inflight.decrementAndGet();
+        long now = clock.read();
+        Sample current;
+        Sample updated;
+        do {
+            current = sample.get();
+            updated = new Sample(current.update(latencyNanos, now), now);
+        } while (!sample.compareAndSet(current, updated));
+    }
+
+    /**
+     * Records a failed request. Failures often return quickly, so they may increase the average but never reduce it,
+     * otherwise a host which fails fast would attract more traffic.
+     */
+    void requestFailed(long latencyNanos) {
+        inflight.decrementAndGet();
+        long now = clock.read();
+        Sample current;
+        do {
+            current = sample.get();
+            if (latencyNanos <= current.decayed(now)) {
+                return;
+            }
+        } while (!sample.compareAndSet(current, new Sample(latencyNanos, now)));
+    }
+
+    /** Returns the expected time for this host to complete a new request, lower is better. */
+    double score() {
+        int pending = inflight.get();
+        double cost = sample.get().decayed(clock.read());
+        if (cost == 0 && pending != 0) {
+            return PENALTY + pending;
+        }
+        return cost * (pending + 1);
+    }
+
+    int getInflight() {
+        return inflight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PeakEwmaLatency{inflight=" + inflight + ", sample=" + sample + '}';
+    }
+
+    private static final class Sample {
+        private final double cost;
+        private final long timestamp;
+
+        Sample(double cost, long timestamp) {
+            this.cost = cost;
+            this.timestamp = timestamp;
+        }
+
+        double update(long latencyNanos, long now) {
+            if (latencyNanos > cost) {
+                return latencyNanos;
+            }
+            double weight = weight(now);
+            return cost * weight + latencyNanos * (1 - weight);
+        }
+
+        double decayed(long now) {
+            return cost * weight(now);
+        }
+
+        private double weight(long now) {
+            return Math.exp(-Math.max(0, now - timestamp) / (double) DECAY_NANOS);
+        }
+
+        @Override
+        public String toString() {
+            return "Sample{cost=" + cost + ", timestamp=" + timestamp + '}';
+        }
+    }
+}
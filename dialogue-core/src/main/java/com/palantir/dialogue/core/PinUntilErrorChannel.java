@@ -20,6 +20,8 @@ import com.codahale.metrics.Meter;
 import com.github.benmanes.caffeine.cache.Ticker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.palantir.conjure.java.client.config.NodeSelectionStrategy;
@@ -33,12 +35,15 @@ import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
@@ -55,7 +60,13 @@ import org.slf4j.LoggerFactory;
  *     <li>when a node is restarted (and clients see 500s/connect exceptions), they will _all_ pin to a different node
  * </ul>
  *
- * To alleviate the second downside, we reshuffle all nodes every 10 minutes.
+ * To alleviate the second downside, we reshuffle all nodes every 10 minutes. With slow start, a
+ * {@link SlowStartChannel} which is pinned by a reshuffle while it is warming up is only sent its share of the
+ * traffic, so that a host which was just added or restarted doesn't suddenly receive every request.
+ *
+ * With endpoint-scoped pinning each endpoint is pinned to a host separately, so that an endpoint which fails on a host
+ * only moves itself to the next host, while the other endpoints keep using their warm caches. Reshuffles still move
+ * every endpoint.
  */
 final class PinUntilErrorChannel implements LimitedChannel {
     private static final Logger log = LoggerFactory.getLogger(PinUntilErrorChannel.class);
@@ -63,15 +74,45 @@ final class PinUntilErrorChannel implements LimitedChannel {
     // we also add some jitter to ensure that there isn't a big spike of reshuffling every 10 minutes.
     private static final Duration RESHUFFLE_EVERY = Duration.ofMinutes(10);
 
-    // TODO(dfox): could we make this endpoint-specific?
-    private final AtomicInteger currentHost;
+    // Endpoints beyond this share the pin of the channel, which bounds the memory used by endpoint-scoped pinning
+    @VisibleForTesting
+    static final int MAX_PINNED_ENDPOINTS = 64;
+
     private final NodeList nodeList;
     private final Instrumentation instrumentation;
+    private final Random random;
+    private final DialoguePinuntilerrorMetrics metrics;
+    private final String channelName;
+    private final Pin channelPin;
+
+    // Open addressing table of endpoint-scoped pins, which are only created once an endpoint is first used. Null
+    // unless endpoints are pinned separately.
+    @Nullable
+    private final AtomicReferenceArray<Pin> endpointPins;
+
+    @VisibleForTesting
+    PinUntilErrorChannel(
+            NodeList nodeList,
+            int initialHost,
+            Random random,
+            DialoguePinuntilerrorMetrics metrics,
+            String channelName) {
+        this(nodeList, initialHost, ImmutableMap.of(), false, random, metrics, channelName);
+    }
 
     @VisibleForTesting
-    PinUntilErrorChannel(NodeList nodeList, int initialHost, DialoguePinuntilerrorMetrics metrics, String channelName) {
+    PinUntilErrorChannel(
+            NodeList nodeList,
+            int initialHost,
+            Map<Endpoint, Integer> initialEndpointHosts,
+            boolean endpointScoped,
+            Random random,
+            DialoguePinuntilerrorMetrics metrics,
+            String channelName) {
         this.nodeList = nodeList;
-        this.currentHost = new AtomicInteger(initialHost);
+        this.random = random;
+        this.metrics = metrics;
+        this.channelName = channelName;
         this.instrumentation = new Instrumentation(nodeList.size(), metrics, channelName);
         Preconditions.checkArgument(
                 nodeList.size() >= 2,
@@ -81,11 +122,33 @@ final class PinUntilErrorChannel implements LimitedChannel {
                 0 <= initialHost && initialHost < nodeList.size(),
                 "initialHost must be a valid index into nodeList",
                 SafeArg.of("initialHost", initialHost));
+        this.channelPin = new Pin(null, initialHost);
+        this.endpointPins = endpointScoped ? new AtomicReferenceArray<>(MAX_PINNED_ENDPOINTS) : null;
+        if (endpointScoped) {
+            initialEndpointHosts.forEach(this::pin);
+        }
+    }
+
+    static PinUntilErrorChannel of(
+            Optional<LimitedChannel> initialChannel,
+            NodeSelectionStrategy strategy,
+            List<LimitedChannel> channels,
+            DialoguePinuntilerrorMetrics metrics,
+            Random random,
+            String channelName) {
+        return of(initialChannel, ImmutableMap.of(), strategy, false, channels, metrics, random, channelName);
     }
 
+    /**
+     * With {@code endpointScoped} pinning each endpoint is pinned to a host separately, so that an endpoint which
+     * fails on a host doesn't move the other endpoints off the host. The {@code initialEndpointChannels} preserve
+     * the hosts which endpoints were pinned to by a previous instance.
+     */
     static PinUntilErrorChannel of(
             Optional<LimitedChannel> initialChannel,
+            Map<Endpoint, LimitedChannel> initialEndpointChannels,
             NodeSelectionStrategy strategy,
+            boolean endpointScoped,
             List<LimitedChannel> channels,
             DialoguePinuntilerrorMetrics metrics,
             Random random,
@@ -101,15 +164,20 @@ final class PinUntilErrorChannel implements LimitedChannel {
                 // indexOf relies on reference equality since we expect LimitedChannels to be reused across updates
                 .map(limitedChannel -> Math.max(0, initialShuffle.indexOf(limitedChannel)))
                 .orElse(0);
+        // Endpoints pinned to hosts which have been removed are dropped, they start from the initial host again
+        Map<Endpoint, Integer> initialEndpointHosts = Maps.filterValues(
+                Maps.transformValues(initialEndpointChannels, initialShuffle::indexOf), index -> index >= 0);
 
         switch (strategy) {
             case PIN_UNTIL_ERROR:
                 NodeList shuffling =
                         ReshufflingNodeList.of(initialShuffle, random, System::nanoTime, metrics, channelName);
-                return new PinUntilErrorChannel(shuffling, initialHost, metrics, channelName);
+                return new PinUntilErrorChannel(
+                        shuffling, initialHost, initialEndpointHosts, endpointScoped, random, metrics, channelName);
             case PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE:
                 NodeList constant = new ConstantNodeList(initialShuffle);
-                return new PinUntilErrorChannel(constant, initialHost, metrics, channelName);
+                return new PinUntilErrorChannel(
+                        constant, initialHost, initialEndpointHosts, endpointScoped, random, metrics, channelName);
             case ROUND_ROBIN:
         }
 
@@ -117,47 +185,175 @@ final class PinUntilErrorChannel implements LimitedChannel {
     }
 
     LimitedChannel getCurrentChannel() {
-        return nodeList.get(currentHost.get());
+        return nodeList.get(channelPin.host.get());
+    }
+
+    /** Hosts which endpoints are currently pinned to, empty unless endpoints are pinned separately. */
+    Map<Endpoint, LimitedChannel> getCurrentEndpointChannels() {
+        if (endpointPins == null) {
+            return ImmutableMap.of();
+        }
+        Map<Endpoint, LimitedChannel> channels = new HashMap<>();
+        for (int i = 0; i < endpointPins.length(); i++) {
+            Pin pin = endpointPins.get(i);
+            if (pin != null && pin.endpoint != null) {
+                channels.put(pin.endpoint, nodeList.get(pin.host.get()));
+            }
+        }
+        return channels;
     }
 
+    @Nullable
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
-        int currentIndex = currentHost.get();
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        Pin pin = endpointPins == null ? channelPin : pin(endpoint, channelPin.host.get());
+        int currentIndex = pin.host.get();
         LimitedChannel channel = nodeList.get(currentIndex);
 
-        return channel.maybeExecute(endpoint, request)
-                .map(future -> DialogueFutures.addDirectCallback(future, new FutureCallback<Response>() {
-                    @Override
-                    public void onSuccess(Response response) {
-                        // We specifically don't switch  429 responses to support transactional
-                        // workflows where it is important for a large number of requests to all land on the same node,
-                        // even if a couple of them get rate limited in the middle.
-                        if (Responses.isServerError(response)
-                                || (Responses.isQosStatus(response) && !Responses.isTooManyRequests(response))) {
-                            OptionalInt next = incrementHostIfNecessary(currentIndex);
-                            instrumentation.receivedErrorStatus(currentIndex, channel, response, next);
-                        } else {
-                            instrumentation.successfulResponse(currentIndex);
-                        }
-                    }
-
-                    @Override
-                    public void onFailure(Throwable throwable) {
-                        OptionalInt next = incrementHostIfNecessary(currentIndex);
-                        instrumentation.receivedThrowable(currentIndex, channel, throwable, next);
-                    }
-                }));
+        // A host which is warming up only receives its share of the pinned traffic, the rest spills over to the next
+        // host. Responses from the next host can't move the pin because it isn't the current host.
+        double weight = SlowStartChannel.weight(channel);
+        if (weight < 1 && random.nextDouble() >= weight) {
+            int nextIndex = (currentIndex + 1) % nodeList.size();
+            ListenableFuture<Response> spilled = nodeList.get(nextIndex).maybeExecute(endpoint, request);
+            if (spilled != null) {
+                return DialogueFutures.addDirectCallback(spilled, pin.callbacks[nextIndex]);
+            }
+        }
+
+        ListenableFuture<Response> future = channel.maybeExecute(endpoint, request);
+        if (future == null) {
+            return null;
+        }
+        return DialogueFutures.addDirectCallback(future, pin.callbacks[currentIndex]);
     }
 
     /**
-     * If we have some reason to think the currentIndex is bad, we want to move to the next host. This is done with a
-     * compareAndSet to ensure that out of order responses which signal information about a previous host don't kick
-     * us off a good one.
+     * Finds the pin of the endpoint, creating it at the {@code initialHost} if the endpoint hasn't been used before.
+     * Endpoints are matched by name rather than identity, and once the table is full the remaining endpoints share
+     * the pin of the channel.
      */
-    private OptionalInt incrementHostIfNecessary(int currentIndex) {
-        int nextIndex = (currentIndex + 1) % nodeList.size();
-        boolean saved = currentHost.compareAndSet(currentIndex, nextIndex);
-        return saved ? OptionalInt.of(nextIndex) : OptionalInt.empty(); // we've moved on already
+    private Pin pin(Endpoint endpoint, int initialHost) {
+        AtomicReferenceArray<Pin> pins = Preconditions.checkNotNull(endpointPins, "endpointPins");
+        int mask = pins.length() - 1;
+        int hash = 31 * endpoint.serviceName().hashCode() + endpoint.endpointName().hashCode();
+        int start = hash ^ (hash >>> 16);
+        for (int probe = 0; probe <= mask; probe++) {
+            int slot = (start + probe) & mask;
+            Pin pin = pins.get(slot);
+            if (pin == null) {
+                Pin created = new Pin(endpoint, initialHost);
+                if (pins.compareAndSet(slot, null, created)) {
+                    return created;
+                }
+                pin = pins.get(slot);
+            }
+            if (pin.matches(endpoint)) {
+                return pin;
+            }
+        }
+        return channelPin;
+    }
+
+    /** The host which requests are pinned to, either for the whole channel or for a single endpoint. */
+    private final class Pin {
+        private final AtomicInteger host;
+
+        @Nullable
+        private final Endpoint endpoint;
+
+        // Callbacks only depend on the index of the host, so they are allocated up front rather than for every request
+        private final HostCallback[] callbacks;
+        private final Meter nextNodeBecauseResponseCode;
+        private final Meter nextNodeBecauseThrowable;
+
+        @Nullable
+        private final Meter endpointNextNodeBecauseResponseCode;
+
+        @Nullable
+        private final Meter endpointNextNodeBecauseThrowable;
+
+        Pin(@Nullable Endpoint endpoint, int initialHost) {
+            this.host = new AtomicInteger(initialHost);
+            this.endpoint = endpoint;
+            this.callbacks = new HostCallback[nodeList.size()];
+            for (int i = 0; i < callbacks.length; i++) {
+                callbacks[i] = new HostCallback(this, i);
+            }
+            this.nextNodeBecauseResponseCode = nextNode("responseCode");
+            this.nextNodeBecauseThrowable = nextNode("throwable");
+            this.endpointNextNodeBecauseResponseCode =
+                    endpoint == null ? null : endpointNextNode(endpoint, "responseCode");
+            this.endpointNextNodeBecauseThrowable = endpoint == null ? null : endpointNextNode(endpoint, "throwable");
+        }
+
+        boolean matches(Endpoint other) {
+            return endpoint != null
+                    && endpoint.endpointName().equals(other.endpointName())
+                    && endpoint.serviceName().equals(other.serviceName());
+        }
+
+        /**
+         * If we have some reason to think the currentIndex is bad, we want to move to the next host. This is done
+         * with a compareAndSet to ensure that out of order responses which signal information about a previous host
+         * don't kick us off a good one.
+         */
+        OptionalInt incrementHostIfNecessary(int currentIndex, Meter nextNode, @Nullable Meter endpointNextNode) {
+            int nextIndex = (currentIndex + 1) % nodeList.size();
+            if (!host.compareAndSet(currentIndex, nextIndex)) {
+                return OptionalInt.empty(); // we've moved on already
+            }
+            nextNode.mark();
+            if (endpointNextNode != null) {
+                endpointNextNode.mark();
+            }
+            return OptionalInt.of(nextIndex);
+        }
+    }
+
+    private Meter nextNode(String reason) {
+        return metrics.nextNode().channelName(channelName).reason(reason).build();
+    }
+
+    private Meter endpointNextNode(Endpoint endpoint, String reason) {
+        return metrics.endpointNextNode()
+                .channelName(channelName)
+                .serviceName(endpoint.serviceName())
+                .endpoint(endpoint.endpointName())
+                .reason(reason)
+                .build();
+    }
+
+    private final class HostCallback implements FutureCallback<Response> {
+        private final Pin pin;
+        private final int index;
+
+        HostCallback(Pin pin, int index) {
+            this.pin = pin;
+            this.index = index;
+        }
+
+        @Override
+        public void onSuccess(Response response) {
+            // We specifically don't switch  429 responses to support transactional
+            // workflows where it is important for a large number of requests to all land on the same node,
+            // even if a couple of them get rate limited in the middle.
+            if (Responses.isServerError(response)
+                    || (Responses.isQosStatus(response) && !Responses.isTooManyRequests(response))) {
+                OptionalInt next = pin.incrementHostIfNecessary(
+                        index, pin.nextNodeBecauseResponseCode, pin.endpointNextNodeBecauseResponseCode);
+                instrumentation.receivedErrorStatus(index, nodeList, response, next);
+            } else {
+                instrumentation.successfulResponse(index);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            OptionalInt next = pin.incrementHostIfNecessary(
+                    index, pin.nextNodeBecauseThrowable, pin.endpointNextNodeBecauseThrowable);
+            instrumentation.receivedThrowable(index, nodeList, throwable, next);
+        }
     }
 
     interface NodeList {
@@ -278,19 +474,9 @@ final class PinUntilErrorChannel implements LimitedChannel {
         private final Meter[] successesPerHost;
 
         private final Meter reshuffleMeter;
-        private final Meter nextNodeBecauseResponseCode;
-        private final Meter nextNodeBecauseThrowable;
 
         Instrumentation(int numChannels, DialoguePinuntilerrorMetrics metrics, String channelName) {
             this.reshuffleMeter = metrics.reshuffle(channelName);
-            this.nextNodeBecauseResponseCode = metrics.nextNode()
-                    .channelName(channelName)
-                    .reason("responseCode")
-                    .build();
-            this.nextNodeBecauseThrowable = metrics.nextNode()
-                    .channelName(channelName)
-                    .reason("throwable")
-                    .build();
 
             if (numChannels < 10) {
                 // hard limit ensures we don't create unbounded tags
@@ -315,12 +501,10 @@ final class PinUntilErrorChannel implements LimitedChannel {
             }
         }
 
-        private void receivedErrorStatus(
-                int currentIndex, LimitedChannel channel, Response response, OptionalInt next) {
-            if (next.isPresent()) {
-                nextNodeBecauseResponseCode.mark();
-            }
+        // The channel is only looked up for debug logging, it may have been reshuffled since the request was made
+        private void receivedErrorStatus(int currentIndex, NodeList nodeList, Response response, OptionalInt next) {
             if (log.isDebugEnabled()) {
+                LimitedChannel channel = nodeList.get(currentIndex);
                 if (next.isPresent()) {
                     log.debug(
                             "Received error status code, switching to next channel",
@@ -338,12 +522,9 @@ final class PinUntilErrorChannel implements LimitedChannel {
             }
         }
 
-        private void receivedThrowable(
-                int currentIndex, LimitedChannel channel, Throwable throwable, OptionalInt next) {
-            if (next.isPresent()) {
-                nextNodeBecauseThrowable.mark();
-            }
+        private void receivedThrowable(int currentIndex, NodeList nodeList, Throwable throwable, OptionalInt next) {
             if (log.isDebugEnabled()) {
+                LimitedChannel channel = nodeList.get(currentIndex);
                 if (next.isPresent()) {
                     log.debug(
                             "Received throwable, switching to next channel",
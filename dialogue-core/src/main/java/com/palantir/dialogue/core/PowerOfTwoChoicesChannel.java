@@ -0,0 +1,129 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.logsafe.Preconditions;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+import javax.annotation.Nullable;
+
+/**
+ * Selects the less loaded of two randomly chosen channels (the 'power of two choices'). Sampling two hosts rather than
+ * scanning for the least loaded host avoids sending every request to the same host when load information is stale.
+ * Load is measured in one of two ways:
+ * <ul>
+ *     <li>{@link #leastOutstandingRequests}: the number of in-flight requests relative to the current concurrency
+ *     limit of the host. Compared to {@link RandomSelectionChannel}, traffic moves away from a slow host as soon as
+ *     requests start to build up on it, rather than once its concurrency limit has been reached. Channels without a
+ *     concurrency limiter report no load, in which case selection is equivalent to random selection.
+ *     <li>{@link #latencyAware}: the {@link PeakEwmaLatency#score() peak EWMA latency} of the host scaled by its
+ *     in-flight requests, which moves traffic away from hosts whose response times are degrading before they start
+ *     to fail requests.
+ * </ul>
+ *
+ * If both choices are limited the remaining channels are attempted in order from a random starting point.
+ */
+final class PowerOfTwoChoicesChannel implements LimitedChannel {
+
+    private final ImmutableList<LimitedChannel> delegates;
+    private final ToDoubleFunction<LimitedChannel> load;
+    private final Random random;
+
+    private PowerOfTwoChoicesChannel(
+            List<LimitedChannel> delegates, ToDoubleFunction<LimitedChannel> load, Random random) {
+        this.delegates = ImmutableList.copyOf(delegates);
+        this.load = load;
+        this.random = random;
+        Preconditions.checkArgument(this.delegates.size() >= 2, "At least two delegates are required");
+    }
+
+    static PowerOfTwoChoicesChannel leastOutstandingRequests(List<LimitedChannel> delegates, Random random) {
+        return new PowerOfTwoChoicesChannel(delegates, PowerOfTwoChoicesChannel::utilization, random);
+    }
+
+    /** Delegates are expected to be {@link LatencyTrackingChannel LatencyTrackingChannels}. */
+    static PowerOfTwoChoicesChannel latencyAware(List<LimitedChannel> delegates, Random random) {
+        return new PowerOfTwoChoicesChannel(delegates, PowerOfTwoChoicesChannel::latencyScore, random);
+    }
+
+    @Nullable
+    @Override
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        int size = delegates.size();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        if (load.applyAsDouble(delegates.get(second)) < load.applyAsDouble(delegates.get(first))) {
+            int swap = first;
+            first = second;
+            second = swap;
+        }
+
+        ListenableFuture<Response> result = delegates.get(first).maybeExecute(endpoint, request);
+        if (result != null) {
+            return result;
+        }
+        result = delegates.get(second).maybeExecute(endpoint, request);
+        if (result != null) {
+            return result;
+        }
+        int offset = random.nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int index = (offset + i) % size;
+            if (index != first && index != second) {
+                result = delegates.get(index).maybeExecute(endpoint, request);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the fraction of the concurrency limit currently in use, or zero if the channel is not limited. */
+    @VisibleForTesting
+    static double utilization(LimitedChannel channel) {
+        if (channel instanceof ConcurrencyLimitedChannel) {
+            ConcurrencyLimitedChannel limited = (ConcurrencyLimitedChannel) channel;
+            return limited.getInflight() / (double) Math.max(1, limited.getLimit());
+        }
+        return 0;
+    }
+
+    /** Returns the latency score of the channel, or zero if its latency is not tracked. */
+    @VisibleForTesting
+    static double latencyScore(LimitedChannel channel) {
+        if (channel instanceof LatencyTrackingChannel) {
+            return ((LatencyTrackingChannel) channel).latency().score();
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PowerOfTwoChoicesChannel{delegates=" + delegates + '}';
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Queues calls separately for each {@link RequestPriority}, and always dequeues calls of a higher priority first.
+ * Calls of the same priority are dequeued in the order of the underlying queue.
+ */
+final class PriorityCallQueue implements QueuedChannel.CallQueue {
+    private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+    private final EndpointPriorities priorities;
+    private final QueuedChannel.CallQueue[] queues = new QueuedChannel.CallQueue[PRIORITIES.length];
+
+    PriorityCallQueue(EndpointPriorities priorities, Supplier<QueuedChannel.CallQueue> queueFactory) {
+        this.priorities = priorities;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = queueFactory.get();
+        }
+    }
+
+    @Override
+    public boolean offer(QueuedChannel.DeferredCall call) {
+        return queue(call).offer(call);
+    }
+
+    @Override
+    public boolean offerFirst(QueuedChannel.DeferredCall call) {
+        return queue(call).offerFirst(call);
+    }
+
+    @Nullable
+    @Override
+    public QueuedChannel.DeferredCall poll() {
+        for (QueuedChannel.CallQueue queue : queues) {
+            QueuedChannel.DeferredCall call = queue.poll();
+            if (call != null) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public QueuedChannel.DeferredCall pollShed() {
+        for (QueuedChannel.CallQueue queue : queues) {
+            QueuedChannel.DeferredCall call = queue.pollShed();
+            if (call != null) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    private QueuedChannel.CallQueue queue(QueuedChannel.DeferredCall call) {
+        return queues[priorities.get(call.endpoint()).ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return "PriorityCallQueue{priorities=" + priorities + '}';
+    }
+}
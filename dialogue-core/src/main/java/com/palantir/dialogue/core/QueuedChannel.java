@@ -17,7 +17,11 @@
 package com.palantir.dialogue.core;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -31,12 +35,20 @@ import com.palantir.logsafe.SafeArg;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import com.palantir.tracing.CloseableSpan;
 import com.palantir.tracing.DetachedSpan;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +61,9 @@ import org.slf4j.LoggerFactory;
  *     <li>On request completion - allows execution when capacity has now become available</li>
  * </ol>
  *
+ * The schedule loop runs on one thread at a time, threads which trigger it while it is running hand off to the
+ * running thread using a {@link Drainer}.
+ *
  * This implementation was chosen over alternatives for the following reasons:
  * <ul>
  *     <li>Always periodically schedule: this decreases throughout as requests that may be able to run will have to
@@ -56,11 +71,28 @@ import org.slf4j.LoggerFactory;
  *     <li>Schedule in a spin loop: this would allow us to schedule without delay, but requires a thread constantly
  *     doing work, much of which will be wasted</li>
  * </ul>
+ *
+ * Requests to endpoints with a deadline are failed without being attempted once they have been queued for longer than
+ * the deadline, because the caller has most likely given up on them. Requests are rejected before being queued when
+ * the recent time spent queued already exceeds their deadline.
+ *
+ * Requests are executed in the order they were queued unless a {@link DeficitRoundRobinQueue} is provided, which
+ * shares capacity fairly between endpoints, or an {@link AdaptiveLifoQueue}, which executes the freshest requests
+ * first and sheds stale requests while the queue is overloaded.
+ *
+ * Limited channels may also limit individual endpoints, see {@link ConcurrencyLimitedChannel#isEndpointLimited}. A
+ * request which can't be executed because only its endpoint is limited is skipped along with later requests to the
+ * same endpoint for the rest of the pass, rather than blocking requests to other endpoints at the head of the queue.
+ * Skipped requests are returned to the head of the queue in order when the pass ends, so the queue still decides
+ * which requests are executed and shed first.
  */
 final class QueuedChannel implements Channel {
     private static final Logger log = LoggerFactory.getLogger(QueuedChannel.class);
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    // Bounds the work of a pass when most queued requests are to limited endpoints
+    private static final int MAX_SKIPPED_CALLS = 1_000;
 
-    private final Deque<DeferredCall> queuedCalls;
+    private final CallQueue queuedCalls;
     private final LimitedChannel delegate;
     private final String channelName;
     // Tracks requests that are current executing in delegate and are not tracked in queuedCalls
@@ -68,80 +100,197 @@ final class QueuedChannel implements Channel {
     private final int maxQueueSize;
     private final Counter queueSizeCounter;
     private final Timer queuedTime;
+    private final Meter droppedMeter;
+    private final Meter rejectedMeter;
+    private final Meter shedMeter;
     private final Supplier<ListenableFuture<Response>> limitedResultSupplier;
+    private final Ticker clock;
+    private final Function<Endpoint, Optional<Duration>> deadlines;
+    private final Cache<Endpoint, Long> deadlineNanosByEndpoint =
+            Caffeine.newBuilder().weakKeys().maximumSize(1_000).build();
+    // Moving average of the time recently executed requests spent queued, updates may race and be lost
+    private final AtomicLong queuedNanosEstimate = new AtomicLong();
+    // Time at which a request was last dequeued or the queue became non-empty, the average is only updated when
+    // requests are dequeued so it is stale while the queue is stuck
+    private final AtomicLong lastProgressNanos = new AtomicLong();
+    private final Drainer scheduler = new Drainer(this::scheduleNextTask);
+    private final Predicate<Endpoint> endpointLimited;
+    // Endpoints found to be limited during the current pass, and the requests to them polled since in the order they
+    // were polled. Only accessed by the thread which is scheduling requests.
+    private final Set<Endpoint> limitedEndpoints = new HashSet<>();
+    private final Deque<DeferredCall> skippedCalls = new ArrayDeque<>();
+    // Allocated once rather than for every request which bypasses the queue
+    private final Runnable completionListener = this::onCompletion;
 
     QueuedChannel(LimitedChannel delegate, String channelName, DialogueClientMetrics metrics, int maxQueueSize) {
+        this(
+                delegate,
+                channelName,
+                metrics,
+                maxQueueSize,
+                Ticker.systemTicker(),
+                _endpoint -> Optional.empty(),
+                fifoQueue());
+    }
+
+    QueuedChannel(
+            LimitedChannel delegate,
+            String channelName,
+            DialogueClientMetrics metrics,
+            int maxQueueSize,
+            Ticker clock,
+            Function<Endpoint, Optional<Duration>> deadlines,
+            CallQueue queuedCalls) {
+        this(delegate, channelName, metrics, maxQueueSize, clock, deadlines, queuedCalls, _endpoint -> false);
+    }
+
+    QueuedChannel(
+            LimitedChannel delegate,
+            String channelName,
+            DialogueClientMetrics metrics,
+            int maxQueueSize,
+            Ticker clock,
+            Function<Endpoint, Optional<Duration>> deadlines,
+            CallQueue queuedCalls,
+            Predicate<Endpoint> endpointLimited) {
         this.delegate = new NeverThrowLimitedChannel(delegate);
         this.channelName = channelName;
-        // Do _not_ call size on a ConcurrentLinkedDeque. Unlike other collections, size is an O(n) operation.
-        this.queuedCalls = new ProtectedConcurrentLinkedDeque<>();
+        this.queuedCalls = queuedCalls;
         this.maxQueueSize = maxQueueSize;
         this.queueSizeCounter = metrics.requestsQueued(channelName);
         this.queuedTime = metrics.requestQueuedTime(channelName);
+        this.droppedMeter = metrics.requestQueuedDropped(channelName);
+        this.rejectedMeter = metrics.requestQueuedRejected(channelName);
+        this.shedMeter = metrics.requestQueuedShed(channelName);
+        this.clock = clock;
+        this.deadlines = deadlines;
+        this.endpointLimited = endpointLimited;
         this.limitedResultSupplier = () -> Futures.immediateFailedFuture(new SafeRuntimeException(
                 "Unable to make a request (queue is full)", SafeArg.of("maxQueueSize", maxQueueSize)));
     }
 
+    /** Creates the default queue, which executes requests in the order they were queued. */
+    static CallQueue fifoQueue() {
+        // Do _not_ call size on a ConcurrentLinkedDeque. Unlike other collections, size is an O(n) operation.
+        return new ProtectedConcurrentLinkedDeque();
+    }
+
     @Override
     public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
-        return maybeExecute(endpoint, request).orElseGet(limitedResultSupplier);
+        ListenableFuture<Response> result = maybeExecute(endpoint, request);
+        return result == null ? limitedResultSupplier.get() : result;
     }
 
     /**
-     * Enqueues and tries to schedule as many queued tasks as possible.
+     * Enqueues and tries to schedule as many queued tasks as possible. Returns {@code null} if the queue is full.
      */
+    @Nullable
     @VisibleForTesting
-    Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
+    ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
         // Optimistically avoid the queue in the fast path.
         // Queuing adds contention between threads and should be avoided unless we need to shed load.
         if (queueSizeEstimate.get() <= 0) {
-            Optional<ListenableFuture<Response>> maybeResult = delegate.maybeExecute(endpoint, request);
-            if (maybeResult.isPresent()) {
-                ListenableFuture<Response> result = maybeResult.get();
-                DialogueFutures.addDirectListener(result, this::onCompletion);
+            ListenableFuture<Response> result = delegate.maybeExecute(endpoint, request);
+            if (result != null) {
+                DialogueFutures.addDirectListener(result, completionListener);
                 // While the queue was avoid, this is equivalent to spending zero time on the queue.
                 queuedTime.update(0, TimeUnit.NANOSECONDS);
-                return maybeResult;
+                updateQueuedNanosEstimate(0);
+                return result;
             }
         }
 
         // Important to read the queue size here as well as prior to the optimistic maybeExecute because
         // maybeExecute may take sufficiently long that other requests could be queued.
         if (queueSizeEstimate.get() >= maxQueueSize) {
-            return Optional.empty();
+            return null;
         }
 
+        long deadlineNanos = deadlineNanos(endpoint);
+        // An empty queue provides no new estimates, so requests are only rejected while others are queued
+        if (deadlineNanos != NO_DEADLINE && queueSizeEstimate.get() > 0) {
+            long queuedNanos = queuedNanosEstimate();
+            if (queuedNanos > deadlineNanos) {
+                rejectedMeter.mark();
+                return Futures.immediateFailedFuture(new SafeRuntimeException(
+                        "Unable to make a request (queue time exceeds the deadline)",
+                        SafeArg.of("deadline", Duration.ofNanos(deadlineNanos)),
+                        SafeArg.of("queuedTimeEstimate", Duration.ofNanos(queuedNanos)),
+                        SafeArg.of("channel", channelName),
+                        SafeArg.of("service", endpoint.serviceName()),
+                        SafeArg.of("endpoint", endpoint.endpointName())));
+            }
+        }
+
+        long now = clock.read();
         DeferredCall components = DeferredCall.builder()
                 .endpoint(endpoint)
                 .request(request)
                 .response(SettableFuture.create())
                 .span(DetachedSpan.start("Dialogue-request-enqueued"))
                 .timer(queuedTime.time())
+                .enqueued(now)
+                .deadline(deadlineNanos == NO_DEADLINE ? NO_DEADLINE : now + deadlineNanos)
                 .build();
 
         if (!queuedCalls.offer(components)) {
-            // Should never happen, ConcurrentLinkedDeque has no maximum size
-            return Optional.empty();
+            // Should never happen, queues have no maximum size
+            return null;
         }
         incrementQueueSize();
 
         schedule();
 
-        return Optional.of(components.response());
+        return components.response();
     }
 
     private void onCompletion() {
         schedule();
     }
 
+    /** Returns the deadline of requests to the endpoint in nanoseconds, or {@link #NO_DEADLINE}. */
+    private long deadlineNanos(Endpoint endpoint) {
+        return deadlineNanosByEndpoint.get(
+                endpoint, key -> deadlines.apply(key).map(Duration::toNanos).orElse(NO_DEADLINE));
+    }
+
+    private boolean isExpired(DeferredCall call) {
+        return call.deadline() != NO_DEADLINE && clock.read() - call.deadline() >= 0;
+    }
+
+    private void recordQueuedTime(DeferredCall call) {
+        long now = clock.read();
+        updateQueuedNanosEstimate(now - call.enqueued());
+        lastProgressNanos.lazySet(now);
+    }
+
     /**
-     * Try to schedule as many tasks as possible. Called when requests are submitted and when they complete.
+     * Adds a sample to the moving average. Requests which bypass the queue add samples of zero, so that the average
+     * decays once the queue has recovered rather than rejecting requests based on the last overload.
      */
-    void schedule() {
-        int numScheduled = 0;
-        while (scheduleNextTask()) {
-            numScheduled++;
+    private void updateQueuedNanosEstimate(long queuedNanos) {
+        long current = queuedNanosEstimate.get();
+        if (current != queuedNanos) {
+            long updated = current + (queuedNanos - current) / 8;
+            // Integer division stalls within 8ns of the sample
+            queuedNanosEstimate.lazySet(updated == current ? queuedNanos : updated);
         }
+    }
+
+    /**
+     * Estimates how long a request queued now would wait. Requests wait at least as long as the queue has gone without
+     * dequeueing a request, which bounds the moving average while it is stale.
+     */
+    private long queuedNanosEstimate() {
+        return Math.max(queuedNanosEstimate.get(), clock.read() - lastProgressNanos.get());
+    }
+
+    /**
+     * Try to schedule as many tasks as possible. Called when requests are submitted and when they complete. Only one
+     * thread schedules tasks at a time, other threads hand off to it rather than contending on the queue.
+     */
+    void schedule() {
+        int numScheduled = scheduler.drain();
 
         if (log.isDebugEnabled()) {
             log.debug("Scheduled {} requests", SafeArg.of("numScheduled", numScheduled));
@@ -149,7 +298,9 @@ final class QueuedChannel implements Channel {
     }
 
     private void incrementQueueSize() {
-        queueSizeEstimate.incrementAndGet();
+        if (queueSizeEstimate.incrementAndGet() == 1) {
+            lastProgressNanos.lazySet(clock.read());
+        }
         queueSizeCounter.inc();
     }
 
@@ -164,8 +315,23 @@ final class QueuedChannel implements Channel {
      * tasks may be able to be scheduled, and false otherwise.
      */
     private boolean scheduleNextTask() {
+        DeferredCall shed = queuedCalls.pollShed();
+        if (shed != null) {
+            decrementQueueSize();
+            shed.span().complete();
+            shed.timer().stop();
+            recordQueuedTime(shed);
+            shedMeter.mark();
+            shed.response().setException(new SafeRuntimeException(
+                    "Request was shed from the overloaded queue",
+                    SafeArg.of("channel", channelName),
+                    SafeArg.of("service", shed.endpoint().serviceName()),
+                    SafeArg.of("endpoint", shed.endpoint().endpointName())));
+            return true;
+        }
         DeferredCall queueHead = queuedCalls.poll();
         if (queueHead == null) {
+            endPass();
             return false;
         }
         SettableFuture<Response> queuedResponse = queueHead.response();
@@ -178,15 +344,32 @@ final class QueuedChannel implements Channel {
             queueHead.timer().stop();
             return true;
         }
+        if (isExpired(queueHead)) {
+            // The caller has most likely given up, so attempting the request would only add load
+            decrementQueueSize();
+            queueHead.span().complete();
+            queueHead.timer().stop();
+            recordQueuedTime(queueHead);
+            droppedMeter.mark();
+            queuedResponse.setException(new SafeRuntimeException(
+                    "Request deadline was exceeded while queued",
+                    SafeArg.of("channel", channelName),
+                    SafeArg.of("service", queueHead.endpoint().serviceName()),
+                    SafeArg.of("endpoint", queueHead.endpoint().endpointName())));
+            return true;
+        }
+        if (!limitedEndpoints.isEmpty() && limitedEndpoints.contains(queueHead.endpoint())) {
+            return skip(queueHead);
+        }
         try (CloseableSpan ignored = queueHead.span().childSpan("Dialogue-request-scheduled")) {
             Endpoint endpoint = queueHead.endpoint();
-            Optional<ListenableFuture<Response>> maybeResponse = delegate.maybeExecute(endpoint, queueHead.request());
+            ListenableFuture<Response> response = delegate.maybeExecute(endpoint, queueHead.request());
 
-            if (maybeResponse.isPresent()) {
+            if (response != null) {
                 decrementQueueSize();
-                ListenableFuture<Response> response = maybeResponse.get();
                 queueHead.span().complete();
                 queueHead.timer().stop();
+                recordQueuedTime(queueHead);
                 DialogueFutures.addDirectCallback(response, new ForwardAndSchedule(queuedResponse));
                 DialogueFutures.addDirectListener(queuedResponse, () -> {
                     if (queuedResponse.isCancelled()) {
@@ -204,33 +387,63 @@ final class QueuedChannel implements Channel {
                     }
                 });
                 return true;
+            } else if (endpointLimited.test(endpoint)) {
+                // Requests to other endpoints may still be executed
+                limitedEndpoints.add(endpoint);
+                return skip(queueHead);
             } else {
-                if (!queuedCalls.offerFirst(queueHead)) {
-                    // Should never happen, ConcurrentLinkedDeque has no maximum size
-                    log.error(
-                            "Failed to add an attempted call back to the deque",
-                            SafeArg.of("channel", channelName),
-                            SafeArg.of("service", endpoint.serviceName()),
-                            SafeArg.of("endpoint", endpoint.endpointName()));
-                    decrementQueueSize();
-                    queueHead.timer().stop();
-                    if (!queuedResponse.setException(new SafeRuntimeException(
-                            "Failed to req-queue request",
-                            SafeArg.of("channel", channelName),
-                            SafeArg.of("service", endpoint.serviceName()),
-                            SafeArg.of("endpoint", endpoint.endpointName())))) {
-                        log.debug(
-                                "Queued response has already been completed",
-                                SafeArg.of("channel", channelName),
-                                SafeArg.of("service", endpoint.serviceName()),
-                                SafeArg.of("endpoint", endpoint.endpointName()));
-                    }
-                }
+                requeue(queueHead);
+                endPass();
                 return false;
             }
         }
     }
 
+    /** Skips a request for the rest of the pass. Returns false once the pass has skipped too many requests. */
+    private boolean skip(DeferredCall call) {
+        skippedCalls.addLast(call);
+        if (skippedCalls.size() >= MAX_SKIPPED_CALLS) {
+            endPass();
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns requests skipped during the pass to the head of the queue, in the order they were polled. */
+    private void endPass() {
+        DeferredCall call;
+        while ((call = skippedCalls.pollLast()) != null) {
+            requeue(call);
+        }
+        limitedEndpoints.clear();
+    }
+
+    /** Returns a request which could not be executed to the head of the queue. */
+    private void requeue(DeferredCall call) {
+        if (!queuedCalls.offerFirst(call)) {
+            Endpoint endpoint = call.endpoint();
+            // Should never happen, queues have no maximum size
+            log.error(
+                    "Failed to add an attempted call back to the deque",
+                    SafeArg.of("channel", channelName),
+                    SafeArg.of("service", endpoint.serviceName()),
+                    SafeArg.of("endpoint", endpoint.endpointName()));
+            decrementQueueSize();
+            call.timer().stop();
+            if (!call.response().setException(new SafeRuntimeException(
+                    "Failed to req-queue request",
+                    SafeArg.of("channel", channelName),
+                    SafeArg.of("service", endpoint.serviceName()),
+                    SafeArg.of("endpoint", endpoint.endpointName())))) {
+                log.debug(
+                        "Queued response has already been completed",
+                        SafeArg.of("channel", channelName),
+                        SafeArg.of("service", endpoint.serviceName()),
+                        SafeArg.of("endpoint", endpoint.endpointName()));
+            }
+        }
+    }
+
     /**
      * Forward the success or failure of the call to the SettableFuture that was previously returned to the caller.
      * This also schedules the next set of requests to be run.
@@ -271,6 +484,12 @@ final class QueuedChannel implements Channel {
 
         Timer.Context timer();
 
+        /** Time according to the channel clock at which the request was queued. */
+        long enqueued();
+
+        /** Time according to the channel clock after which the request is no longer attempted. */
+        long deadline();
+
         class Builder extends ImmutableDeferredCall.Builder {}
 
         static Builder builder() {
@@ -278,7 +497,30 @@ final class QueuedChannel implements Channel {
         }
     }
 
-    private static final class ProtectedConcurrentLinkedDeque<T> extends ConcurrentLinkedDeque<T> {
+    /**
+     * Queue of calls waiting for capacity. Calls are polled from the head of the queue by the schedule loop, and
+     * returned to the head if they can't be executed. Implementations must be thread safe.
+     */
+    interface CallQueue {
+        boolean offer(DeferredCall call);
+
+        boolean offerFirst(DeferredCall call);
+
+        @Nullable
+        DeferredCall poll();
+
+        /**
+         * Returns a queued call which should be failed rather than executed, because the queue is overloaded. By
+         * default calls are never shed.
+         */
+        @Nullable
+        default DeferredCall pollShed() {
+            return null;
+        }
+    }
+
+    private static final class ProtectedConcurrentLinkedDeque extends ConcurrentLinkedDeque<DeferredCall>
+            implements CallQueue {
 
         @Override
         public int size() {
@@ -25,26 +25,33 @@ import com.palantir.dialogue.Response;
 import com.palantir.logsafe.Preconditions;
 import java.util.BitSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.Random;
 import javax.annotation.Nullable;
 
 /**
  * Randomly selects a channel for a given request, attempting to choose a channel that has some available capacity.
+ * While a {@link SlowStartChannel} is warming up, channels are selected with probability proportional to their
+ * weight instead.
  */
 final class RandomSelectionChannel implements LimitedChannel {
 
     private final ImmutableList<LimitedChannel> delegates;
     private final Random random;
+    private final boolean slowStart;
 
     RandomSelectionChannel(List<LimitedChannel> delegates, Random random) {
         this.delegates = ImmutableList.copyOf(delegates);
         this.random = random;
+        this.slowStart = this.delegates.stream().anyMatch(SlowStartChannel.class::isInstance);
         Preconditions.checkArgument(!this.delegates.isEmpty(), "Delegates must not be empty");
     }
 
+    @Nullable
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request request) {
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        if (slowStart && isWarmingUp()) {
+            return maybeExecuteWeighted(endpoint, request);
+        }
         int elements = delegates.size();
         // Defer collection creation in the hot path, there's no need to create objects for tracking
         // if the first randomly selected host is successful.
@@ -52,8 +59,8 @@ final class RandomSelectionChannel implements LimitedChannel {
         while (elements > 0) {
             int host = random.nextInt(elements);
             LimitedChannel channel = delegates.get(toIndex(visitedChannels, host));
-            Optional<ListenableFuture<Response>> maybeCall = channel.maybeExecute(endpoint, request);
-            if (maybeCall.isPresent()) {
+            ListenableFuture<Response> maybeCall = channel.maybeExecute(endpoint, request);
+            if (maybeCall != null) {
                 return maybeCall;
             }
             if (visitedChannels == null) {
@@ -63,7 +70,51 @@ final class RandomSelectionChannel implements LimitedChannel {
             visitedChannels.set(host);
             --elements;
         }
-        return Optional.empty();
+        return null;
+    }
+
+    private boolean isWarmingUp() {
+        for (int i = 0; i < delegates.size(); i++) {
+            if (SlowStartChannel.weight(delegates.get(i)) < 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Selects channels with probability proportional to their weight. Weights are only sampled once per request, and
+     * the weight of a limited channel is zeroed so that the remaining channels are attempted next.
+     */
+    @Nullable
+    private ListenableFuture<Response> maybeExecuteWeighted(Endpoint endpoint, Request request) {
+        int size = delegates.size();
+        double[] weights = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            weights[i] = SlowStartChannel.weight(delegates.get(i));
+            total += weights[i];
+        }
+        for (int remaining = size; remaining > 0; remaining--) {
+            double target = random.nextDouble() * total;
+            int selected = -1;
+            for (int i = 0; i < size; i++) {
+                if (weights[i] > 0) {
+                    selected = i;
+                    target -= weights[i];
+                    if (target < 0) {
+                        break;
+                    }
+                }
+            }
+            ListenableFuture<Response> maybeCall = delegates.get(selected).maybeExecute(endpoint, request);
+            if (maybeCall != null) {
+                return maybeCall;
+            }
+            total -= weights[selected];
+            weights[selected] = 0;
+        }
+        return null;
     }
 
     /**
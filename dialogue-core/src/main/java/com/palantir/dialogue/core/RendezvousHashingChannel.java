@@ -0,0 +1,135 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.logsafe.Preconditions;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.BiFunction;
+import javax.annotation.Nullable;
+
+/**
+ * Sends all requests with the same affinity key to the same host, so that caches on the hosts only need to hold their
+ * share of the keys. Hosts are ranked for each key by rendezvous (highest random weight) hashing: every host scores
+ * the key by hashing it together with a seed derived from the uri of the host, and the key belongs to the host with
+ * the highest score. If that host is limited, the host with the next highest score is attempted, and so on.
+ *
+ * Seeds only depend on uris, so when {@link DialogueChannel#updateUris} adds or removes a host only the keys which
+ * the host gains or loses move, the rest of the keys stay on their hosts. Requests without an affinity key are sent
+ * to a random host.
+ */
+final class RendezvousHashingChannel implements LimitedChannel {
+
+    private final ImmutableList<LimitedChannel> delegates;
+    private final long[] seeds;
+    private final BiFunction<Endpoint, Request, Optional<String>> affinityKey;
+    private final LimitedChannel keyless;
+
+    RendezvousHashingChannel(
+            Map<String, LimitedChannel> delegatesByUri,
+            BiFunction<Endpoint, Request, Optional<String>> affinityKey,
+            Random random) {
+        Preconditions.checkArgument(!delegatesByUri.isEmpty(), "Delegates must not be empty");
+        ImmutableList.Builder<LimitedChannel> delegatesBuilder = ImmutableList.builder();
+        this.seeds = new long[delegatesByUri.size()];
+        int index = 0;
+        for (Map.Entry<String, LimitedChannel> entry : delegatesByUri.entrySet()) {
+            delegatesBuilder.add(entry.getValue());
+            seeds[index++] = hash(entry.getKey());
+        }
+        this.delegates = delegatesBuilder.build();
+        this.affinityKey = affinityKey;
+        this.keyless = new RandomSelectionChannel(delegates, random);
+    }
+
+    @Nullable
+    @Override
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        Optional<String> key = affinityKey.apply(endpoint, request);
+        if (!key.isPresent()) {
+            return keyless.maybeExecute(endpoint, request);
+        }
+        long keyHash = hash(key.get());
+        // Hosts are attempted from the highest score down, the ranking is recomputed rather than sorted up front
+        // because the first host is rarely limited.
+        int previous = -1;
+        long previousScore = 0;
+        for (int attempt = 0; attempt < seeds.length; attempt++) {
+            int selected = -1;
+            long selectedScore = 0;
+            for (int i = 0; i < seeds.length; i++) {
+                long score = score(keyHash, seeds[i]);
+                if ((previous == -1 || ranksAbove(previousScore, seeds[previous], score, seeds[i]))
+                        && (selected == -1 || ranksAbove(score, seeds[i], selectedScore, seeds[selected]))) {
+                    selected = i;
+                    selectedScore = score;
+                }
+            }
+            ListenableFuture<Response> maybeCall = delegates.get(selected).maybeExecute(endpoint, request);
+            if (maybeCall != null) {
+                return maybeCall;
+            }
+            previous = selected;
+            previousScore = selectedScore;
+        }
+        return null;
+    }
+
+    /** Ties between scores are broken by seed, so that the ranking doesn't depend on the order of the hosts. */
+    private static boolean ranksAbove(long score, long seed, long otherScore, long otherSeed) {
+        return score != otherScore ? score > otherScore : seed > otherSeed;
+    }
+
+    @VisibleForTesting
+    static long score(long keyHash, long seed) {
+        return mix(keyHash ^ seed);
+    }
+
+    /** FNV-1a over the characters of the value, avoiding the allocation of an encoded copy. */
+    @VisibleForTesting
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /** The murmur3 finalizer, which spreads every bit of the input across the whole output. */
+    private static long mix(long value) {
+        long mixed = value;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xff51afd7ed558ccdL;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xc4ceb9fe1a85ec53L;
+        mixed ^= mixed >>> 33;
+        return mixed;
+    }
+
+    @Override
+    public String toString() {
+        return "RendezvousHashingChannel{delegates=" + delegates + '}';
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits additional attempts to a fraction of the requests made. Each request deposits {@code ratio} tokens and each
+ * additional attempt withdraws a whole token. The balance is capped at {@code maxBurst} tokens so that a long period
+ * of healthy traffic can't accumulate an unbounded burst of additional attempts. Once the balance is exhausted,
+ * additional attempts are rejected until further requests have been made.
+ */
+final class RequestBudget {
+    // Tokens are stored as fixed point values to allow lock-free updates of a single long
+    private static final long SCALE = 1000;
+
+    private final long depositPerRequest;
+    private final long maxBalance;
+    private final AtomicLong balance = new AtomicLong();
+
+    RequestBudget(double ratio, int maxBurst) {
+        this(ratio, maxBurst, 0);
+    }
+
+    RequestBudget(double ratio, int maxBurst, int initialTokens) {
+        Preconditions.checkArgument(
+                ratio >= 0 && ratio <= 1, "ratio must be between zero and one", SafeArg.of("ratio", ratio));
+        Preconditions.checkArgument(maxBurst >= 1, "maxBurst must be positive", SafeArg.of("maxBurst", maxBurst));
+        Preconditions.checkArgument(
+                initialTokens >= 0 && initialTokens <= maxBurst,
+                "initialTokens must be between zero and maxBurst",
+                SafeArg.of("initialTokens", initialTokens));
+        this.depositPerRequest = Math.round(ratio * SCALE);
+        this.maxBalance = maxBurst * SCALE;
+        this.balance.set(initialTokens * SCALE);
+    }
+
+    /** Called once for each request which earns the budget additional attempts. */
+    void deposit() {
+        long current;
+        long updated;
+        do {
+            current = balance.get();
+            updated = Math.min(maxBalance, current + depositPerRequest);
+        } while (current != updated && !balance.compareAndSet(current, updated));
+    }
+
+    /** Returns true if an additional attempt may be made. */
+    boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    /** Returns a token which was withdrawn for an attempt that could not be made. */
+    void refund() {
+        long current;
+        long updated;
+        do {
+            current = balance.get();
+            updated = Math.min(maxBalance, current + SCALE);
+        } while (!balance.compareAndSet(current, updated));
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBudget{balance=" + balance.get() / (double) SCALE + '}';
+    }
+}
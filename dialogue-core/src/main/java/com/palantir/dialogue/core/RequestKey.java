@@ -0,0 +1,75 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Identifies requests which receive the same response: requests to the same endpoint with the same path parameters,
+ * query parameters and values of the given headers. Request parameters are immutable so they are referenced directly.
+ */
+final class RequestKey {
+    private final Endpoint endpoint;
+    private final Map<String, String> pathParams;
+    private final ListMultimap<String, String> queryParams;
+    private final ImmutableList<ImmutableList<String>> headers;
+    private final int hashCode;
+
+    RequestKey(Endpoint endpoint, Request request, Collection<String> keyHeaders) {
+        this.endpoint = endpoint;
+        this.pathParams = request.pathParams();
+        this.queryParams = request.queryParams();
+        ImmutableList.Builder<ImmutableList<String>> headersBuilder = ImmutableList.builder();
+        for (String header : keyHeaders) {
+            headersBuilder.add(ImmutableList.copyOf(request.headerParams().get(header)));
+        }
+        this.headers = headersBuilder.build();
+        this.hashCode = Objects.hash(endpoint, pathParams, queryParams, headers);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        RequestKey key = (RequestKey) other;
+        return hashCode == key.hashCode
+                && endpoint.equals(key.endpoint)
+                && pathParams.equals(key.pathParams)
+                && queryParams.equals(key.queryParams)
+                && headers.equals(key.headers);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestKey{endpoint=" + endpoint.serviceName() + '.' + endpoint.endpointName() + '}';
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+/**
+ * Priority classes of requests, see {@link DialogueChannel.Builder#requestPriorities}. Queued requests are executed
+ * in priority order, and a slice of the concurrency limit of each host is reserved for {@link #INTERACTIVE} requests.
+ */
+public enum RequestPriority {
+    /** User-facing requests, which may use the capacity reserved for them as well as all other capacity. */
+    INTERACTIVE,
+    /** Requests which are not configured with a priority. */
+    DEFAULT,
+    /** Batch requests, which are only executed once no requests of a higher priority are queued. */
+    BACKGROUND
+}
@@ -0,0 +1,183 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HttpHeaders;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Configures the client-side response cache, see {@link DialogueChannel.Builder#responseCache}. Successful responses
+ * to {@code GET} requests to the {@link Builder#cacheableEndpoints cacheable endpoints} are stored when they carry a
+ * {@code Cache-Control: max-age} or an {@code ETag}. Fresh responses are served from memory, and stale responses with
+ * an {@code ETag} are revalidated with {@code If-None-Match}.
+ *
+ * Requests receive the same cached response if they have the same endpoint, path parameters, query parameters and
+ * values of the {@link Builder#keyHeaders key headers}, which always include the {@code Authorization} and
+ * {@code Cookie} headers so that responses are never shared between callers with different credentials.
+ *
+ * With {@link Builder#staleIfError stale-if-error} enabled, the last successful response is also kept once stale and
+ * is served in place of a failure, marked with the {@link #STALE_RESPONSE_HEADER}.
+ */
+public final class ResponseCachePolicy {
+
+    /**
+     * Header added to stale responses which are served because the request failed, its value is the age of the
+     * response in seconds.
+     */
+    public static final String STALE_RESPONSE_HEADER = "Dialogue-Stale-Response";
+
+    private final long maxSizeBytes;
+    private final int maxBodySize;
+    private final Predicate<Endpoint> cacheableEndpoints;
+    private final ImmutableSet<String> keyHeaders;
+    private final Duration staleIfError;
+
+    private ResponseCachePolicy(
+            long maxSizeBytes,
+            int maxBodySize,
+            Predicate<Endpoint> cacheableEndpoints,
+            ImmutableSet<String> keyHeaders,
+            Duration staleIfError) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxBodySize = maxBodySize;
+        this.cacheableEndpoints = cacheableEndpoints;
+        this.keyHeaders = keyHeaders;
+        this.staleIfError = staleIfError;
+    }
+
+    /** Bound on the total size of the cached response bodies in bytes. */
+    long maxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /** Largest response body in bytes which is cached, larger responses are passed through. */
+    int maxBodySize() {
+        return maxBodySize;
+    }
+
+    boolean isCacheable(Endpoint endpoint) {
+        return cacheableEndpoints.test(endpoint);
+    }
+
+    ImmutableSet<String> keyHeaders() {
+        return keyHeaders;
+    }
+
+    /** How long after becoming stale a response may be served in place of a failure, zero if disabled. */
+    Duration staleIfError() {
+        return staleIfError;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCachePolicy{maxSizeBytes=" + maxSizeBytes + ", maxBodySize=" + maxBodySize + ", keyHeaders="
+                + keyHeaders + ", staleIfError=" + staleIfError + '}';
+    }
+
+    public static final class Builder {
+        private long maxSizeBytes = 32 * 1024 * 1024;
+        private int maxBodySize = 1024 * 1024;
+        private Duration staleIfError = Duration.ZERO;
+
+        @Nullable
+        private Predicate<Endpoint> cacheableEndpoints;
+
+        private final ImmutableSet.Builder<String> keyHeaders =
+                ImmutableSet.<String>builder().add(HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE);
+
+        private Builder() {}
+
+        /**
+         * Bound on the total size of the cached response bodies in bytes, once reached the least valuable responses
+         * are evicted. Defaults to 32 MiB.
+         */
+        public Builder maxSizeBytes(long value) {
+            Preconditions.checkArgument(value > 0, "maxSizeBytes must be positive", SafeArg.of("maxSizeBytes", value));
+            this.maxSizeBytes = value;
+            return this;
+        }
+
+        /** Largest response body in bytes which is cached. Defaults to 1 MiB. */
+        public Builder maxBodySize(int value) {
+            Preconditions.checkArgument(
+                    value >= 0, "maxBodySize must not be negative", SafeArg.of("maxBodySize", value));
+            this.maxBodySize = value;
+            return this;
+        }
+
+        /**
+         * Endpoints whose responses may be cached, caching is opt-in so this is required. Only {@code GET} endpoints
+         * are cached, and only when the server allows it.
+         */
+        public Builder cacheableEndpoints(Predicate<Endpoint> value) {
+            this.cacheableEndpoints = Preconditions.checkNotNull(value, "cacheableEndpoints");
+            return this;
+        }
+
+        /**
+         * Headers whose values must match for requests to share a cached response, in addition to
+         * {@code Authorization} and {@code Cookie}. Other headers are ignored, so any header which affects the
+         * response must be included. Responses which {@code Vary} on other headers are not cached.
+         */
+        public Builder keyHeaders(Collection<String> values) {
+            this.keyHeaders.addAll(Preconditions.checkNotNull(values, "keyHeaders"));
+            return this;
+        }
+
+        /**
+         * Keeps the last successful response to each request for this long after it becomes stale, and serves it in
+         * place of a failure: once retries are exhausted, when the request is rejected because hosts are limited or
+         * ejected, or when the server responds with a {@code 5xx} or {@code 429}. Stale responses are marked with the
+         * {@link #STALE_RESPONSE_HEADER}. Responses need no {@code Cache-Control} or {@code ETag} to be kept. A
+         * {@code stale-if-error} directive of the response overrides this window, and responses marked
+         * {@code no-cache} or {@code must-revalidate} are never served stale. Disabled by default.
+         */
+        public Builder staleIfError(Duration value) {
+            Preconditions.checkArgument(
+                    !value.isNegative(), "staleIfError must not be negative", SafeArg.of("staleIfError", value));
+            this.staleIfError = value;
+            return this;
+        }
+
+        @CheckReturnValue
+        public ResponseCachePolicy build() {
+            Preconditions.checkArgument(
+                    maxBodySize <= maxSizeBytes,
+                    "maxBodySize must not exceed maxSizeBytes",
+                    SafeArg.of("maxBodySize", maxBodySize),
+                    SafeArg.of("maxSizeBytes", maxSizeBytes));
+            return new ResponseCachePolicy(
+                    maxSizeBytes,
+                    maxBodySize,
+                    Preconditions.checkNotNull(cacheableEndpoints, "cacheableEndpoints is required"),
+                    keyHeaders.build(),
+                    staleIfError);
+        }
+    }
+}
@@ -45,9 +45,10 @@ import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.time.Duration;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.DoubleSupplier;
@@ -57,27 +58,54 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Retries failed requests by scheduling them onto a ScheduledExecutorService after an exponential backoff. */
+/**
+ * Retries failed requests by scheduling them onto a ScheduledExecutorService after an exponential backoff.
+ *
+ * Retries are limited by a {@link RequestBudget} shared by all requests on the channel: successful responses earn a
+ * fraction of a retry, and each retry spends a whole one. When an entire upstream cluster degrades the budget is
+ * quickly exhausted and failures are returned to the caller immediately, rather than multiplying the load on the
+ * cluster by up to {@code maxRetries + 1}.
+ */
 final class RetryingChannel implements Channel {
 
     private static final Logger log = LoggerFactory.getLogger(RetryingChannel.class);
     private static final String SCHEDULER_NAME = "dialogue-RetryingChannel-scheduler";
 
+    // Each success earns a fifth of a retry, the budget starts full to allow retries before any success is observed
+    static final double RETRY_BUDGET_RATIO = 0.2;
+    static final int RETRY_BUDGET_BURST = 20;
+
+    // Backoffs are rounded up to the next tick, a wheel covers delays of up to a second without additional rounds
+    private static final Duration TIMER_TICK = Duration.ofMillis(1);
+    private static final int TIMER_TICKS_PER_WHEEL = 1024;
+
     /*
-     * Shared single thread executor is reused between all retrying channels. If it becomes oversaturated
-     * we may wait longer than expected before resuming requests, but this is an
-     * edge case where services are already operating in a degraded state and we should not
-     * spam servers.
+     * Shared scheduler is reused between all retrying channels. Backoffs are tracked by a timer wheel which
+     * remains cheap with many thousands of outstanding retries, and expired backoffs are handed off to a small
+     * pool which sends the retry, so a burst of retries can't delay the timer thread.
      */
-    @SuppressWarnings("deprecation") // Singleton registry for a singleton executor
     static final Supplier<ScheduledExecutorService> sharedScheduler =
-            Suppliers.memoize(() -> Executors.newSingleThreadScheduledExecutor(MetricRegistries.instrument(
-                    SharedTaggedMetricRegistries.getSingleton(),
-                    new ThreadFactoryBuilder()
-                            .setNameFormat(SCHEDULER_NAME + "-%d")
-                            .setDaemon(false)
-                            .build(),
-                    SCHEDULER_NAME)));
+            Suppliers.memoize(RetryingChannel::createSharedScheduler);
+
+    @SuppressWarnings("deprecation") // Singleton registry for a singleton executor
+    private static ScheduledExecutorService createSharedScheduler() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(
+                threads,
+                threads,
+                1,
+                TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(),
+                MetricRegistries.instrument(
+                        SharedTaggedMetricRegistries.getSingleton(),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat(SCHEDULER_NAME + "-%d")
+                                .setDaemon(false)
+                                .build(),
+                        SCHEDULER_NAME));
+        dispatcher.allowCoreThreadTimeOut(true);
+        return new HashedWheelScheduler(SCHEDULER_NAME + "-timer", TIMER_TICK, TIMER_TICKS_PER_WHEEL, dispatcher);
+    }
 
     @SuppressWarnings("UnnecessaryLambda") // no allocations
     private static final BiFunction<Endpoint, Response, Throwable> qosThrowable = (endpoint, response) ->
@@ -101,6 +129,8 @@ final class RetryingChannel implements Channel {
     private final Meter retryDueToServerError;
     private final Meter retryDueToQosResponse;
     private final Function<Throwable, Meter> retryDueToThrowable;
+    private final RequestBudget retryBudget;
+    private final Meter retryBudgetExhausted;
 
     @VisibleForTesting
     RetryingChannel(
@@ -119,7 +149,8 @@ final class RetryingChannel implements Channel {
                 serverQoS,
                 retryOnTimeout,
                 sharedScheduler.get(),
-                () -> ThreadLocalRandom.current().nextDouble());
+                () -> ThreadLocalRandom.current().nextDouble(),
+                retryBudget());
     }
 
     RetryingChannel(
@@ -131,7 +162,8 @@ final class RetryingChannel implements Channel {
             ClientConfiguration.ServerQoS serverQoS,
             ClientConfiguration.RetryOnTimeout retryOnTimeout,
             ScheduledExecutorService scheduler,
-            DoubleSupplier jitter) {
+            DoubleSupplier jitter,
+            RequestBudget retryBudget) {
         this.delegate = delegate;
         this.channelName = channelName;
         this.maxRetries = maxRetries;
@@ -140,6 +172,7 @@ final class RetryingChannel implements Channel {
         this.retryOnTimeout = retryOnTimeout;
         this.scheduler = instrument(scheduler, metrics);
         this.jitter = jitter;
+        this.retryBudget = retryBudget;
         DialogueClientMetrics dialogueClientMetrics = DialogueClientMetrics.of(metrics);
         this.retryDueToServerError = dialogueClientMetrics
                 .requestRetry()
@@ -156,6 +189,17 @@ final class RetryingChannel implements Channel {
                 .channelName(channelName)
                 .reason(throwable.getClass().getSimpleName())
                 .build();
+        this.retryBudgetExhausted = dialogueClientMetrics.requestRetryRejected(channelName);
+    }
+
+    /** Creates the default budget, which should be shared by all requests to the same upstream service. */
+    static RequestBudget retryBudget() {
+        return retryBudget(RETRY_BUDGET_RATIO, RETRY_BUDGET_BURST);
+    }
+
+    /** Creates a budget which starts full, to allow retries before any success is observed. */
+    static RequestBudget retryBudget(double ratio, int maxBurst) {
+        return new RequestBudget(ratio, maxBurst, maxBurst);
     }
 
     @Override
@@ -235,9 +279,21 @@ final class RetryingChannel implements Channel {
                 return incrementFailuresAndMaybeRetry(response, serverErrorThrowable, retryDueToServerError);
             }
 
+            if (!Responses.isServerError(response) && !Responses.isQosStatus(response)) {
+                retryBudget.deposit();
+            }
             return Futures.immediateFuture(response);
         }
 
+        /** Returns true if the retry budget allows another attempt, otherwise the failure is returned to the caller. */
+        private boolean tryAcquireRetry() {
+            if (retryBudget.tryWithdraw()) {
+                return true;
+            }
+            retryBudgetExhausted.mark();
+            return false;
+        }
+
         private boolean isRetryableQosStatus(Response response) {
             switch (serverQoS) {
                 case AUTOMATIC_RETRY:
@@ -253,21 +309,33 @@ final class RetryingChannel implements Channel {
 
         private ListenableFuture<Response> incrementFailuresAndMaybeRetry(
                 Response response, BiFunction<Endpoint, Response, Throwable> failureSupplier, Meter meter) {
-            if (++failures <= maxRetries) {
+            boolean retriesExhausted = ++failures > maxRetries;
+            if (!retriesExhausted && tryAcquireRetry()) {
                 response.close();
                 Throwable throwableToLog = log.isInfoEnabled() ? failureSupplier.apply(endpoint, response) : null;
                 return scheduleRetry(throwableToLog, meter);
             }
             if (log.isInfoEnabled()) {
                 SafeRuntimeException stacktrace = debugStacktrace.orElse(null);
-                log.info(
-                        "Exhausted {} retries, returning a retryable response with status {}",
-                        SafeArg.of("retries", maxRetries),
-                        SafeArg.of("status", response.code()),
-                        SafeArg.of("channelName", channelName),
-                        SafeArg.of("serviceName", endpoint.serviceName()),
-                        SafeArg.of("endpoint", endpoint.endpointName()),
-                        stacktrace);
+                if (retriesExhausted) {
+                    log.info(
+                            "Exhausted {} retries, returning a retryable response with status {}",
+                            SafeArg.of("retries", maxRetries),
+                            SafeArg.of("status", response.code()),
+                            SafeArg.of("channelName", channelName),
+                            SafeArg.of("serviceName", endpoint.serviceName()),
+                            SafeArg.of("endpoint", endpoint.endpointName()),
+                            stacktrace);
+                } else {
+                    log.info(
+                            "Retry budget exhausted after {} attempts, returning a retryable response with status {}",
+                            SafeArg.of("attempts", failures),
+                            SafeArg.of("status", response.code()),
+                            SafeArg.of("channelName", channelName),
+                            SafeArg.of("serviceName", endpoint.serviceName()),
+                            SafeArg.of("endpoint", endpoint.endpointName()),
+                            stacktrace);
+                }
             }
             // not closing response because ConjureBodySerde will need to deserialize it
             return Futures.immediateFuture(response);
@@ -275,18 +343,30 @@ final class RetryingChannel implements Channel {
 
         ListenableFuture<Response> handleThrowable(Throwable throwable) {
             if (++failures <= maxRetries) {
-                if (shouldAttemptToRetry(throwable)) {
+                boolean retryable = shouldAttemptToRetry(throwable);
+                if (retryable && tryAcquireRetry()) {
                     debugStacktrace.ifPresent(throwable::addSuppressed);
                     Meter retryReason = retryDueToThrowable.apply(throwable);
                     return scheduleRetry(throwable, retryReason);
-                } else if (log.isDebugEnabled()) {
+                }
+                if (log.isDebugEnabled()) {
                     debugStacktrace.ifPresent(throwable::addSuppressed);
-                    log.debug(
-                            "Not attempting to retry failure",
-                            SafeArg.of("channelName", channelName),
-                            SafeArg.of("serviceName", endpoint.serviceName()),
-                            SafeArg.of("endpoint", endpoint.endpointName()),
-                            throwable);
+                    if (retryable) {
+                        log.debug(
+                                "Not retrying failure because the retry budget is exhausted",
+                                SafeArg.of("attempts", failures),
+                                SafeArg.of("channelName", channelName),
+                                SafeArg.of("serviceName", endpoint.serviceName()),
+                                SafeArg.of("endpoint", endpoint.endpointName()),
+                                throwable);
+                    } else {
+                        log.debug(
+                                "Not attempting to retry failure",
+                                SafeArg.of("channelName", channelName),
+                                SafeArg.of("serviceName", endpoint.serviceName()),
+                                SafeArg.of("endpoint", endpoint.endpointName()),
+                                throwable);
+                    }
                 }
             }
             return Futures.immediateFailedFuture(throwable);
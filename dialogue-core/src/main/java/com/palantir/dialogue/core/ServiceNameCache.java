@@ -0,0 +1,64 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Caches values derived from an {@link com.palantir.dialogue.Endpoint#serviceName() service name}, allowing channels
+ * to resolve tagged metrics once rather than building a {@code MetricName} for every request. Channels generally serve
+ * a single service, so the most recent entry is held in a field and compared by identity before consulting the map.
+ * The number of entries is bounded by the number of services using the channel.
+ */
+final class ServiceNameCache<T> {
+
+    private final Function<String, T> factory;
+    private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    @Nullable
+    private volatile Entry<T> last;
+
+    ServiceNameCache(Function<String, T> factory) {
+        this.factory = factory;
+    }
+
+    @SuppressWarnings("StringEquality") // Service names are generally constants, equal names fall back to the map
+    T get(String serviceName) {
+        Entry<T> current = last;
+        if (current == null || current.serviceName != serviceName) {
+            current = entries.get(serviceName);
+            if (current == null) {
+                current = entries.computeIfAbsent(serviceName, name -> new Entry<>(name, factory.apply(name)));
+            }
+            last = current;
+        }
+        return current.value;
+    }
+
+    private static final class Entry<T> {
+        private final String serviceName;
+        private final T value;
+
+        private Entry(String serviceName, T value) {
+            this.serviceName = serviceName;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import com.codahale.metrics.Meter;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Ramps up the traffic sent to a host which has just been added, or which has just recovered from failing requests,
+ * so that the host isn't sent its full share of requests while its caches are cold and its JIT is still warming up.
+ * The {@link #weight} of the host grows linearly from {@link #MIN_WEIGHT} to one over the warm-up window, and node
+ * selection strategies send the host a share of traffic proportional to its weight.
+ *
+ * A host has recovered once a request succeeds after {@link #FAILURES_BEFORE_RECOVERY} consecutive requests failed
+ * with an exception or a server error, which is what a restarting host looks like from the client.
+ */
+final class SlowStartChannel implements LimitedChannel {
+    @VisibleForTesting
+    static final double MIN_WEIGHT = 0.1;
+
+    @VisibleForTesting
+    static final int FAILURES_BEFORE_RECOVERY = 3;
+
+    // Sentinel start time of a host which is no longer warming up
+    private static final long WARM = Long.MIN_VALUE;
+
+    private final LimitedChannel delegate;
+    private final long windowNanos;
+    private final Ticker clock;
+    private final Meter addedMeter;
+    private final Meter recoveredMeter;
+    private final AtomicLong warmUpStart = new AtomicLong(WARM);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // Allocated once rather than for every request
+    private final FutureCallback<Response> callback = new RecoveryCallback();
+
+    SlowStartChannel(
+            LimitedChannel delegate,
+            Duration window,
+            Ticker clock,
+            DialogueClientMetrics metrics,
+            String channelName,
+            boolean added) {
+        Preconditions.checkArgument(
+                !window.isNegative() && !window.isZero(),
+                "Slow start window must be positive",
+                SafeArg.of("window", window));
+        this.delegate = delegate;
+        this.windowNanos = window.toNanos();
+        this.clock = clock;
+        this.addedMeter = metrics.hostWarmup()
+                .channelName(channelName)
+                .reason("added")
+                .build();
+        this.recoveredMeter = metrics.hostWarmup()
+                .channelName(channelName)
+                .reason("recovered")
+                .build();
+        if (added) {
+            warmUpStart.set(clock.read());
+            addedMeter.mark();
+        }
+    }
+
+    @Nullable
+    @Override
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request request) {
+        ListenableFuture<Response> result = delegate.maybeExecute(endpoint, request);
+        if (result != null) {
+            DialogueFutures.addDirectCallback(result, callback);
+        }
+        return result;
+    }
+
+    /** Returns the share of its traffic the host should be sent, from {@link #MIN_WEIGHT} up to one once warm. */
+    double weight() {
+        long start = warmUpStart.get();
+        if (start == WARM) {
+            return 1;
+        }
+        long elapsed = clock.read() - start;
+        if (elapsed >= windowNanos) {
+            warmUpStart.compareAndSet(start, WARM);
+            return 1;
+        }
+        return Math.max(MIN_WEIGHT, elapsed / (double) windowNanos);
+    }
+
+    /** Returns the {@link #weight} of a {@link SlowStartChannel}, other channels are always at full weight. */
+    static double weight(LimitedChannel channel) {
+        if (channel instanceof SlowStartChannel) {
+            return ((SlowStartChannel) channel).weight();
+        }
+        return 1;
+    }
+
+    private final class RecoveryCallback implements FutureCallback<Response> {
+        @Override
+        public void onSuccess(Response response) {
+            if (Responses.isServerError(response) || Responses.isQosStatus(response)) {
+                // Rate limiting is not a sign of a restart
+                if (!Responses.isTooManyRequests(response)) {
+                    consecutiveFailures.incrementAndGet();
+                }
+            } else if (consecutiveFailures.get() != 0
+                    && consecutiveFailures.getAndSet(0) >= FAILURES_BEFORE_RECOVERY) {
+                warmUpStart.set(clock.read());
+                recoveredMeter.mark();
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            // Requests cancelled by the caller are not a sign of a restart
+            if (!(throwable instanceof CancellationException)) {
+                consecutiveFailures.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SlowStartChannel{delegate=" + delegate + ", weight=" + weight() + '}';
+    }
+}
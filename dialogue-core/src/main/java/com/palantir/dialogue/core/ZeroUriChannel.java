@@ -24,7 +24,6 @@ import com.palantir.dialogue.Response;
 import com.palantir.logsafe.Preconditions;
 import com.palantir.logsafe.SafeArg;
 import com.palantir.logsafe.exceptions.SafeIllegalStateException;
-import java.util.Optional;
 
 /** When we literally have zero URIs, no request can get out the door. */
 final class ZeroUriChannel implements LimitedChannel {
@@ -36,11 +35,11 @@ final class ZeroUriChannel implements LimitedChannel {
     }
 
     @Override
-    public Optional<ListenableFuture<Response>> maybeExecute(Endpoint endpoint, Request _request) {
-        return Optional.of(Futures.immediateFailedFuture(new SafeIllegalStateException(
+    public ListenableFuture<Response> maybeExecute(Endpoint endpoint, Request _request) {
+        return Futures.immediateFailedFuture(new SafeIllegalStateException(
                 "There are no URIs configured to handle requests",
                 SafeArg.of("channel", channelName),
                 SafeArg.of("service", endpoint.serviceName()),
-                SafeArg.of("endpoint", endpoint.endpointName()))));
+                SafeArg.of("endpoint", endpoint.endpointName())));
     }
 }
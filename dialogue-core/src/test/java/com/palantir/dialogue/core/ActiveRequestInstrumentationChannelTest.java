@@ -23,10 +23,13 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.palantir.dialogue.Channel;
 import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.UrlBuilder;
 import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.util.Map;
 import org.junit.jupiter.api.Test;
 
 final class ActiveRequestInstrumentationChannelTest {
@@ -51,4 +54,56 @@ final class ActiveRequestInstrumentationChannelTest {
         future.cancel(false);
         assertThat(counter.getCount()).describedAs("metric").isZero();
     }
+
+    @Test
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void testActiveRequestsPerService() {
+        SettableFuture<Response> future = SettableFuture.create();
+        Channel stub = (_endpoint, _request) -> future;
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        ActiveRequestInstrumentationChannel instrumented =
+                new ActiveRequestInstrumentationChannel(stub, "my-channel", "stage", metrics);
+        Endpoint otherService = new Endpoint() {
+            @Override
+            public void renderPath(Map<String, String> _params, UrlBuilder _url) {}
+
+            @Override
+            public HttpMethod httpMethod() {
+                return HttpMethod.GET;
+            }
+
+            @Override
+            public String serviceName() {
+                return "other-service";
+            }
+
+            @Override
+            public String endpointName() {
+                return "endpoint";
+            }
+
+            @Override
+            public String version() {
+                return "1.0.0";
+            }
+        };
+        instrumented.execute(ENDPOINT, Request.builder().build());
+        instrumented.execute(otherService, Request.builder().build());
+        instrumented.execute(ENDPOINT, Request.builder().build());
+        assertThat(metrics.requestActive()
+                        .channelName("my-channel")
+                        .serviceName(ENDPOINT.serviceName())
+                        .stage("stage")
+                        .build()
+                        .getCount())
+                .isEqualTo(2);
+        assertThat(metrics.requestActive()
+                        .channelName("my-channel")
+                        .serviceName("other-service")
+                        .stage("stage")
+                        .build()
+                        .getCount())
+                .isOne();
+        future.cancel(false);
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.tracing.DetachedSpan;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public final class AdaptiveLifoQueueTest {
+
+    private final AtomicLong time = new AtomicLong();
+    private final DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+    private final AdaptiveLifoQueue queue =
+            new AdaptiveLifoQueue(Duration.ofMillis(5), Duration.ofMillis(100), time::get, metrics, "my-channel");
+
+    @Test
+    public void testFifoWhileQueueDrains() {
+        QueuedChannel.DeferredCall first = call();
+        QueuedChannel.DeferredCall second = call();
+        queue.offer(first);
+        queue.offer(second);
+        assertThat(queue.poll()).isSameAs(first);
+
+        advance(Duration.ofMillis(150));
+        QueuedChannel.DeferredCall third = call();
+        queue.offer(third);
+        assertThat(queue.pollShed()).isNull();
+        assertThat(queue.poll()).isSameAs(second);
+        assertThat(queue.poll()).isSameAs(third);
+        assertThat(discipline("lifo")).isZero();
+    }
+
+    @Test
+    public void testLifoAndSheddingWithStandingQueue() {
+        QueuedChannel.DeferredCall older = call();
+        queue.offer(older);
+        advance(Duration.ofMillis(60));
+        QueuedChannel.DeferredCall newer = call();
+        QueuedChannel.DeferredCall newest = call();
+        queue.offer(newer);
+        queue.offer(newest);
+
+        // The oldest call has been queued for longer than the target for the whole first interval
+        advance(Duration.ofMillis(40));
+        assertThat(queue.poll()).isSameAs(newest);
+        assertThat(discipline("lifo")).isOne();
+
+        // Calls which could not be executed are polled again next
+        queue.offerFirst(newest);
+        assertThat(queue.poll()).isSameAs(newest);
+
+        // Calls queued for longer than the interval are shed, oldest first
+        advance(Duration.ofMillis(10));
+        assertThat(queue.pollShed()).isSameAs(older);
+        assertThat(queue.pollShed()).isNull();
+        assertThat(queue.poll()).isSameAs(newer);
+    }
+
+    @Test
+    public void testReturnsToFifoOnceQueueDrains() {
+        queue.offer(call());
+        advance(Duration.ofMillis(100));
+        queue.poll();
+        queue.offer(call());
+        advance(Duration.ofMillis(100));
+        assertThat(queue.poll()).isNotNull();
+        assertThat(discipline("lifo")).isOne();
+
+        // The queue is empty, so the standing queue has gone
+        advance(Duration.ofMillis(100));
+        assertThat(queue.poll()).isNull();
+        assertThat(discipline("fifo")).isOne();
+
+        QueuedChannel.DeferredCall first = call();
+        QueuedChannel.DeferredCall second = call();
+        queue.offer(first);
+        queue.offer(second);
+        assertThat(queue.poll()).isSameAs(first);
+    }
+
+    private long discipline(String discipline) {
+        return metrics.requestQueuedDiscipline()
+                .channelName("my-channel")
+                .discipline(discipline)
+                .build()
+                .getCount();
+    }
+
+    private void advance(Duration duration) {
+        time.addAndGet(duration.toNanos());
+    }
+
+    private QueuedChannel.DeferredCall call() {
+        return QueuedChannel.DeferredCall.builder()
+                .endpoint(TestEndpoint.GET)
+                .request(Request.builder().build())
+                .response(SettableFuture.create())
+                .span(DetachedSpan.start("test"))
+                .timer(new Timer().time())
+                .enqueued(time.get())
+                .deadline(Long.MAX_VALUE)
+                .build();
+    }
+}
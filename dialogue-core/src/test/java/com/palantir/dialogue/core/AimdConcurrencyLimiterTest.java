@@ -22,11 +22,18 @@ import static org.mockito.Mockito.when;
 
 import com.palantir.dialogue.Response;
 import java.io.IOException;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 public class AimdConcurrencyLimiterTest {
+    private static final int PERMITS_HELD_PER_THREAD = 4;
 
     private AimdConcurrencyLimiter limiter;
 
@@ -38,59 +45,76 @@ public class AimdConcurrencyLimiterTest {
     @Test
     void acquire_returnsPermitssWhileInflightPermitLimitNotReached() {
         int max = limiter.getLimit();
-        Optional<AimdConcurrencyLimiter.Permit> latestPermit = null;
+        AimdConcurrencyLimiter.Permit latestPermit = null;
         for (int i = 0; i < max; ++i) {
             latestPermit = limiter.acquire();
-            assertThat(latestPermit).isPresent();
+            assertThat(latestPermit).isNotNull();
         }
 
         // Limit reached, cannot acquire permit
         assertThat(limiter.getInflight()).isEqualTo(max);
-        assertThat(limiter.acquire()).isEmpty();
+        assertThat(limiter.acquire()).isNull();
 
         // Release one permit, can acquire new permit.
-        latestPermit.get().ignore();
-        assertThat(limiter.acquire()).isPresent();
+        latestPermit.ignore();
+        assertThat(limiter.acquire()).isNotNull();
+    }
+
+    @Test
+    void acquire_reservesPermitsForInteractiveRequests() {
+        int max = limiter.getLimit();
+        int reserved = (int) Math.ceil(max * .1D);
+        for (int i = 0; i < max - reserved; ++i) {
+            assertThat(limiter.acquire(RequestPriority.BACKGROUND)).isNotNull();
+        }
+
+        // Only interactive requests may use the reserved permits
+        assertThat(limiter.acquire(RequestPriority.BACKGROUND)).isNull();
+        assertThat(limiter.acquire(RequestPriority.DEFAULT)).isNull();
+        for (int i = 0; i < reserved; ++i) {
+            assertThat(limiter.acquire(RequestPriority.INTERACTIVE)).isNotNull();
+        }
+        assertThat(limiter.acquire(RequestPriority.INTERACTIVE)).isNull();
     }
 
     @Test
     public void ignore_releasesPermit() {
         assertThat(limiter.getInflight()).isEqualTo(0);
-        Optional<AimdConcurrencyLimiter.Permit> permit = limiter.acquire();
+        AimdConcurrencyLimiter.Permit permit = limiter.acquire();
         assertThat(limiter.getInflight()).isEqualTo(1);
-        permit.get().ignore();
+        permit.ignore();
         assertThat(limiter.getInflight()).isEqualTo(0);
     }
 
     @Test
     public void ignore_doesNotChangeLimits() {
         int max = limiter.getLimit();
-        limiter.acquire().get().ignore();
+        limiter.acquire().ignore();
         assertThat(limiter.getLimit()).isEqualTo(max);
     }
 
     @Test
     public void dropped_releasesPermit() {
         assertThat(limiter.getInflight()).isEqualTo(0);
-        Optional<AimdConcurrencyLimiter.Permit> permit = limiter.acquire();
+        AimdConcurrencyLimiter.Permit permit = limiter.acquire();
         assertThat(limiter.getInflight()).isEqualTo(1);
-        permit.get().dropped();
+        permit.dropped();
         assertThat(limiter.getInflight()).isEqualTo(0);
     }
 
     @Test
     public void dropped_reducesLimit() {
         int max = limiter.getLimit();
-        limiter.acquire().get().dropped();
+        limiter.acquire().dropped();
         assertThat(limiter.getLimit()).isEqualTo((int) (max * 0.9));
     }
 
     @Test
     public void success_releasesPermit() {
         assertThat(limiter.getInflight()).isEqualTo(0);
-        Optional<AimdConcurrencyLimiter.Permit> permit = limiter.acquire();
+        AimdConcurrencyLimiter.Permit permit = limiter.acquire();
         assertThat(limiter.getInflight()).isEqualTo(1);
-        permit.get().success();
+        permit.success();
         assertThat(limiter.getInflight()).isEqualTo(0);
     }
 
@@ -98,11 +122,24 @@ public class AimdConcurrencyLimiterTest {
     public void success_increasesLimitOnlyIfSufficientNumberOfRequestsAreInflight() {
         int max = limiter.getLimit();
         for (int i = 0; i < max / 2; ++i) {
-            limiter.acquire().get();
+            limiter.acquire();
             assertThat(limiter.getLimit()).isEqualTo(max);
         }
 
-        limiter.acquire().get().success();
+        limiter.acquire().success();
+        assertThat(limiter.getLimit()).isEqualTo(max + 1);
+    }
+
+    @Test
+    public void success_doesNotAccumulateIncreasesBeyondSufficientlyInflightRequests() {
+        int max = limiter.getLimit();
+        for (int i = 0; i < max / 2 - 1; ++i) {
+            limiter.acquire();
+        }
+        // Only the first success is sufficiently close to the limit, even though the limit isn't read in between
+        for (int i = 0; i < 1000; ++i) {
+            limiter.acquire().success();
+        }
         assertThat(limiter.getLimit()).isEqualTo(max + 1);
     }
 
@@ -112,7 +149,7 @@ public class AimdConcurrencyLimiterTest {
         when(response.code()).thenReturn(200);
 
         int max = limiter.getLimit();
-        limiter.acquire().get().onSuccess(response);
+        limiter.acquire().onSuccess(response);
         assertThat(limiter.getLimit()).isEqualTo(max);
     }
 
@@ -123,7 +160,7 @@ public class AimdConcurrencyLimiterTest {
             when(response.code()).thenReturn(code);
 
             int max = limiter.getLimit();
-            limiter.acquire().get().onSuccess(response);
+            limiter.acquire().onSuccess(response);
             assertThat(limiter.getLimit()).isEqualTo((int) (max * 0.9));
         }
     }
@@ -133,7 +170,7 @@ public class AimdConcurrencyLimiterTest {
         IOException exception = new IOException();
 
         int max = limiter.getLimit();
-        limiter.acquire().get().onFailure(exception);
+        limiter.acquire().onFailure(exception);
         assertThat(limiter.getLimit()).isEqualTo((int) (max * 0.9));
     }
 
@@ -142,7 +179,83 @@ public class AimdConcurrencyLimiterTest {
         RuntimeException exception = new RuntimeException();
 
         int max = limiter.getLimit();
-        limiter.acquire().get().onFailure(exception);
+        limiter.acquire().onFailure(exception);
         assertThat(limiter.getLimit()).isEqualTo(max);
     }
+
+    @Test
+    public void success_appliesBatchedIncreasesBeforeRejecting() {
+        int max = limiter.getLimit();
+        List<AimdConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < max; ++i) {
+            permits.add(limiter.acquire());
+        }
+        permits.forEach(AimdConcurrencyLimiter.Permit::success);
+        for (int i = 0; i < max + 1; ++i) {
+            assertThat(limiter.acquire()).isNotNull();
+        }
+        assertThat(limiter.getLimit()).isGreaterThan(max);
+    }
+
+    @Test
+    public void dropped_appliesBatchedIncreasesFirst() {
+        int max = limiter.getLimit();
+        List<AimdConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < max; ++i) {
+            permits.add(limiter.acquire());
+        }
+        // Permits acquired while at least half of the limit was in flight increase the limit
+        permits.forEach(AimdConcurrencyLimiter.Permit::success);
+        limiter.acquire().dropped();
+        assertThat(limiter.getLimit()).isEqualTo((int) ((max + max / 2 + 1) * 0.9));
+    }
+
+    @Test
+    public void concurrentAcquireAndRelease_releasesAllPermits() throws Exception {
+        run(limiter, 16, 10_000);
+        assertThat(limiter.getInflight()).isZero();
+        assertThat(limiter.getLimit()).isGreaterThan(20);
+    }
+
+    /**
+     * Each thread acquires permits and releases them successfully, keeping a few of its own permits in flight. All
+     * threads hold their first permits at the same time, so the limit is reached regardless of thread scheduling.
+     */
+    private static void run(ConcurrencyLimiter concurrencyLimiter, int threads, int permitsPerThread)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CyclicBarrier holding = new CyclicBarrier(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    List<ConcurrencyLimiter.Permit> inFlight = new ArrayList<>();
+                    for (int attempt = 0; attempt < PERMITS_HELD_PER_THREAD; attempt++) {
+                        ConcurrencyLimiter.Permit permit = concurrencyLimiter.acquire();
+                        if (permit != null) {
+                            inFlight.add(permit);
+                        }
+                    }
+                    holding.await(1, TimeUnit.MINUTES);
+                    for (int attempt = 0; attempt < permitsPerThread; attempt++) {
+                        ConcurrencyLimiter.Permit permit = concurrencyLimiter.acquire();
+                        if (permit != null) {
+                            inFlight.add(permit);
+                        }
+                        if (inFlight.size() >= PERMITS_HELD_PER_THREAD) {
+                            inFlight.remove(0).success();
+                        }
+                    }
+                    inFlight.forEach(ConcurrencyLimiter.Permit::success);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(concurrencyLimiter.getInflight()).isZero();
+    }
 }
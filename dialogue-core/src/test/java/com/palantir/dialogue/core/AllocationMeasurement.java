@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Measures the bytes an operation allocates on the current thread after warming it up. Results are the minimum across
+ * several rounds, which is the least noisy estimate when other threads share the machine.
+ */
+final class AllocationMeasurement {
+    private static final int WARMUP_ITERATIONS = 20_000;
+    private static final int ITERATIONS = 10_000;
+    private static final int ROUNDS = 5;
+
+    // Prevents the JIT from eliminating allocations in the measured operations.
+    private static volatile Object sink;
+
+    static long bytesPerOperation(Supplier<?> operation) {
+        warmup(operation);
+        long result = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink = operation.get();
+            }
+            result = Math.min(result, (allocatedBytes() - before) / ITERATIONS);
+        }
+        return result;
+    }
+
+    private static void warmup(Supplier<?> operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink = operation.get();
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMxBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadMxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private AllocationMeasurement() {}
+}
@@ -0,0 +1,96 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.random.SafeThreadLocalRandom;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the bytes allocated by an attempt through the {@link LimitedChannel} stack beneath the
+ * {@link QueuedChannel}, to catch wrappers creeping back into the per-attempt path. Guava allocates a small listener
+ * for each callback added to a future, so successful attempts are allowed a couple of small objects.
+ *
+ * Classes on the measured path must not be mocked or spied on by other tests: Mockito's inline mock maker instruments
+ * them for the whole test JVM, and the instrumentation allocates whenever the JIT doesn't eliminate it.
+ */
+public final class AttemptAllocationTest {
+    private static final Logger log = LoggerFactory.getLogger(AttemptAllocationTest.class);
+
+    private final DefaultTaggedMetricRegistry registry = new DefaultTaggedMetricRegistry();
+    private final Endpoint endpoint = TestEndpoint.GET;
+    private final Request request = Request.builder().build();
+    private final ListenableFuture<Response> response = Futures.immediateFuture(new TestResponse().code(200));
+
+    @Test
+    public void successful_attempts_allocate_at_most_callback_listeners() {
+        LimitedChannel channel = new NeverThrowLimitedChannel(
+                new RandomSelectionChannel(ImmutableList.of(host(0), host(1)), SafeThreadLocalRandom.get()));
+
+        long bytesPerAttempt = bytesPerAttempt(channel);
+        log.info("Successful attempt allocations", SafeArg.of("bytesPerAttempt", bytesPerAttempt));
+        assertThat(bytesPerAttempt).isLessThanOrEqualTo(64);
+    }
+
+    @Test
+    public void limited_attempts_do_not_allocate() {
+        ConcurrencyLimiter limiter = ConcurrencyLimitedChannel.createLimiter();
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            assertThat(limiter.acquire()).isNotNull();
+        }
+        LimitedChannel host = new ConcurrencyLimitedChannel(
+                new ChannelToLimitedChannelAdapter((_endpoint, _request) -> response), limiter, "channel", 0, registry);
+        LimitedChannel channel = new NeverThrowLimitedChannel(new PinUntilErrorChannel(
+                new PinUntilErrorChannel.ConstantNodeList(ImmutableList.of(host, host)),
+                0,
+                SafeThreadLocalRandom.get(),
+                DialoguePinuntilerrorMetrics.of(registry),
+                "channel"));
+
+        assertThat(channel.maybeExecute(endpoint, request)).isNull();
+        long bytesPerAttempt = bytesPerAttempt(channel);
+        log.info("Limited attempt allocations", SafeArg.of("bytesPerAttempt", bytesPerAttempt));
+        assertThat(bytesPerAttempt).isLessThanOrEqualTo(8);
+    }
+
+    private LimitedChannel host(int index) {
+        return new ConcurrencyLimitedChannel(
+                new ChannelToLimitedChannelAdapter((_endpoint, _request) -> response),
+                ConcurrencyLimitedChannel.createLimiter(),
+                "channel",
+                index,
+                registry);
+    }
+
+    private long bytesPerAttempt(LimitedChannel channel) {
+        return AllocationMeasurement.bytesPerOperation(() -> channel.maybeExecute(endpoint, request));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
+import com.palantir.dialogue.PathTemplate;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.UrlBuilder;
+import java.net.URI;
+import java.net.URL;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.junit.jupiter.api.Test;
+
+public final class BaseUrlTest {
+
+    private static final PathTemplate TEMPLATE = PathTemplate.builder()
+            .fixed("datasets")
+            .variable("datasetRid")
+            .fixed("files ü")
+            .build();
+
+    @Test
+    public void rendersBaseUrlWithoutPath() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("https://host"));
+        assertThat(baseUrl.renderString(TestEndpoint.GET, Request.builder().build()))
+                .isEqualTo("https://host:443");
+    }
+
+    @Test
+    public void rendersBasePathSegmentsAndQuery() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("http://host:8080/api/"));
+        Endpoint endpoint = new FakeEndpoint(TEMPLATE::fill);
+        Request request = Request.builder()
+                .putPathParams("datasetRid", "ri.a/b")
+                .putQueryParams("q", "a=b")
+                .putQueryParams("q", "c")
+                .build();
+        assertThat(baseUrl.renderString(endpoint, request))
+                .isEqualTo("http://host:8080/api/datasets/ri.a%2Fb/files%20%C3%BC?q=a%3Db&q=c");
+    }
+
+    @Test
+    public void reusesPlanOnlyForIdenticalSegments() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("http://host:80"));
+        Endpoint endpoint = new FakeEndpoint(TEMPLATE::fill);
+        for (int i = 0; i < 5; i++) {
+            // Each request provides a new string instance for the variable segment
+            String rid = "ri." + i;
+            Request request = Request.builder().putPathParams("datasetRid", rid).build();
+            assertThat(baseUrl.renderString(endpoint, request))
+                    .isEqualTo("http://host:80/datasets/ri." + i + "/files%20%C3%BC");
+        }
+    }
+
+    @Test
+    public void rendersEndpointsWithChangingPaths() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("http://host:80"));
+        FakeEndpoint endpoint = new FakeEndpoint((_params, url) -> url.pathSegment("a"));
+        assertThat(baseUrl.renderString(endpoint, Request.builder().build())).isEqualTo("http://host:80/a");
+        assertThat(baseUrl.renderString(endpoint, Request.builder().build())).isEqualTo("http://host:80/a");
+        endpoint.renderPath = (_params, url) -> url.pathSegment("b").pathSegment("c");
+        assertThat(baseUrl.renderString(endpoint, Request.builder().build())).isEqualTo("http://host:80/b/c");
+        endpoint.renderPath = (_params, url) -> {};
+        assertThat(baseUrl.renderString(endpoint, Request.builder().build())).isEqualTo("http://host:80");
+    }
+
+    @Test
+    public void appendsQueryParametersFromPathAfterPath() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("http://host:80"));
+        Endpoint endpoint = new FakeEndpoint((_params, url) -> url.queryParam("a", "1").pathSegment("b"));
+        Request request = Request.builder().putQueryParams("c", "2").build();
+        assertThat(baseUrl.renderString(endpoint, request)).isEqualTo("http://host:80/b?a=1&c=2");
+    }
+
+    @Test
+    public void rendersIpv6Hosts() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("http://[::1]:8080/base"));
+        assertThat(baseUrl.renderUri(TestEndpoint.GET, Request.builder().build()))
+                .isEqualTo(URI.create("http://[::1]:8080/base"));
+    }
+
+    @Test
+    public void renderedFormsAgree() throws Exception {
+        BaseUrl baseUrl = BaseUrl.of(new URL("https://host:443/base"));
+        Endpoint endpoint = new FakeEndpoint(TEMPLATE::fill);
+        Request request = Request.builder()
+                .putPathParams("datasetRid", "ri.foo")
+                .putQueryParams("key", "välue")
+                .build();
+        String rendered = baseUrl.renderString(endpoint, request);
+        assertThat(baseUrl.renderUri(endpoint, request).toString()).isEqualTo(rendered);
+        assertThat(baseUrl.render(endpoint, request).toString()).isEqualTo(rendered);
+    }
+
+    private static final class FakeEndpoint implements Endpoint {
+        private BiConsumer<Map<String, String>, UrlBuilder> renderPath;
+
+        FakeEndpoint(BiConsumer<Map<String, String>, UrlBuilder> renderPath) {
+            this.renderPath = renderPath;
+        }
+
+        @Override
+        public void renderPath(Map<String, String> params, UrlBuilder url) {
+            renderPath.accept(params, url);
+        }
+
+        @Override
+        public HttpMethod httpMethod() {
+            return HttpMethod.GET;
+        }
+
+        @Override
+        public String serviceName() {
+            return "service";
+        }
+
+        @Override
+        public String endpointName() {
+            return "endpoint";
+        }
+
+        @Override
+        public String version() {
+            return "1.0.0";
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.Meter;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Futures;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.exceptions.SafeRuntimeException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class CachingChannelTest {
+
+    private static final Request REQUEST =
+            Request.builder().putQueryParams("q", "value").build();
+
+    @Mock
+    private Channel delegate;
+
+    private final AtomicLong time = new AtomicLong();
+    private final DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+
+    @Test
+    public void testFreshResponsesAreServedFromTheCache() throws Exception {
+        TestResponse response = ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+        when(delegate.execute(any(), any())).thenReturn(Futures.immediateFuture(response));
+        CachingChannel channel = channel(policy().build());
+
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("body");
+        assertThat(response.isClosed()).isTrue();
+        time.addAndGet(Duration.ofSeconds(59).toNanos());
+        Response cached = channel.execute(TestEndpoint.GET, REQUEST).get();
+
+        assertThat(cached.code()).isEqualTo(200);
+        assertThat(body(cached)).isEqualTo("body");
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("body");
+        verify(delegate, times(1)).execute(any(), any());
+        assertThat(result("miss").getCount()).isOne();
+        assertThat(result("hit").getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testExpiredResponsesWithoutETagAreRequestedAgain() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("first").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")))
+                .thenReturn(Futures.immediateFuture(ok("second")));
+        CachingChannel channel = channel(policy().build());
+
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("first");
+        time.addAndGet(Duration.ofSeconds(60).toNanos());
+
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("second");
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        verify(delegate, times(3)).execute(any(), any());
+    }
+
+    @Test
+    public void testAgeReducesFreshness() throws Exception {
+        when(delegate.execute(any(), any())).thenAnswer(_invocation -> Futures.immediateFuture(ok("body")
+                .withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")
+                .withHeader(HttpHeaders.AGE, "50")));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(10).toNanos());
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    @Test
+    public void testStaleResponsesAreRevalidated() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body").withHeader(HttpHeaders.ETAG, "\"v1\"")))
+                .thenReturn(Futures.immediateFuture(new TestResponse().code(304)));
+        CachingChannel channel = channel(policy().build());
+
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("body");
+        Response revalidated = channel.execute(TestEndpoint.GET, REQUEST).get();
+
+        assertThat(revalidated.code()).isEqualTo(200);
+        assertThat(body(revalidated)).isEqualTo("body");
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        verify(delegate, times(2)).execute(any(), requests.capture());
+        assertThat(requests.getAllValues().get(0).headerParams().containsKey(HttpHeaders.IF_NONE_MATCH))
+                .isFalse();
+        assertThat(requests.getAllValues().get(1).headerParams().get(HttpHeaders.IF_NONE_MATCH))
+                .containsExactly("\"v1\"");
+        assertThat(requests.getAllValues().get(1).queryParams().get("q")).containsExactly("value");
+        assertThat(result("revalidated").getCount()).isOne();
+    }
+
+    @Test
+    public void testNotModifiedResponsesRefreshTheCachedResponse() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body")
+                        .withHeader(HttpHeaders.CACHE_CONTROL, "max-age=10")
+                        .withHeader(HttpHeaders.ETAG, "\"v1\"")))
+                .thenReturn(Futures.immediateFuture(
+                        new TestResponse().code(304).withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(10).toNanos());
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(59).toNanos());
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("body");
+
+        verify(delegate, times(2)).execute(any(), any());
+        assertThat(result("hit").getCount()).isOne();
+    }
+
+    @Test
+    public void testModifiedResponsesReplaceTheCachedResponse() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("first").withHeader(HttpHeaders.ETAG, "\"v1\"")))
+                .thenReturn(Futures.immediateFuture(ok("second")
+                        .withHeader(HttpHeaders.ETAG, "\"v2\"")
+                        .withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("second");
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("second");
+
+        verify(delegate, times(2)).execute(any(), any());
+        assertThat(result("miss").getCount()).isEqualTo(2);
+        assertThat(result("hit").getCount()).isOne();
+    }
+
+    @Test
+    public void testUncacheableResponses() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body")))
+                .thenReturn(Futures.immediateFuture(ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "no-store")))
+                .thenReturn(Futures.immediateFuture(ok("body")
+                        .withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")
+                        .withHeader(HttpHeaders.VARY, "Accept-Language")))
+                .thenReturn(Futures.immediateFuture(
+                        new TestResponse().code(404).withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")))
+                .thenReturn(Futures.immediateFuture(ok("body")));
+        CachingChannel channel = channel(policy().build());
+
+        for (int i = 0; i < 5; i++) {
+            channel.execute(TestEndpoint.GET, REQUEST).get();
+        }
+
+        verify(delegate, times(5)).execute(any(), any());
+        assertThat(result("hit").getCount()).isZero();
+    }
+
+    @Test
+    public void testNoCacheResponsesAreAlwaysRevalidated() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body")
+                        .withHeader(HttpHeaders.CACHE_CONTROL, "no-cache, max-age=60")
+                        .withHeader(HttpHeaders.ETAG, "\"v1\"")))
+                .thenReturn(Futures.immediateFuture(new TestResponse().code(304)));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("body");
+
+        verify(delegate, times(2)).execute(any(), any());
+        assertThat(result("revalidated").getCount()).isOne();
+    }
+
+    @Test
+    public void testOnlyOptedInGetRequestsAreCached() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenAnswer(_invocation ->
+                        Futures.immediateFuture(ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")));
+        CachingChannel channel = channel(policy().build());
+        CachingChannel optedOut =
+                channel(policy().cacheableEndpoints(_endpoint -> false).build());
+
+        for (int i = 0; i < 2; i++) {
+            optedOut.execute(TestEndpoint.GET, REQUEST).get();
+            channel.execute(TestEndpoint.POST, REQUEST).get();
+            channel.execute(TestEndpoint.GET, Request.builder()
+                            .from(REQUEST)
+                            .putHeaderParams(HttpHeaders.IF_NONE_MATCH, "\"v1\"")
+                            .build())
+                    .get();
+        }
+
+        verify(delegate, times(6)).execute(any(), any());
+        assertThat(result("miss").getCount()).isZero();
+    }
+
+    @Test
+    public void testCredentialsArePartOfTheKey() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenAnswer(_invocation ->
+                        Futures.immediateFuture(ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60")));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        channel.execute(
+                        TestEndpoint.GET,
+                        Request.builder()
+                                .from(REQUEST)
+                                .putHeaderParams(HttpHeaders.AUTHORIZATION, "Bearer token")
+                                .build())
+                .get();
+
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    @Test
+    public void testLargeBodiesAreNotCached() throws Exception {
+        TestResponse response = ok("large body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(response))
+                .thenReturn(Futures.immediateFuture(ok("small")));
+        CachingChannel channel = channel(policy().maxBodySize(4).build());
+
+        Response first = channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(body(first)).isEqualTo("large body");
+        assertThat(response.isClosed()).isFalse();
+        first.close();
+        assertThat(response.isClosed()).isTrue();
+        assertThat(body(channel.execute(TestEndpoint.GET, REQUEST).get())).isEqualTo("small");
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    @Test
+    public void testStaleResponsesAreServedInPlaceOfFailures() throws Exception {
+        TestResponse unavailable = new TestResponse().code(503);
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body")))
+                .thenReturn(Futures.immediateFailedFuture(new SafeRuntimeException("failed")))
+                .thenReturn(Futures.immediateFuture(unavailable));
+        CachingChannel channel =
+                channel(policy().staleIfError(Duration.ofSeconds(60)).build());
+
+        Response first = channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(first.getFirstHeader(ResponseCachePolicy.STALE_RESPONSE_HEADER)).isEmpty();
+        time.addAndGet(Duration.ofSeconds(10).toNanos());
+        Response stale = channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(stale.code()).isEqualTo(200);
+        assertThat(body(stale)).isEqualTo("body");
+        assertThat(stale.getFirstHeader(ResponseCachePolicy.STALE_RESPONSE_HEADER)).hasValue("10");
+
+        Response staleInsteadOfError = channel.execute(TestEndpoint.GET, REQUEST).get();
+        assertThat(staleInsteadOfError.code()).isEqualTo(200);
+        assertThat(body(staleInsteadOfError)).isEqualTo("body");
+        assertThat(unavailable.isClosed()).isTrue();
+        verify(delegate, times(3)).execute(any(), any());
+        assertThat(result("stale").getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStaleResponsesAreNotServedAfterTheWindow() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=10")))
+                .thenReturn(Futures.immediateFailedFuture(new SafeRuntimeException("failed")));
+        CachingChannel channel =
+                channel(policy().staleIfError(Duration.ofSeconds(60)).build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(70).toNanos());
+
+        assertThatThrownBy(() -> channel.execute(TestEndpoint.GET, REQUEST).get())
+                .hasRootCauseMessage("failed");
+        assertThat(result("stale").getCount()).isZero();
+    }
+
+    @Test
+    public void testStaleIfErrorDirectives() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(
+                        ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "stale-if-error=5")))
+                .thenReturn(Futures.immediateFuture(new TestResponse().code(500)))
+                .thenReturn(Futures.immediateFuture(
+                        ok("other").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=1, must-revalidate")))
+                .thenReturn(Futures.immediateFuture(new TestResponse().code(500)));
+        CachingChannel channel =
+                channel(policy().staleIfError(Duration.ofSeconds(60)).build());
+        Request other = Request.builder().putQueryParams("q", "other").build();
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(6).toNanos());
+        assertThat(channel.execute(TestEndpoint.GET, REQUEST).get().code()).isEqualTo(500);
+
+        channel.execute(TestEndpoint.GET, other).get();
+        time.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertThat(channel.execute(TestEndpoint.GET, other).get().code()).isEqualTo(500);
+        assertThat(result("stale").getCount()).isZero();
+    }
+
+    @Test
+    public void testStaleIfErrorIsDisabledByDefault() throws Exception {
+        when(delegate.execute(any(), any()))
+                .thenReturn(Futures.immediateFuture(ok("body").withHeader(HttpHeaders.CACHE_CONTROL, "max-age=10")))
+                .thenReturn(Futures.immediateFailedFuture(new SafeRuntimeException("failed")));
+        CachingChannel channel = channel(policy().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST).get();
+        time.addAndGet(Duration.ofSeconds(11).toNanos());
+
+        assertThatThrownBy(() -> channel.execute(TestEndpoint.GET, REQUEST).get())
+                .hasRootCauseMessage("failed");
+    }
+
+    private CachingChannel channel(ResponseCachePolicy policy) {
+        return new CachingChannel(delegate, policy, time::get, metrics, "channel");
+    }
+
+    private static ResponseCachePolicy.Builder policy() {
+        return ResponseCachePolicy.builder().cacheableEndpoints(_endpoint -> true);
+    }
+
+    private Meter result(String result) {
+        return metrics.responseCache().channelName("channel").result(result).build();
+    }
+
+    private static TestResponse ok(String body) {
+        return TestResponse.withBody(body).code(200);
+    }
+
+    private static String body(Response response) throws IOException {
+        return new String(ByteStreams.toByteArray(response.body()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.exceptions.SafeRuntimeException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class CoalescingChannelTest {
+
+    private static final Request REQUEST =
+            Request.builder().putQueryParams("q", "value").build();
+
+    @Mock
+    private Channel delegate;
+
+    private final DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+
+    @Test
+    public void testIdenticalRequestsShareOneCall() throws Exception {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        TestResponse response = TestResponse.withBody("body").code(200);
+        upstream.set(response);
+
+        verify(delegate, times(1)).execute(any(), any());
+        assertThat(response.isClosed()).isTrue();
+        assertThat(body(first.get())).isEqualTo("body");
+        assertThat(body(second.get())).isEqualTo("body");
+        assertThat(second.get().code()).isEqualTo(200);
+        assertThat(result("hit").getCount()).isOne();
+        assertThat(result("miss").getCount()).isOne();
+    }
+
+    @Test
+    public void testRequestsAreSentAgainOnceTheResponseArrived() {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        SettableFuture<Response> next = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream).thenReturn(next);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        upstream.set(TestResponse.withBody("body").code(200));
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+
+        assertThat(first).isDone();
+        assertThat(second).isNotDone();
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void testDifferentRequestsAreNotCoalesced() {
+        when(delegate.execute(any(), any())).thenReturn(SettableFuture.create());
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        channel.execute(TestEndpoint.GET, REQUEST);
+        channel.execute(
+                TestEndpoint.GET, Request.builder().putQueryParams("q", "other").build());
+        channel.execute(TestEndpoint.GET, Request.builder()
+                .from(REQUEST)
+                .putHeaderParams(HttpHeaders.AUTHORIZATION, "Bearer token")
+                .build());
+        channel.execute(TestEndpoint.POST, REQUEST);
+        channel.execute(TestEndpoint.POST, REQUEST);
+
+        verify(delegate, times(5)).execute(any(), any());
+        assertThat(result("hit").getCount()).isZero();
+    }
+
+    @Test
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void testKeyHeaders() {
+        when(delegate.execute(any(), any())).thenReturn(SettableFuture.create());
+        CoalescingChannel channel = channel(
+                CoalescingPolicy.builder().keyHeaders(ImmutableList.of("Accept")).build());
+
+        channel.execute(TestEndpoint.GET, withHeader("Accept", "application/json"));
+        channel.execute(TestEndpoint.GET, withHeader("accept", "application/json"));
+        channel.execute(TestEndpoint.GET, withHeader("Accept", "text/plain"));
+        channel.execute(TestEndpoint.GET, withHeader("Other", "ignored"));
+
+        verify(delegate, times(3)).execute(any(), any());
+    }
+
+    @Test
+    public void testFailuresAreShared() {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        upstream.setException(new SafeRuntimeException("failed"));
+
+        assertThatThrownBy(first::get).hasRootCauseMessage("failed");
+        assertThatThrownBy(second::get).hasRootCauseMessage("failed");
+    }
+
+    @Test
+    public void testLargeBodiesAreNotShared() throws Exception {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        SettableFuture<Response> separate = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream).thenReturn(separate);
+        CoalescingChannel channel =
+                channel(CoalescingPolicy.builder().maxBodySize(4).build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        TestResponse response = TestResponse.withBody("large body").code(200);
+        upstream.set(response);
+
+        assertThat(body(first.get())).isEqualTo("large body");
+        first.get().close();
+        assertThat(response.isClosed()).isTrue();
+        assertThat(second).isNotDone();
+        separate.set(TestResponse.withBody("separate").code(200));
+        assertThat(body(second.get())).isEqualTo("separate");
+        verify(delegate, times(2)).execute(any(), any());
+        assertThat(result("tooLarge").getCount()).isOne();
+    }
+
+    @Test
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void testLargeContentLengthIsNotBuffered() throws Exception {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream).thenReturn(SettableFuture.create());
+        CoalescingChannel channel =
+                channel(CoalescingPolicy.builder().maxBodySize(4).build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        channel.execute(TestEndpoint.GET, REQUEST);
+        TestResponse response = TestResponse.withBody("large body")
+                .code(200)
+                .withHeader(HttpHeaders.CONTENT_LENGTH, "10");
+        upstream.set(response);
+
+        assertThat(first.get()).isSameAs(response);
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    @Test
+    public void testCancellingWaiterDoesNotCancelCall() throws Exception {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        assertThat(second.cancel(true)).isTrue();
+        assertThat(upstream).isNotCancelled();
+
+        upstream.set(TestResponse.withBody("body").code(200));
+        assertThat(body(first.get())).isEqualTo("body");
+    }
+
+    @Test
+    public void testCancelledFirstRequestStillSharesResponse() throws Exception {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        assertThat(first.cancel(true)).isTrue();
+
+        TestResponse response = TestResponse.withBody("body").code(200);
+        upstream.set(response);
+        assertThat(body(second.get())).isEqualTo("body");
+        assertThat(response.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testCancellingEveryCallerCancelsCall() {
+        SettableFuture<Response> upstream = SettableFuture.create();
+        SettableFuture<Response> next = SettableFuture.create();
+        when(delegate.execute(any(), any())).thenReturn(upstream).thenReturn(next);
+        CoalescingChannel channel = channel(CoalescingPolicy.builder().build());
+
+        ListenableFuture<Response> first = channel.execute(TestEndpoint.GET, REQUEST);
+        ListenableFuture<Response> second = channel.execute(TestEndpoint.GET, REQUEST);
+        assertThat(first.cancel(true)).isTrue();
+        assertThat(upstream).isNotCancelled();
+        assertThat(second.cancel(true)).isTrue();
+        assertThat(upstream).isCancelled();
+
+        // The cancelled call is no longer shared
+        ListenableFuture<Response> third = channel.execute(TestEndpoint.GET, REQUEST);
+        assertThat(third).isNotDone();
+        verify(delegate, times(2)).execute(any(), any());
+    }
+
+    private CoalescingChannel channel(CoalescingPolicy policy) {
+        return new CoalescingChannel(delegate, policy, metrics, "channel");
+    }
+
+    private Meter result(String result) {
+        return metrics.requestCoalescing().channelName("channel").result(result).build();
+    }
+
+    private static Request withHeader(String name, String value) {
+        return Request.builder().putHeaderParams(name, value).build();
+    }
+
+    private static String body(Response response) throws IOException {
+        return new String(ByteStreams.toByteArray(response.body()), StandardCharsets.UTF_8);
+    }
+}
@@ -18,26 +18,29 @@ package com.palantir.dialogue.core;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.lenient;
-import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import com.codahale.metrics.Gauge;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import com.palantir.dialogue.Channel;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
 import com.palantir.logsafe.exceptions.SafeIoException;
 import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
 import com.palantir.tritium.metrics.registry.MetricName;
 import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
-import java.util.Optional;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
-import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 @ExtendWith(MockitoExtension.class)
@@ -53,11 +56,9 @@ public class ConcurrencyLimitedChannelTest {
     private Channel delegate;
 
     @Mock
-    private AimdConcurrencyLimiter mockLimiter;
+    private ConcurrencyLimiter mockLimiter;
 
-    @Spy
-    private AimdConcurrencyLimiter.Permit permit =
-            new AimdConcurrencyLimiter().acquire().get();
+    private final RecordingPermit permit = new RecordingPermit();
 
     @Mock
     private Response response;
@@ -80,8 +81,8 @@ public class ConcurrencyLimitedChannelTest {
         mockLimitAvailable();
         mockResponseCode(200);
 
-        assertThat(channel.maybeExecute(endpoint, request)).contains(responseFuture);
-        verify(permit).success();
+        assertThat(channel.maybeExecute(endpoint, request)).isSameAs(responseFuture);
+        assertThat(permit.releases).containsExactly("success");
     }
 
     @Test
@@ -89,8 +90,8 @@ public class ConcurrencyLimitedChannelTest {
         mockLimitAvailable();
         mockResponseCode(429);
 
-        assertThat(channel.maybeExecute(endpoint, request)).contains(responseFuture);
-        verify(permit).dropped();
+        assertThat(channel.maybeExecute(endpoint, request)).isSameAs(responseFuture);
+        assertThat(permit.releases).containsExactly("dropped");
     }
 
     @Test
@@ -98,8 +99,8 @@ public class ConcurrencyLimitedChannelTest {
         mockLimitAvailable();
         responseFuture.setException(new IllegalStateException());
 
-        assertThat(channel.maybeExecute(endpoint, request)).contains(responseFuture);
-        verify(permit).ignore();
+        assertThat(channel.maybeExecute(endpoint, request)).isSameAs(responseFuture);
+        assertThat(permit.releases).containsExactly("ignore");
     }
 
     @Test
@@ -107,16 +108,16 @@ public class ConcurrencyLimitedChannelTest {
         mockLimitAvailable();
         responseFuture.setException(new SafeIoException("failure"));
 
-        assertThat(channel.maybeExecute(endpoint, request)).contains(responseFuture);
-        verify(permit).dropped();
+        assertThat(channel.maybeExecute(endpoint, request)).isSameAs(responseFuture);
+        assertThat(permit.releases).containsExactly("dropped");
     }
 
     @Test
     public void testUnavailable() {
         mockLimitUnavailable();
 
-        assertThat(channel.maybeExecute(endpoint, request)).isEmpty();
-        verifyNoMoreInteractions(permit);
+        assertThat(channel.maybeExecute(endpoint, request)).isNull();
+        assertThat(permit.releases).isEmpty();
     }
 
     @Test
@@ -128,7 +129,73 @@ public class ConcurrencyLimitedChannelTest {
                 0,
                 metrics);
 
-        assertThat(channel.maybeExecute(endpoint, request)).contains(responseFuture);
+        assertThat(channel.maybeExecute(endpoint, request)).isSameAs(responseFuture);
+    }
+
+    @Test
+    public void testEndpointLimits_failuresOnlyReduceTheirEndpoint() {
+        EndpointConcurrencyLimiters endpointLimiters = endpointLimiters(Ticker.systemTicker());
+        ConcurrencyLimiter hostLimiter = ConcurrencyLimitedChannel.createLimiter();
+        channel = new ConcurrencyLimitedChannel(
+                new ChannelToLimitedChannelAdapter(delegate),
+                hostLimiter,
+                "channel",
+                0,
+                metrics,
+                null,
+                endpointLimiters);
+        when(response.code()).thenReturn(503);
+        when(delegate.execute(TestEndpoint.POST, request)).thenReturn(Futures.immediateFuture(response));
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(channel.maybeExecute(TestEndpoint.POST, request)).isNotNull();
+        }
+        assertThat(endpointLimiters.get(TestEndpoint.POST).limiter().getLimit())
+                .isLessThan(ConcurrencyLimitedChannel.INITIAL_LIMIT);
+        assertThat(endpointLimiters.get(TestEndpoint.GET).limiter().getLimit())
+                .isEqualTo(ConcurrencyLimitedChannel.INITIAL_LIMIT);
+        assertThat(hostLimiter.getLimit()).isEqualTo(ConcurrencyLimitedChannel.INITIAL_LIMIT);
+        assertThat(hostLimiter.getInflight()).isZero();
+    }
+
+    @Test
+    public void testEndpointLimits_limitedEndpointDoesNotBlockOthers() {
+        channel = new ConcurrencyLimitedChannel(
+                new ChannelToLimitedChannelAdapter(delegate),
+                new AimdConcurrencyLimiter(),
+                "channel",
+                0,
+                metrics,
+                null,
+                endpointLimiters(Ticker.systemTicker()));
+        when(delegate.execute(TestEndpoint.POST, request)).thenReturn(SettableFuture.create());
+        when(delegate.execute(TestEndpoint.GET, request)).thenReturn(responseFuture);
+
+        // POST requests leave a single permit of the host limit for GET requests
+        for (int i = 0; i < ConcurrencyLimitedChannel.INITIAL_LIMIT - 1; i++) {
+            assertThat(channel.maybeExecute(TestEndpoint.POST, request)).isNotNull();
+        }
+        assertThat(channel.maybeExecute(TestEndpoint.GET, request)).isSameAs(responseFuture);
+        assertThat(channel.maybeExecute(TestEndpoint.GET, request)).isNull();
+        assertThat(getEndpointLimited(TestEndpoint.GET)).isZero();
+
+        responseFuture.set(response);
+        assertThat(channel.maybeExecute(TestEndpoint.POST, request)).isNotNull();
+        assertThat(channel.maybeExecute(TestEndpoint.POST, request)).isNull();
+        assertThat(getEndpointLimited(TestEndpoint.POST)).isEqualTo(1);
+    }
+
+    @Test
+    public void testEndpointLimits_idleEndpointsAreEvicted() {
+        AtomicLong time = new AtomicLong();
+        EndpointConcurrencyLimiters endpointLimiters = endpointLimiters(time::get);
+        ConcurrencyLimiter limiter = endpointLimiters.get(TestEndpoint.GET).limiter();
+        assertThat(endpointLimiters.get(TestEndpoint.GET).limiter()).isSameAs(limiter);
+        assertThat(endpointLimiters.size()).isEqualTo(1);
+
+        time.addAndGet(Duration.ofMinutes(2).toNanos());
+        assertThat(endpointLimiters.size()).isZero();
+        assertThat(endpointLimiters.get(TestEndpoint.GET).limiter()).isNotSameAs(limiter);
     }
 
     @Test
@@ -144,11 +211,30 @@ public class ConcurrencyLimitedChannelTest {
     }
 
     private void mockLimitAvailable() {
-        when(mockLimiter.acquire()).thenReturn(Optional.of(permit));
+        when(mockLimiter.acquire()).thenReturn(permit);
     }
 
     private void mockLimitUnavailable() {
-        when(mockLimiter.acquire()).thenReturn(Optional.empty());
+        when(mockLimiter.acquire()).thenReturn(null);
+    }
+
+    private EndpointConcurrencyLimiters endpointLimiters(Ticker clock) {
+        return new EndpointConcurrencyLimiters(
+                ConcurrencyLimitedChannel::createLimiter,
+                Duration.ofMinutes(1),
+                clock,
+                DialogueClientMetrics.of(metrics),
+                "channel");
+    }
+
+    private long getEndpointLimited(Endpoint value) {
+        return DialogueClientMetrics.of(metrics)
+                .endpointLimited()
+                .channelName("channel")
+                .serviceName(value.serviceName())
+                .endpoint(value.endpointName())
+                .build()
+                .getCount();
     }
 
     private Number getMax() {
@@ -161,4 +247,27 @@ public class ConcurrencyLimitedChannelTest {
         Gauge<Object> gauge = metrics.gauge(metricName).get();
         return (Number) gauge.getValue();
     }
+
+    /**
+     * Records how the permit is released. Real permits aren't spied on, since Mockito would instrument them for every
+     * test in the JVM, see {@link AttemptAllocationTest}.
+     */
+    private static final class RecordingPermit implements ConcurrencyLimiter.Permit {
+        private final List<String> releases = new ArrayList<>();
+
+        @Override
+        public void ignore() {
+            releases.add("ignore");
+        }
+
+        @Override
+        public void dropped() {
+            releases.add("dropped");
+        }
+
+        @Override
+        public void success() {
+            releases.add("success");
+        }
+    }
 }
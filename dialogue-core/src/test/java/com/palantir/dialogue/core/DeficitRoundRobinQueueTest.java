@@ -0,0 +1,154 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.tracing.DetachedSpan;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import com.palantir.tritium.metrics.registry.MetricName;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public final class DeficitRoundRobinQueueTest {
+
+    private final DefaultTaggedMetricRegistry registry = new DefaultTaggedMetricRegistry();
+
+    @Test
+    public void testEndpointsTakeTurns() {
+        DeficitRoundRobinQueue queue = new DeficitRoundRobinQueue(_endpoint -> 1, registry, "my-channel");
+        for (int i = 0; i < 3; i++) {
+            queue.offer(call(TestEndpoint.GET));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(call(TestEndpoint.POST));
+        }
+        assertThat(drain(queue))
+                .containsExactly(
+                        TestEndpoint.GET,
+                        TestEndpoint.POST,
+                        TestEndpoint.GET,
+                        TestEndpoint.POST,
+                        TestEndpoint.GET,
+                        TestEndpoint.POST);
+    }
+
+    @Test
+    public void testWeights() {
+        DeficitRoundRobinQueue queue = new DeficitRoundRobinQueue(
+                endpoint -> endpoint == TestEndpoint.GET ? 2 : 1, registry, "my-channel");
+        for (int i = 0; i < 3; i++) {
+            queue.offer(call(TestEndpoint.GET));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(call(TestEndpoint.POST));
+        }
+        assertThat(drain(queue))
+                .containsExactly(
+                        TestEndpoint.GET,
+                        TestEndpoint.GET,
+                        TestEndpoint.POST,
+                        TestEndpoint.GET,
+                        TestEndpoint.POST,
+                        TestEndpoint.POST);
+    }
+
+    @Test
+    public void testOfferFirstIsPolledNext() {
+        DeficitRoundRobinQueue queue = new DeficitRoundRobinQueue(_endpoint -> 1, registry, "my-channel");
+        QueuedChannel.DeferredCall first = call(TestEndpoint.GET);
+        QueuedChannel.DeferredCall second = call(TestEndpoint.GET);
+        QueuedChannel.DeferredCall other = call(TestEndpoint.POST);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(other);
+
+        assertThat(queue.poll()).isSameAs(first);
+        queue.offerFirst(first);
+        assertThat(queue.poll()).isSameAs(first);
+        assertThat(queue.poll()).isSameAs(other);
+        assertThat(queue.poll()).isSameAs(second);
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void testOfferFirstAfterEndpointWasDrained() {
+        DeficitRoundRobinQueue queue = new DeficitRoundRobinQueue(_endpoint -> 1, registry, "my-channel");
+        QueuedChannel.DeferredCall first = call(TestEndpoint.GET);
+        QueuedChannel.DeferredCall other = call(TestEndpoint.POST);
+        queue.offer(first);
+        queue.offer(other);
+
+        assertThat(queue.poll()).isSameAs(first);
+        queue.offerFirst(first);
+        assertThat(queue.poll()).isSameAs(first);
+        assertThat(queue.poll()).isSameAs(other);
+    }
+
+    @Test
+    public void testDepthGauge() {
+        DeficitRoundRobinQueue queue = new DeficitRoundRobinQueue(_endpoint -> 1, registry, "my-channel");
+        queue.offer(call(TestEndpoint.GET));
+        queue.offer(call(TestEndpoint.GET));
+        assertThat(depth(TestEndpoint.GET)).isEqualTo(2);
+
+        queue.poll();
+        assertThat(depth(TestEndpoint.GET)).isEqualTo(1);
+
+        drain(queue);
+        assertThat(depth(TestEndpoint.GET)).isEqualTo(0);
+    }
+
+    private Object depth(Endpoint endpoint) {
+        MetricName metricName = MetricName.builder()
+                .safeName("dialogue.client.endpoint.requests.queued")
+                .putSafeTags("channel-name", "my-channel")
+                .putSafeTags("service-name", endpoint.serviceName())
+                .putSafeTags("endpoint", endpoint.endpointName())
+                .build();
+        Gauge<Object> gauge = registry.gauge(metricName).get();
+        return gauge.getValue();
+    }
+
+    private static List<Endpoint> drain(DeficitRoundRobinQueue queue) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        QueuedChannel.DeferredCall call;
+        while ((call = queue.poll()) != null) {
+            endpoints.add(call.endpoint());
+        }
+        return endpoints;
+    }
+
+    private static QueuedChannel.DeferredCall call(Endpoint endpoint) {
+        return QueuedChannel.DeferredCall.builder()
+                .endpoint(endpoint)
+                .request(Request.builder().build())
+                .response(SettableFuture.create())
+                .span(DetachedSpan.start("test"))
+                .timer(new Timer().time())
+                .enqueued(0)
+                .deadline(Long.MAX_VALUE)
+                .build();
+    }
+}
@@ -19,6 +19,7 @@ package com.palantir.dialogue.core;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.times;
@@ -40,16 +41,22 @@ import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import com.palantir.dialogue.TestEndpoint;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
 import com.palantir.logsafe.exceptions.SafeIllegalStateException;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import com.palantir.tracing.TestTracing;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -76,6 +83,9 @@ public final class DialogueChannelsTest {
     @Mock
     private Response response;
 
+    @Mock
+    private ScheduledExecutorService scheduler;
+
     private Request request = Request.builder().build();
     private DialogueChannel channel;
 
@@ -196,6 +206,71 @@ public final class DialogueChannelsTest {
                 .hasMessageContaining("queue is full");
     }
 
+    @Test
+    void retry_budget_limits_retries() throws Exception {
+        when(response.code()).thenReturn(429);
+        channel = DialogueChannel.builder()
+                .channelName("my-channel")
+                .clientConfiguration(stubConfig)
+                .channelFactory(uri -> delegate)
+                .retryBudget(0, 1)
+                .build();
+        try (Response retried = channel.execute(endpoint, request).get()) {
+            assertThat(retried.code()).isEqualTo(429);
+        }
+        verify(delegate, times(2)).execute(any(), any());
+
+        // The budget only allowed a single retry, and responses which must be retried don't earn more
+        try (Response notRetried = channel.execute(endpoint, request).get()) {
+            assertThat(notRetried.code()).isEqualTo(429);
+        }
+        verify(delegate, times(3)).execute(any(), any());
+    }
+
+    @Test
+    void hedging_is_rejected_when_requests_are_pinned_to_a_host() {
+        DialogueChannel.Builder builder = DialogueChannel.builder()
+                .channelName("my-channel")
+                .clientConfiguration(stubConfig)
+                .channelFactory(uri -> delegate)
+                .nodeSelectionStrategy(DialogueNodeSelectionStrategy.PIN_UNTIL_ERROR)
+                .hedgingPolicy(HedgingPolicy.builder().build());
+        assertThatThrownBy(builder::build)
+                .isInstanceOf(SafeIllegalArgumentException.class)
+                .hasMessageContaining("same host");
+    }
+
+    @Test
+    void hedged_attempts_are_sent_to_another_host() {
+        List<String> attemptUris = new ArrayList<>();
+        channel = DialogueChannel.builder()
+                .channelName("my-channel")
+                .clientConfiguration(ClientConfiguration.builder()
+                        .from(stubConfig)
+                        .uris(ImmutableList.of("https://foo", "https://bar"))
+                        .build())
+                .channelFactory(uri -> (_endpoint, _request) -> {
+                    attemptUris.add(uri);
+                    return SettableFuture.create();
+                })
+                .scheduler(scheduler)
+                .hedgingPolicy(HedgingPolicy.builder()
+                        .delay(Duration.ofMillis(100))
+                        .maxExtraLoad(1)
+                        .build())
+                .build();
+
+        for (int i = 0; i < 20; i++) {
+            attemptUris.clear();
+            assertThat(channel.execute(TestEndpoint.GET, Request.builder().build()))
+                    .isNotDone();
+            ArgumentCaptor<Runnable> hedge = ArgumentCaptor.forClass(Runnable.class);
+            verify(scheduler, times(i + 1)).schedule(hedge.capture(), anyLong(), any());
+            hedge.getValue().run();
+            assertThat(attemptUris).hasSize(2).doesNotHaveDuplicates();
+        }
+    }
+
     @Test
     void constructing_a_client_with_zero_uris_causes_immediate_failures() {
         channel = DialogueChannel.builder()
@@ -0,0 +1,184 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public final class DrainerTest {
+    @Test
+    public void testDrainsAllWork() {
+        AtomicInteger remaining = new AtomicInteger(5);
+        Drainer drainer = new Drainer(() -> remaining.getAndDecrement() > 0);
+        assertThat(drainer.drain()).isEqualTo(5);
+        assertThat(drainer.drain()).isZero();
+    }
+
+    @Test
+    public void testReentrantDrainsMakeAnotherPass() {
+        AtomicInteger passes = new AtomicInteger();
+        AtomicInteger depth = new AtomicInteger();
+        Drainer[] drainer = new Drainer[1];
+        drainer[0] = new Drainer(() -> {
+            assertThat(depth.incrementAndGet()).isOne();
+            try {
+                if (passes.incrementAndGet() < 3) {
+                    // e.g. a request which completes synchronously
+                    assertThat(drainer[0].drain()).isZero();
+                }
+                return false;
+            } finally {
+                depth.decrementAndGet();
+            }
+        });
+        drainer[0].drain();
+        assertThat(passes).hasValue(3);
+    }
+
+    @Test
+    public void testDrainsAgainAfterFailure() {
+        AtomicBoolean fail = new AtomicBoolean(true);
+        AtomicInteger remaining = new AtomicInteger(1);
+        Drainer drainer = new Drainer(() -> {
+            if (fail.getAndSet(false)) {
+                throw new IllegalStateException();
+            }
+            return remaining.getAndDecrement() > 0;
+        });
+        assertThatThrownBy(drainer::drain).isInstanceOf(IllegalStateException.class);
+        assertThat(drainer.drain()).isOne();
+    }
+
+    @Test
+    public void testDrainsRequestedDuringFailedPassAreNotLost() {
+        AtomicInteger remaining = new AtomicInteger(1);
+        Drainer[] drainer = new Drainer[1];
+        AtomicBoolean fail = new AtomicBoolean(true);
+        drainer[0] = new Drainer(() -> {
+            if (fail.getAndSet(false)) {
+                // Another request hands off to the draining thread, which then fails
+                assertThat(drainer[0].drain()).isZero();
+                throw new IllegalStateException();
+            }
+            return remaining.getAndDecrement() > 0;
+        });
+        assertThatThrownBy(drainer[0]::drain).isInstanceOf(IllegalStateException.class);
+        assertThat(remaining).hasValue(-1);
+    }
+
+    @Test
+    public void testNoWorkIsLostUnderContention() throws Exception {
+        for (int threads : ImmutableList.of(8, 32)) {
+            LimitedQueue queue = new LimitedQueue(16);
+            Drainer drainer = new Drainer(queue::executeNext);
+            assertThat(run(threads, 20_000, queue, drainer::drain)).isEqualTo(threads * 20_000L);
+        }
+    }
+
+    /**
+     * Each thread enqueues requests and completes running requests, then the remaining running requests are completed.
+     * Returns the number of completed requests, which is lower than the number of requests if a drain was lost.
+     */
+    private static long run(int threads, int requestsPerThread, LimitedQueue queue, DrainFunction drain)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int request = 0; request < requestsPerThread; request++) {
+                        queue.enqueue();
+                        drain.drain();
+                        if (queue.completeNext()) {
+                            drain.drain();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        while (queue.completeNext()) {
+            drain.drain();
+        }
+        return queue.completed.get();
+    }
+
+    private interface DrainFunction {
+        int drain();
+    }
+
+    private static final class LimitedQueue {
+        private final Deque<Object> queued = new ConcurrentLinkedDeque<>();
+        private final ConcurrentLinkedQueue<Object> running = new ConcurrentLinkedQueue<>();
+        private final Semaphore permits;
+        private final AtomicInteger completed = new AtomicInteger();
+
+        LimitedQueue(int limit) {
+            this.permits = new Semaphore(limit);
+        }
+
+        void enqueue() {
+            queued.offer(new Object());
+        }
+
+        boolean executeNext() {
+            Object request = queued.poll();
+            if (request == null) {
+                return false;
+            }
+            if (!permits.tryAcquire()) {
+                queued.offerFirst(request);
+                return false;
+            }
+            running.offer(request);
+            return true;
+        }
+
+        boolean completeNext() {
+            if (running.poll() == null) {
+                return false;
+            }
+            completed.incrementAndGet();
+            permits.release();
+            return true;
+        }
+    }
+}
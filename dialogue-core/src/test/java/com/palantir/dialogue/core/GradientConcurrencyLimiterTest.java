@@ -0,0 +1,98 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public final class GradientConcurrencyLimiterTest {
+
+    private final AtomicLong time = new AtomicLong();
+    private final GradientConcurrencyLimiter limiter = new GradientConcurrencyLimiter(time::get);
+
+    @Test
+    public void acquire_returnsPermitsWhileInflightPermitLimitNotReached() {
+        int max = limiter.getLimit();
+        GradientConcurrencyLimiter.Permit latestPermit = null;
+        for (int i = 0; i < max; ++i) {
+            latestPermit = limiter.acquire();
+            assertThat(latestPermit).isNotNull();
+        }
+        assertThat(limiter.getInflight()).isEqualTo(max);
+        assertThat(limiter.acquire()).isNull();
+
+        latestPermit.ignore();
+        assertThat(limiter.getLimit()).isEqualTo(max);
+        assertThat(limiter.acquire()).isNotNull();
+    }
+
+    @Test
+    public void success_increasesLimitWhileLatencyIsStable() {
+        int initial = limiter.getLimit();
+        for (int i = 0; i < 10; i++) {
+            roundTrip(Duration.ofMillis(10));
+        }
+        assertThat(limiter.getLimit()).isGreaterThan(initial);
+    }
+
+    @Test
+    public void success_decreasesLimitWhenLatencyGrows() {
+        for (int i = 0; i < 10; i++) {
+            roundTrip(Duration.ofMillis(10));
+        }
+        int beforeSlowdown = limiter.getLimit();
+        for (int i = 0; i < 10; i++) {
+            roundTrip(Duration.ofMillis(50));
+        }
+        assertThat(limiter.getLimit()).isLessThan(beforeSlowdown);
+    }
+
+    @Test
+    public void success_doesNotIncreaseUnusedLimit() {
+        int initial = limiter.getLimit();
+        for (int i = 0; i < 100; i++) {
+            GradientConcurrencyLimiter.Permit permit = limiter.acquire();
+            time.addAndGet(Duration.ofMillis(10).toNanos());
+            permit.success();
+        }
+        assertThat(limiter.getLimit()).isEqualTo(initial);
+    }
+
+    @Test
+    public void dropped_decreasesLimit() {
+        int initial = limiter.getLimit();
+        limiter.acquire().dropped();
+        assertThat(limiter.getLimit()).isLessThan(initial);
+        assertThat(limiter.getInflight()).isZero();
+    }
+
+    /** Sends as many requests as the limit allows, all of which complete after the given latency. */
+    private void roundTrip(Duration latency) {
+        List<GradientConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        GradientConcurrencyLimiter.Permit permit;
+        while ((permit = limiter.acquire()) != null) {
+            permits.add(permit);
+        }
+        time.addAndGet(latency.toNanos());
+        permits.forEach(GradientConcurrencyLimiter.Permit::success);
+    }
+}
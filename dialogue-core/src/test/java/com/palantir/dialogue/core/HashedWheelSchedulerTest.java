@@ -0,0 +1,109 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public final class HashedWheelSchedulerTest {
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("dispatcher").build());
+    private final HashedWheelScheduler scheduler =
+            new HashedWheelScheduler("timer", Duration.ofMillis(1), 16, dispatcher);
+
+    @AfterEach
+    public void after() {
+        scheduler.shutdown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testRunsTaskAfterDelay() throws InterruptedException, ExecutionException, TimeoutException {
+        long start = System.nanoTime();
+        ScheduledFuture<Long> future = scheduler.schedule(System::nanoTime, 50, TimeUnit.MILLISECONDS);
+        assertThat(future.get(5, TimeUnit.SECONDS) - start).isGreaterThanOrEqualTo(Duration.ofMillis(50).toNanos());
+    }
+
+    @Test
+    public void testDelaysLongerThanWheel() throws InterruptedException, ExecutionException, TimeoutException {
+        long start = System.nanoTime();
+        ScheduledFuture<Long> future = scheduler.schedule(System::nanoTime, 100, TimeUnit.MILLISECONDS);
+        assertThat(future.get(5, TimeUnit.SECONDS) - start).isGreaterThanOrEqualTo(Duration.ofMillis(100).toNanos());
+    }
+
+    @Test
+    public void testTasksRunOnDispatcher() throws InterruptedException, ExecutionException, TimeoutException {
+        ScheduledFuture<String> future =
+                scheduler.schedule(() -> Thread.currentThread().getName(), 1, TimeUnit.MILLISECONDS);
+        assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("dispatcher");
+    }
+
+    @Test
+    public void testCancelledTasksDoNotRun() throws InterruptedException, ExecutionException, TimeoutException {
+        AtomicReference<String> ran = new AtomicReference<>();
+        ScheduledFuture<?> cancelled = scheduler.schedule(() -> ran.set("cancelled"), 10, TimeUnit.MILLISECONDS);
+        assertThat(cancelled.cancel(false)).isTrue();
+        scheduler.schedule(() -> ran.compareAndSet(null, "other"), 20, TimeUnit.MILLISECONDS)
+                .get(5, TimeUnit.SECONDS);
+        assertThat(ran).hasValue("other");
+    }
+
+    @Test
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void testShutdownCancelsPendingTasks() throws InterruptedException {
+        ScheduledFuture<?> pending = scheduler.schedule(() -> {}, 1, TimeUnit.DAYS);
+        scheduler.shutdown();
+        assertThat(scheduler.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(pending.isCancelled()).isTrue();
+        assertThatThrownBy(() -> scheduler.schedule(() -> {}, 1, TimeUnit.MILLISECONDS))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    public void testFailsWhenDispatcherRejects() {
+        dispatcher.shutdown();
+        ScheduledFuture<?> future = scheduler.schedule(() -> {}, 1, TimeUnit.MILLISECONDS);
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    public void testDirectDispatcher() throws InterruptedException, ExecutionException, TimeoutException {
+        HashedWheelScheduler direct =
+                new HashedWheelScheduler("direct-timer", Duration.ofMillis(1), 16, MoreExecutors.directExecutor());
+        try {
+            assertThat(direct.schedule(() -> "done", 5, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS))
+                    .isEqualTo("done");
+        } finally {
+            direct.shutdown();
+        }
+    }
+}
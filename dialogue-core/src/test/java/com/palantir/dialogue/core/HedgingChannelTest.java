@@ -0,0 +1,226 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Channel;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.exceptions.SafeIoException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class HedgingChannelTest {
+    private static final Request REQUEST = Request.builder().build();
+    private static final HedgingPolicy POLICY = HedgingPolicy.builder()
+            .delay(Duration.ofMillis(100))
+            .maxExtraLoad(1)
+            .build();
+
+    @Mock
+    private Channel delegate;
+
+    @Mock
+    private LimitedChannel hedgeTarget;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    private final DefaultTaggedMetricRegistry registry = new DefaultTaggedMetricRegistry();
+    private final AtomicLong time = new AtomicLong();
+    private final SettableFuture<Response> primary = SettableFuture.create();
+    private final SettableFuture<Response> hedge = SettableFuture.create();
+
+    @Test
+    public void testUnsafeEndpointsAreNotHedged() {
+        when(delegate.execute(TestEndpoint.POST, REQUEST)).thenReturn(primary);
+        assertThat(channel(POLICY).execute(TestEndpoint.POST, REQUEST)).isSameAs(primary);
+        verifyNoInteractions(scheduler);
+    }
+
+    @Test
+    public void testIdempotentEndpointsAreHedged() {
+        when(delegate.execute(TestEndpoint.POST, REQUEST)).thenReturn(primary);
+        HedgingPolicy policy = HedgingPolicy.builder()
+                .delay(Duration.ofMillis(100))
+                .idempotentEndpoints(endpoint -> endpoint == TestEndpoint.POST)
+                .build();
+        channel(policy).execute(TestEndpoint.POST, REQUEST);
+        verify(scheduler)
+                .schedule(any(Runnable.class), eq(Duration.ofMillis(100).toNanos()), eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testHedgeWins() throws ExecutionException, InterruptedException {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        when(hedgeTarget.maybeExecute(TestEndpoint.GET, REQUEST)).thenReturn(hedge);
+        HedgingChannel channel = channel(POLICY);
+        ListenableFuture<Response> result = channel.execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+
+        TestResponse response = new TestResponse().code(200);
+        hedge.set(response);
+        assertThat(result.get()).isSameAs(response);
+        assertThat(primary).isCancelled();
+        assertThat(hedges()).isOne();
+    }
+
+    @Test
+    public void testPrimaryWins() throws ExecutionException, InterruptedException {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        when(hedgeTarget.maybeExecute(TestEndpoint.GET, REQUEST)).thenReturn(hedge);
+        ListenableFuture<Response> result = channel(POLICY).execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+
+        TestResponse winner = new TestResponse().code(200);
+        primary.set(winner);
+        assertThat(result.get()).isSameAs(winner);
+        assertThat(hedge).isCancelled();
+        assertThat(winner.isClosed()).isFalse();
+    }
+
+    @Test
+    public void testLosingResponseIsClosed() throws ExecutionException, InterruptedException {
+        UncancellableFuture uncancellable = new UncancellableFuture();
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        when(hedgeTarget.maybeExecute(TestEndpoint.GET, REQUEST)).thenReturn(uncancellable);
+        ListenableFuture<Response> result = channel(POLICY).execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+
+        TestResponse winner = new TestResponse().code(200);
+        TestResponse loser = new TestResponse().code(200);
+        primary.set(winner);
+        uncancellable.complete(loser);
+        assertThat(result.get()).isSameAs(winner);
+        assertThat(winner.isClosed()).isFalse();
+        assertThat(loser.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testHedgeSkippedWhenLimited() throws ExecutionException, InterruptedException {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        when(hedgeTarget.maybeExecute(TestEndpoint.GET, REQUEST)).thenReturn(null);
+        ListenableFuture<Response> result = channel(POLICY).execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+        assertThat(hedges()).isZero();
+
+        TestResponse response = new TestResponse().code(200);
+        primary.set(response);
+        assertThat(result.get()).isSameAs(response);
+    }
+
+    @Test
+    public void testFailsOnceAllAttemptsFail() {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        when(hedgeTarget.maybeExecute(TestEndpoint.GET, REQUEST)).thenReturn(hedge);
+        ListenableFuture<Response> result = channel(POLICY).execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+
+        primary.setException(new SafeIoException("primary"));
+        assertThat(result).isNotDone();
+        hedge.setException(new SafeIoException("hedge"));
+        assertThatThrownBy(result::get).hasRootCauseInstanceOf(SafeIoException.class);
+    }
+
+    @Test
+    public void testBudgetLimitsHedges() {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(primary);
+        HedgingPolicy policy = HedgingPolicy.builder()
+                .delay(Duration.ofMillis(100))
+                .maxExtraLoad(0)
+                .build();
+        channel(policy).execute(TestEndpoint.GET, REQUEST);
+        runScheduledHedge();
+        verify(hedgeTarget, never()).maybeExecute(any(), any());
+    }
+
+    @Test
+    public void testCompletedRequestsAreNotHedged() {
+        when(delegate.execute(TestEndpoint.GET, REQUEST)).thenReturn(Futures.immediateFuture(new TestResponse()));
+        channel(POLICY).execute(TestEndpoint.GET, REQUEST);
+        verifyNoInteractions(scheduler);
+    }
+
+    @Test
+    public void testLatencyPercentile() {
+        HedgingChannel.LatencyPercentile percentile = new HedgingChannel.LatencyPercentile(0.95);
+        for (int i = 1; i < 128; i++) {
+            percentile.record(i);
+        }
+        assertThat(percentile.get()).isEqualTo(Long.MAX_VALUE);
+        percentile.record(128);
+        assertThat(percentile.get()).isEqualTo(122);
+    }
+
+    private HedgingChannel channel(HedgingPolicy policy) {
+        return new HedgingChannel(
+                delegate,
+                hedgeTarget,
+                policy,
+                scheduler,
+                time::get,
+                DialogueClientMetrics.of(registry),
+                "my-channel");
+    }
+
+    private void runScheduledHedge() {
+        ArgumentCaptor<Runnable> hedgeTask = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(hedgeTask.capture(), anyLong(), eq(TimeUnit.NANOSECONDS));
+        hedgeTask.getValue().run();
+    }
+
+    private long hedges() {
+        return DialogueClientMetrics.of(registry).requestHedge("my-channel").getCount();
+    }
+
+    /** Simulates a response which arrives before the attempt is cancelled. */
+    private static final class UncancellableFuture extends AbstractFuture<Response> {
+        void complete(Response response) {
+            set(response);
+        }
+
+        @Override
+        public boolean cancel(boolean _mayInterruptIfRunning) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public final class OutlierDetectorTest {
+    private static final Duration COOLDOWN = Duration.ofSeconds(1);
+    private static final Request REQUEST = Request.builder().build();
+
+    private final AtomicLong now = new AtomicLong();
+    private final OutlierDetector detector = new OutlierDetector(
+            COOLDOWN, now::get, DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()), "channel");
+    private final AtomicReference<ListenableFuture<Response>> response = new AtomicReference<>();
+    private final LimitedChannel host = detector.host("host", (_endpoint, _request) -> response.get());
+    private final LimitedChannel other = detector.host("other", (_endpoint, _request) -> response.get());
+
+    @Test
+    public void ejects_host_after_consecutive_failures() {
+        for (int i = 0; i < OutlierDetector.CONSECUTIVE_FAILURES - 1; i++) {
+            respond(host, 500);
+        }
+        respond(host, 200);
+        respond(host, 500);
+        assertThat(detector.ejected()).describedAs("Failures were not consecutive").isZero();
+
+        for (int i = 0; i < OutlierDetector.CONSECUTIVE_FAILURES - 1; i++) {
+            fail(host);
+        }
+        assertThat(detector.ejected()).isOne();
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isNull();
+        assertThat(other.maybeExecute(TestEndpoint.GET, REQUEST)).isNotNull();
+    }
+
+    @Test
+    public void ejects_host_above_error_rate() {
+        for (int i = 0; i < OutlierDetector.MIN_REQUESTS / 2 - 1; i++) {
+            respond(host, 200);
+            respond(host, 503);
+        }
+        assertThat(detector.ejected()).describedAs("Not enough requests").isZero();
+
+        respond(host, 200);
+        respond(host, 503);
+        assertThat(detector.ejected()).isOne();
+    }
+
+    @Test
+    public void error_rate_is_measured_per_interval() {
+        for (int i = 0; i < OutlierDetector.MIN_REQUESTS; i++) {
+            respond(host, 200);
+        }
+        now.addAndGet(OutlierDetector.INTERVAL.toNanos());
+        for (int i = 0; i < OutlierDetector.MIN_REQUESTS / 2; i++) {
+            respond(host, 200);
+            respond(host, 500);
+        }
+        assertThat(detector.ejected()).isOne();
+    }
+
+    @Test
+    public void rate_limited_hosts_are_not_ejected() {
+        for (int i = 0; i < OutlierDetector.MIN_REQUESTS; i++) {
+            respond(host, 429);
+        }
+        assertThat(detector.ejected()).isZero();
+    }
+
+    @Test
+    public void cancelled_requests_are_not_failures() {
+        for (int i = 0; i < OutlierDetector.MIN_REQUESTS; i++) {
+            execute(host, Futures.immediateCancelledFuture());
+        }
+        assertThat(detector.ejected()).isZero();
+    }
+
+    @Test
+    public void readmits_host_once_probe_succeeds() {
+        eject(host);
+
+        now.addAndGet(COOLDOWN.toNanos());
+        SettableFuture<Response> probe = SettableFuture.create();
+        response.set(probe);
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isSameAs(probe);
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST))
+                .describedAs("Only one probe is sent per cooldown")
+                .isNull();
+
+        probe.set(new TestResponse().code(200));
+        assertThat(detector.ejected()).isZero();
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isSameAs(probe);
+    }
+
+    @Test
+    public void failed_probe_keeps_host_ejected() {
+        eject(host);
+
+        now.addAndGet(COOLDOWN.toNanos());
+        respond(host, 500);
+        assertThat(detector.ejected()).isOne();
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isNull();
+
+        now.addAndGet(COOLDOWN.toNanos());
+        respond(host, 200);
+        assertThat(detector.ejected()).isZero();
+    }
+
+    @Test
+    public void unanswered_probe_does_not_prevent_the_next_probe() {
+        eject(host);
+
+        now.addAndGet(COOLDOWN.toNanos());
+        response.set(SettableFuture.create());
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isNotNull();
+
+        now.addAndGet(COOLDOWN.toNanos());
+        respond(host, 200);
+        assertThat(detector.ejected()).isZero();
+    }
+
+    @Test
+    public void responses_to_requests_sent_before_ejection_do_not_readmit_host() {
+        SettableFuture<Response> inFlight = SettableFuture.create();
+        response.set(inFlight);
+        assertThat(host.maybeExecute(TestEndpoint.GET, REQUEST)).isSameAs(inFlight);
+        eject(host);
+
+        inFlight.set(new TestResponse().code(200));
+        assertThat(detector.ejected()).isOne();
+    }
+
+    @Test
+    public void ejects_at_most_half_of_the_hosts() {
+        eject(host);
+        for (int i = 0; i < OutlierDetector.CONSECUTIVE_FAILURES; i++) {
+            fail(other);
+        }
+        assertThat(detector.ejected()).isOne();
+        assertThat(other.maybeExecute(TestEndpoint.GET, REQUEST)).isNotNull();
+
+        detector.retain(ImmutableSet.of("other"));
+        fail(other);
+        assertThat(detector.ejected())
+                .describedAs("A single host is never ejected")
+                .isZero();
+    }
+
+    private void eject(LimitedChannel channel) {
+        for (int i = 0; i < OutlierDetector.CONSECUTIVE_FAILURES; i++) {
+            respond(channel, 500);
+        }
+        assertThat(channel.maybeExecute(TestEndpoint.GET, REQUEST)).isNull();
+    }
+
+    private void respond(LimitedChannel channel, int status) {
+        execute(channel, Futures.immediateFuture(new TestResponse().code(status)));
+    }
+
+    private void fail(LimitedChannel channel) {
+        execute(channel, Futures.immediateFailedFuture(new IOException("Connection refused")));
+    }
+
+    private void execute(LimitedChannel channel, ListenableFuture<Response> result) {
+        response.set(result);
+        assertThat(channel.maybeExecute(TestEndpoint.GET, REQUEST)).isSameAs(result);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public final class PeakEwmaLatencyTest {
+
+    private static final long MILLIS = Duration.ofMillis(1).toNanos();
+
+    private final AtomicLong time = new AtomicLong();
+    private final PeakEwmaLatency latency = new PeakEwmaLatency(time::get);
+
+    @Test
+    public void testUnknownHostsAreFreeUntilBusy() {
+        assertThat(latency.score()).isZero();
+        latency.requestStarted();
+        assertThat(latency.score()).isGreaterThan(Duration.ofDays(1).toNanos());
+    }
+
+    @Test
+    public void testSlowResponsesApplyImmediately() {
+        record(10 * MILLIS);
+        record(100 * MILLIS);
+        assertThat(latency.score()).isEqualTo(100 * MILLIS);
+    }
+
+    @Test
+    public void testFastResponsesApplyGradually() {
+        record(100 * MILLIS);
+        time.addAndGet(Duration.ofSeconds(1).toNanos());
+        record(10 * MILLIS);
+        assertThat(latency.score()).isBetween(10d * MILLIS, 100d * MILLIS);
+    }
+
+    @Test
+    public void testScoreIncludesInflightRequests() {
+        record(10 * MILLIS);
+        latency.requestStarted();
+        latency.requestStarted();
+        assertThat(latency.score()).isEqualTo(30d * MILLIS);
+        assertThat(latency.getInflight()).isEqualTo(2);
+    }
+
+    @Test
+    public void testScoreDecaysWithoutResponses() {
+        record(100 * MILLIS);
+        time.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertThat(latency.score()).isCloseTo(100 * MILLIS / Math.E, within(1d));
+    }
+
+    @Test
+    public void testFailuresNeverReduceScore() {
+        record(100 * MILLIS);
+        latency.requestStarted();
+        latency.requestFailed(MILLIS);
+        assertThat(latency.score()).isEqualTo(100 * MILLIS);
+        latency.requestStarted();
+        latency.requestFailed(200 * MILLIS);
+        assertThat(latency.score()).isEqualTo(200 * MILLIS);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int thread = 0; thread < 8; thread++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        record(MILLIS);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(latency.getInflight()).isZero();
+        assertThat(latency.score()).isEqualTo(MILLIS);
+    }
+
+    private void record(long latencyNanos) {
+        latency.requestStarted();
+        latency.requestSucceeded(latencyNanos);
+    }
+}
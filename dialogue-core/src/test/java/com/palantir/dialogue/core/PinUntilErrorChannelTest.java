@@ -18,22 +18,30 @@ package com.palantir.dialogue.core;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import com.github.benmanes.caffeine.cache.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.palantir.conjure.java.client.config.NodeSelectionStrategy;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.HttpMethod;
+import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
+import com.palantir.dialogue.UrlBuilder;
 import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -71,8 +79,8 @@ public class PinUntilErrorChannelTest {
         PinUntilErrorChannel.ReshufflingNodeList shufflingList =
                 PinUntilErrorChannel.ReshufflingNodeList.of(channels, pseudo, clock, metrics, channelName);
 
-        pinUntilErrorWithoutReshuffle = new PinUntilErrorChannel(constantList, 1, metrics, channelName);
-        pinUntilError = new PinUntilErrorChannel(shufflingList, 1, metrics, channelName);
+        pinUntilErrorWithoutReshuffle = new PinUntilErrorChannel(constantList, 1, pseudo, metrics, channelName);
+        pinUntilError = new PinUntilErrorChannel(shufflingList, 1, pseudo, metrics, channelName);
     }
 
     @Test
@@ -162,12 +170,12 @@ public class PinUntilErrorChannelTest {
         SettableFuture<Response> future1 = SettableFuture.create();
         SettableFuture<Response> future2 = SettableFuture.create();
         when(channel2.maybeExecute(any(), any()))
-                .thenReturn(Optional.of(future1))
-                .thenReturn(Optional.of(future2));
+                .thenReturn(future1)
+                .thenReturn(future2);
 
         // kick off two requests
-        pinUntilError.maybeExecute(null, null).get();
-        pinUntilError.maybeExecute(null, null).get();
+        assertThat(pinUntilError.maybeExecute(null, null)).isSameAs(future1);
+        assertThat(pinUntilError.maybeExecute(null, null)).isSameAs(future2);
 
         // second request completes before the first (i.e. out of order), but they both signify the host wass broken
         future2.set(response(500));
@@ -185,9 +193,43 @@ public class PinUntilErrorChannelTest {
 
     @Test
     public void finds_first_non_limited_channel() {
-        when(channel1.maybeExecute(any(), any())).thenReturn(Optional.empty());
+        when(channel1.maybeExecute(any(), any())).thenReturn(null);
         setResponse(channel2, 204);
-        assertThat(pinUntilError.maybeExecute(null, null)).isPresent();
+        assertThat(pinUntilError.maybeExecute(null, null)).isNotNull();
+    }
+
+    @Test
+    public void warming_up_host_only_receives_its_share_of_pinned_traffic() {
+        setResponse(channel1, 100);
+        setResponse(channel2, 204);
+        AtomicLong now = new AtomicLong();
+        SlowStartChannel warming = new SlowStartChannel(
+                channel1,
+                Duration.ofMinutes(1),
+                now::get,
+                DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()),
+                channelName,
+                true);
+        PinUntilErrorChannel pinned = new PinUntilErrorChannel(
+                new PinUntilErrorChannel.ConstantNodeList(ImmutableList.of(warming, channel2)),
+                0,
+                pseudo,
+                metrics,
+                channelName);
+
+        assertThat(IntStream.range(0, 1000).filter(number -> getCode(pinned) == 100).count())
+                .describedAs("The warming host starts with a small share of the traffic")
+                .isBetween(50L, 200L);
+
+        now.set(Duration.ofSeconds(30).toNanos());
+        assertThat(IntStream.range(0, 1000).filter(number -> getCode(pinned) == 100).count())
+                .describedAs("Half way through the window the warming host receives half of the traffic")
+                .isBetween(400L, 600L);
+
+        now.set(Duration.ofMinutes(1).toNanos());
+        assertThat(IntStream.range(0, 6).map(number -> getCode(pinned)))
+                .describedAs("Once warm the host receives all of the traffic")
+                .containsOnly(100);
     }
 
     @Test
@@ -201,9 +243,145 @@ public class PinUntilErrorChannelTest {
                 channelName);
     }
 
+    @Test
+    void endpoint_scoped_pinning_only_moves_the_failing_endpoint() {
+        Endpoint failing = endpoint("failing");
+        Endpoint healthy = endpoint("healthy");
+        PinUntilErrorChannel pinned = new PinUntilErrorChannel(
+                new PinUntilErrorChannel.ConstantNodeList(ImmutableList.of(channel1, channel2)),
+                1,
+                ImmutableMap.of(),
+                true,
+                pseudo,
+                metrics,
+                channelName);
+        setResponse(channel1, 100);
+        setResponse(channel2, 204);
+        setResponse(channel2, failing, 500);
+
+        assertThat(getCode(pinned, failing)).isEqualTo(500);
+        assertThat(IntStream.range(0, 6).map(number -> getCode(pinned, failing)))
+                .describedAs("The failing endpoint moves to the next host")
+                .containsOnly(100);
+        assertThat(IntStream.range(0, 6).map(number -> getCode(pinned, healthy)))
+                .describedAs("Other endpoints stay on their host")
+                .containsOnly(204);
+        assertThat(metrics.endpointNextNode()
+                        .channelName(channelName)
+                        .serviceName(failing.serviceName())
+                        .endpoint(failing.endpointName())
+                        .reason("responseCode")
+                        .build()
+                        .getCount())
+                .isOne();
+    }
+
+    @Test
+    void endpoint_scoped_pins_survive_reconstruction() {
+        Endpoint failing = endpoint("failing");
+        Endpoint healthy = endpoint("healthy");
+        PinUntilErrorChannel previous = PinUntilErrorChannel.of(
+                Optional.empty(),
+                ImmutableMap.of(),
+                NodeSelectionStrategy.PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE,
+                true,
+                ImmutableList.of(channel1, channel2),
+                metrics,
+                pseudo,
+                channelName);
+        LimitedChannel initial = previous.getCurrentChannel();
+        setResponse(channel1, 100);
+        setResponse(channel2, 204);
+        setResponse(initial, failing, 500);
+        int initialCode = getCode(previous, healthy);
+        getCode(previous, failing);
+
+        PinUntilErrorChannel reconstructed = PinUntilErrorChannel.of(
+                Optional.of(previous.getCurrentChannel()),
+                previous.getCurrentEndpointChannels(),
+                NodeSelectionStrategy.PIN_UNTIL_ERROR_WITHOUT_RESHUFFLE,
+                true,
+                ImmutableList.of(channel1, channel2),
+                metrics,
+                pseudo,
+                channelName);
+        setResponse(channel1, 100);
+        setResponse(channel2, 204);
+        assertThat(getCode(reconstructed, healthy)).isEqualTo(initialCode);
+        assertThat(getCode(reconstructed, failing)).isNotEqualTo(initialCode);
+    }
+
+    @Test
+    void endpoints_beyond_the_limit_share_a_pin() {
+        PinUntilErrorChannel pinned = new PinUntilErrorChannel(
+                new PinUntilErrorChannel.ConstantNodeList(ImmutableList.of(channel1, channel2)),
+                1,
+                ImmutableMap.of(),
+                true,
+                pseudo,
+                metrics,
+                channelName);
+        setResponse(channel1, 100);
+        setResponse(channel2, 204);
+        for (int i = 0; i < PinUntilErrorChannel.MAX_PINNED_ENDPOINTS; i++) {
+            assertThat(getCode(pinned, endpoint("endpoint-" + i))).isEqualTo(204);
+        }
+        Endpoint failing = endpoint("failing");
+        Endpoint other = endpoint("other");
+        setResponse(channel2, failing, 500);
+
+        assertThat(getCode(pinned, failing)).isEqualTo(500);
+        assertThat(getCode(pinned, other))
+                .describedAs("Endpoints which don't fit in the table share the pin of the channel")
+                .isEqualTo(100);
+        assertThat(getCode(pinned, endpoint("endpoint-0"))).isEqualTo(204);
+    }
+
+    private static int getCode(PinUntilErrorChannel channel, Endpoint endpoint) {
+        try {
+            ListenableFuture<Response> future = channel.maybeExecute(endpoint, Request.builder().build());
+            Response response = future.get(1, TimeUnit.MILLISECONDS);
+            return response.code();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void setResponse(LimitedChannel mockChannel, Endpoint endpoint, int status) {
+        Response resp = response(status);
+        lenient().when(mockChannel.maybeExecute(eq(endpoint), any())).thenReturn(Futures.immediateFuture(resp));
+    }
+
+    private static Endpoint endpoint(String name) {
+        return new Endpoint() {
+            @Override
+            public void renderPath(Map<String, String> _params, UrlBuilder _url) {}
+
+            @Override
+            public HttpMethod httpMethod() {
+                return HttpMethod.GET;
+            }
+
+            @Override
+            public String serviceName() {
+                return "service";
+            }
+
+            @Override
+            public String endpointName() {
+                return name;
+            }
+
+            @Override
+            public String version() {
+                return "1.0.0";
+            }
+        };
+    }
+
     private static int getCode(PinUntilErrorChannel channel) {
         try {
-            ListenableFuture<Response> future = channel.maybeExecute(null, null).get();
+            ListenableFuture<Response> future = channel.maybeExecute(null, null);
             Response response = future.get(1, TimeUnit.MILLISECONDS);
             return response.code();
         } catch (Exception e) {
@@ -215,7 +393,7 @@ public class PinUntilErrorChannelTest {
         Mockito.clearInvocations(mockChannel);
         Mockito.reset(mockChannel);
         Response resp = response(status);
-        lenient().when(mockChannel.maybeExecute(any(), any())).thenReturn(Optional.of(Futures.immediateFuture(resp)));
+        lenient().when(mockChannel.maybeExecute(any(), any())).thenReturn(Futures.immediateFuture(resp));
     }
 
     private static Response response(int status) {
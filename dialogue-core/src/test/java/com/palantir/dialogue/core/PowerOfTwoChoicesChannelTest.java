@@ -0,0 +1,151 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PowerOfTwoChoicesChannelTest {
+
+    private static final ListenableFuture<Response> CHANNEL_C_RESPONSE = SettableFuture.create();
+
+    @Mock
+    private LimitedChannel channelA;
+
+    @Mock
+    private LimitedChannel channelB;
+
+    @Mock
+    private LimitedChannel channelC;
+
+    @Mock
+    private Endpoint endpoint;
+
+    @Mock
+    private Request request;
+
+    @Test
+    public void testPrefersLessLoadedHosts() {
+        ConcurrencyLimitedChannel busy = limitedChannel(0);
+        ConcurrencyLimitedChannel idle1 = limitedChannel(1);
+        ConcurrencyLimitedChannel idle2 = limitedChannel(2);
+        for (int i = 0; i < 10; i++) {
+            assertThat(busy.maybeExecute(TestEndpoint.GET, Request.builder().build()))
+                    .isNotNull();
+        }
+
+        PowerOfTwoChoicesChannel channel = PowerOfTwoChoicesChannel.leastOutstandingRequests(
+                ImmutableList.of(busy, idle1, idle2), new Random(12345L));
+        for (int i = 0; i < 8; i++) {
+            assertThat(channel.maybeExecute(TestEndpoint.GET, Request.builder().build()))
+                    .isNotNull();
+        }
+
+        assertThat(busy.getInflight()).isEqualTo(10);
+        assertThat(idle1.getInflight() + idle2.getInflight()).isEqualTo(8);
+    }
+
+    @Test
+    public void testFallsBackWhenBothChoicesAreLimited() {
+        lenient().when(channelA.maybeExecute(endpoint, request)).thenReturn(null);
+        lenient().when(channelB.maybeExecute(endpoint, request)).thenReturn(null);
+        lenient().when(channelC.maybeExecute(endpoint, request)).thenReturn(CHANNEL_C_RESPONSE);
+        PowerOfTwoChoicesChannel channel = PowerOfTwoChoicesChannel.leastOutstandingRequests(
+                ImmutableList.of(channelA, channelB, channelC), new Random(0L));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(channel.maybeExecute(endpoint, request)).isSameAs(CHANNEL_C_RESPONSE);
+        }
+    }
+
+    @Test
+    public void testNoChannelsAvailable() {
+        when(channelA.maybeExecute(endpoint, request)).thenReturn(null);
+        when(channelB.maybeExecute(endpoint, request)).thenReturn(null);
+        PowerOfTwoChoicesChannel channel =
+                PowerOfTwoChoicesChannel.leastOutstandingRequests(ImmutableList.of(channelA, channelB), new Random(0L));
+
+        assertThat(channel.maybeExecute(endpoint, request)).isNull();
+    }
+
+    @Test
+    public void testUnlimitedChannelsReportNoLoad() {
+        assertThat(PowerOfTwoChoicesChannel.utilization(channelA)).isZero();
+        assertThat(PowerOfTwoChoicesChannel.latencyScore(channelA)).isZero();
+    }
+
+    @Test
+    public void testPrefersLowerLatencyHosts() {
+        AtomicLong time = new AtomicLong();
+        PeakEwmaLatency slowLatency = new PeakEwmaLatency(time::get);
+        PeakEwmaLatency fastLatency = new PeakEwmaLatency(time::get);
+        slowLatency.requestStarted();
+        slowLatency.requestSucceeded(Duration.ofSeconds(1).toNanos());
+        fastLatency.requestStarted();
+        fastLatency.requestSucceeded(Duration.ofMillis(10).toNanos());
+        lenient().when(channelA.maybeExecute(endpoint, request)).thenReturn(null);
+        lenient().when(channelB.maybeExecute(endpoint, request)).thenReturn(CHANNEL_C_RESPONSE);
+        PowerOfTwoChoicesChannel channel = PowerOfTwoChoicesChannel.latencyAware(
+                ImmutableList.of(
+                        new LatencyTrackingChannel(channelA, slowLatency),
+                        new LatencyTrackingChannel(channelB, fastLatency)),
+                new Random(0L));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(channel.maybeExecute(endpoint, request)).isSameAs(CHANNEL_C_RESPONSE);
+        }
+        verify(channelA, never()).maybeExecute(endpoint, request);
+    }
+
+    @Test
+    public void testRequiresMultipleChannels() {
+        assertThatThrownBy(() ->
+                        PowerOfTwoChoicesChannel.leastOutstandingRequests(ImmutableList.of(channelA), new Random(0L)))
+                .isInstanceOf(SafeIllegalArgumentException.class);
+    }
+
+    private static ConcurrencyLimitedChannel limitedChannel(int uriIndex) {
+        return new ConcurrencyLimitedChannel(
+                new ChannelToLimitedChannelAdapter((_endpoint, _request) -> SettableFuture.create()),
+                ConcurrencyLimitedChannel.createLimiter(),
+                "channel",
+                uriIndex,
+                new DefaultTaggedMetricRegistry());
+    }
+}
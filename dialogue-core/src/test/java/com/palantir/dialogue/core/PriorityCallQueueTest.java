@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.SettableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.tracing.DetachedSpan;
+import org.junit.jupiter.api.Test;
+
+public final class PriorityCallQueueTest {
+
+    private final PriorityCallQueue queue = new PriorityCallQueue(
+            new EndpointPriorities(endpoint ->
+                    endpoint == TestEndpoint.GET ? RequestPriority.INTERACTIVE : RequestPriority.BACKGROUND),
+            QueuedChannel::fifoQueue);
+
+    @Test
+    public void testHigherPrioritiesAreDequeuedFirst() {
+        QueuedChannel.DeferredCall background = call(TestEndpoint.POST);
+        QueuedChannel.DeferredCall interactive = call(TestEndpoint.GET);
+        queue.offer(background);
+        queue.offer(interactive);
+
+        assertThat(queue.poll()).isSameAs(interactive);
+        assertThat(queue.poll()).isSameAs(background);
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void testSamePriorityIsDequeuedInOrder() {
+        QueuedChannel.DeferredCall first = call(TestEndpoint.GET);
+        QueuedChannel.DeferredCall second = call(TestEndpoint.GET);
+        queue.offer(first);
+        queue.offer(second);
+
+        assertThat(queue.poll()).isSameAs(first);
+        queue.offerFirst(first);
+        assertThat(queue.poll()).isSameAs(first);
+        assertThat(queue.poll()).isSameAs(second);
+    }
+
+    @Test
+    public void testOfferFirstDoesNotJumpHigherPriorities() {
+        QueuedChannel.DeferredCall background = call(TestEndpoint.POST);
+        QueuedChannel.DeferredCall interactive = call(TestEndpoint.GET);
+        queue.offer(interactive);
+        queue.offerFirst(background);
+
+        assertThat(queue.poll()).isSameAs(interactive);
+        assertThat(queue.poll()).isSameAs(background);
+    }
+
+    private static QueuedChannel.DeferredCall call(Endpoint endpoint) {
+        return QueuedChannel.DeferredCall.builder()
+                .endpoint(endpoint)
+                .request(Request.builder().build())
+                .response(SettableFuture.create())
+                .span(DetachedSpan.start("test"))
+                .timer(new Timer().time())
+                .enqueued(0)
+                .deadline(Long.MAX_VALUE)
+                .build();
+    }
+}
@@ -18,6 +18,7 @@ package com.palantir.dialogue.core;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -30,11 +31,14 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
+import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import com.palantir.tracing.TestTracing;
 import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
 import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -62,14 +66,12 @@ public class QueuedChannelTest {
 
     private QueuedChannel queuedChannel;
     private SettableFuture<Response> futureResponse;
-    private Optional<ListenableFuture<Response>> maybeResponse;
 
     @BeforeEach
     public void before() {
         queuedChannel = new QueuedChannel(
                 delegate, "my-channel", DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()), 100_000);
         futureResponse = SettableFuture.create();
-        maybeResponse = Optional.of(futureResponse);
 
         mockHasCapacity();
     }
@@ -77,7 +79,7 @@ public class QueuedChannelTest {
     @Test
     public void testReceivesSuccessfulResponse() throws ExecutionException, InterruptedException {
         ListenableFuture<Response> response =
-                queuedChannel.maybeExecute(endpoint, request).get();
+                queuedChannel.maybeExecute(endpoint, request);
         assertThat(response.isDone()).isFalse();
 
         futureResponse.set(mockResponse);
@@ -89,7 +91,7 @@ public class QueuedChannelTest {
     @Test
     public void testReceivesExceptionalResponse() {
         ListenableFuture<Response> response =
-                queuedChannel.maybeExecute(endpoint, request).get();
+                queuedChannel.maybeExecute(endpoint, request);
         assertThat(response.isDone()).isFalse();
 
         futureResponse.setException(new IllegalArgumentException());
@@ -115,18 +117,18 @@ public class QueuedChannelTest {
     public void testQueuedRequestExecutedOnNextSubmission_throws() throws ExecutionException, InterruptedException {
         // First request is limited by the channel and queued
         Request queuedRequest = Mockito.mock(Request.class);
-        when(delegate.maybeExecute(endpoint, queuedRequest)).thenReturn(Optional.empty());
+        when(delegate.maybeExecute(endpoint, queuedRequest)).thenReturn(null);
         ListenableFuture<Response> queuedFuture =
-                queuedChannel.maybeExecute(endpoint, queuedRequest).get();
+                queuedChannel.maybeExecute(endpoint, queuedRequest);
         verify(delegate, times(2)).maybeExecute(endpoint, queuedRequest);
         assertThat(queuedFuture).isNotDone();
 
         // Second request succeeds and the queued request is attempted, but throws an exception
         futureResponse.set(mockResponse);
-        when(delegate.maybeExecute(endpoint, request)).thenReturn(maybeResponse);
+        when(delegate.maybeExecute(endpoint, request)).thenReturn(futureResponse);
         when(delegate.maybeExecute(endpoint, queuedRequest)).thenThrow(new NullPointerException("expected"));
         ListenableFuture<Response> completed =
-                queuedChannel.maybeExecute(endpoint, request).get();
+                queuedChannel.maybeExecute(endpoint, request);
         // Both results should be completed. The thrown exception should
         // be converted into a failed future by NeverThrowLimitedChannel
         assertThat(completed).isDone();
@@ -177,7 +179,7 @@ public class QueuedChannelTest {
         mockNoCapacity();
         queuedChannel.maybeExecute(endpoint, request);
 
-        assertThat(queuedChannel.maybeExecute(endpoint, request)).isEmpty();
+        assertThat(queuedChannel.maybeExecute(endpoint, request)).isNull();
     }
 
     @Test
@@ -191,7 +193,7 @@ public class QueuedChannelTest {
         mockNoCapacity();
         queuedChannel.maybeExecute(endpoint, request);
 
-        assertThat(queuedChannel.maybeExecute(endpoint, request)).isEmpty();
+        assertThat(queuedChannel.maybeExecute(endpoint, request)).isNull();
         assertThat(metrics.requestsQueued(channelName).getCount()).isOne();
     }
 
@@ -204,8 +206,7 @@ public class QueuedChannelTest {
         queuedChannel = new QueuedChannel(delegate, "my-channel", metrics, 1);
 
         mockNoCapacity();
-        assertThat(queuedChannel.maybeExecute(endpoint, request))
-                .hasValueSatisfying(future -> assertThat(future).isNotDone());
+        assertThat(queuedChannel.maybeExecute(endpoint, request)).isNotDone();
         mockHasCapacity();
         queuedChannel.schedule();
         futureResponse.set(mockResponse);
@@ -224,9 +225,9 @@ public class QueuedChannelTest {
         queuedChannel = new QueuedChannel(delegate, "my-channel", metrics, 1);
 
         mockNoCapacity();
-        Optional<ListenableFuture<Response>> result = queuedChannel.maybeExecute(endpoint, request);
-        assertThat(result).hasValueSatisfying(future -> assertThat(future).isNotDone());
-        result.get().cancel(true);
+        ListenableFuture<Response> result = queuedChannel.maybeExecute(endpoint, request);
+        assertThat(result).isNotDone();
+        result.cancel(true);
         queuedChannel.schedule();
 
         Timer timer = metrics.requestQueuedTime(channelName);
@@ -238,18 +239,18 @@ public class QueuedChannelTest {
     public void testQueuedResponseClosedOnCancel() {
         Request queuedRequest =
                 Request.builder().pathParams(ImmutableMap.of("foo", "bar")).build();
-        when(delegate.maybeExecute(endpoint, queuedRequest)).thenReturn(Optional.empty());
+        when(delegate.maybeExecute(endpoint, queuedRequest)).thenReturn(null);
         ListenableFuture<Response> result =
-                queuedChannel.maybeExecute(endpoint, queuedRequest).get();
+                queuedChannel.maybeExecute(endpoint, queuedRequest);
         verify(delegate, times(2)).maybeExecute(endpoint, queuedRequest);
 
         when(delegate.maybeExecute(endpoint, request))
-                .thenReturn(Optional.of(Futures.immediateFuture(Mockito.mock(Response.class))));
+                .thenReturn(Futures.immediateFuture(Mockito.mock(Response.class)));
         when(delegate.maybeExecute(endpoint, queuedRequest))
-                .thenAnswer((Answer<Optional<ListenableFuture<Response>>>) _invocation -> {
+                .thenAnswer((Answer<ListenableFuture<Response>>) _invocation -> {
                     // cancel from this invocation to simulate the race between cancellation and execution
                     assertThat(result.cancel(true)).isTrue();
-                    return Optional.of(Futures.immediateFuture(mockResponse));
+                    return Futures.immediateFuture(mockResponse);
                 });
         // Force scheduling
         queuedChannel.maybeExecute(endpoint, request);
@@ -261,14 +262,14 @@ public class QueuedChannelTest {
     @Test
     public void testQueuedResponsePropagatesCancel() {
         Request queued = Request.builder().putHeaderParams("key", "val").build();
-        when(delegate.maybeExecute(endpoint, queued)).thenReturn(Optional.empty());
+        when(delegate.maybeExecute(endpoint, queued)).thenReturn(null);
         ListenableFuture<Response> result =
-                queuedChannel.maybeExecute(endpoint, queued).get();
+                queuedChannel.maybeExecute(endpoint, queued);
         verify(delegate, times(2)).maybeExecute(endpoint, queued);
 
         when(delegate.maybeExecute(endpoint, request))
-                .thenReturn(Optional.of(Futures.immediateFuture(Mockito.mock(Response.class))));
-        when(delegate.maybeExecute(endpoint, queued)).thenReturn(maybeResponse);
+                .thenReturn(Futures.immediateFuture(Mockito.mock(Response.class)));
+        when(delegate.maybeExecute(endpoint, queued)).thenReturn(futureResponse);
         queuedChannel.maybeExecute(endpoint, request);
         result.cancel(true);
         assertThat(futureResponse).isCancelled();
@@ -279,25 +280,269 @@ public class QueuedChannelTest {
     @Test
     public void testQueuedResponseAvoidsExecutingCancelled() {
         Request queued = Request.builder().putHeaderParams("key", "val").build();
-        when(delegate.maybeExecute(endpoint, queued)).thenReturn(Optional.empty());
+        when(delegate.maybeExecute(endpoint, queued)).thenReturn(null);
         ListenableFuture<Response> result =
-                queuedChannel.maybeExecute(endpoint, queued).get();
+                queuedChannel.maybeExecute(endpoint, queued);
         verify(delegate, times(2)).maybeExecute(endpoint, queued);
 
         assertThat(result.cancel(true)).isTrue();
         when(delegate.maybeExecute(endpoint, request))
-                .thenReturn(Optional.of(Futures.immediateFuture(Mockito.mock(Response.class))));
+                .thenReturn(Futures.immediateFuture(Mockito.mock(Response.class)));
         queuedChannel.maybeExecute(endpoint, request);
         verify(delegate, times(1)).maybeExecute(endpoint, request);
         // Should not have been invoked any more.
         verify(delegate, times(2)).maybeExecute(endpoint, queued);
     }
 
-    private OngoingStubbing<Optional<ListenableFuture<Response>>> mockHasCapacity() {
-        return when(delegate.maybeExecute(endpoint, request)).thenReturn(maybeResponse);
+    @Test
+    public void testExpiredRequestsAreDropped() {
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                metrics,
+                100,
+                time::get,
+                _endpoint -> Optional.of(Duration.ofMillis(100)),
+                QueuedChannel.fifoQueue());
+
+        mockNoCapacity();
+        ListenableFuture<Response> queued =
+                queuedChannel.maybeExecute(endpoint, request);
+        verify(delegate, times(2)).maybeExecute(endpoint, request);
+
+        time.addAndGet(Duration.ofMillis(100).toNanos());
+        // Capacity is available, but the expired request should not be attempted
+        lenient().when(delegate.maybeExecute(endpoint, request)).thenReturn(futureResponse);
+        queuedChannel.schedule();
+        assertThat(queued).isDone();
+        assertThatThrownBy(queued::get).hasCauseInstanceOf(SafeRuntimeException.class);
+        verify(delegate, times(2)).maybeExecute(endpoint, request);
+        assertThat(metrics.requestQueuedDropped("my-channel").getCount()).isOne();
+        assertThat(metrics.requestsQueued("my-channel").getCount()).isZero();
+    }
+
+    @Test
+    public void testRejectsRequestsWhenQueueTimeExceedsDeadline() {
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                metrics,
+                100,
+                time::get,
+                _endpoint -> Optional.of(Duration.ofMillis(10)),
+                QueuedChannel.fifoQueue());
+
+        mockNoCapacity();
+        ListenableFuture<Response> expired =
+                queuedChannel.maybeExecute(endpoint, request);
+        time.addAndGet(Duration.ofMillis(400).toNanos());
+        // Scheduling drops the expired request, which waited much longer than the deadline
+        queuedChannel.schedule();
+        assertThat(expired).isDone();
+        ListenableFuture<Response> queued =
+                queuedChannel.maybeExecute(endpoint, request);
+        assertThat(queued).isNotDone();
+
+        ListenableFuture<Response> rejected =
+                queuedChannel.maybeExecute(endpoint, request);
+        assertThat(rejected).isDone();
+        assertThatThrownBy(rejected::get).hasCauseInstanceOf(SafeRuntimeException.class);
+        assertThat(metrics.requestQueuedRejected("my-channel").getCount()).isOne();
+    }
+
+    @Test
+    public void testDoesNotRejectRequestsAfterRecovery() {
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                metrics,
+                100,
+                time::get,
+                _endpoint -> Optional.of(Duration.ofMillis(10)),
+                QueuedChannel.fifoQueue());
+
+        mockNoCapacity();
+        ListenableFuture<Response> expired =
+                queuedChannel.maybeExecute(endpoint, request);
+        time.addAndGet(Duration.ofMillis(400).toNanos());
+        queuedChannel.schedule();
+        assertThat(expired).isDone();
+
+        // Requests which bypass the queue once it has recovered wait no time at all
+        mockHasCapacity();
+        for (int i = 0; i < 20; i++) {
+            assertThat(queuedChannel.maybeExecute(endpoint, request)).isNotDone();
+        }
+
+        mockNoCapacity();
+        ListenableFuture<Response> first =
+                queuedChannel.maybeExecute(endpoint, request);
+        ListenableFuture<Response> second =
+                queuedChannel.maybeExecute(endpoint, request);
+        assertThat(first).isNotDone();
+        assertThat(second).isNotDone();
+        assertThat(metrics.requestQueuedRejected("my-channel").getCount()).isZero();
+    }
+
+    @Test
+    public void testRejectsRequestsWhileQueueIsStuck() {
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                metrics,
+                100,
+                time::get,
+                _endpoint -> Optional.of(Duration.ofMillis(100)),
+                QueuedChannel.fifoQueue());
+
+        mockNoCapacity();
+        ListenableFuture<Response> queued =
+                queuedChannel.maybeExecute(endpoint, request);
+        // The moving average is never updated, but the queue has gone without dequeueing longer than the deadline
+        time.addAndGet(Duration.ofMillis(150).toNanos());
+        ListenableFuture<Response> rejected =
+                queuedChannel.maybeExecute(endpoint, request);
+        assertThat(rejected).isDone();
+        assertThatThrownBy(rejected::get).hasCauseInstanceOf(SafeRuntimeException.class);
+        assertThat(queued).isNotDone();
+        assertThat(metrics.requestQueuedRejected("my-channel").getCount()).isOne();
+    }
+
+    @Test
+    public void testRequestsWithoutDeadlineAreNotDropped() {
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()),
+                100,
+                time::get,
+                _endpoint -> Optional.empty(),
+                QueuedChannel.fifoQueue());
+
+        mockNoCapacity();
+        ListenableFuture<Response> queued =
+                queuedChannel.maybeExecute(endpoint, request);
+        time.addAndGet(Duration.ofDays(1).toNanos());
+        mockHasCapacity();
+        queuedChannel.schedule();
+        futureResponse.set(mockResponse);
+        assertThat(queued).isDone();
+        assertThat(Futures.getUnchecked(queued)).isSameAs(mockResponse);
+    }
+
+    @Test
+    public void testStaleRequestsAreShedWhenOverloaded() {
+        DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+        AtomicLong time = new AtomicLong();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                metrics,
+                100,
+                time::get,
+                _endpoint -> Optional.empty(),
+                new AdaptiveLifoQueue(Duration.ofMillis(5), Duration.ofMillis(100), time::get, metrics, "my-channel"));
+
+        mockNoCapacity();
+        ListenableFuture<Response> stale =
+                queuedChannel.maybeExecute(endpoint, request);
+        time.addAndGet(Duration.ofMillis(100).toNanos());
+        ListenableFuture<Response> older =
+                queuedChannel.maybeExecute(endpoint, request);
+        time.addAndGet(Duration.ofMillis(100).toNanos());
+        // The queue never drained, so the stale request is shed
+        ListenableFuture<Response> newer =
+                queuedChannel.maybeExecute(endpoint, request);
+
+        assertThat(stale).isDone();
+        assertThatThrownBy(stale::get).hasCauseInstanceOf(SafeRuntimeException.class);
+        assertThat(older).isNotDone();
+        assertThat(newer).isNotDone();
+        assertThat(metrics.requestQueuedShed("my-channel").getCount()).isOne();
+        assertThat(metrics.requestsQueued("my-channel").getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLimitedEndpointDoesNotBlockOtherEndpoints() {
+        Endpoint otherEndpoint = Mockito.mock(Endpoint.class);
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()),
+                100,
+                System::nanoTime,
+                _endpoint -> Optional.empty(),
+                QueuedChannel.fifoQueue(),
+                candidate -> candidate == endpoint);
+
+        mockNoCapacity();
+        ListenableFuture<Response> limited =
+                queuedChannel.maybeExecute(endpoint, request);
+        SettableFuture<Response> otherResponse = SettableFuture.create();
+        when(delegate.maybeExecute(otherEndpoint, request)).thenReturn(otherResponse);
+        // The limited request is at the head of the queue, but only its endpoint is limited
+        ListenableFuture<Response> other =
+                queuedChannel.maybeExecute(otherEndpoint, request);
+        otherResponse.set(mockResponse);
+        assertThat(other).isDone();
+        assertThat(limited).isNotDone();
+        ListenableFuture<Response> limitedLater =
+                queuedChannel.maybeExecute(endpoint, request);
+        assertThat(limitedLater).isNotDone();
+
+        mockHasCapacity();
+        queuedChannel.schedule();
+        futureResponse.set(mockResponse);
+        assertThat(limited).isDone();
+        assertThat(limitedLater).isDone();
+    }
+
+    @Test
+    public void testRequestsToLimitedEndpointsStayQueued() {
+        Endpoint otherEndpoint = Mockito.mock(Endpoint.class);
+        QueuedChannel.CallQueue queue = QueuedChannel.fifoQueue();
+        queuedChannel = new QueuedChannel(
+                delegate,
+                "my-channel",
+                DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()),
+                100,
+                System::nanoTime,
+                _endpoint -> Optional.empty(),
+                queue,
+                candidate -> candidate == endpoint);
+
+        mockNoCapacity();
+        ListenableFuture<Response> first =
+                queuedChannel.maybeExecute(endpoint, request);
+        ListenableFuture<Response> second =
+                queuedChannel.maybeExecute(endpoint, request);
+        when(delegate.maybeExecute(otherEndpoint, request)).thenReturn(SettableFuture.create());
+        queuedChannel.maybeExecute(otherEndpoint, request);
+
+        // Skipped requests are returned to the queue in order, so that it still decides which to execute or shed
+        QueuedChannel.DeferredCall head = queue.poll();
+        QueuedChannel.DeferredCall next = queue.poll();
+        assertThat(head).isNotNull();
+        assertThat(head.response()).isSameAs(first);
+        assertThat(next).isNotNull();
+        assertThat(next.response()).isSameAs(second);
+        assertThat(queue.poll()).isNull();
+    }
+
+    private OngoingStubbing<ListenableFuture<Response>> mockHasCapacity() {
+        return when(delegate.maybeExecute(endpoint, request)).thenReturn(futureResponse);
     }
 
-    private OngoingStubbing<Optional<ListenableFuture<Response>>> mockNoCapacity() {
-        return when(delegate.maybeExecute(endpoint, request)).thenReturn(Optional.empty());
+    private OngoingStubbing<ListenableFuture<Response>> mockNoCapacity() {
+        return when(delegate.maybeExecute(endpoint, request)).thenReturn(null);
     }
 }
@@ -29,9 +29,11 @@ import com.palantir.dialogue.Endpoint;
 import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
-import java.util.Optional;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.time.Duration;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -42,9 +44,8 @@ import org.mockito.stubbing.Answer;
 @ExtendWith(MockitoExtension.class)
 public class RandomSelectionChannelTest {
 
-    private static final Optional<ListenableFuture<Response>> CHANNEL_A_RESPONSE = Optional.of(SettableFuture.create());
-    private static final Optional<ListenableFuture<Response>> CHANNEL_B_RESPONSE = Optional.of(SettableFuture.create());
-    private static final Optional<ListenableFuture<Response>> UNAVAILABLE = Optional.empty();
+    private static final ListenableFuture<Response> CHANNEL_A_RESPONSE = SettableFuture.create();
+    private static final ListenableFuture<Response> CHANNEL_B_RESPONSE = SettableFuture.create();
 
     @Mock
     private LimitedChannel channelA;
@@ -63,6 +64,8 @@ public class RandomSelectionChannelTest {
 
     private RandomSelectionChannel loadBalancer;
 
+    private final AtomicLong now = new AtomicLong();
+
     @BeforeEach
     public void before() {
         AtomicInteger index = new AtomicInteger();
@@ -78,25 +81,53 @@ public class RandomSelectionChannelTest {
 
     @Test
     public void testRoundRobins() {
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEqualTo(CHANNEL_A_RESPONSE);
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEqualTo(CHANNEL_B_RESPONSE);
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEqualTo(CHANNEL_A_RESPONSE);
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isSameAs(CHANNEL_A_RESPONSE);
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isSameAs(CHANNEL_B_RESPONSE);
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isSameAs(CHANNEL_A_RESPONSE);
     }
 
     @Test
     public void testIgnoresUnavailableChannels() {
-        when(channelA.maybeExecute(endpoint, request)).thenReturn(UNAVAILABLE);
+        when(channelA.maybeExecute(endpoint, request)).thenReturn(null);
 
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEqualTo(CHANNEL_B_RESPONSE);
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEqualTo(CHANNEL_B_RESPONSE);
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isSameAs(CHANNEL_B_RESPONSE);
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isSameAs(CHANNEL_B_RESPONSE);
     }
 
     @Test
     public void testNoChannelsAvailable() {
-        when(channelA.maybeExecute(endpoint, request)).thenReturn(UNAVAILABLE);
-        when(channelB.maybeExecute(endpoint, request)).thenReturn(UNAVAILABLE);
+        when(channelA.maybeExecute(endpoint, request)).thenReturn(null);
+        when(channelB.maybeExecute(endpoint, request)).thenReturn(null);
+
+        assertThat(loadBalancer.maybeExecute(endpoint, request)).isNull();
+    }
+
+    @Test
+    public void testWarmingChannelsAreSelectedByWeight() {
+        RandomSelectionChannel warming = new RandomSelectionChannel(ImmutableList.of(slowStart(), channelB), random);
+        when(random.nextDouble()).thenReturn(0.05, 0.5);
 
-        assertThat(loadBalancer.maybeExecute(endpoint, request)).isEmpty();
+        // Weights are 0.1 and 1
+        assertThat(warming.maybeExecute(endpoint, request)).isSameAs(CHANNEL_A_RESPONSE);
+        assertThat(warming.maybeExecute(endpoint, request)).isSameAs(CHANNEL_B_RESPONSE);
+    }
+
+    @Test
+    public void testWarmingChannelIgnoresUnavailableChannels() {
+        RandomSelectionChannel warming = new RandomSelectionChannel(ImmutableList.of(slowStart(), channelB), random);
+        when(channelB.maybeExecute(endpoint, request)).thenReturn(null);
+        when(random.nextDouble()).thenReturn(0.5);
+
+        assertThat(warming.maybeExecute(endpoint, request)).isSameAs(CHANNEL_A_RESPONSE);
+    }
+
+    @Test
+    public void testRoundRobinsOnceWarm() {
+        RandomSelectionChannel warm = new RandomSelectionChannel(ImmutableList.of(slowStart(), channelB), random);
+        now.set(Duration.ofMinutes(1).toNanos());
+
+        assertThat(warm.maybeExecute(endpoint, request)).isSameAs(CHANNEL_A_RESPONSE);
+        assertThat(warm.maybeExecute(endpoint, request)).isSameAs(CHANNEL_B_RESPONSE);
     }
 
     @Test
@@ -104,4 +135,14 @@ public class RandomSelectionChannelTest {
         assertThatThrownBy(() -> new RandomSelectionChannel(ImmutableList.of(), random))
                 .isInstanceOf(SafeIllegalArgumentException.class);
     }
+
+    private SlowStartChannel slowStart() {
+        return new SlowStartChannel(
+                channelA,
+                Duration.ofMinutes(1),
+                now::get,
+                DialogueClientMetrics.of(new DefaultTaggedMetricRegistry()),
+                "channel",
+                true);
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Endpoint;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BiFunction;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+public final class RendezvousHashingChannelTest {
+
+    private static final BiFunction<Endpoint, Request, Optional<String>> AFFINITY_KEY =
+            (_endpoint, request) -> request.headerParams().get("key").stream().findFirst();
+
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    @Test
+    public void testKeysStickToOneHost() {
+        RendezvousHashingChannel channel = channel("a", "b", "c");
+        Set<String> owners = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String owner = owner(channel, "key-" + i);
+            assertThat(owner(channel, "key-" + i)).isEqualTo(owner);
+            owners.add(owner);
+        }
+        assertThat(owners).containsExactlyInAnyOrder("a", "b", "c");
+    }
+
+    @Test
+    public void testLimitedHostFallsBackToNextHost() {
+        RendezvousHashingChannel channel = channel("a", "b", "c");
+        String owner = owner(channel, "key");
+        hosts.get(owner).limited = true;
+
+        String fallback = owner(channel, "key");
+        assertThat(fallback).isNotEqualTo(owner);
+        assertThat(owner(channel, "key")).isEqualTo(fallback);
+
+        hosts.get(fallback).limited = true;
+        String last = owner(channel, "key");
+        assertThat(last).isNotIn(owner, fallback);
+
+        hosts.get(last).limited = true;
+        assertThat(channel.maybeExecute(TestEndpoint.GET, request("key"))).isNull();
+
+        hosts.get(owner).limited = false;
+        assertThat(owner(channel, "key")).isEqualTo(owner);
+    }
+
+    @Test
+    public void testOnlyKeysOfChangedHostsMove() {
+        RendezvousHashingChannel before = channel("a", "b", "c");
+        RendezvousHashingChannel added = channel("a", "b", "c", "d");
+        RendezvousHashingChannel removed = channel("a", "b");
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+            String owner = owner(before, key);
+            String ownerAfterAdding = owner(added, key);
+            if (!ownerAfterAdding.equals("d")) {
+                assertThat(ownerAfterAdding).isEqualTo(owner);
+            } else {
+                moved++;
+            }
+            if (!owner.equals("c")) {
+                assertThat(owner(removed, key)).isEqualTo(owner);
+            }
+        }
+        // The added host takes roughly a quarter of the keys
+        assertThat(moved).isBetween(150, 350);
+    }
+
+    @Test
+    public void testRankingDoesNotDependOnHostOrder() {
+        RendezvousHashingChannel forwards = channel("a", "b", "c");
+        RendezvousHashingChannel backwards = channel("c", "b", "a");
+        for (int i = 0; i < 100; i++) {
+            assertThat(owner(backwards, "key-" + i)).isEqualTo(owner(forwards, "key-" + i));
+        }
+    }
+
+    @Test
+    public void testRequestsWithoutKeyUseAnyAvailableHost() {
+        RendezvousHashingChannel channel = channel("a", "b");
+        hosts.get("a").limited = true;
+        for (int i = 0; i < 10; i++) {
+            assertThat(channel.maybeExecute(TestEndpoint.GET, Request.builder().build()))
+                    .isNotNull();
+        }
+        assertThat(hosts.get("a").requests).isZero();
+        assertThat(hosts.get("b").requests).isEqualTo(10);
+    }
+
+    private RendezvousHashingChannel channel(String... uris) {
+        ImmutableMap.Builder<String, LimitedChannel> channels = ImmutableMap.builder();
+        for (String uri : uris) {
+            channels.put(uri, hosts.computeIfAbsent(uri, Host::new));
+        }
+        return new RendezvousHashingChannel(channels.build(), AFFINITY_KEY, new Random(12345));
+    }
+
+    private String owner(RendezvousHashingChannel channel, String key) {
+        ListenableFuture<Response> response = channel.maybeExecute(TestEndpoint.GET, request(key));
+        assertThat(response).isNotNull();
+        return Futures.getUnchecked(response).headers().get("host").get(0);
+    }
+
+    private static Request request(String key) {
+        return Request.builder().putHeaderParams("key", key).build();
+    }
+
+    private static final class Host implements LimitedChannel {
+        private final String uri;
+        private boolean limited;
+        private int requests;
+
+        Host(String uri) {
+            this.uri = uri;
+        }
+
+        @Nullable
+        @Override
+        public ListenableFuture<Response> maybeExecute(Endpoint _endpoint, Request _request) {
+            if (limited) {
+                return null;
+            }
+            requests++;
+            return Futures.immediateFuture(new TestResponse().code(200).withHeader("host", uri));
+        }
+    }
+}
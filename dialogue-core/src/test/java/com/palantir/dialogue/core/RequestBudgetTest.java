@@ -0,0 +1,66 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
+import org.junit.jupiter.api.Test;
+
+public final class RequestBudgetTest {
+
+    @Test
+    public void testAllowsFractionOfRequests() {
+        RequestBudget budget = new RequestBudget(0.1, 10);
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+            if (budget.tryWithdraw()) {
+                allowed++;
+            }
+        }
+        assertThat(allowed).isEqualTo(10);
+    }
+
+    @Test
+    public void testBalanceIsCapped() {
+        RequestBudget budget = new RequestBudget(1, 3);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isFalse();
+    }
+
+    @Test
+    public void testRefund() {
+        RequestBudget budget = new RequestBudget(1, 1);
+        budget.deposit();
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isFalse();
+        budget.refund();
+        assertThat(budget.tryWithdraw()).isTrue();
+    }
+
+    @Test
+    public void testInvalidRatio() {
+        assertThatThrownBy(() -> new RequestBudget(1.5, 1)).isInstanceOf(SafeIllegalArgumentException.class);
+    }
+}
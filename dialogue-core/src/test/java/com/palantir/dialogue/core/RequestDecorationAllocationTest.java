@@ -0,0 +1,116 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.util.concurrent.Futures;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.TestConfigurations;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.SafeArg;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the bytes allocated per request by the headers added in the {@link DialogueChannel} decoration stack.
+ * Absolute numbers depend on the JVM so they're logged rather than asserted, however decorating a request must
+ * remain cheaper than copying it.
+ */
+public final class RequestDecorationAllocationTest {
+    private static final Logger log = LoggerFactory.getLogger(RequestDecorationAllocationTest.class);
+
+    // Headers added by DefaultClients, UserAgentChannel, ContentDecodingChannel and TraceEnrichingChannel.
+    private static final int DECORATIONS = 4;
+
+    private static final Request request = Request.builder()
+            .putHeaderParams("Authorization", "Bearer token")
+            .putHeaderParams("Content-Type", "application/json")
+            .putHeaderParams("Fetch-User-Agent", "client/1.2.3")
+            .putQueryParams("limit", "100")
+            .putQueryParams("pageToken", "ri.foo.main.bar.4f2e9a3c-2b4d-4b0a-9c2e-7a0a3f5e2b1d")
+            .putPathParams("datasetRid", "ri.foundry.main.dataset.6e0d5f7a-ec3e-4e8d-9a4d-2c0c8b6b9d3f")
+            .build();
+
+    @Test
+    public void decorated_requests_share_parent_state() {
+        AtomicReference<Request> transportRequest = new AtomicReference<>();
+        DialogueChannel channel = DialogueChannel.builder()
+                .channelName("my-channel")
+                .clientConfiguration(TestConfigurations.create("http://localhost"))
+                .channelFactory(_uri -> (_endpoint, value) -> {
+                    transportRequest.set(value);
+                    return Futures.immediateFuture(new TestResponse().code(200));
+                })
+                .build();
+
+        Futures.getUnchecked(channel.execute(TestEndpoint.GET, request)).close();
+
+        Request decorated = transportRequest.get();
+        assertThat(decorated.queryParams()).isSameAs(request.queryParams());
+        assertThat(decorated.pathParams()).isSameAs(request.pathParams());
+        assertThat(decorated.headerParams().keySet())
+                .contains("Authorization", "Content-Type", "Fetch-User-Agent", "user-agent", "accept-encoding");
+    }
+
+    @Test
+    public void decorating_allocates_less_than_copying() {
+        long decoratedBytes = AllocationMeasurement.bytesPerOperation(() -> {
+            Request current = request;
+            for (int i = 0; i < DECORATIONS; i++) {
+                current = Request.builder()
+                        .from(current)
+                        .putHeaderParams("header-" + i, "value")
+                        .build();
+            }
+            return current;
+        });
+        long copiedBytes = AllocationMeasurement.bytesPerOperation(() -> {
+            Request current = request;
+            for (int i = 0; i < DECORATIONS; i++) {
+                current = Request.builder()
+                        .putAllHeaderParams(current.headerParams())
+                        .putAllQueryParams(current.queryParams())
+                        .putAllPathParams(current.pathParams())
+                        .putHeaderParams("header-" + i, "value")
+                        .build();
+            }
+            return current;
+        });
+        DialogueChannel channel = DialogueChannel.builder()
+                .channelName("my-channel")
+                .clientConfiguration(TestConfigurations.create("http://localhost"))
+                .channelFactory(_uri -> (_endpoint, _request) -> Futures.immediateFuture(new TestResponse().code(200)))
+                .build();
+        long channelBytes = AllocationMeasurement.bytesPerOperation(() -> {
+            Futures.getUnchecked(channel.execute(TestEndpoint.GET, request)).close();
+            return channel;
+        });
+
+        log.info(
+                "Allocated bytes per request",
+                SafeArg.of("decorations", DECORATIONS),
+                SafeArg.of("decoratedBytes", decoratedBytes),
+                SafeArg.of("copiedBytes", copiedBytes),
+                SafeArg.of("savedBytes", copiedBytes - decoratedBytes),
+                SafeArg.of("dialogueChannelBytes", channelBytes));
+        assertThat(decoratedBytes).isLessThan(copiedBytes);
+    }
+}
@@ -36,6 +36,7 @@ import com.palantir.dialogue.TestEndpoint;
 import com.palantir.dialogue.TestResponse;
 import com.palantir.logsafe.exceptions.SafeIoException;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.time.Duration;
@@ -485,6 +486,61 @@ public class RetryingChannelTest {
         verify(channel, times(1)).execute(any(), any());
     }
 
+    @Test
+    public void retriesAreRejectedWhenBudgetIsExhausted() {
+        when(channel.execute(any(), any())).thenReturn(FAILED);
+
+        DefaultTaggedMetricRegistry registry = new DefaultTaggedMetricRegistry();
+        Channel retryer = retryingChannel(registry, new RequestBudget(0.5, 2, 2));
+        // The first request spends the whole budget on its two retries
+        assertThatThrownBy(retryer.execute(TestEndpoint.POST, REQUEST)::get)
+                .hasRootCauseInstanceOf(SafeIoException.class);
+        verify(channel, times(3)).execute(any(), any());
+
+        // Subsequent failures are returned immediately
+        assertThatThrownBy(retryer.execute(TestEndpoint.POST, REQUEST)::get)
+                .hasRootCauseInstanceOf(SafeIoException.class);
+        verify(channel, times(4)).execute(any(), any());
+        assertThat(DialogueClientMetrics.of(registry)
+                        .requestRetryRejected("my-channel")
+                        .getCount())
+                .isOne();
+    }
+
+    @Test
+    public void successfulResponsesReplenishBudget() throws ExecutionException, InterruptedException {
+        when(channel.execute(any(), any()))
+                .thenReturn(FAILED)
+                .thenReturn(SUCCESS)
+                .thenReturn(SUCCESS)
+                .thenReturn(FAILED)
+                .thenReturn(SUCCESS);
+
+        Channel retryer = retryingChannel(new DefaultTaggedMetricRegistry(), new RequestBudget(0.5, 2, 0));
+        assertThatThrownBy(retryer.execute(TestEndpoint.POST, REQUEST)::get)
+                .hasRootCauseInstanceOf(SafeIoException.class);
+        assertThat(retryer.execute(TestEndpoint.POST, REQUEST).get()).isEqualTo(EXPECTED_RESPONSE);
+        assertThat(retryer.execute(TestEndpoint.POST, REQUEST).get()).isEqualTo(EXPECTED_RESPONSE);
+
+        // Two successes earned a single retry
+        assertThat(retryer.execute(TestEndpoint.POST, REQUEST).get()).isEqualTo(EXPECTED_RESPONSE);
+        verify(channel, times(5)).execute(any(), any());
+    }
+
+    private RetryingChannel retryingChannel(DefaultTaggedMetricRegistry registry, RequestBudget budget) {
+        return new RetryingChannel(
+                channel,
+                "my-channel",
+                registry,
+                2,
+                Duration.ZERO,
+                ClientConfiguration.ServerQoS.AUTOMATIC_RETRY,
+                ClientConfiguration.RetryOnTimeout.DISABLED,
+                RetryingChannel.sharedScheduler.get(),
+                () -> 0.5,
+                budget);
+    }
+
     private static Response mockResponse(int status) {
         Response response = mock(Response.class);
         when(response.code()).thenReturn(status);
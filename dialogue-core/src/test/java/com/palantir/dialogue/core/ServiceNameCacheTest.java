@@ -0,0 +1,38 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public final class ServiceNameCacheTest {
+
+    @Test
+    public void testValuesAreCreatedOncePerServiceName() {
+        AtomicInteger created = new AtomicInteger();
+        ServiceNameCache<String> cache = new ServiceNameCache<>(name -> name + created.incrementAndGet());
+
+        assertThat(cache.get("foo")).isEqualTo("foo1");
+        assertThat(cache.get("foo")).isEqualTo("foo1");
+        assertThat(cache.get("bar")).isEqualTo("bar2");
+        assertThat(cache.get("foo")).isEqualTo("foo1");
+        assertThat(cache.get(new StringBuilder("ba").append('r').toString())).isEqualTo("bar2");
+        assertThat(created).hasValue(2);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.palantir.dialogue.Request;
+import com.palantir.dialogue.Response;
+import com.palantir.dialogue.TestEndpoint;
+import com.palantir.dialogue.TestResponse;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
+import com.palantir.tritium.metrics.registry.DefaultTaggedMetricRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public final class SlowStartChannelTest {
+    private static final Duration WINDOW = Duration.ofMinutes(1);
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicReference<ListenableFuture<Response>> response = new AtomicReference<>();
+    private final LimitedChannel delegate = (_endpoint, _request) -> response.get();
+    private final DialogueClientMetrics metrics = DialogueClientMetrics.of(new DefaultTaggedMetricRegistry());
+
+    @Test
+    public void added_hosts_ramp_up_over_the_window() {
+        SlowStartChannel channel = slowStart(true);
+        assertThat(channel.weight()).isEqualTo(SlowStartChannel.MIN_WEIGHT);
+
+        now.set(WINDOW.toNanos() / 2);
+        assertThat(channel.weight()).isEqualTo(0.5);
+
+        now.set(WINDOW.toNanos());
+        assertThat(channel.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void initial_hosts_start_at_full_weight() {
+        assertThat(slowStart(false).weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void recovered_hosts_ramp_up_again() {
+        SlowStartChannel channel = slowStart(false);
+        for (int i = 0; i < SlowStartChannel.FAILURES_BEFORE_RECOVERY; i++) {
+            execute(channel, Futures.immediateFailedFuture(new IOException("Connection refused")));
+        }
+        assertThat(channel.weight()).describedAs("Still failing").isEqualTo(1);
+
+        now.set(Duration.ofHours(1).toNanos());
+        execute(channel, Futures.immediateFuture(new TestResponse().code(200)));
+        assertThat(channel.weight()).isEqualTo(SlowStartChannel.MIN_WEIGHT);
+
+        now.addAndGet(WINDOW.toNanos());
+        assertThat(channel.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void occasional_errors_do_not_ramp_up_again() {
+        SlowStartChannel channel = slowStart(false);
+        for (int i = 0; i < SlowStartChannel.FAILURES_BEFORE_RECOVERY - 1; i++) {
+            execute(channel, Futures.immediateFuture(new TestResponse().code(500)));
+        }
+        execute(channel, Futures.immediateFuture(new TestResponse().code(200)));
+        assertThat(channel.weight()).isEqualTo(1);
+
+        for (int i = 0; i < SlowStartChannel.FAILURES_BEFORE_RECOVERY; i++) {
+            execute(channel, Futures.immediateFuture(new TestResponse().code(429)));
+        }
+        execute(channel, Futures.immediateFuture(new TestResponse().code(200)));
+        assertThat(channel.weight()).describedAs("Rate limited hosts are up").isEqualTo(1);
+    }
+
+    @Test
+    public void cancelled_requests_do_not_ramp_up_again() {
+        SlowStartChannel channel = slowStart(false);
+        for (int i = 0; i < SlowStartChannel.FAILURES_BEFORE_RECOVERY; i++) {
+            execute(channel, Futures.immediateCancelledFuture());
+        }
+        execute(channel, Futures.immediateFuture(new TestResponse().code(200)));
+        assertThat(channel.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void weight_of_other_channels_is_full() {
+        assertThat(SlowStartChannel.weight(delegate)).isEqualTo(1);
+        assertThat(SlowStartChannel.weight(slowStart(true))).isEqualTo(SlowStartChannel.MIN_WEIGHT);
+    }
+
+    @Test
+    public void window_must_be_positive() {
+        assertThatThrownBy(() -> new SlowStartChannel(delegate, Duration.ZERO, now::get, metrics, "channel", true))
+                .isInstanceOf(SafeIllegalArgumentException.class);
+    }
+
+    private SlowStartChannel slowStart(boolean added) {
+        return new SlowStartChannel(delegate, WINDOW, now::get, metrics, "channel", added);
+    }
+
+    private void execute(SlowStartChannel channel, ListenableFuture<Response> result) {
+        response.set(result);
+        assertThat(channel.maybeExecute(TestEndpoint.GET, Request.builder().build())).isSameAs(result);
+    }
+}
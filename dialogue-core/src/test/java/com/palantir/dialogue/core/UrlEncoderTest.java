@@ -0,0 +1,137 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link BaseUrl.UrlEncoder} with the previous {@link String#getBytes} based implementation on typical
+ * inputs, asserting allocations where the encoder guarantees them.
+ */
+public final class UrlEncoderTest {
+    private static final CharMatcher LEGACY_P_CHAR = CharMatcher.inRange('0', '9')
+            .or(CharMatcher.inRange('a', 'z'))
+            .or(CharMatcher.inRange('A', 'Z'))
+            .or(CharMatcher.anyOf("-._~"))
+            .or(CharMatcher.anyOf("!$&'()*+,;="));
+    private static final CharMatcher LEGACY_QUERY_CHAR =
+            LEGACY_P_CHAR.or(CharMatcher.anyOf("/?")).and(CharMatcher.noneOf("=&+"));
+
+    private static final String RID = "ri.foundry.main.dataset.6e0d5f7a-ec3e-4e8d-9a4d-2c0c8b6b9d3f";
+    private static final String UUID = "3f2b8c1e-5d4a-4f6b-9e7c-1a2b3c4d5e6f";
+    private static final String UNICODE = "Überprüfung/日本語 😀";
+
+    private static final Map<String, String> INPUTS = ImmutableMap.of("rid", RID, "uuid", UUID, "unicode", UNICODE);
+
+    @Test
+    public void ascii_inputs_are_returned_without_copying() {
+        assertThat(BaseUrl.UrlEncoder.encodePathSegment(RID)).isSameAs(RID);
+        assertThat(BaseUrl.UrlEncoder.encodePathSegment(UUID)).isSameAs(UUID);
+        assertThat(BaseUrl.UrlEncoder.encodeQueryNameOrValue(RID)).isSameAs(RID);
+        assertThat(BaseUrl.UrlEncoder.encodeQueryNameOrValue(UUID)).isSameAs(UUID);
+    }
+
+    @Test
+    public void encodes_into_buffer() {
+        StringBuilder buffer = new StringBuilder("prefix/");
+        BaseUrl.UrlEncoder.encodePathSegment(UNICODE, buffer);
+        assertThat(buffer.toString()).isEqualTo("prefix/" + legacyEncode(UNICODE, LEGACY_P_CHAR));
+    }
+
+    @Test
+    public void matches_legacy_encoding() {
+        Random random = new Random(12345);
+        for (int i = 0; i < 10_000; i++) {
+            String input = randomString(random);
+            assertThat(BaseUrl.UrlEncoder.encodePathSegment(input))
+                    .isEqualTo(legacyEncode(input, LEGACY_P_CHAR));
+            assertThat(BaseUrl.UrlEncoder.encodeQueryNameOrValue(input))
+                    .isEqualTo(legacyEncode(input, LEGACY_QUERY_CHAR));
+        }
+        // Unpaired surrogates are replaced by '?', like String.getBytes
+        assertThat(BaseUrl.UrlEncoder.encodePathSegment("a\uD83Db")).isEqualTo("a%3Fb");
+        assertThat(BaseUrl.UrlEncoder.encodeQueryNameOrValue("a\uDE00")).isEqualTo("a?");
+    }
+
+    @Test
+    public void encoding_allocates_less_than_legacy() {
+        StringBuilder buffer = new StringBuilder(256);
+        INPUTS.forEach((name, input) -> {
+            long bytes = AllocationMeasurement.bytesPerOperation(() -> BaseUrl.UrlEncoder.encodePathSegment(input));
+            long bufferBytes = AllocationMeasurement.bytesPerOperation(() -> {
+                buffer.setLength(0);
+                BaseUrl.UrlEncoder.encodePathSegment(input, buffer);
+                return buffer;
+            });
+            long legacyBytes = AllocationMeasurement.bytesPerOperation(() -> legacyEncode(input, LEGACY_P_CHAR));
+            assertThat(bufferBytes).describedAs(name).isZero();
+            assertThat(bytes).describedAs(name).isLessThan(legacyBytes);
+            if (!name.equals("unicode")) {
+                assertThat(bytes).describedAs(name).isZero();
+            }
+        });
+    }
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(12);
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    result.append((char) random.nextInt(0x80));
+                    break;
+                case 1:
+                    result.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 2:
+                    result.append((char) (0x800 + random.nextInt(0xD000)));
+                    break;
+                default:
+                    result.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+            }
+        }
+        return result.toString();
+    }
+
+    // The implementation prior to the table driven encoder.
+    private static String legacyEncode(String source, CharMatcher charactersToKeep) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(source.length());
+        boolean wasChanged = false;
+        for (byte b : bytes) {
+            char unsigned = (char) (b & 0xFF);
+            if (charactersToKeep.matches(unsigned)) {
+                bos.write(b);
+            } else {
+                bos.write('%');
+                bos.write(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                bos.write(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+                wasChanged = true;
+            }
+        }
+        return wasChanged ? new String(bos.toByteArray(), StandardCharsets.UTF_8) : source;
+    }
+}
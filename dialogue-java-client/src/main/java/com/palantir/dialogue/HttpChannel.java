@@ -25,7 +25,6 @@ import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -59,7 +58,7 @@ public final class HttpChannel implements Channel {
     @Override
     public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
         // Create base request given the URL
-        HttpRequest.Builder httpRequest = newRequestBuilder(baseUrl.render(endpoint, request));
+        HttpRequest.Builder httpRequest = HttpRequest.newBuilder().uri(baseUrl.renderUri(endpoint, request));
 
         // Fill request body and set HTTP method
         Preconditions.checkArgument(
@@ -84,14 +83,6 @@ public final class HttpChannel implements Channel {
         return new CompletableToListenableFuture<>(future);
     }
 
-    private static HttpRequest.Builder newRequestBuilder(URL url) {
-        try {
-            return HttpRequest.newBuilder().uri(url.toURI());
-        } catch (URISyntaxException e) {
-            throw new SafeRuntimeException("Failed to construct URI, this is a bug", e);
-        }
-    }
-
     private Response toResponse(HttpResponse<InputStream> response) {
         return new Response() {
             @Override
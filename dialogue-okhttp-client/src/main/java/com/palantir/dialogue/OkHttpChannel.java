@@ -68,7 +68,7 @@ public final class OkHttpChannel implements Channel {
     @Override
     public ListenableFuture<Response> execute(Endpoint endpoint, Request request) {
         // Create base request given the URL
-        okhttp3.Request.Builder okRequest = new okhttp3.Request.Builder().url(baseUrl.render(endpoint, request));
+        okhttp3.Request.Builder okRequest = new okhttp3.Request.Builder().url(baseUrl.renderString(endpoint, request));
 
         // Fill request body and set HTTP method
         switch (endpoint.httpMethod()) {
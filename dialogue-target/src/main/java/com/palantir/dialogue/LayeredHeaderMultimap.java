@@ -0,0 +1,205 @@
+/*
+ * (c) Copyright 2020 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.dialogue;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Read-only view of request headers which adds a small layer of headers on top of the headers of a parent
+ * {@link Request}, allowing a derived request to be created without copying the parent headers. Both the parent
+ * and the layer are expected to compare keys in a case-insensitive fashion.
+ *
+ * Lookups and iteration via {@link #forEach} are served from the parent and layer directly. Less common views like
+ * {@link #asMap()} are served from a flattened copy which is computed lazily.
+ */
+final class LayeredHeaderMultimap implements ListMultimap<String, String> {
+
+    // Bounds the cost of lookups when requests are repeatedly derived from one another.
+    private static final int MAX_DEPTH = 8;
+
+    private final ListMultimap<String, String> parent;
+    private final ListMultimap<String, String> layer;
+    private final int depth;
+
+    @Nullable
+    private volatile ListMultimap<String, String> flattened;
+
+    private LayeredHeaderMultimap(ListMultimap<String, String> parent, ListMultimap<String, String> layer, int depth) {
+        this.parent = parent;
+        this.layer = layer;
+        this.depth = depth;
+    }
+
+    static ListMultimap<String, String> of(ListMultimap<String, String> parent, ListMultimap<String, String> layer) {
+        int parentDepth = parent instanceof LayeredHeaderMultimap ? ((LayeredHeaderMultimap) parent).depth : 0;
+        if (parentDepth >= MAX_DEPTH) {
+            return flatten(parent, layer);
+        }
+        return new LayeredHeaderMultimap(parent, layer, parentDepth + 1);
+    }
+
+    @Override
+    public int size() {
+        return parent.size() + layer.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return parent.isEmpty() && layer.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(@Nullable Object key) {
+        return layer.containsKey(key) || parent.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(@Nullable Object value) {
+        return layer.containsValue(value) || parent.containsValue(value);
+    }
+
+    @Override
+    public boolean containsEntry(@Nullable Object key, @Nullable Object value) {
+        return layer.containsEntry(key, value) || parent.containsEntry(key, value);
+    }
+
+    @Override
+    public List<String> get(@Nullable String key) {
+        List<String> layerValues = layer.get(key);
+        if (layerValues.isEmpty()) {
+            return parent.get(key);
+        }
+        List<String> parentValues = parent.get(key);
+        if (parentValues.isEmpty()) {
+            return layerValues;
+        }
+        List<String> values = new ArrayList<>(parentValues.size() + layerValues.size());
+        values.addAll(parentValues);
+        values.addAll(layerValues);
+        return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super String> action) {
+        parent.forEach(action);
+        layer.forEach(action);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return flattened().keySet();
+    }
+
+    @Override
+    public Multiset<String> keys() {
+        return flattened().keys();
+    }
+
+    @Override
+    public Collection<String> values() {
+        return flattened().values();
+    }
+
+    @Override
+    public Collection<Map.Entry<String, String>> entries() {
+        return flattened().entries();
+    }
+
+    @Override
+    public Map<String, Collection<String>> asMap() {
+        return flattened().asMap();
+    }
+
+    @Override
+    public boolean put(String _key, String _value) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public boolean remove(@Nullable Object _key, @Nullable Object _value) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public boolean putAll(String _key, Iterable<? extends String> _values) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public boolean putAll(Multimap<? extends String, ? extends String> _multimap) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public List<String> replaceValues(String _key, Iterable<? extends String> _values) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public List<String> removeAll(@Nullable Object _key) {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Request headers are immutable");
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+        return flattened().equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return flattened().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return flattened().toString();
+    }
+
+    private ListMultimap<String, String> flattened() {
+        ListMultimap<String, String> result = flattened;
+        if (result == null) {
+            // Benign race, concurrent callers compute equivalent values.
+            result = flatten(parent, layer);
+            flattened = result;
+        }
+        return result;
+    }
+
+    private static ListMultimap<String, String> flatten(
+            ListMultimap<String, String> parent, ListMultimap<String, String> layer) {
+        ListMultimap<String, String> result = Request.newHeaderMultimap();
+        result.putAll(parent);
+        result.putAll(layer);
+        return Multimaps.unmodifiableListMultimap(result);
+    }
+}
@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import javax.annotation.Nullable;
 
 /** Defines the parameters of a single {@link Call} to an {@link Endpoint}. */
 public final class Request {
@@ -38,9 +39,9 @@ public final class Request {
 
     private Request(Builder builder) {
         body = builder.body;
-        headerParams = Multimaps.unmodifiableListMultimap(builder.headerParams);
-        queryParams = builder.queryParams.build();
-        pathParams = builder.pathParams.build();
+        headerParams = builder.buildHeaderParams();
+        queryParams = builder.queryParams == null ? builder.sharedQueryParams : builder.queryParams.build();
+        pathParams = builder.pathParams == null ? builder.sharedPathParams : builder.pathParams.build();
     }
 
     /**
@@ -113,21 +114,64 @@ public final class Request {
         return new Builder();
     }
 
-    public static final class Builder {
-        private ListMultimap<String, String> headerParams = MultimapBuilder.treeKeys(String.CASE_INSENSITIVE_ORDER)
+    /** Creates an empty, mutable multimap which compares header names in a case-insensitive fashion. */
+    static ListMultimap<String, String> newHeaderMultimap() {
+        return MultimapBuilder.treeKeys(String.CASE_INSENSITIVE_ORDER)
                 .arrayListValues()
                 .build();
-        private ImmutableListMultimap.Builder<String, String> queryParams = ImmutableListMultimap.builder();
-        private ImmutableMap.Builder<String, String> pathParams = ImmutableMap.builder();
+    }
+
+    /**
+     * Builds {@link Request} instances. Requests derived {@link #from} an existing request share that request's
+     * immutable state rather than copying it: query and path parameters are only copied once they're modified, and
+     * added headers are {@link LayeredHeaderMultimap layered} over the existing headers. This allows decorating
+     * channels to add headers without the cost of copying every header and parameter on each request.
+     */
+    public static final class Builder {
+        private static final ListMultimap<String, String> EMPTY_HEADERS =
+                Multimaps.unmodifiableListMultimap(newHeaderMultimap());
+
+        // Headers of the request this builder was created from, if any. Never modified.
+        @Nullable
+        private ListMultimap<String, String> parentHeaderParams;
+
+        // Headers added to this builder, created lazily.
+        @Nullable
+        private ListMultimap<String, String> headerParams;
+
+        private ImmutableListMultimap<String, String> sharedQueryParams = ImmutableListMultimap.of();
+
+        // Only non-null once query parameters have been modified, sharedQueryParams are copied at that point.
+        @Nullable
+        private ImmutableListMultimap.Builder<String, String> queryParams;
+
+        private ImmutableMap<String, String> sharedPathParams = ImmutableMap.of();
+
+        // Only non-null once path parameters have been modified, sharedPathParams are copied at that point.
+        @Nullable
+        private ImmutableMap.Builder<String, String> pathParams;
+
         private Optional<RequestBody> body = Optional.empty();
 
         private Builder() {}
 
         public Request.Builder from(Request instance) {
             Preconditions.checkNotNull(instance, "instance");
-            putAllHeaderParams(instance.headerParams());
-            putAllQueryParams(instance.queryParams());
-            putAllPathParams(instance.pathParams());
+            if (parentHeaderParams == null && (headerParams == null || headerParams.isEmpty())) {
+                parentHeaderParams = instance.headerParams();
+            } else {
+                putAllHeaderParams(instance.headerParams());
+            }
+            if (queryParams == null && sharedQueryParams.isEmpty()) {
+                sharedQueryParams = instance.queryParams;
+            } else {
+                putAllQueryParams(instance.queryParams());
+            }
+            if (pathParams == null && sharedPathParams.isEmpty()) {
+                sharedPathParams = instance.pathParams;
+            } else {
+                putAllPathParams(instance.pathParams());
+            }
             Optional<RequestBody> bodyOptional = instance.body();
             if (bodyOptional.isPresent()) {
                 body(bodyOptional);
@@ -140,72 +184,75 @@ public final class Request {
         }
 
         public Request.Builder putHeaderParams(String key, String value) {
-            headerParams.put(key, value);
+            mutableHeaderParams().put(key, value);
             return this;
         }
 
         public Request.Builder headerParams(Multimap<String, ? extends String> entries) {
-            headerParams.clear();
+            parentHeaderParams = null;
+            mutableHeaderParams().clear();
             return putAllHeaderParams(entries);
         }
 
         public Request.Builder putAllHeaderParams(String key, Iterable<String> values) {
-            headerParams.putAll(key, values);
+            mutableHeaderParams().putAll(key, values);
             return this;
         }
 
         public Request.Builder putAllHeaderParams(Multimap<String, ? extends String> entries) {
-            headerParams.putAll(entries);
+            mutableHeaderParams().putAll(entries);
             return this;
         }
 
         public Request.Builder putQueryParams(String key, String... values) {
-            queryParams.putAll(key, values);
+            mutableQueryParams().putAll(key, values);
             return this;
         }
 
         public Request.Builder putQueryParams(String key, String value) {
-            queryParams.put(key, value);
+            mutableQueryParams().put(key, value);
             return this;
         }
 
         public Request.Builder putQueryParams(Map.Entry<String, ? extends String> entry) {
-            queryParams.put(entry);
+            mutableQueryParams().put(entry);
             return this;
         }
 
         public Request.Builder queryParams(Multimap<String, ? extends String> entries) {
+            sharedQueryParams = ImmutableListMultimap.of();
             queryParams = ImmutableListMultimap.builder();
             return putAllQueryParams(entries);
         }
 
         public Request.Builder putAllQueryParams(String key, Iterable<String> values) {
-            queryParams.putAll(key, values);
+            mutableQueryParams().putAll(key, values);
             return this;
         }
 
         public Request.Builder putAllQueryParams(Multimap<String, ? extends String> entries) {
-            queryParams.putAll(entries);
+            mutableQueryParams().putAll(entries);
             return this;
         }
 
         public Request.Builder putPathParams(String key, String value) {
-            pathParams.put(key, value);
+            mutablePathParams().put(key, value);
             return this;
         }
 
         public Request.Builder putPathParams(Map.Entry<String, ? extends String> entry) {
-            pathParams.put(entry);
+            mutablePathParams().put(entry);
             return this;
         }
 
         public Request.Builder pathParams(Map<String, ? extends String> entries) {
+            sharedPathParams = ImmutableMap.of();
             pathParams = ImmutableMap.builder();
             return putAllPathParams(entries);
         }
 
         public Request.Builder putAllPathParams(Map<String, ? extends String> entries) {
-            pathParams.putAll(entries);
+            mutablePathParams().putAll(entries);
             return this;
         }
 
@@ -223,5 +270,42 @@ public final class Request {
         public Request build() {
             return new Request(this);
         }
+
+        private ListMultimap<String, String> mutableHeaderParams() {
+            ListMultimap<String, String> result = headerParams;
+            if (result == null) {
+                result = newHeaderMultimap();
+                headerParams = result;
+            }
+            return result;
+        }
+
+        private ImmutableListMultimap.Builder<String, String> mutableQueryParams() {
+            ImmutableListMultimap.Builder<String, String> result = queryParams;
+            if (result == null) {
+                result = ImmutableListMultimap.<String, String>builder().putAll(sharedQueryParams);
+                queryParams = result;
+            }
+            return result;
+        }
+
+        private ImmutableMap.Builder<String, String> mutablePathParams() {
+            ImmutableMap.Builder<String, String> result = pathParams;
+            if (result == null) {
+                result = ImmutableMap.<String, String>builder().putAll(sharedPathParams);
+                pathParams = result;
+            }
+            return result;
+        }
+
+        private ListMultimap<String, String> buildHeaderParams() {
+            ListMultimap<String, String> parent = parentHeaderParams;
+            ListMultimap<String, String> added = headerParams;
+            if (added == null || added.isEmpty()) {
+                return parent == null ? EMPTY_HEADERS : parent;
+            }
+            ListMultimap<String, String> unmodifiableAdded = Multimaps.unmodifiableListMultimap(added);
+            return parent == null ? unmodifiableAdded : LayeredHeaderMultimap.of(parent, unmodifiableAdded);
+        }
     }
 }
@@ -19,6 +19,7 @@ package com.palantir.dialogue;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.guava.api.Assertions.assertThat;
 
+import com.google.common.collect.ImmutableListMultimap;
 import com.palantir.tokens.auth.AuthHeader;
 import com.palantir.tokens.auth.BearerToken;
 import org.junit.jupiter.api.Test;
@@ -44,4 +45,76 @@ public final class RequestTest {
                 .build();
         assertThat(request).asString().doesNotContain(sentinel);
     }
+
+    @Test
+    public void testDerivedRequestSharesParentState() {
+        Request original = Request.builder()
+                .putHeaderParams("Foo", "bar")
+                .putQueryParams("query", "value")
+                .putPathParams("path", "value")
+                .build();
+        Request derived = Request.builder()
+                .from(original)
+                .putHeaderParams("baz", "qux")
+                .build();
+        assertThat(derived.queryParams()).isSameAs(original.queryParams());
+        assertThat(derived.pathParams()).isSameAs(original.pathParams());
+        assertThat(derived.headerParams()).containsKeys("foo", "BAZ").hasSize(2);
+        assertThat(original.headerParams()).containsKeys("foo").hasSize(1);
+    }
+
+    @Test
+    public void testDerivedRequestHeaders() {
+        Request original = Request.builder().putHeaderParams("Foo", "bar").build();
+        Request derived = Request.builder()
+                .from(Request.builder()
+                        .from(original)
+                        .putHeaderParams("foo", "baz")
+                        .build())
+                .putHeaderParams("other", "value")
+                .build();
+        assertThat(derived.headerParams().get("FOO")).containsExactly("bar", "baz");
+        assertThat(derived.headerParams().get("other")).containsExactly("value");
+        assertThat(derived.headerParams().get("missing")).isEmpty();
+        assertThat(derived.headerParams().containsEntry("foo", "baz")).isTrue();
+        assertThat(derived.headerParams().keySet()).containsExactly("Foo", "other");
+    }
+
+    @Test
+    public void testDerivedRequestEquality() {
+        Request original = Request.builder()
+                .putHeaderParams("Foo", "bar")
+                .putQueryParams("query", "value")
+                .build();
+        Request derived = Request.builder()
+                .from(original)
+                .putHeaderParams("Other", "value")
+                .build();
+        Request copied = Request.builder()
+                .putHeaderParams("Foo", "bar")
+                .putHeaderParams("Other", "value")
+                .putQueryParams("query", "value")
+                .build();
+        assertThat(derived).isEqualTo(copied).hasSameHashCodeAs(copied);
+        assertThat(copied).isEqualTo(derived);
+    }
+
+    @Test
+    public void testDerivedRequestParametersAreCopiedOnWrite() {
+        Request original = Request.builder()
+                .putHeaderParams("Foo", "bar")
+                .putQueryParams("query", "value")
+                .putPathParams("path", "value")
+                .build();
+        Request derived = Request.builder()
+                .from(original)
+                .putQueryParams("query", "other")
+                .headerParams(ImmutableListMultimap.of("replaced", "value"))
+                .build();
+        assertThat(derived.queryParams().get("query")).containsExactly("value", "other");
+        assertThat(derived.headerParams().keySet()).containsExactly("replaced");
+        assertThat(derived.pathParams()).isSameAs(original.pathParams());
+        assertThat(original.queryParams().get("query")).containsExactly("value");
+        assertThat(original.headerParams().keySet()).containsExactly("Foo");
+    }
 }
@@ -18,6 +18,7 @@ package com.palantir.dialogue.core;
 
 import com.codahale.metrics.Snapshot;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -30,7 +31,9 @@ import com.palantir.dialogue.Request;
 import com.palantir.dialogue.Response;
 import com.palantir.logsafe.Preconditions;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
@@ -53,6 +56,7 @@ import org.slf4j.LoggerFactory;
 public final class Benchmark {
     private static final Logger log = LoggerFactory.getLogger(Benchmark.class);
     static final String REQUEST_ID_HEADER = "simulation-req-id";
+    static final String AFFINITY_KEY_HEADER = "simulation-affinity-key";
 
     private Simulation simulation;
     private Duration delayBetweenRequests;
@@ -104,6 +108,20 @@ public final class Benchmark {
         return this;
     }
 
+    /** Tags each request with one of {@code numKeys} affinity keys, e.g. the id of the resource it requests. */
+    public Benchmark affinityKeys(int numKeys) {
+        Preconditions.checkNotNull(requestStream, "Must call sendUntil or numRequests first");
+        Random pseudoRandom = new Random(9823475234L);
+        requestStream = requestStream.map(req -> ImmutableScheduledRequest.builder()
+                .from(req)
+                .request(Request.builder()
+                        .from(req.request())
+                        .putHeaderParams(AFFINITY_KEY_HEADER, "key-" + pseudoRandom.nextInt(numKeys))
+                        .build())
+                .build());
+        return this;
+    }
+
     public Benchmark simulation(Simulation sim) {
         simulation = sim;
         return this;
@@ -177,6 +195,7 @@ public final class Benchmark {
         long[] requestsStarted = {0};
         long[] responsesReceived = {0};
         Map<String, Integer> statusCodes = new TreeMap<>();
+        Map<String, List<Long>> endpointLatencies = new TreeMap<>();
 
         Stopwatch scheduling = Stopwatch.createStarted();
         requestStream.forEach(req -> {
@@ -204,6 +223,7 @@ public final class Benchmark {
                                         req.number(),
                                         req);
                                 Channel channel = channels[clientIndexChooser.getAsInt()];
+                                long startNanos = simulation.clock().read();
                                 try {
                                     ListenableFuture<Response> future = channel.execute(req.endpoint(), req.request());
                                     requestsStarted[0] += 1;
@@ -212,6 +232,11 @@ public final class Benchmark {
                                     future.addListener(
                                             () -> {
                                                 responsesReceived[0] += 1;
+                                                endpointLatencies
+                                                        .computeIfAbsent(
+                                                                req.endpoint().endpointName(),
+                                                                _name -> new ArrayList<>())
+                                                        .add(simulation.clock().read() - startNanos);
                                                 benchmarkFinished.update(
                                                         Duration.ofNanos(simulation
                                                                 .clock()
@@ -254,11 +279,24 @@ public final class Benchmark {
                             .numReceived(responsesReceived[0])
                             .numGlobalResponses(numGlobalResponses)
                             .responsesLeaked(leaked)
+                            .numHedges(MetricNames.hedges(simulation.taggedMetrics()))
+                            .numStaleResponses(MetricNames.staleResponses(simulation.taggedMetrics()))
+                            .endpointP99s(Maps.transformValues(endpointLatencies, Benchmark::p99))
+                            .affinityKeysPerServer(MetricNames.affinityKeysPerServer(simulation.taggedMetrics()))
+                            .cacheHits(MetricNames.cacheHits(simulation.taggedMetrics())
+                                    .getCount())
+                            .cacheMisses(MetricNames.cacheMisses(simulation.taggedMetrics())
+                                    .getCount())
                             .build();
                 },
                 MoreExecutors.directExecutor());
     }
 
+    private static Duration p99(List<Long> latencies) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        return Duration.ofNanos(sorted[(int) Math.ceil(sorted.length * 0.99) - 1]);
+    }
+
     private Stream<ScheduledRequest> infiniteRequests(Duration interval) {
         return LongStream.iterate(0, current -> current + 1).mapToObj(number -> {
             return ImmutableScheduledRequest.builder()
@@ -291,6 +329,24 @@ public final class Benchmark {
 
         /** How many responses were never closed. */
         long responsesLeaked();
+
+        /** How many hedged attempts were sent across all clients. */
+        long numHedges();
+
+        /** How many failures were replaced by stale responses from the response cache across all clients. */
+        long numStaleResponses();
+
+        /** The 99th percentile of client-perceived response times of each endpoint, keyed by endpoint name. */
+        Map<String, Duration> endpointP99s();
+
+        /** How many distinct affinity keys each server has received, keyed by server name. */
+        Map<String, Long> affinityKeysPerServer();
+
+        /** How many requests were for affinity keys the server had received before, i.e. cache hits. */
+        long cacheHits();
+
+        /** How many requests were for affinity keys the server had not received before. */
+        long cacheMisses();
     }
 
     /**
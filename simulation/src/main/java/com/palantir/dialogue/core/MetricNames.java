@@ -21,6 +21,8 @@ import com.codahale.metrics.Meter;
 import com.palantir.dialogue.Endpoint;
 import com.palantir.tritium.metrics.registry.MetricName;
 import com.palantir.tritium.metrics.registry.TaggedMetricRegistry;
+import java.util.Map;
+import java.util.TreeMap;
 
 final class MetricNames {
     /** Counter incremented every time a {@code Response} is closed. */
@@ -55,5 +57,58 @@ final class MetricNames {
                 .build());
     }
 
+    /** Total hedged attempts sent by all clients, regardless of tags. */
+    static long hedges(TaggedMetricRegistry registry) {
+        long[] total = {0};
+        registry.forEachMetric((name, metric) -> {
+            if (name.safeName().equals("dialogue.client.request.hedge") && metric instanceof Meter) {
+                total[0] += ((Meter) metric).getCount();
+            }
+        });
+        return total[0];
+    }
+
+    /** Total stale responses served from response caches in place of failures, regardless of tags. */
+    static long staleResponses(TaggedMetricRegistry registry) {
+        long[] total = {0};
+        registry.forEachMetric((name, metric) -> {
+            if (name.safeName().equals("dialogue.client.response.cache")
+                    && "stale".equals(name.safeTags().get("result"))
+                    && metric instanceof Meter) {
+                total[0] += ((Meter) metric).getCount();
+            }
+        });
+        return total[0];
+    }
+
+    /** Counter for how many distinct affinity keys a server has received, which it would hold in its cache. */
+    static Counter affinityKeys(TaggedMetricRegistry reg, String serverName) {
+        return reg.counter(MetricName.builder()
+                .safeName("affinityKeys")
+                .putSafeTags("server", serverName)
+                .build());
+    }
+
+    /** Distinct affinity keys received by each server, keyed by server name. */
+    static Map<String, Long> affinityKeysPerServer(TaggedMetricRegistry registry) {
+        Map<String, Long> keys = new TreeMap<>();
+        registry.forEachMetric((name, metric) -> {
+            if (name.safeName().equals("affinityKeys") && metric instanceof Counter) {
+                keys.put(name.safeTags().get("server"), ((Counter) metric).getCount());
+            }
+        });
+        return keys;
+    }
+
+    /** Counter for requests with an affinity key which the server had received before. */
+    static Counter cacheHits(TaggedMetricRegistry registry) {
+        return registry.counter(MetricName.builder().safeName("cacheHits").build());
+    }
+
+    /** Counter for requests with an affinity key which the server had not received before. */
+    static Counter cacheMisses(TaggedMetricRegistry registry) {
+        return registry.counter(MetricName.builder().safeName("cacheMisses").build());
+    }
+
     private MetricNames() {}
 }
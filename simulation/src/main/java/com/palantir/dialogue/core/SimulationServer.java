@@ -31,7 +31,10 @@ import com.palantir.dialogue.TestResponse;
 import com.palantir.logsafe.Preconditions;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
 import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -53,6 +56,8 @@ final class SimulationServer implements Channel {
     private final Counter activeRequests;
     private final Counter globalResponses;
     private final Counter globalServerTimeNanos;
+    // Affinity keys the server has received, an idealized cache which never evicts
+    private final Set<String> cachedKeys = new HashSet<>();
 
     private SimulationServer(Builder builder) {
         this.serverName = Preconditions.checkNotNull(builder.serverName, "serverName");
@@ -75,6 +80,7 @@ final class SimulationServer implements Channel {
 
         activeRequests.inc();
         perEndpointRequests.mark();
+        recordAffinityKey(request);
         simulation.metricsReporter().report();
 
         for (ServerHandler handler : handlers) {
@@ -118,6 +124,19 @@ final class SimulationServer implements Channel {
         return Futures.immediateFailedFuture(new SafeRuntimeException("No handler"));
     }
 
+    private void recordAffinityKey(Request request) {
+        List<String> keys = request.headerParams().get(Benchmark.AFFINITY_KEY_HEADER);
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (cachedKeys.add(keys.get(0))) {
+            MetricNames.affinityKeys(simulation.taggedMetrics(), serverName).inc();
+            MetricNames.cacheMisses(simulation.taggedMetrics()).inc();
+        } else {
+            MetricNames.cacheHits(simulation.taggedMetrics()).inc();
+        }
+    }
+
     @Override
     public String toString() {
         return serverName;
@@ -41,6 +41,7 @@ import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -104,6 +105,7 @@ public class SimulationTest {
     private final Simulation simulation = new Simulation();
     private Supplier<Map<String, SimulationServer>> servers;
     private Benchmark.BenchmarkResult result;
+    private boolean reportEndpointP99s;
 
     @Test
     public void simplest_possible_case() {
@@ -169,6 +171,40 @@ public class SimulationTest {
                 .run();
     }
 
+    /**
+     * Every server is healthy, but 2% of requests take twenty times longer than usual (e.g. due to GC pauses). Only
+     * hedged requests can avoid the resulting tail latency, compare client_p99 between strategies.
+     */
+    @Test
+    public void long_tail_latency() {
+        Endpoint getEndpoint = SimulationUtils.endpoint("endpoint", HttpMethod.GET);
+        servers = servers(
+                SimulationServer.builder()
+                        .serverName("node1")
+                        .simulation(simulation)
+                        .handler(getEndpoint, h -> h.response(200).responseTime(longTail(1)))
+                        .build(),
+                SimulationServer.builder()
+                        .serverName("node2")
+                        .simulation(simulation)
+                        .handler(getEndpoint, h -> h.response(200).responseTime(longTail(2)))
+                        .build(),
+                SimulationServer.builder()
+                        .serverName("node3")
+                        .simulation(simulation)
+                        .handler(getEndpoint, h -> h.response(200).responseTime(longTail(3)))
+                        .build());
+
+        result = Benchmark.builder()
+                .requestsPerSecond(200)
+                .simulation(simulation)
+                .sendUntil(Duration.ofSeconds(20))
+                .endpoints(getEndpoint)
+                .clients(10, i -> strategy.getChannel(simulation, servers))
+                .abortAfter(Duration.ofMinutes(10))
+                .run();
+    }
+
     @Test
     public void slow_503s_then_revert() {
         int capacity = 60;
@@ -305,6 +341,54 @@ public class SimulationTest {
                 .run();
     }
 
+    @Test
+    public void black_hole_full_outage() {
+        blackHoleFullOutage(UnaryOperator.identity());
+    }
+
+    /** Same outage as {@link #black_hole_full_outage}, with failed requests served from the response cache. */
+    @Test
+    public void black_hole_full_outage_stale_if_error() {
+        blackHoleFullOutage(channel -> channel.responseCache(ResponseCachePolicy.builder()
+                .cacheableEndpoints(_endpoint -> true)
+                .staleIfError(Duration.ofMinutes(1))
+                .build()));
+    }
+
+    /**
+     * Every node becomes a black hole, so once the concurrency limits are exhausted requests are queued until they
+     * fail at their deadline.
+     */
+    private void blackHoleFullOutage(UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        Endpoint getEndpoint = SimulationUtils.endpoint("endpoint", HttpMethod.GET);
+        servers = servers(
+                SimulationServer.builder()
+                        .serverName("node1_black_hole")
+                        .simulation(simulation)
+                        .handler(h -> h.response(200).responseTime(Duration.ofMillis(600)))
+                        .until(Duration.ofSeconds(3), "black hole")
+                        .handler(h -> h.response(200).responseTime(Duration.ofDays(1)))
+                        .build(),
+                SimulationServer.builder()
+                        .serverName("node2_black_hole")
+                        .simulation(simulation)
+                        .handler(h -> h.response(200).responseTime(Duration.ofMillis(600)))
+                        .until(Duration.ofSeconds(3), "black hole")
+                        .handler(h -> h.response(200).responseTime(Duration.ofDays(1)))
+                        .build());
+
+        UnaryOperator<DialogueChannel.Builder> withDeadlines = channel -> applyChannel.apply(
+                channel.requestDeadlines(_endpoint -> Optional.of(Duration.ofSeconds(1))));
+        result = Benchmark.builder()
+                .simulation(simulation)
+                .requestsPerSecond(200)
+                .sendUntil(Duration.ofSeconds(10))
+                .endpoints(getEndpoint)
+                .abortAfter(Duration.ofSeconds(30)) // otherwise the test never terminates!
+                .clients(10, i -> strategy.getChannel(simulation, servers, withDeadlines))
+                .run();
+    }
+
     @Test
     public void one_endpoint_dies_on_each_server() {
         Endpoint endpoint1 = SimulationUtils.endpoint("e1", HttpMethod.POST);
@@ -428,6 +512,79 @@ public class SimulationTest {
                 .run();
     }
 
+    /**
+     * Interactive requests are mixed with four times as many background requests, more than the servers can handle
+     * without queueing. Interactive requests should skip the queue and always find capacity on the servers.
+     */
+    @Test
+    public void interactive_and_background_traffic() {
+        Endpoint interactive = SimulationUtils.endpoint("interactive", HttpMethod.GET);
+        Endpoint background = SimulationUtils.endpoint("background", HttpMethod.POST);
+        int capacity = 20;
+        servers = servers(
+                SimulationServer.builder()
+                        .serverName("node1")
+                        .simulation(simulation)
+                        .handler(h -> h.response(200).linearResponseTime(Duration.ofMillis(100), capacity))
+                        .build(),
+                SimulationServer.builder()
+                        .serverName("node2")
+                        .simulation(simulation)
+                        .handler(h -> h.response(200).linearResponseTime(Duration.ofMillis(100), capacity))
+                        .build());
+
+        reportEndpointP99s = true;
+        result = Benchmark.builder()
+                .requestsPerSecond(500)
+                .sendUntil(Duration.ofSeconds(20))
+                .endpoints(interactive, background, background, background, background)
+                .client(strategy.getChannel(
+                        simulation,
+                        servers,
+                        channelBuilder -> channelBuilder.requestPriorities(endpoint -> endpoint == interactive
+                                ? RequestPriority.INTERACTIVE
+                                : RequestPriority.BACKGROUND)))
+                .simulation(simulation)
+                .abortAfter(Duration.ofMinutes(1))
+                .run();
+    }
+
+    @Test
+    public void cache_affinity() {
+        int capacity = 40;
+        servers = liveReloadingServers(
+                beginAt(
+                        Duration.ZERO,
+                        SimulationServer.builder()
+                                .serverName("node1")
+                                .simulation(simulation)
+                                .handler(h -> h.response(200).linearResponseTime(Duration.ofMillis(100), capacity))
+                                .build()),
+                beginAt(
+                        Duration.ZERO,
+                        SimulationServer.builder()
+                                .serverName("node2")
+                                .simulation(simulation)
+                                .handler(h -> h.response(200).linearResponseTime(Duration.ofMillis(100), capacity))
+                                .build()),
+                beginAt(
+                        Duration.ofSeconds(10),
+                        SimulationServer.builder()
+                                .serverName("added_halfway")
+                                .simulation(simulation)
+                                .handler(h -> h.response(200).linearResponseTime(Duration.ofMillis(100), capacity))
+                                .build()));
+
+        result = Benchmark.builder()
+                .simulation(simulation)
+                .requestsPerSecond(200)
+                .sendUntil(Duration.ofSeconds(20))
+                .affinityKeys(500)
+                .clients(10, i -> strategy.getChannel(simulation, servers))
+                .abortAfter(Duration.ofMinutes(1))
+                .run();
+    }
+
     private Function<SimulationServer, Response> respond500AtRate(double rate) {
         Random random = new Random(4 /* Chosen by fair dice roll. Guaranteed to be random. */);
         return _server -> {
@@ -438,6 +595,11 @@ public class SimulationTest {
         };
     }
 
+    private static SimulationServer.ResponseTimeFunction longTail(long seed) {
+        Random random = new Random(seed);
+        return _server -> random.nextDouble() < 0.02 ? Duration.ofSeconds(2) : Duration.ofMillis(100);
+    }
+
     private Supplier<Map<String, SimulationServer>> servers(SimulationServer... values) {
         return Suppliers.memoize(
                 () -> Arrays.stream(values).collect(Collectors.toMap(SimulationServer::toString, Function.identity())));
@@ -473,18 +635,40 @@ public class SimulationTest {
         Duration serverCpu = Duration.ofNanos(
                 MetricNames.globalServerTimeNanos(simulation.taggedMetrics()).getCount());
         long clientMeanNanos = (long) result.clientHistogram().getMean();
+        long clientP99Nanos = (long) result.clientHistogram().get99thPercentile();
         double clientMeanMillis = TimeUnit.MILLISECONDS.convert(clientMeanNanos, TimeUnit.NANOSECONDS);
 
         // intentionally using tabs so that opening report.txt with 'cat' aligns columns nicely
         String longSummary = String.format(
-                "success=%s%%\tclient_mean=%-15s\tserver_cpu=%-15s\tclient_received=%s/%s\tserver_resps=%s\tcodes=%s",
+                "success=%s%%\tclient_mean=%-15s\tclient_p99=%-15s\tserver_cpu=%-15s\tclient_received=%s/%s"
+                        + "\tserver_resps=%s\tcodes=%s",
                 result.successPercentage(),
                 Duration.of(clientMeanNanos, ChronoUnit.NANOS),
+                Duration.of(clientP99Nanos, ChronoUnit.NANOS),
                 serverCpu,
                 result.numReceived(),
                 result.numSent(),
                 result.numGlobalResponses(),
                 result.statusCodes());
+        if (result.numHedges() > 0) {
+            // hedge rate relative to the requests sent by clients
+            longSummary += String.format(
+                    "\thedges=%s (%.1f%%)", result.numHedges(), result.numHedges() * 100d / result.numSent());
+        }
+        if (result.numStaleResponses() > 0) {
+            // failures which were replaced by a stale response from the cache
+            longSummary += "\tstale_responses=" + result.numStaleResponses();
+        }
+        if (reportEndpointP99s) {
+            longSummary += "\tendpoint_p99=" + result.endpointP99s();
+        }
+        if (!result.affinityKeysPerServer().isEmpty()) {
+            // hit rate of a cache on each server which holds every key it has received
+            longSummary += String.format(
+                    "\tcache_hits=%.1f%%\taffinity_keys=%s",
+                    result.cacheHits() * 100d / (result.cacheHits() + result.cacheMisses()),
+                    result.affinityKeysPerServer());
+        }
 
         Path txt = Paths.get("src/test/resources/txt/" + testName.getMethodName() + ".txt");
         String pngPath = "src/test/resources/" + testName.getMethodName() + ".png";
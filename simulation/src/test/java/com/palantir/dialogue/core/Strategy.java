@@ -28,52 +28,150 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.Map;
-import java.util.function.BiFunction;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
 @SuppressWarnings("ImmutableEnumChecker")
 public enum Strategy {
     CONCURRENCY_LIMITER_ROUND_ROBIN(Strategy::concurrencyLimiter),
+    CONCURRENCY_LIMITER_GRADIENT_ROUND_ROBIN(Strategy::gradientConcurrencyLimiter),
     CONCURRENCY_LIMITER_PIN_UNTIL_ERROR(Strategy::pinUntilError),
+    CONCURRENCY_LIMITER_LEAST_OUTSTANDING(Strategy::leastOutstanding),
+    CONCURRENCY_LIMITER_LATENCY_AWARE(Strategy::latencyAware),
+    CONCURRENCY_LIMITER_HEDGED_LEAST_OUTSTANDING(Strategy::hedgedLeastOutstanding),
+    CONCURRENCY_LIMITER_CONSISTENT_HASHING(Strategy::consistentHashing),
     UNLIMITED_ROUND_ROBIN(Strategy::unlimitedRoundRobin);
 
-    private final BiFunction<Simulation, Supplier<Map<String, SimulationServer>>, Channel> getChannel;
+    private final ChannelFunction getChannel;
 
-    Strategy(BiFunction<Simulation, Supplier<Map<String, SimulationServer>>, Channel> getChannel) {
+    Strategy(ChannelFunction getChannel) {
         this.getChannel = getChannel;
     }
 
     public Channel getChannel(Simulation simulation, Supplier<Map<String, SimulationServer>> servers) {
-        return getChannel.apply(simulation, servers);
+        return getChannel(simulation, servers, UnaryOperator.identity());
     }
 
-    private static Channel concurrencyLimiter(Simulation sim, Supplier<Map<String, SimulationServer>> channelSupplier) {
-        return withDefaults(sim, channelSupplier, configBuilder -> configBuilder
-                .nodeSelectionStrategy(NodeSelectionStrategy.ROUND_ROBIN)
-                .failedUrlCooldown(Duration.ofMillis(200)));
+    /** Allows scenarios to configure the channel further, e.g. to exercise opt-in features. */
+    public Channel getChannel(
+            Simulation simulation,
+            Supplier<Map<String, SimulationServer>> servers,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return getChannel.apply(simulation, servers, applyChannel);
     }
 
-    private static Channel pinUntilError(Simulation sim, Supplier<Map<String, SimulationServer>> channelSupplier) {
+    private static Channel concurrencyLimiter(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder
+                        .nodeSelectionStrategy(NodeSelectionStrategy.ROUND_ROBIN)
+                        .failedUrlCooldown(Duration.ofMillis(200)),
+                applyChannel);
+    }
+
+    private static Channel gradientConcurrencyLimiter(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder
+                        .nodeSelectionStrategy(NodeSelectionStrategy.ROUND_ROBIN)
+                        .failedUrlCooldown(Duration.ofMillis(200)),
+                channelBuilder -> applyChannel.apply(
+                        channelBuilder.concurrencyLimitStrategy(ConcurrencyLimitStrategy.GRADIENT)));
+    }
+
+    private static Channel leastOutstanding(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
         return withDefaults(
                 sim,
                 channelSupplier,
-                configBuilder -> configBuilder.nodeSelectionStrategy(NodeSelectionStrategy.PIN_UNTIL_ERROR));
+                configBuilder -> configBuilder.failedUrlCooldown(Duration.ofMillis(200)),
+                channelBuilder -> applyChannel.apply(channelBuilder.nodeSelectionStrategy(
+                        DialogueNodeSelectionStrategy.LEAST_OUTSTANDING_REQUESTS)));
+    }
+
+    private static Channel latencyAware(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder.failedUrlCooldown(Duration.ofMillis(200)),
+                channelBuilder -> applyChannel.apply(
+                        channelBuilder.nodeSelectionStrategy(DialogueNodeSelectionStrategy.LATENCY_AWARE)));
+    }
+
+    private static Channel hedgedLeastOutstanding(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder.failedUrlCooldown(Duration.ofMillis(200)),
+                channelBuilder -> applyChannel.apply(channelBuilder
+                        .nodeSelectionStrategy(DialogueNodeSelectionStrategy.LEAST_OUTSTANDING_REQUESTS)
+                        .hedgingPolicy(HedgingPolicy.builder().build())));
+    }
+
+    private static Channel consistentHashing(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder.failedUrlCooldown(Duration.ofMillis(200)),
+                channelBuilder -> applyChannel.apply(channelBuilder
+                        .nodeSelectionStrategy(DialogueNodeSelectionStrategy.CONSISTENT_HASHING)
+                        .affinityKey((_endpoint, request) -> request.headerParams()
+                                .get(Benchmark.AFFINITY_KEY_HEADER)
+                                .stream()
+                                .findFirst())));
+    }
+
+    private static Channel pinUntilError(
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder.nodeSelectionStrategy(NodeSelectionStrategy.PIN_UNTIL_ERROR),
+                applyChannel);
     }
 
     private static Channel unlimitedRoundRobin(
-            Simulation sim, Supplier<Map<String, SimulationServer>> channelSupplier) {
-        return withDefaults(sim, channelSupplier, configBuilder -> configBuilder
-                .nodeSelectionStrategy(NodeSelectionStrategy.ROUND_ROBIN)
-                .failedUrlCooldown(Duration.ofMillis(200))
-                .clientQoS(ClientConfiguration.ClientQoS.DANGEROUS_DISABLE_SYMPATHETIC_CLIENT_QOS));
+            Simulation sim,
+            Supplier<Map<String, SimulationServer>> channelSupplier,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        return withDefaults(
+                sim,
+                channelSupplier,
+                configBuilder -> configBuilder
+                        .nodeSelectionStrategy(NodeSelectionStrategy.ROUND_ROBIN)
+                        .failedUrlCooldown(Duration.ofMillis(200))
+                        .clientQoS(ClientConfiguration.ClientQoS.DANGEROUS_DISABLE_SYMPATHETIC_CLIENT_QOS),
+                applyChannel);
     }
 
     private static Channel withDefaults(
             Simulation sim,
             Supplier<Map<String, SimulationServer>> channelSupplier,
-            UnaryOperator<ClientConfiguration.Builder> applyConfig) {
-        DialogueChannel channel = DialogueChannel.builder()
+            UnaryOperator<ClientConfiguration.Builder> applyConfig,
+            UnaryOperator<DialogueChannel.Builder> applyChannel) {
+        DialogueChannel channel = applyChannel
+                .apply(DialogueChannel.builder())
                 .channelName(SimulationUtils.CHANNEL_NAME)
                 .clientConfiguration(applyConfig
                         .apply(ClientConfiguration.builder()
@@ -83,6 +181,7 @@ public enum Strategy {
                         .build())
                 .channelFactory(uri -> channelSupplier.get().get(uri))
                 .random(sim.pseudoRandom())
+                .clock(sim.clock())
                 .scheduler(sim.scheduler())
                 .build();
 
@@ -93,6 +192,13 @@ public enum Strategy {
                 });
     }
 
+    private interface ChannelFunction {
+        Channel apply(
+                Simulation sim,
+                Supplier<Map<String, SimulationServer>> channelSupplier,
+                UnaryOperator<DialogueChannel.Builder> applyChannel);
+    }
+
     private static ClientConfiguration stubConfig() {
         return ClientConfiguration.builder()
                 .from(ClientConfigurations.of(ServiceConfiguration.builder()